@@ -22,13 +22,18 @@
 
 package org.plos.repo.config;
 
+import org.plos.repo.service.CompressingObjectStore;
 import org.plos.repo.service.FileSystemStoreService;
+import org.plos.repo.service.GroupSync;
+import org.plos.repo.service.ObjectStore;
 
 import javax.naming.Context;
 import javax.naming.Name;
 import javax.naming.Reference;
 import javax.naming.spi.ObjectFactory;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 
 public class FileSystemStoreFactory implements ObjectFactory {
 
@@ -36,15 +41,90 @@ public class FileSystemStoreFactory implements ObjectFactory {
 
   public static final String REPROXY_BASE_URL = "reproxyBaseUrl";
 
+  public static final String STAGING_DIR_PARAM = "stagingDirectory";
+
+  public static final String FAN_OUT_LEVELS_PARAM = "fanOutLevels";
+
+  public static final String RELAYOUT_RATE_PARAM = "relayoutRate";
+
+  public static final String COMPRESSED_CONTENT_TYPES_PARAM = "compressedContentTypes";
+
+  public static final String DURABLE_WRITES_PARAM = "durableWrites";
+
+  public static final String SYNC_WINDOW_MICROS_PARAM = "syncWindowMicros";
+
   public Object getObjectInstance(Object o, Name name, Context context, Hashtable<?, ?> hashtable) throws Exception {
-    String dataDirectory = (String) ((Reference) o).get(DATA_DIR_PARAM).getContent();
-    String reproxyBaseUrl = null;
+    // several data directories, and the reproxy base URL of each, may be given as comma separated lists
+    List<String> dataDirectories = split((String) ((Reference) o).get(DATA_DIR_PARAM).getContent());
+    List<String> reproxyBaseUrls = null;
 
     if (((Reference) o).get(REPROXY_BASE_URL) != null) {
-      reproxyBaseUrl = (String) ((Reference) o).get(REPROXY_BASE_URL).getContent();
+      reproxyBaseUrls = split((String) ((Reference) o).get(REPROXY_BASE_URL).getContent());
+    }
+
+    String stagingDirectory = null;
+
+    if (((Reference) o).get(STAGING_DIR_PARAM) != null) {
+      stagingDirectory = (String) ((Reference) o).get(STAGING_DIR_PARAM).getContent();
+    }
+
+    int fanOutLevels = FileSystemStoreService.DEFAULT_FAN_OUT_LEVELS;
+
+    if (((Reference) o).get(FAN_OUT_LEVELS_PARAM) != null) {
+      fanOutLevels = Integer.parseInt((String) ((Reference) o).get(FAN_OUT_LEVELS_PARAM).getContent());
     }
 
-    return new FileSystemStoreService(dataDirectory, reproxyBaseUrl);
+    double relayoutRate = FileSystemStoreService.DEFAULT_RELAYOUT_RATE;
+
+    if (((Reference) o).get(RELAYOUT_RATE_PARAM) != null) {
+      relayoutRate = Double.parseDouble((String) ((Reference) o).get(RELAYOUT_RATE_PARAM).getContent());
+    }
+
+    FileSystemStoreService objectStore = new FileSystemStoreService(dataDirectories, reproxyBaseUrls,
+        stagingDirectory, fanOutLevels, relayoutRate);
+
+    setDurability(objectStore, (Reference) o);
+
+    return compress(objectStore, (Reference) o);
+  }
+
+  /**
+   * Make the content saved in the store durable if the reference asks for it.
+   */
+  static void setDurability(FileSystemStoreService objectStore, Reference reference) {
+    if (reference.get(DURABLE_WRITES_PARAM) == null ||
+        !Boolean.parseBoolean((String) reference.get(DURABLE_WRITES_PARAM).getContent())) {
+      return;
+    }
+
+    long windowMicros = GroupSync.DEFAULT_WINDOW_MICROS;
+
+    if (reference.get(SYNC_WINDOW_MICROS_PARAM) != null) {
+      windowMicros = Long.parseLong((String) reference.get(SYNC_WINDOW_MICROS_PARAM).getContent());
+    }
+
+    objectStore.setGroupSync(new GroupSync(windowMicros, GroupSync.DEFAULT_CONCURRENCY));
+  }
+
+  /**
+   * @return the store, storing the content types listed by the reference compressed if it lists any
+   */
+  static ObjectStore compress(ObjectStore objectStore, Reference reference) {
+    if (reference.get(COMPRESSED_CONTENT_TYPES_PARAM) == null) {
+      return objectStore;
+    }
+
+    return new CompressingObjectStore(objectStore, (String) reference.get(COMPRESSED_CONTENT_TYPES_PARAM).getContent());
+  }
+
+  static List<String> split(String value) {
+    List<String> values = new ArrayList<>();
+    for (String part : value.split(",")) {
+      if (!part.trim().isEmpty()) {
+        values.add(part.trim());
+      }
+    }
+    return values;
   }
 
 }
@@ -31,13 +31,40 @@ import java.util.Hashtable;
 public class MogileStoreFactory implements ObjectFactory {
 
   public Object getObjectInstance(Object o, Name name, Context context, Hashtable<?, ?> hashtable) throws Exception {
-    return new org.plos.repo.service.MogileStoreService(
+    org.plos.repo.service.ObjectStore objectStore = new org.plos.repo.service.MogileStoreService(
         ((Reference) o).get("domain").getContent().toString(),
         ((Reference) o).get("trackers").getContent().toString().split(","),
         Integer.parseInt(((Reference) o).get("maxTrackerConnections").getContent().toString()),
         Integer.parseInt(((Reference) o).get("maxIdleConnections").getContent().toString()),
-        Long.parseLong(((Reference) o).get("maxIdleTimeMillis").getContent().toString())
+        Long.parseLong(((Reference) o).get("maxIdleTimeMillis").getContent().toString()),
+        ((Reference) o).get("stagingDirectory") == null ? null :
+            ((Reference) o).get("stagingDirectory").getContent().toString()
     );
+
+    if (((Reference) o).get("parallelGetThreshold") != null) {
+      objectStore.setParallelGet(new org.plos.repo.service.ParallelRangeInputStream.Settings(
+          Long.parseLong(((Reference) o).get("parallelGetThreshold").getContent().toString()),
+          ((Reference) o).get("parallelGetConcurrency") == null ? null :
+              Integer.valueOf(((Reference) o).get("parallelGetConcurrency").getContent().toString()),
+          ((Reference) o).get("parallelGetChunkSize") == null ? null :
+              Integer.valueOf(((Reference) o).get("parallelGetChunkSize").getContent().toString()),
+          ((Reference) o).get("parallelGetMaxChunks") == null ? null :
+              Integer.valueOf(((Reference) o).get("parallelGetMaxChunks").getContent().toString())
+      ));
+    }
+
+    if (((Reference) o).get("compressedContentTypes") != null) {
+      objectStore = new org.plos.repo.service.CompressingObjectStore(objectStore,
+          ((Reference) o).get("compressedContentTypes").getContent().toString());
+    }
+
+    if (((Reference) o).get("cacheDirectory") != null) {
+      objectStore = new org.plos.repo.service.CachingObjectStore(objectStore,
+          ((Reference) o).get("cacheDirectory").getContent().toString(),
+          Long.parseLong(((Reference) o).get("cacheSize").getContent().toString()));
+    }
+
+    return objectStore;
   }
 
 }
@@ -32,10 +32,39 @@ import java.util.Hashtable;
 public class S3StoreFactory implements ObjectFactory {
 
   public Object getObjectInstance(Object o, Name name, Context context, Hashtable<?, ?> hashtable) throws Exception {
-    return new org.plos.repo.service.S3StoreService(
+    org.plos.repo.service.ObjectStore objectStore = new org.plos.repo.service.S3StoreService(
         ((Reference) o).get("awsAccessKey").getContent().toString(),
-        ((Reference) o).get("awsSecretKey").getContent().toString()
+        ((Reference) o).get("awsSecretKey").getContent().toString(),
+        ((Reference) o).get("stagingDirectory") == null ? null :
+            ((Reference) o).get("stagingDirectory").getContent().toString(),
+        ((Reference) o).get("stagingBucket") == null ? null :
+            ((Reference) o).get("stagingBucket").getContent().toString()
     );
+
+    if (((Reference) o).get("parallelGetThreshold") != null) {
+      objectStore.setParallelGet(new org.plos.repo.service.ParallelRangeInputStream.Settings(
+          Long.parseLong(((Reference) o).get("parallelGetThreshold").getContent().toString()),
+          ((Reference) o).get("parallelGetConcurrency") == null ? null :
+              Integer.valueOf(((Reference) o).get("parallelGetConcurrency").getContent().toString()),
+          ((Reference) o).get("parallelGetChunkSize") == null ? null :
+              Integer.valueOf(((Reference) o).get("parallelGetChunkSize").getContent().toString()),
+          ((Reference) o).get("parallelGetMaxChunks") == null ? null :
+              Integer.valueOf(((Reference) o).get("parallelGetMaxChunks").getContent().toString())
+      ));
+    }
+
+    if (((Reference) o).get("compressedContentTypes") != null) {
+      objectStore = new org.plos.repo.service.CompressingObjectStore(objectStore,
+          ((Reference) o).get("compressedContentTypes").getContent().toString());
+    }
+
+    if (((Reference) o).get("cacheDirectory") != null) {
+      objectStore = new org.plos.repo.service.CachingObjectStore(objectStore,
+          ((Reference) o).get("cacheDirectory").getContent().toString(),
+          Long.parseLong(((Reference) o).get("cacheSize").getContent().toString()));
+    }
+
+    return objectStore;
   }
 
 }
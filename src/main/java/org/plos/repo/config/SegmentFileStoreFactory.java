@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.config;
+
+import org.plos.repo.service.FileSystemStoreService;
+import org.plos.repo.service.SegmentFileStoreService;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.spi.ObjectFactory;
+import java.util.Hashtable;
+
+public class SegmentFileStoreFactory implements ObjectFactory {
+
+  public static final String MAX_PACKED_SIZE_PARAM = "maxPackedSize";
+
+  public static final String SEGMENT_SIZE_PARAM = "segmentSize";
+
+  public static final String COMPACTION_THRESHOLD_PARAM = "compactionThreshold";
+
+  private static String getParam(Reference reference, String name) {
+    RefAddr addr = reference.get(name);
+    return addr == null ? null : (String) addr.getContent();
+  }
+
+  public Object getObjectInstance(Object o, Name name, Context context, Hashtable<?, ?> hashtable) throws Exception {
+    Reference reference = (Reference) o;
+
+    String fanOutLevels = getParam(reference, FileSystemStoreFactory.FAN_OUT_LEVELS_PARAM);
+    String relayoutRate = getParam(reference, FileSystemStoreFactory.RELAYOUT_RATE_PARAM);
+    String maxPackedSize = getParam(reference, MAX_PACKED_SIZE_PARAM);
+    String segmentSize = getParam(reference, SEGMENT_SIZE_PARAM);
+    String compactionThreshold = getParam(reference, COMPACTION_THRESHOLD_PARAM);
+
+    SegmentFileStoreService objectStore = new SegmentFileStoreService(
+        FileSystemStoreFactory.split(getParam(reference, FileSystemStoreFactory.DATA_DIR_PARAM)),
+        getParam(reference, FileSystemStoreFactory.STAGING_DIR_PARAM),
+        fanOutLevels == null ? FileSystemStoreService.DEFAULT_FAN_OUT_LEVELS : Integer.parseInt(fanOutLevels),
+        relayoutRate == null ? FileSystemStoreService.DEFAULT_RELAYOUT_RATE : Double.parseDouble(relayoutRate),
+        maxPackedSize == null ? SegmentFileStoreService.DEFAULT_MAXIMUM_PACKED_SIZE : Long.parseLong(maxPackedSize),
+        segmentSize == null ? SegmentFileStoreService.DEFAULT_SEGMENT_SIZE : Long.parseLong(segmentSize),
+        compactionThreshold == null ? SegmentFileStoreService.DEFAULT_COMPACTION_THRESHOLD
+            : Double.parseDouble(compactionThreshold));
+
+    FileSystemStoreFactory.setDurability(objectStore, reference);
+
+    return FileSystemStoreFactory.compress(objectStore, reference);
+  }
+
+}
@@ -38,6 +38,7 @@ import org.springframework.transaction.annotation.EnableTransactionManagement;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
+import javax.naming.NamingException;
 import javax.sql.DataSource;
 import java.io.BufferedReader;
 import java.io.FileReader;
@@ -67,6 +68,30 @@ public class SpringConfig {
   @Bean
   public AuditRepoService auditRepoService() {return new AuditRepoService();}
 
+  @Bean
+  public MetadataCache metadataCache() {
+    return new MetadataCache(MetadataCache.DEFAULT_MAXIMUM_KEYS);
+  }
+
+  @Bean
+  public ContentCache contentCache() {
+    long maximumBytes = 0;
+
+    try {
+      Context envContext = (Context) new InitialContext().lookup("java:/comp/env");
+      maximumBytes = Long.parseLong(envContext.lookup("repo/contentCacheSize").toString());
+    } catch (NamingException e) {
+      log.info("No repo/contentCacheSize set, the content cache is disabled");
+    }
+
+    return new ContentCache(maximumBytes, ContentCache.DEFAULT_MAXIMUM_OBJECT_SIZE);
+  }
+
+  @Bean
+  public ContentExistenceFilter contentExistenceFilter() {
+    return new ContentExistenceFilter(ContentExistenceFilter.DEFAULT_EXPECTED_CONTENTS);
+  }
+
   @Bean
   public InputCollectionValidator inputCollectionValidator() {
     return new InputCollectionValidator();
@@ -26,6 +26,7 @@ import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
@@ -59,6 +60,30 @@ public class RepoCollection {
     this.status = status;
   }
 
+  /**
+   * Copy <code>repoCollection</code> and its objects, so the copy can be changed without affecting it.
+   */
+  public RepoCollection(RepoCollection repoCollection) {
+    this.id = repoCollection.id;
+    this.key = repoCollection.key;
+    this.timestamp = repoCollection.timestamp;
+    this.bucketId = repoCollection.bucketId;
+    this.bucketName = repoCollection.bucketName;
+    this.versionNumber = repoCollection.versionNumber;
+    this.status = repoCollection.status;
+    this.tag = repoCollection.tag;
+    this.creationDate = repoCollection.creationDate;
+    this.userMetadata = repoCollection.userMetadata;
+    this.uuid = repoCollection.uuid;
+
+    if (repoCollection.repoObjects != null) {
+      this.repoObjects = new ArrayList<>(repoCollection.repoObjects.size());
+      for (RepoObject repoObject : repoCollection.repoObjects) {
+        this.repoObjects.add(new RepoObject(repoObject));
+      }
+    }
+  }
+
   public Integer getId() {
     return id;
   }
@@ -24,12 +24,14 @@ package org.plos.repo.models;
 import org.plos.repo.service.RepoException;
 
 import javax.xml.bind.annotation.XmlRootElement;
+import java.util.List;
 
 @XmlRootElement
 public class RepoError {
 
   public int repoErrorCode;
   public String message;
+  public List<String> details;
 
   // empty constructor required for JAXB mapping
   private RepoError() {
@@ -38,6 +40,10 @@ public class RepoError {
   public RepoError(RepoException e) {
     repoErrorCode = e.getType().getValue();
     message = e.getType().getMessage();
+
+    if (!e.getDetails().isEmpty()) {
+      details = e.getDetails();
+    }
   }
 
 }
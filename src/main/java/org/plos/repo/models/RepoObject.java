@@ -56,6 +56,28 @@ public class RepoObject {
     this.status = status;
   }
 
+  /**
+   * Copy <code>repoObject</code>, so the copy can be changed without affecting it.
+   */
+  public RepoObject(RepoObject repoObject) {
+    this.id = repoObject.id;
+    this.key = repoObject.key;
+    this.checksum = repoObject.checksum;
+    this.timestamp = repoObject.timestamp;
+    this.downloadName = repoObject.downloadName;
+    this.contentType = repoObject.contentType;
+    this.size = repoObject.size;
+    this.tag = repoObject.tag;
+    this.bucketId = repoObject.bucketId;
+    this.bucketName = repoObject.bucketName;
+    this.versionNumber = repoObject.versionNumber;
+    this.status = repoObject.status;
+    this.creationDate = repoObject.creationDate;
+    this.reproxyURL = repoObject.reproxyURL == null ? null : repoObject.reproxyURL.clone();
+    this.userMetadata = repoObject.userMetadata;
+    this.uuid = repoObject.uuid;
+  }
+
   public boolean areSimilar(RepoObject repoObject) {
     return this.key.equals(repoObject.key) &&
         this.bucketName.equals(repoObject.bucketName) &&
@@ -75,6 +75,11 @@ public class InputRepoObject {
   @FormDataParam("file")
   private InputStream uploadedInputStream;
 
+  @ApiParam(value = "SHA-1 of the content. Without a file, the object is created with the content already stored " +
+      "under this checksum; with a file, the file must match it.", required = false)
+  @FormDataParam("checksum")
+  private String checksum;
+
   public String getKey() {
     return key;
   }
@@ -115,6 +120,10 @@ public class InputRepoObject {
     return uploadedInputStream;
   }
 
+  public String getChecksum() {
+    return checksum;
+  }
+
   public void setKey(String key) {
     this.key = key;
   }
@@ -155,4 +164,8 @@ public class InputRepoObject {
     this.uploadedInputStream = uploadedInputStream;
   }
 
+  public void setChecksum(String checksum) {
+    this.checksum = checksum;
+  }
+
 }
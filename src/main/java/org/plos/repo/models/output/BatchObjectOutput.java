@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.plos.repo.models.output;
+
+import org.plos.repo.models.RepoError;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Outcome of one object of a batch creation request
+ */
+@XmlRootElement
+public class BatchObjectOutput {
+
+  public enum Outcome {
+    CREATED, // the object was committed with the rest of the batch
+    FAILED,  // the object caused the batch to be rolled back
+    ABORTED  // the object was valid but was rolled back because of another one
+  }
+
+  private int index;
+  private String bucketName;
+  private String key;
+  private Outcome outcome;
+  private RepoObjectOutput object;
+  private RepoError error;
+
+
+  private BatchObjectOutput() {
+  }
+
+  public BatchObjectOutput(int index, String bucketName, String key, Outcome outcome) {
+    this.index = index;
+    this.bucketName = bucketName;
+    this.key = key;
+    this.outcome = outcome;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public String getBucketName() {
+    return bucketName;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public Outcome getOutcome() {
+    return outcome;
+  }
+
+  public RepoObjectOutput getObject() {
+    return object;
+  }
+
+  public RepoError getError() {
+    return error;
+  }
+
+  public void setIndex(int index) {
+    this.index = index;
+  }
+
+  public void setBucketName(String bucketName) {
+    this.bucketName = bucketName;
+  }
+
+  public void setKey(String key) {
+    this.key = key;
+  }
+
+  public void setOutcome(Outcome outcome) {
+    this.outcome = outcome;
+  }
+
+  public void setObject(RepoObjectOutput object) {
+    this.object = object;
+  }
+
+  public void setError(RepoError error) {
+    this.error = error;
+  }
+
+}
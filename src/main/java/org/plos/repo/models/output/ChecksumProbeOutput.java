@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.plos.repo.models.output;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Result of one checksum of a content probe: whether an object can be created with it without sending its content
+ */
+@XmlRootElement
+public class ChecksumProbeOutput {
+
+  private String checksum;
+  private boolean stored;
+
+
+  private ChecksumProbeOutput() {
+  }
+
+  public ChecksumProbeOutput(String checksum, boolean stored) {
+    this.checksum = checksum;
+    this.stored = stored;
+  }
+
+  public String getChecksum() {
+    return checksum;
+  }
+
+  public boolean isStored() {
+    return stored;
+  }
+
+  public void setChecksum(String checksum) {
+    this.checksum = checksum;
+  }
+
+  public void setStored(boolean stored) {
+    this.stored = stored;
+  }
+
+}
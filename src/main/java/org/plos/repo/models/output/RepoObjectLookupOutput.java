@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.plos.repo.models.output;
+
+import org.plos.repo.models.RepoError;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Result of one selector of a request for many objects: either the object, or the error resolving it
+ */
+@XmlRootElement
+public class RepoObjectLookupOutput {
+
+  private String key;
+  private RepoObjectOutput object;
+  private RepoError error;
+
+
+  private RepoObjectLookupOutput() {
+  }
+
+  public RepoObjectLookupOutput(String key, RepoObjectOutput object) {
+    this.key = key;
+    this.object = object;
+  }
+
+  public RepoObjectLookupOutput(String key, RepoError error) {
+    this.key = key;
+    this.error = error;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public RepoObjectOutput getObject() {
+    return object;
+  }
+
+  public RepoError getError() {
+    return error;
+  }
+
+  public void setKey(String key) {
+    this.key = key;
+  }
+
+  public void setObject(RepoObjectOutput object) {
+    this.object = object;
+  }
+
+  public void setError(RepoError error) {
+    this.error = error;
+  }
+
+}
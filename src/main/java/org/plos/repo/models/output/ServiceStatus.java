@@ -25,6 +25,7 @@ package org.plos.repo.models.output;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlTransient;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 @XmlRootElement
@@ -32,6 +33,10 @@ public class ServiceStatus {
 
   public int bucketCount;
   public String serviceStarted;
+  public long contentCacheHits;
+  public long contentCacheMisses;
+  public long contentCacheEvictions;
+  public List<DataRootStatus> dataRoots;
 
   @XmlTransient
   public AtomicLong readsSinceStart;
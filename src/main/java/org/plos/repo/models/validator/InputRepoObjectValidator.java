@@ -24,6 +24,7 @@ package org.plos.repo.models.validator;
 
 import org.plos.repo.models.input.InputRepoObject;
 import org.plos.repo.service.RepoException;
+import org.plos.repo.util.ChecksumGenerator;
 
 import javax.inject.Inject;
 
@@ -45,6 +46,10 @@ public class InputRepoObjectValidator {
       throw new RepoException(RepoException.Type.NoBucketEntered);
     }
 
+    if (repoObject.getChecksum() != null && !ChecksumGenerator.isValidChecksum(repoObject.getChecksum())) {
+      throw new RepoException(RepoException.Type.InvalidChecksum);
+    }
+
     timestampValidator.validate(repoObject.getTimestamp(), RepoException.Type.CouldNotParseTimestamp);
     timestampValidator.validate(repoObject.getCreationDateTime(), RepoException.Type.CouldNotParseCreationDate);
   }
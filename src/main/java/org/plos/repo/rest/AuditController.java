@@ -30,6 +30,7 @@ import org.plos.repo.models.Audit;
 import org.plos.repo.models.output.RepoAuditOutput;
 import org.plos.repo.service.AuditRepoService;
 import org.plos.repo.service.RepoException;
+import org.plos.repo.util.PageToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,16 +64,25 @@ public class AuditController {
   @Produces({MediaType.APPLICATION_JSON})
   public Response listAuditRecords(
       @ApiParam(required = false) @QueryParam("offset") Integer offset,
-      @ApiParam(required = false) @QueryParam("limit") Integer limit) {
+      @ApiParam(required = false) @QueryParam("limit") Integer limit,
+      @ApiParam(value = "Token from the " + PageToken.NEXT_PAGE_HEADER + " header of the previous page", required = false)
+      @QueryParam("pageToken") String pageToken) {
     try {
 
-      List<Audit> auditRecords = auditRepoService.listAuditRecords(offset, limit);
+      List<Audit> auditRecords = auditRepoService.listAuditRecords(offset, limit, pageToken);
 
       List<RepoAuditOutput> outputAuditRecords = Lists.newArrayList(Iterables.transform(auditRecords, RepoAuditOutput.typeFunction()));
 
-      return Response.status(Response.Status.OK)
+      Response.ResponseBuilder response = Response.status(Response.Status.OK)
           .entity(new GenericEntity<List<RepoAuditOutput>>(outputAuditRecords) {
-          }).build();
+          });
+
+      if (ObjectController.isFullPage(auditRecords, limit)) {
+        response.header(PageToken.NEXT_PAGE_HEADER,
+            PageToken.afterId(auditRecords.get(auditRecords.size() - 1).getId()).encode());
+      }
+
+      return response.build();
 
     } catch (RepoException e) {
       return ObjectController.handleError(e);
@@ -38,6 +38,7 @@ import org.plos.repo.service.CollectionRepoService;
 import org.plos.repo.service.RepoException;
 import org.plos.repo.service.RepoInfoService;
 import org.plos.repo.service.RepoService;
+import org.plos.repo.util.PageToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -84,15 +85,26 @@ public class CollectionController {
       @ApiParam(required = false) @QueryParam("offset") Integer offset,
       @ApiParam(required = false) @QueryParam("limit") Integer limit,
       @ApiParam(required = false) @DefaultValue("false") @QueryParam("includeDeleted") boolean includeDeleted,
-      @ApiParam(required = false) @QueryParam("tag") String tag) {
+      @ApiParam(required = false) @QueryParam("tag") String tag,
+      @ApiParam(value = "Token from the " + PageToken.NEXT_PAGE_HEADER + " header of the previous page", required = false)
+      @QueryParam("pageToken") String pageToken,
+      @ApiParam(value = "Include the objects of each collection", required = false)
+      @DefaultValue("false") @QueryParam("includeObjects") boolean includeObjects) {
     try {
-      List<RepoCollection> repoCollections = collectionRepoService.listCollections(bucketName, offset, limit, includeDeleted, tag);
+      List<RepoCollection> repoCollections = collectionRepoService.listCollections(bucketName, offset, limit, includeDeleted, tag, pageToken, includeObjects);
       List<RepoCollectionOutput> outputCollections = Lists.newArrayList(Iterables.transform(repoCollections, RepoCollectionOutput.typeFunction()));
 
-      return Response.status(Response.Status.OK)
+      Response.ResponseBuilder response = Response.status(Response.Status.OK)
           .entity(new GenericEntity<List<RepoCollectionOutput>>(outputCollections) {
-          })
-          .build();
+          });
+
+      if (ObjectController.isFullPage(repoCollections, limit)) {
+        RepoCollection last = repoCollections.get(repoCollections.size() - 1);
+        response.header(PageToken.NEXT_PAGE_HEADER,
+            PageToken.afterElement(last.getBucketId(), last.getKey(), last.getVersionNumber()).encode());
+      }
+
+      return response.build();
     } catch (RepoException e) {
       return ObjectController.handleError(e);
     }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.rest;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams a region of a local file to the response with positioned {@link java.nio.channels.FileChannel} reads into a
+ * single large buffer, instead of the small heap buffers used when the container copies an
+ * {@link java.io.InputStream} entity. The file is only opened once the container asks for the body.
+ */
+public class FileChannelStreamingOutput implements StreamingOutput {
+
+  static final int BUFFER_SIZE = 256 * 1024;
+
+  private final File file;
+
+  private final long position;
+
+  private final long count;
+
+  public FileChannelStreamingOutput(File file, long position, long count) {
+    this.file = file;
+    this.position = position;
+    this.count = count;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  @Override
+  public void write(OutputStream output) throws IOException, WebApplicationException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(count, 1)));
+
+      long current = position;
+      long end = position + count;
+
+      while (current < end) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - current));
+
+        int read = channel.read(buffer, current);
+
+        if (read == -1) {
+          break;
+        }
+
+        output.write(buffer.array(), 0, read);
+        current += read;
+      }
+
+      output.flush();
+    }
+  }
+
+}
@@ -25,20 +25,40 @@ package org.plos.repo.rest;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.gson.ExclusionStrategy;
+import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
 import com.wordnik.swagger.annotations.Api;
 import com.wordnik.swagger.annotations.ApiOperation;
 import com.wordnik.swagger.annotations.ApiParam;
 import com.wordnik.swagger.annotations.ApiResponse;
 import com.wordnik.swagger.annotations.ApiResponses;
 import org.apache.http.HttpStatus;
+import org.glassfish.jersey.media.multipart.FormDataBodyPart;
+import org.glassfish.jersey.media.multipart.FormDataMultiPart;
 import org.plos.repo.models.RepoError;
 import org.plos.repo.models.RepoObject;
 import org.plos.repo.models.input.ElementFilter;
+import org.plos.repo.models.input.InputBatchObject;
+import org.plos.repo.models.input.InputObjectSelector;
 import org.plos.repo.models.input.InputRepoObject;
+import org.plos.repo.models.output.BatchObjectOutput;
+import org.plos.repo.models.output.ChecksumProbeOutput;
+import org.plos.repo.models.output.RepoObjectLookupOutput;
 import org.plos.repo.models.output.RepoObjectOutput;
+import org.plos.repo.service.BaseRepoService;
+import org.plos.repo.service.BatchItemException;
 import org.plos.repo.service.RepoException;
 import org.plos.repo.service.RepoInfoService;
 import org.plos.repo.service.RepoService;
+import org.plos.repo.service.SqlService;
+import org.plos.repo.util.ByteRange;
+import org.plos.repo.util.MultipartFormReader;
+import org.plos.repo.util.PageToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,6 +67,7 @@ import javax.ws.rs.BeanParam;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
+import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
@@ -54,16 +75,30 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 
 @Path("/objects")
@@ -87,6 +122,48 @@ public class ObjectController {
 
   private static final String RFC1123_DATE_TIME_FORMAT = "EEE, dd MMM yyyy HH:mm:ss z";
 
+  private static final String ACCEPT_RANGES_HEADER = "Accept-Ranges";
+
+  private static final String CONTENT_RANGE_HEADER = "Content-Range";
+
+  private static final String BYTES_RANGE_UNIT = "bytes";
+
+  private static final String GZIP_ENCODING = "gzip";
+
+  public static final String APPLICATION_NDJSON = "application/x-ndjson";
+
+  private static final Gson NDJSON_GSON = new Gson();
+
+  private static final String STREAMED_FILE_FIELD = "file";
+
+  // the longest field of a streamed form, i.e. the user metadata
+  private static final int MAX_STREAMED_FIELD_BYTES = 1024 * 1024;
+
+  // the content of batch objects comes from their file part, never from the json
+  private static final Gson BATCH_GSON = new GsonBuilder().setExclusionStrategies(new ExclusionStrategy() {
+    @Override
+    public boolean shouldSkipField(FieldAttributes f) {
+      return InputStream.class.isAssignableFrom(f.getDeclaredClass());
+    }
+
+    @Override
+    public boolean shouldSkipClass(Class<?> clazz) {
+      return false;
+    }
+  }).create();
+
+  private static final Type BATCH_OBJECTS_TYPE = new TypeToken<List<InputBatchObject>>() {
+  }.getType();
+
+  // request attributes used by Tomcat to send a file with sendfile(2) once the request completes
+  private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+
+  private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+
+  private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+
+  private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
   @Inject
   private RepoService repoService;
 
@@ -105,6 +182,10 @@ public class ObjectController {
         status = Response.Status.NOT_FOUND;
         break;
 
+      case RangeNotSatisfiable:
+        status = Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE;
+        break;
+
       case NoFileEntered:
       case ServerError:
         status = Response.Status.INTERNAL_SERVER_ERROR;
@@ -115,6 +196,13 @@ public class ObjectController {
     return Response.status(status).entity(new RepoError(e)).build();
   }
 
+  /**
+   * @return true if <code>page</code> holds as many elements as were asked for, i.e. there may be a next page
+   */
+  static boolean isFullPage(List<?> page, Integer limit) {
+    return !page.isEmpty() && page.size() >= (limit == null ? BaseRepoService.DEFAULT_PAGE_SIZE : limit);
+  }
+
 
   @GET
   @ApiOperation(value = "List objects", response = RepoObjectOutput.class, responseContainer = "List")
@@ -131,21 +219,83 @@ public class ObjectController {
       @ApiParam(required = false) @QueryParam("limit") Integer limit,
       @ApiParam(required = false) @DefaultValue("false") @QueryParam("includeDeleted") boolean includeDeleted,
       @ApiParam(required = false) @DefaultValue("false") @QueryParam("includePurged") boolean includePurged,
-      @ApiParam(required = false) @QueryParam("tag") String tag) {
+      @ApiParam(required = false) @QueryParam("tag") String tag,
+      @ApiParam(value = "Token from the " + PageToken.NEXT_PAGE_HEADER + " header of the previous page", required = false)
+      @QueryParam("pageToken") String pageToken) {
     try {
-      List<RepoObject> repoObjects = repoService.listObjects(bucketName, offset, limit, includeDeleted, includePurged, tag);
+      List<RepoObject> repoObjects = repoService.listObjects(bucketName, offset, limit, includeDeleted, includePurged, tag, pageToken);
       List<RepoObjectOutput> outputObjects = Lists.newArrayList(Iterables.transform(repoObjects, RepoObjectOutput.typeFunction()));
 
-      return Response.status(Response.Status.OK).entity(
+      Response.ResponseBuilder response = Response.status(Response.Status.OK).entity(
           new GenericEntity<List<RepoObjectOutput>>(
               outputObjects
           ) {
-          }).build();
+          });
+
+      if (isFullPage(repoObjects, limit)) {
+        RepoObject last = repoObjects.get(repoObjects.size() - 1);
+        response.header(PageToken.NEXT_PAGE_HEADER,
+            PageToken.afterElement(last.getBucketId(), last.getKey(), last.getVersionNumber()).encode());
+      }
+
+      return response.build();
     } catch (RepoException e) {
       return handleError(e);
     }
   }
 
+  @GET
+  @ApiOperation(value = "Stream objects, one JSON document per line", response = RepoObjectOutput.class, responseContainer = "List")
+  @ApiResponses(value = {
+      @ApiResponse(code = HttpStatus.SC_OK, message = "Success"),
+      @ApiResponse(code = HttpStatus.SC_NOT_FOUND, message = "Bucket not found"),
+      @ApiResponse(code = HttpStatus.SC_BAD_REQUEST, message = "Bad request (see message)"),
+      @ApiResponse(code = HttpStatus.SC_INTERNAL_SERVER_ERROR, message = "Server error")
+  })
+  // lower source quality so clients that accept anything keep getting the JSON array
+  @Produces({APPLICATION_NDJSON + ";qs=0.5"})
+  public Response streamObjects(
+      @ApiParam(required = true) @QueryParam("bucketName") final String bucketName,
+      @ApiParam(value = "Maximum number of objects, no limit if absent", required = false) @QueryParam("limit") final Integer limit,
+      @ApiParam(required = false) @DefaultValue("false") @QueryParam("includeDeleted") final boolean includeDeleted,
+      @ApiParam(required = false) @DefaultValue("false") @QueryParam("includePurged") final boolean includePurged,
+      @ApiParam(required = false) @QueryParam("tag") final String tag,
+      @ApiParam(value = "Token from the " + PageToken.NEXT_PAGE_HEADER + " header of a listing page", required = false)
+      @QueryParam("pageToken") final String pageToken) {
+    try {
+      repoService.validateObjectStream(bucketName, limit, pageToken);
+    } catch (RepoException e) {
+      // errors are JSON documents, whatever the client asked for
+      return Response.fromResponse(handleError(e)).type(MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+    StreamingOutput output = new StreamingOutput() {
+      @Override
+      public void write(OutputStream outputStream) throws IOException {
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+
+        try {
+          repoService.streamObjects(bucketName, limit, includeDeleted, includePurged, tag, pageToken,
+              new SqlService.RowHandler<RepoObject>() {
+                @Override
+                public void handle(RepoObject repoObject) throws IOException {
+                  NDJSON_GSON.toJson(new RepoObjectOutput(repoObject), writer);
+                  writer.write('\n');
+                }
+              });
+        } catch (RepoException e) {
+          // the status line is already sent, all we can do is cut the stream short
+          log.error("Error streaming objects of bucket " + bucketName, e);
+          throw new IOException(e);
+        }
+
+        writer.flush();
+      }
+    };
+
+    return Response.ok(output, APPLICATION_NDJSON).build();
+  }
+
   @GET
   @Path("/meta/{bucketName}")
   @ApiOperation(value = "Fetch info about an object and its versions", response = RepoObjectOutput.class)
@@ -167,6 +317,78 @@ public class ObjectController {
     }
   }
 
+  @POST
+  @Path("/meta/{bucketName}")
+  @Consumes({MediaType.APPLICATION_JSON})
+  @ApiOperation(value = "Fetch info about many objects at once",
+      notes = "Takes a json array of selectors, each one with a key and optionally a version, uuid or tag as in a " +
+          "single metadata request. The response lists the object of each selector in the same order, or the error " +
+          "resolving it when no object matches.")
+  @Produces({MediaType.APPLICATION_JSON})
+  @ApiResponses(value = {
+      @ApiResponse(code = HttpStatus.SC_OK, message = "Success", response = RepoObjectLookupOutput.class),
+      @ApiResponse(code = HttpStatus.SC_NOT_FOUND, message = "Bucket not found"),
+      @ApiResponse(code = HttpStatus.SC_BAD_REQUEST, message = "Bad request (see message)"),
+      @ApiResponse(code = HttpStatus.SC_INTERNAL_SERVER_ERROR, message = "Server error")
+  })
+  public Response readManyMetadata(
+      @ApiParam(required = true) @PathParam("bucketName") String bucketName,
+      @ApiParam(required = true) List<InputObjectSelector> selectors) {
+    try {
+      List<RepoObject> repoObjects = repoService.getObjects(bucketName, selectors);
+
+      RepoError notFound = new RepoError(new RepoException(RepoException.Type.ObjectNotFound));
+
+      List<RepoObjectLookupOutput> outputObjects = new ArrayList<>(repoObjects.size());
+      for (int i = 0; i < repoObjects.size(); i++) {
+        RepoObject repoObject = repoObjects.get(i);
+        String key = selectors.get(i).getKey();
+
+        outputObjects.add(repoObject == null ? new RepoObjectLookupOutput(key, notFound) :
+            new RepoObjectLookupOutput(key, new RepoObjectOutput(repoObject)));
+      }
+
+      return Response.status(Response.Status.OK).entity(
+          new GenericEntity<List<RepoObjectLookupOutput>>(outputObjects) {
+          }).build();
+    } catch (RepoException e) {
+      return handleError(e);
+    }
+  }
+
+  @POST
+  @Path("/checksums/{bucketName}")
+  @Consumes({MediaType.APPLICATION_FORM_URLENCODED})
+  @ApiOperation(value = "Find which contents are already stored",
+      notes = "Takes the SHA-1 checksums of the contents to upload as repeated checksum fields. An object can be " +
+          "created or versioned with any stored checksum without sending its file, by entering the checksum field " +
+          "alone. The response lists every checksum in the same order with whether it is stored.")
+  @Produces({MediaType.APPLICATION_JSON})
+  @ApiResponses(value = {
+      @ApiResponse(code = HttpStatus.SC_OK, message = "Success", response = ChecksumProbeOutput.class),
+      @ApiResponse(code = HttpStatus.SC_NOT_FOUND, message = "Bucket not found"),
+      @ApiResponse(code = HttpStatus.SC_BAD_REQUEST, message = "Bad request (see message)"),
+      @ApiResponse(code = HttpStatus.SC_INTERNAL_SERVER_ERROR, message = "Server error")
+  })
+  public Response probeChecksums(
+      @ApiParam(required = true) @PathParam("bucketName") String bucketName,
+      @ApiParam(required = true) @FormParam("checksum") List<String> checksums) {
+    try {
+      Set<String> stored = repoService.getStoredChecksums(bucketName, checksums);
+
+      List<ChecksumProbeOutput> outputs = new ArrayList<>(checksums.size());
+      for (String checksum : checksums) {
+        outputs.add(new ChecksumProbeOutput(checksum, stored.contains(checksum)));
+      }
+
+      return Response.status(Response.Status.OK).entity(
+          new GenericEntity<List<ChecksumProbeOutput>>(outputs) {
+          }).build();
+    } catch (RepoException e) {
+      return handleError(e);
+    }
+  }
+
   @GET
   @Path("/{bucketName}")
   @ApiOperation(value = "Fetch an object or its metadata", response = RepoObjectOutput.class)
@@ -177,7 +399,12 @@ public class ObjectController {
                        @QueryParam("fetchMetadata") boolean fetchMetadata,  // TODO: deprecate this somehow
                        @ApiParam(value = "If set to 'reproxy-file' then it will attempt to return a header representing a redirected object URL")
                        @HeaderParam("X-Proxy-Capabilities") String requestXProxy,
-                       @HeaderParam("If-Modified-Since") String ifModifiedSinceStr
+                       @HeaderParam("If-Modified-Since") String ifModifiedSinceStr,
+                       @ApiParam(value = "A single byte range of the content to fetch, i.e. 'bytes=0-1023'")
+                       @HeaderParam("Range") String rangeStr,
+                       @HeaderParam("If-Range") String ifRangeStr,
+                       @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncodingStr,
+                       @Context ContainerRequestContext requestContext
   ) {
     RepoObject repoObject;
 
@@ -238,18 +465,152 @@ public class ObjectController {
 
       String exportFileName = repoService.getObjectExportFileName(repoObject);
       String contentType = repoService.getObjectContentType(repoObject);
-      InputStream is = repoService.getObjectInputStream(repoObject);
 
-      return Response.ok(is, contentType)
+      ByteRange range = null;
+
+      if (rangeStr != null && repoObject.getSize() != null && ifRangeMatches(ifRangeStr, repoObject)) {
+        range = ByteRange.parse(rangeStr, repoObject.getSize());
+      }
+
+      Object entity;
+      Long contentLength = null;
+
+      // the content is sent as it is stored to the clients that accept it
+      boolean compressed = repoService.isObjectCompressed(repoObject);
+      InputStream compressedContent = null;
+
+      if (compressed && range == null && acceptsGzip(acceptEncodingStr)) {
+        compressedContent = repoService.getObjectCompressedInputStream(repoObject);
+      }
+
+      File file = compressedContent == null ? repoService.getObjectLocalFile(repoObject) : null;
+
+      if (compressedContent != null) {
+        entity = compressedContent;
+      } else if (file == null) {
+        entity = repoService.getObjectInputStream(repoObject, range);
+      } else {
+        long position = range == null ? 0 : range.getOffset();
+        contentLength = range == null ? file.length() : range.getLength();
+        entity = sendFile(requestContext, file, position, contentLength);
+      }
+
+      Response.ResponseBuilder responseBuilder;
+
+      if (range == null) {
+        responseBuilder = Response.ok(entity, contentType);
+      } else {
+        contentLength = range.getLength();
+        responseBuilder = Response.status(Response.Status.PARTIAL_CONTENT)
+            .entity(entity)
+            .type(contentType)
+            .header(CONTENT_RANGE_HEADER, range.toContentRange(repoObject.getSize()));
+      }
+
+      if (contentLength != null) {
+        responseBuilder.header(HttpHeaders.CONTENT_LENGTH, contentLength);
+      }
+
+      if (compressed) {
+        responseBuilder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+      }
+
+      if (compressedContent != null) {
+        responseBuilder.header(HttpHeaders.CONTENT_ENCODING, GZIP_ENCODING);
+      }
+
+      return responseBuilder
           .lastModified(repoObject.getTimestamp())
+          .tag(compressedContent == null ? repoObject.getChecksum() : repoObject.getChecksum() + "-" + GZIP_ENCODING)
+          .header(ACCEPT_RANGES_HEADER, BYTES_RANGE_UNIT)
           .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=" + exportFileName).build();
 
       // the container closes this input stream
     } catch (RepoException e) {
+      if (RepoException.Type.RangeNotSatisfiable.equals(e.getType())) {
+        return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+            .header(CONTENT_RANGE_HEADER, BYTES_RANGE_UNIT + " */" + repoObject.getSize())
+            .entity(new RepoError(e)).build();
+      }
       return handleError(e);
     }
   }
 
+  /**
+   * Hand the file region over to the container when it can send it with sendfile(2), returning a null entity, or
+   * return an entity that streams it with file channel reads.
+   */
+  private Object sendFile(ContainerRequestContext requestContext, File file, long position, long count) {
+    if (requestContext != null && Boolean.TRUE.equals(requestContext.getProperty(SENDFILE_SUPPORT_ATTRIBUTE))) {
+      requestContext.setProperty(SENDFILE_FILENAME_ATTRIBUTE, file.getAbsolutePath());
+      requestContext.setProperty(SENDFILE_START_ATTRIBUTE, position);
+      requestContext.setProperty(SENDFILE_END_ATTRIBUTE, position + count);
+      return null;
+    }
+
+    return new FileChannelStreamingOutput(file, position, count);
+  }
+
+  /**
+   * @return true if the Accept-Encoding header lists gzip with a non zero quality, or any encoding when gzip is not
+   * listed
+   */
+  static boolean acceptsGzip(String acceptEncodingStr) {
+    if (acceptEncodingStr == null) {
+      return false;
+    }
+
+    Double gzipQuality = null;
+    Double anyQuality = null;
+
+    for (String coding : acceptEncodingStr.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim().toLowerCase(Locale.ENGLISH);
+
+      double quality = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim();
+        if (parameter.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(parameter.substring(2));
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+
+      if (name.equals(GZIP_ENCODING) || name.equals("x-gzip")) {
+        gzipQuality = quality;
+      } else if (name.equals("*")) {
+        anyQuality = quality;
+      }
+    }
+
+    return gzipQuality != null ? gzipQuality > 0 : anyQuality != null && anyQuality > 0;
+  }
+
+  /**
+   * Evaluate the <code>If-Range</code> precondition. The range is only served if the header is absent or it matches
+   * the current entity tag (the content checksum) or the exact last modification date of the object.
+   */
+  private boolean ifRangeMatches(String ifRangeStr, RepoObject repoObject) {
+    if (ifRangeStr == null) {
+      return true;
+    }
+
+    if (ifRangeStr.startsWith("\"") || ifRangeStr.startsWith("W/")) {
+      // weak tags never match for ranges
+      return ifRangeStr.equals("\"" + repoObject.getChecksum() + "\"");
+    }
+
+    try {
+      Date ifRangeDate = new SimpleDateFormat(RFC1123_DATE_TIME_FORMAT).parse(ifRangeStr);
+      return repoObject.getTimestamp().getTime() / 1000 == ifRangeDate.getTime() / 1000;
+    } catch (ParseException e) {
+      return false;
+    }
+  }
+
   @GET
   @Path("/versions/{bucketName}")
   @ApiOperation(value = "Fetch all the object versions", response = RepoObjectOutput.class, responseContainer = "List")
@@ -311,30 +672,199 @@ public class ObjectController {
   })
   public Response createOrUpdate(@BeanParam InputRepoObject inputRepoObject) {
     try {
-      RepoService.CreateMethod method;
+      RepoService.CreateMethod method = RepoService.CreateMethod.fromString(inputRepoObject.getCreate());
+
+      repoInfoService.incrementWriteCount();
+
+      RepoObject repoObject = repoService.createObject(method, inputRepoObject);
+      RepoObjectOutput outputObject = new RepoObjectOutput(repoObject);
 
-      if (inputRepoObject.getCreate() == null) {
-        throw new RepoException(RepoException.Type.NoCreationMethodEntered);
+      return Response.status(Response.Status.CREATED).entity(
+          outputObject).build();
+    } catch (RepoException e) {
+      return handleError(e);
+    }
+  }
+
+  @POST
+  @Path("/stream")
+  @Consumes(MediaType.MULTIPART_FORM_DATA)
+  @ApiOperation(value = "Create a new object or a new version of an existing object, streaming its file",
+      notes = "Takes the same form fields as a regular object creation, but the body is parsed as it arrives and the " +
+          "file is piped straight into the object store staging location instead of being buffered first. The " +
+          "other fields must therefore come before the file, which must be the last part of the form.")
+  @Produces({MediaType.APPLICATION_JSON})
+  @ApiResponses(value = {
+      @ApiResponse(code = HttpStatus.SC_CREATED, message = "Object successfully created", response = RepoObjectOutput.class),
+      @ApiResponse(code = HttpStatus.SC_NOT_FOUND, message = "The object not found"),
+      @ApiResponse(code = HttpStatus.SC_BAD_REQUEST, message = "The object was unable to be created (see response text for more details)"),
+      @ApiResponse(code = HttpStatus.SC_INTERNAL_SERVER_ERROR, message = "Server error")
+  })
+  public Response createOrUpdateStreamed(@HeaderParam(HttpHeaders.CONTENT_TYPE) String contentType,
+                                         InputStream body) {
+    try {
+      InputRepoObject inputRepoObject = readStreamedForm(contentType, body);
+      RepoService.CreateMethod method = RepoService.CreateMethod.fromString(inputRepoObject.getCreate());
+
+      repoInfoService.incrementWriteCount();
+
+      RepoObject repoObject = repoService.createObject(method, inputRepoObject);
+
+      return Response.status(Response.Status.CREATED).entity(
+          new RepoObjectOutput(repoObject)).build();
+    } catch (RepoException e) {
+      if (e.getCause() instanceof MultipartFormReader.MultipartFormException) {
+        // the file part was malformed or followed by other fields, found while it was uploaded
+        return handleError(new RepoException(RepoException.Type.InvalidStreamedForm));
       }
+      return handleError(e);
+    }
+  }
 
-      try {
-        method = RepoService.CreateMethod.valueOf(inputRepoObject.getCreate().toUpperCase());
-      } catch (IllegalArgumentException e) {
-        throw new RepoException(RepoException.Type.InvalidCreationMethod);
+  /**
+   * Read the fields of a streamed object creation up to its file part, which is left unread in the returned input.
+   */
+  private InputRepoObject readStreamedForm(String contentType, InputStream body) throws RepoException {
+    String boundary = MultipartFormReader.getBoundary(contentType);
+
+    if (boundary == null) {
+      throw new RepoException(RepoException.Type.InvalidStreamedForm);
+    }
+
+    MultipartFormReader reader = new MultipartFormReader(body, boundary);
+    JsonObject fields = new JsonObject();
+    InputStream file = null;
+
+    try {
+      MultipartFormReader.Part part;
+
+      while (file == null && (part = reader.nextPart()) != null) {
+        if (STREAMED_FILE_FIELD.equals(part.getName())) {
+          file = reader.asLastPart(part);
+        } else if (part.getName() != null) {
+          fields.addProperty(part.getName(), part.getString(MAX_STREAMED_FIELD_BYTES));
+        }
       }
+    } catch (MultipartFormReader.MultipartFormException e) {
+      throw new RepoException(RepoException.Type.InvalidStreamedForm);
+    } catch (IOException e) {
+      throw new RepoException(e);
+    }
+
+    // the fields are named after the properties of the input, as in a batch object
+    InputRepoObject inputRepoObject = BATCH_GSON.fromJson(fields, InputRepoObject.class);
+    inputRepoObject.setUploadedInputStream(file);
+
+    return inputRepoObject;
+  }
+
+  @POST
+  @Path("/batch")
+  @Consumes(MediaType.MULTIPART_FORM_DATA)
+  @ApiOperation(value = "Create many objects or versions in a single transaction",
+      notes = "The objects field is a json array with the fields of a single object creation for each object, plus " +
+          "a file field naming the multipart part with its content. The content of every object is uploaded before " +
+          "any of them is committed, and either every object is created or none is. The response lists the outcome " +
+          "of each object in the order they were entered.")
+  @Produces({MediaType.APPLICATION_JSON})
+  @ApiResponses(value = {
+      @ApiResponse(code = HttpStatus.SC_CREATED, message = "Every object successfully created", response = BatchObjectOutput.class),
+      @ApiResponse(code = HttpStatus.SC_NOT_FOUND, message = "A bucket or object was not found, nothing was created"),
+      @ApiResponse(code = HttpStatus.SC_BAD_REQUEST, message = "One of the objects was unable to be created, nothing was created (see response text for more details)"),
+      @ApiResponse(code = HttpStatus.SC_INTERNAL_SERVER_ERROR, message = "Server error")
+  })
+  public Response createBatch(FormDataMultiPart multiPart) {
+    List<InputBatchObject> inputObjects = null;
+
+    try {
+      inputObjects = readBatchObjects(multiPart);
+      attachBatchFiles(multiPart, inputObjects);
 
       repoInfoService.incrementWriteCount();
 
-      RepoObject repoObject = repoService.createObject(method, inputRepoObject);
-      RepoObjectOutput outputObject = new RepoObjectOutput(repoObject);
+      List<RepoObject> repoObjects = repoService.createObjects(inputObjects);
+
+      List<BatchObjectOutput> outputObjects = new ArrayList<>(repoObjects.size());
+      for (int i = 0; i < repoObjects.size(); i++) {
+        RepoObject repoObject = repoObjects.get(i);
+        BatchObjectOutput outputObject = new BatchObjectOutput(i, repoObject.getBucketName(), repoObject.getKey(),
+            BatchObjectOutput.Outcome.CREATED);
+        outputObject.setObject(new RepoObjectOutput(repoObject));
+        outputObjects.add(outputObject);
+      }
 
       return Response.status(Response.Status.CREATED).entity(
-          outputObject).build();
+          new GenericEntity<List<BatchObjectOutput>>(outputObjects) {
+          }).build();
+    } catch (BatchItemException e) {
+      RepoError abortedError = new RepoError(new RepoException(RepoException.Type.BatchAborted));
+
+      List<BatchObjectOutput> outputObjects = new ArrayList<>(inputObjects.size());
+      for (int i = 0; i < inputObjects.size(); i++) {
+        InputBatchObject inputObject = inputObjects.get(i);
+        boolean failed = i == e.getIndex();
+        BatchObjectOutput outputObject = new BatchObjectOutput(i, inputObject.getBucketName(), inputObject.getKey(),
+            failed ? BatchObjectOutput.Outcome.FAILED : BatchObjectOutput.Outcome.ABORTED);
+        outputObject.setError(failed ? new RepoError(e) : abortedError);
+        outputObjects.add(outputObject);
+      }
+
+      return Response.status(handleError(e).getStatus()).entity(
+          new GenericEntity<List<BatchObjectOutput>>(outputObjects) {
+          }).build();
     } catch (RepoException e) {
       return handleError(e);
     }
   }
 
+  /**
+   * Read the objects of a batch from the <code>objects</code> field of <code>multiPart</code>.
+   */
+  private List<InputBatchObject> readBatchObjects(FormDataMultiPart multiPart) throws RepoException {
+    FormDataBodyPart objectsPart = multiPart.getField("objects");
+
+    if (objectsPart == null) {
+      throw new RepoException(RepoException.Type.NoBatchObjectsEntered);
+    }
+
+    List<InputBatchObject> inputObjects;
+    try {
+      inputObjects = BATCH_GSON.fromJson(objectsPart.getValue(), BATCH_OBJECTS_TYPE);
+    } catch (JsonParseException e) {
+      throw new RepoException(RepoException.Type.InvalidBatchObjects);
+    }
+
+    if (inputObjects == null || inputObjects.isEmpty()) {
+      throw new RepoException(RepoException.Type.NoBatchObjectsEntered);
+    }
+
+    if (inputObjects.contains(null)) {
+      throw new RepoException(RepoException.Type.InvalidBatchObjects);
+    }
+
+    return inputObjects;
+  }
+
+  /**
+   * Attach to each object of a batch the content of the body part it names.
+   */
+  private void attachBatchFiles(FormDataMultiPart multiPart, List<InputBatchObject> inputObjects)
+      throws RepoException {
+    for (int i = 0; i < inputObjects.size(); i++) {
+      InputBatchObject inputObject = inputObjects.get(i);
+
+      if (inputObject.getFile() != null) {
+        FormDataBodyPart filePart = multiPart.getField(inputObject.getFile());
+
+        if (filePart == null) {
+          throw new BatchItemException(i, new RepoException(RepoException.Type.BatchFilePartNotFound));
+        }
+
+        inputObject.setUploadedInputStream(filePart.getEntityAs(InputStream.class));
+      }
+    }
+  }
+
   private Timestamp getValidateTimestamp(String timestampString, RepoException.Type errorType, Timestamp defaultTimestamp) throws RepoException {
     if (timestampString != null) {
       try {
@@ -32,6 +32,7 @@ import org.plos.repo.service.RepoInfoService;
 
 import javax.inject.Inject;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
@@ -81,4 +82,14 @@ public class RootController {
     }
   }
 
+  @POST
+  @Path("rebalance")
+  @ApiOperation("Move the stored data to the data directories it belongs to, after one was added")
+  public Response rebalance() {
+    if (!objectStore.rebalance()) {
+      return Response.status(Response.Status.CONFLICT).build();
+    }
+    return Response.accepted().build();
+  }
+
 }
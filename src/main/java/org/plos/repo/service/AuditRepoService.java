@@ -24,6 +24,7 @@ package org.plos.repo.service;
 
 import com.google.common.util.concurrent.Striped;
 import org.plos.repo.models.*;
+import org.plos.repo.util.PageToken;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,6 +50,20 @@ public class AuditRepoService extends BaseRepoService {
    * @throws org.plos.repo.service.RepoException if a server error occurs
    */
   public List<Audit> listAuditRecords(Integer offset, Integer limit) throws RepoException {
+    return listAuditRecords(offset, limit, null);
+  }
+
+  /**
+   * List audit records order by creation date, continuing right after the last record of a previous page
+   * @param offset         a single number used to paginate the response
+   * @param limit          a single number used to paginate the response, indicating the limit of rows returned
+   * @param pageToken      a token returned with a previous page, or null to start at the first record
+
+   * @return a list of audit records {@link org.plos.repo.models.Audit}
+   * @throws org.plos.repo.service.RepoException if the page token is invalid or a server error occurs
+   */
+  public List<Audit> listAuditRecords(Integer offset, Integer limit, String pageToken) throws RepoException {
+    PageToken after = PageToken.decodeId(pageToken);
 
     if (offset == null) {
       offset = 0;
@@ -62,7 +77,7 @@ public class AuditRepoService extends BaseRepoService {
 
       sqlService.getReadOnlyConnection();
 
-      return sqlService.listAuditRecords(offset, limit);
+      return sqlService.listAuditRecords(offset, limit, after);
 
     } catch (SQLException e) {
       throw new RepoException(e);
@@ -35,13 +35,29 @@ import java.sql.SQLException;
 public abstract class BaseRepoService {
 
   // default page size = number of objects returned when no limit= parameter supplied.
-  protected static final Integer DEFAULT_PAGE_SIZE = 1000;
+  public static final Integer DEFAULT_PAGE_SIZE = 1000;
 
   // maximum allowed value of page size, i.e., limit= parameter
   protected static final Integer MAX_PAGE_SIZE = 10000;
 
   public enum CreateMethod {
     NEW, VERSION, AUTO;
+
+    /**
+     * @param create the creation method entered by the client, in any case
+     * @throws RepoException if <code>create</code> is null or is not a creation method
+     */
+    public static CreateMethod fromString(String create) throws RepoException {
+      if (create == null) {
+        throw new RepoException(RepoException.Type.NoCreationMethodEntered);
+      }
+
+      try {
+        return valueOf(create.toUpperCase());
+      } catch (IllegalArgumentException e) {
+        throw new RepoException(RepoException.Type.InvalidCreationMethod);
+      }
+    }
   }
 
   @Inject
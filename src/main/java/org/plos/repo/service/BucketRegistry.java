@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import com.google.common.collect.ImmutableMap;
+import org.plos.repo.models.Bucket;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory snapshot of the buckets table, mapping bucket names to ids and back. Buckets are few and change rarely,
+ * so the whole table is reloaded whenever a bucket is created or deleted, and periodically to pick up changes made by
+ * other instances sharing the database.
+ */
+class BucketRegistry {
+
+  static final long REFRESH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private static class Snapshot {
+
+    private final ImmutableMap<String, Bucket> byName;
+
+    private final long loadedAt;
+
+    private Snapshot(Collection<Bucket> buckets, long loadedAt) {
+      ImmutableMap.Builder<String, Bucket> byNameBuilder = ImmutableMap.builder();
+
+      for (Bucket bucket : buckets) {
+        byNameBuilder.put(bucket.getBucketName(), bucket);
+      }
+
+      this.byName = byNameBuilder.build();
+      this.loadedAt = loadedAt;
+    }
+
+  }
+
+  private final AtomicLong generation = new AtomicLong();
+
+  private volatile Snapshot snapshot;
+
+  /**
+   * @return true if the registry was never loaded, was invalidated, or its snapshot is older than the refresh interval
+   */
+  boolean isStale() {
+    Snapshot current = snapshot;
+    return current == null || System.currentTimeMillis() - current.loadedAt > REFRESH_INTERVAL_MILLIS;
+  }
+
+  /**
+   * @return the current generation, to be passed to {@link #load} once the buckets have been read
+   */
+  long generation() {
+    return generation.get();
+  }
+
+  /**
+   * Install a new snapshot, unless the registry was invalidated since <code>readGeneration</code> was taken, in which
+   * case the buckets may predate a committed change and the registry stays stale.
+   */
+  synchronized void load(Collection<Bucket> buckets, long readGeneration) {
+    if (generation.get() == readGeneration) {
+      snapshot = new Snapshot(buckets, System.currentTimeMillis());
+    }
+  }
+
+  synchronized void invalidate() {
+    generation.incrementAndGet();
+    snapshot = null;
+  }
+
+  /**
+   * @return a copy of the bucket named <code>bucketName</code>, or null if it is not registered
+   */
+  Bucket getBucket(String bucketName) {
+    Snapshot current = snapshot;
+    Bucket bucket = current == null || bucketName == null ? null : current.byName.get(bucketName);
+
+    if (bucket == null) {
+      return null;
+    }
+
+    // callers may fill in the object counts, keep the registered instance untouched
+    return new Bucket(bucket.getBucketId(), bucket.getBucketName(), bucket.getTimestamp(), bucket.getCreationDate());
+  }
+
+}
@@ -0,0 +1,486 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import com.google.common.base.Optional;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.plos.repo.models.Bucket;
+import org.plos.repo.models.RepoObject;
+import org.plos.repo.models.output.DataRootStatus;
+import org.plos.repo.util.ChecksumGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps the data of the objects read from another store in a directory of the local disk, so that objects read often
+ * are served from local files instead of the network. Data is cached whole, named by its checksum, when it is read
+ * through completely. Since data never changes for a given checksum, the cache only needs to forget it when it is
+ * deleted.
+ * <p/>
+ * The cache holds at most <code>maxBytes</code>. To make room it evicts, among the least recently read objects, the one
+ * read the least often; read counts are halved periodically so that old popularity fades.
+ */
+public class CachingObjectStore extends ObjectStore {
+
+  private static final Logger log = LoggerFactory.getLogger(CachingObjectStore.class);
+
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  // least recently read objects among which the least often read one is evicted
+  private static final int EVICTION_SAMPLE = 8;
+
+  // reads after which all read counts are halved
+  private static final int AGING_PERIOD = 10000;
+
+  private static class Entry {
+
+    private final long size;
+
+    private int frequency = 1;
+
+    Entry(long size) {
+      this.size = size;
+    }
+  }
+
+  private final ObjectStore store;
+
+  private final File cacheDirectory;
+
+  private final long maxBytes;
+
+  private final long maxObjectSize;
+
+  // by checksum, from the least to the most recently read
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long cachedBytes = 0;
+
+  private long reads = 0;
+
+  /**
+   * @param store          the store the data is read from
+   * @param cacheDirectory the directory the data is cached in; data left there by a previous run is kept
+   * @param maxBytes       the most data cached; objects larger than a tenth of it are not cached
+   */
+  public CachingObjectStore(ObjectStore store, String cacheDirectory, long maxBytes) {
+    this.store = store;
+    this.cacheDirectory = new File(cacheDirectory);
+    this.maxBytes = maxBytes;
+    this.maxObjectSize = maxBytes / 10;
+
+    this.cacheDirectory.mkdirs();
+    loadEntries();
+  }
+
+  private synchronized void loadEntries() {
+    File[] files = cacheDirectory.listFiles();
+
+    if (files == null) {
+      return;
+    }
+
+    for (File file : files) {
+      if (ChecksumGenerator.isValidChecksum(file.getName())) {
+        entries.put(file.getName(), new Entry(file.length()));
+        cachedBytes += file.length();
+      } else if (file.getName().endsWith(TEMP_SUFFIX)) {
+        // an interrupted fill
+        file.delete();
+      }
+    }
+
+    makeRoom(0);
+  }
+
+  private File getCacheFile(String checksum) {
+    return new File(cacheDirectory, checksum);
+  }
+
+  /**
+   * @return the cached file of the checksum, or null if it is not cached
+   */
+  private synchronized File lookup(String checksum) {
+    Entry entry = entries.get(checksum);
+
+    if (entry == null) {
+      return null;
+    }
+
+    entry.frequency++;
+
+    if (++reads % AGING_PERIOD == 0) {
+      for (Entry e : entries.values()) {
+        e.frequency /= 2;
+      }
+    }
+
+    return getCacheFile(checksum);
+  }
+
+  private synchronized void invalidate(String checksum) {
+    Entry entry = entries.remove(checksum);
+
+    if (entry != null) {
+      cachedBytes -= entry.size;
+      getCacheFile(checksum).delete();
+    }
+  }
+
+  /**
+   * Evict entries until <code>size</code> more bytes fit in the cache.
+   */
+  private void makeRoom(long size) {
+    while (cachedBytes + size > maxBytes && !entries.isEmpty()) {
+      String victim = null;
+      int victimFrequency = Integer.MAX_VALUE;
+
+      Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+      for (int i = 0; i < EVICTION_SAMPLE && iterator.hasNext(); i++) {
+        Map.Entry<String, Entry> candidate = iterator.next();
+        if (candidate.getValue().frequency < victimFrequency) {
+          victim = candidate.getKey();
+          victimFrequency = candidate.getValue().frequency;
+        }
+      }
+
+      cachedBytes -= entries.remove(victim).size;
+      getCacheFile(victim).delete();
+    }
+  }
+
+  private synchronized void commit(String checksum, File tempFile, long size) {
+    if (entries.containsKey(checksum)) {
+      // filled by a concurrent read
+      tempFile.delete();
+      return;
+    }
+
+    makeRoom(size);
+
+    if (!tempFile.renameTo(getCacheFile(checksum))) {
+      log.error("Error caching " + checksum);
+      tempFile.delete();
+      return;
+    }
+
+    entries.put(checksum, new Entry(size));
+    cachedBytes += size;
+  }
+
+  synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  synchronized boolean isCached(String checksum) {
+    return entries.containsKey(checksum);
+  }
+
+  /**
+   * Copies the data read from the store to a temporary file, which becomes the cached file once the data was read
+   * through completely and matches its checksum. Failing to write the file does not fail the read.
+   */
+  private class CacheFillInputStream extends FilterInputStream {
+
+    private final String checksum;
+
+    private final long size;
+
+    private final File tempFile;
+
+    private final MessageDigest digest;
+
+    private OutputStream out;
+
+    private long count = 0;
+
+    CacheFillInputStream(InputStream in, String checksum, long size) throws RepoException, FileNotFoundException {
+      super(in);
+      this.checksum = checksum;
+      this.size = size;
+      this.tempFile = new File(cacheDirectory, UUID.randomUUID().toString() + TEMP_SUFFIX);
+      this.digest = ChecksumGenerator.getDigestMessage();
+      this.out = new FileOutputStream(tempFile);
+    }
+
+    private void fill(byte[] b, int off, int len) {
+      if (out == null) {
+        return;
+      }
+
+      try {
+        out.write(b, off, len);
+        digest.update(b, off, len);
+        count += len;
+      } catch (IOException e) {
+        log.error("Error caching " + checksum, e);
+        discard();
+      }
+    }
+
+    private void finish() {
+      if (out == null) {
+        return;
+      }
+
+      try {
+        out.close();
+        out = null;
+      } catch (IOException e) {
+        log.error("Error caching " + checksum, e);
+        discard();
+        return;
+      }
+
+      if (count == size && checksum.equals(ChecksumGenerator.checksumToString(digest.digest()))) {
+        commit(checksum, tempFile, size);
+      } else {
+        log.error("The data read for " + checksum + " does not match its checksum, it was not cached");
+        tempFile.delete();
+      }
+    }
+
+    private void discard() {
+      if (out != null) {
+        IOUtils.closeQuietly(out);
+        out = null;
+        tempFile.delete();
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+
+      if (b == -1) {
+        finish();
+      } else {
+        fill(new byte[]{(byte) b}, 0, 1);
+      }
+
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = super.read(b, off, len);
+
+      if (n == -1) {
+        finish();
+      } else {
+        fill(b, off, n);
+      }
+
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // skipped data can not be cached
+      discard();
+      return super.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        // a read that stopped before the end
+        discard();
+      }
+    }
+  }
+
+  @Override
+  public InputStream getInputStream(RepoObject repoObject) throws RepoException {
+    File file = lookup(repoObject.getChecksum());
+
+    if (file != null) {
+      try {
+        return new FileInputStream(file);
+      } catch (FileNotFoundException e) {
+        invalidate(repoObject.getChecksum());
+      }
+    }
+
+    InputStream in = store.getInputStream(repoObject);
+
+    if (in == null || repoObject.getSize() == null || repoObject.getSize() > maxObjectSize) {
+      return in;
+    }
+
+    try {
+      return new CacheFillInputStream(in, repoObject.getChecksum(), repoObject.getSize());
+    } catch (RepoException | IOException e) {
+      log.error("Error caching " + repoObject.getChecksum(), e);
+      return in;
+    }
+  }
+
+  @Override
+  public InputStream getInputStream(RepoObject repoObject, long offset, long length) throws RepoException {
+    File file = lookup(repoObject.getChecksum());
+
+    if (file != null) {
+      try {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        channel.position(offset);
+        return new BoundedInputStream(Channels.newInputStream(channel), length);
+      } catch (IOException e) {
+        invalidate(repoObject.getChecksum());
+      }
+    }
+
+    // ranges are not cached, only whole objects are
+    return store.getInputStream(repoObject, offset, length);
+  }
+
+  /**
+   * Cached files are not handed out: the container opens the file it is given after the request returns, when the
+   * entry may already be evicted. Cached data is served from the streams above instead, which hold the file open.
+   */
+  @Override
+  public File getLocalFile(RepoObject repoObject) {
+    return store.getLocalFile(repoObject);
+  }
+
+  @Override
+  public boolean deleteObject(RepoObject repoObject) {
+    boolean deleted = store.deleteObject(repoObject);
+    invalidate(repoObject.getChecksum());
+    return deleted;
+  }
+
+  @Override
+  public boolean hasXReproxy() {
+    return store.hasXReproxy();
+  }
+
+  @Override
+  public boolean sharesContentAcrossBuckets() {
+    return store.sharesContentAcrossBuckets();
+  }
+
+  @Override
+  public String[] getFilePaths(RepoObject repoObject) throws RepoException {
+    return store.getFilePaths(repoObject);
+  }
+
+  @Override
+  public boolean objectExists(RepoObject repoObject) {
+    return store.objectExists(repoObject);
+  }
+
+  @Override
+  public Optional<Boolean> bucketExists(Bucket bucket) {
+    return store.bucketExists(bucket);
+  }
+
+  @Override
+  public Optional<Boolean> createBucket(Bucket bucket) {
+    return store.createBucket(bucket);
+  }
+
+  @Override
+  public Optional<Boolean> deleteBucket(Bucket bucket) {
+    return store.deleteBucket(bucket);
+  }
+
+  @Override
+  public UploadInfo uploadTempObject(InputStream uploadedInputStream) throws RepoException {
+    return store.uploadTempObject(uploadedInputStream);
+  }
+
+  @Override
+  public UploadInfo uploadTempObject(InputStream uploadedInputStream, String contentType) throws RepoException {
+    return store.uploadTempObject(uploadedInputStream, contentType);
+  }
+
+  @Override
+  public UploadInfo uploadTempObject(InputStream uploadedInputStream, String contentType, String checksum)
+      throws RepoException {
+    return store.uploadTempObject(uploadedInputStream, contentType, checksum);
+  }
+
+  @Override
+  public boolean saveUploadedObject(Bucket bucket, UploadInfo uploadInfo, RepoObject repoObject) {
+    return store.saveUploadedObject(bucket, uploadInfo, repoObject);
+  }
+
+  @Override
+  public boolean deleteTempUpload(UploadInfo uploadInfo) {
+    return store.deleteTempUpload(uploadInfo);
+  }
+
+  @Override
+  public boolean compressesContentType(String contentType) {
+    return store.compressesContentType(contentType);
+  }
+
+  @Override
+  public InputStream getCompressedInputStream(RepoObject repoObject) throws RepoException {
+    // compressed content is sent as it is stored, so it is not cached
+    return store.getCompressedInputStream(repoObject);
+  }
+
+  @Override
+  public boolean rebalance() {
+    return store.rebalance();
+  }
+
+  @Override
+  public List<DataRootStatus> getDataRootStatus() {
+    return store.getDataRootStatus();
+  }
+
+  @Override
+  public void setParallelGet(ParallelRangeInputStream.Settings parallelGet) {
+    store.setParallelGet(parallelGet);
+  }
+
+}
@@ -22,6 +22,7 @@
 
 package org.plos.repo.service;
 
+import com.google.common.collect.Lists;
 import org.hsqldb.lib.StringUtil;
 import org.plos.repo.models.Audit;
 import org.plos.repo.models.Bucket;
@@ -33,6 +34,7 @@ import org.plos.repo.models.input.ElementFilter;
 import org.plos.repo.models.input.InputCollection;
 import org.plos.repo.models.input.InputObject;
 import org.plos.repo.models.validator.InputCollectionValidator;
+import org.plos.repo.util.PageToken;
 import org.plos.repo.util.UUIDFormatter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,7 +45,11 @@ import java.sql.SQLIntegrityConstraintViolationException;
 import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -56,6 +62,12 @@ public class CollectionRepoService extends BaseRepoService {
   @Inject
   private InputCollectionValidator inputCollectionValidator;
 
+  @Inject
+  private MetadataCache metadataCache;
+
+  // number of collection members resolved by a single query
+  private static final int MEMBER_LOOKUP_CHUNK_SIZE = 500;
+
 
   /**
    * Returns a list of collections meta data for the given bucket name <code>bucketName</code>. In case pagination
@@ -70,6 +82,23 @@ public class CollectionRepoService extends BaseRepoService {
    * @throws org.plos.repo.service.RepoException
    */
   public List<RepoCollection> listCollections(String bucketName, Integer offset, Integer limit, boolean includeDeleted, String tag) throws RepoException {
+    return listCollections(bucketName, offset, limit, includeDeleted, tag, null, false);
+  }
+
+  /**
+   * Returns a list of collections for the given bucket name <code>bucketName</code>, in (bucket, key, version) order.
+   *
+   * @param pageToken      a token returned with a previous page, used to continue the listing right after its last
+   *                       collection. If null, the listing starts at the beginning
+   * @param includeObjects a boolean value that defines whether to load the objects of the collections, with a single
+   *                       query for the whole page, or only their meta data
+   * @throws org.plos.repo.service.RepoException if the page token is invalid, and as {@link #listCollections(String,
+   *                                             Integer, Integer, boolean, String)}
+   * @see org.plos.repo.util.PageToken
+   */
+  public List<RepoCollection> listCollections(String bucketName, Integer offset, Integer limit, boolean includeDeleted, String tag, String pageToken, boolean includeObjects) throws RepoException {
+    PageToken after = PageToken.decodeElement(pageToken);
+
     if (offset == null) {
       offset = 0;
     }
@@ -90,7 +119,11 @@ public class CollectionRepoService extends BaseRepoService {
         throw new RepoException(RepoException.Type.BucketNotFound);
       }
 
-      return sqlService.listCollectionsMetaData(bucketName, offset, limit, includeDeleted, tag);
+      if (includeObjects) {
+        return sqlService.listCollections(bucketName, offset, limit, includeDeleted, tag, after);
+      }
+
+      return sqlService.listCollectionsMetaData(bucketName, offset, limit, includeDeleted, tag, after);
     } catch (SQLException e) {
       throw new RepoException(e);
     } finally {
@@ -112,13 +145,21 @@ public class CollectionRepoService extends BaseRepoService {
   public RepoCollection getCollection(String bucketName, String key, ElementFilter elementFilter) throws RepoException {
     RepoCollection repoCollection;
 
+    if (StringUtil.isEmpty(key)) {
+      throw new RepoException(RepoException.Type.NoCollectionKeyEntered);
+    }
+
+    repoCollection = metadataCache.getCollection(bucketName, key, elementFilter);
+
+    if (repoCollection != null) {
+      return repoCollection;
+    }
+
+    long generation = metadataCache.collectionGeneration();
+
     try {
       sqlService.getReadOnlyConnection();
 
-      if (StringUtil.isEmpty(key)) {
-        throw new RepoException(RepoException.Type.NoCollectionKeyEntered);
-      }
-
       if (elementFilter == null || elementFilter.isEmpty()) // no filters defined
       {
         repoCollection = sqlService.getCollection(bucketName, key);
@@ -136,6 +177,8 @@ public class CollectionRepoService extends BaseRepoService {
       sqlReleaseConnection();
     }
 
+    metadataCache.putCollection(bucketName, key, elementFilter, repoCollection, generation);
+
     return repoCollection;
   }
 
@@ -196,7 +239,7 @@ public class CollectionRepoService extends BaseRepoService {
       rollback = true;
 
       if (elementFilter.getTag() != null & elementFilter.getUuid() == null & elementFilter.getVersion() == null) {
-        if (sqlService.listCollections(bucketName, 0, 10, false, elementFilter.getTag()).size() > 1) {
+        if (sqlService.listCollectionsMetaData(bucketName, 0, 10, false, elementFilter.getTag()).size() > 1) {
           throw new RepoException(RepoException.Type.MoreThanOneTaggedCollection);
         }
       }
@@ -217,6 +260,8 @@ public class CollectionRepoService extends BaseRepoService {
 
       sqlService.transactionCommit();
       rollback = false;
+
+      metadataCache.invalidateCollection(bucketName, key);
     } catch (SQLException e) {
       throw new RepoException(e);
     } finally {
@@ -284,6 +329,8 @@ public class CollectionRepoService extends BaseRepoService {
 
       sqlService.transactionCommit();
       rollback = false;
+
+      metadataCache.invalidateCollectionLatest(inputCollection.getBucketName(), inputCollection.getKey());
     } catch (SQLException e) {
       throw new RepoException(e);
     } finally {
@@ -345,6 +392,8 @@ public class CollectionRepoService extends BaseRepoService {
 
   private RepoCollection createCollection(RepoCollection repoCollection,
                                           List<InputObject> inputObjects, Operation operation) throws SQLException, RepoException {
+    List<RepoObject> repoObjectList = getCollectionMembers(repoCollection.getBucketName(), inputObjects);
+
     Integer versionNumber = sqlService.getCollectionNextAvailableVersion(repoCollection.getBucketName(), repoCollection.getKey());   // change to support collections
     repoCollection.setVersionNumber(versionNumber);
 
@@ -356,25 +405,16 @@ public class CollectionRepoService extends BaseRepoService {
       throw new RepoException("Error saving content to database");
     }
 
-    List<RepoObject> repoObjectList = new ArrayList<>();
-
-    for (InputObject inputObject : inputObjects) {
-      UUID objectUUID = UUIDFormatter.getUuid(inputObject.getUuid());
+    log.debug("createCollection repoCollection=" + repoCollection.getBucketName() + "," + repoCollection.getKey()
+        + " members=" + repoObjectList.size() + " collId=" + collId);
 
-      log.debug("createCollection repoCollection=" + repoCollection.getBucketName() + "," + repoCollection.getKey()
-          + " inputObjects=" + inputObject.getKey() + "," + inputObject.getUuid() + " collId=" + collId + " objectUUID=" + objectUUID.toString());
+    List<Integer> objectIds = new ArrayList<>(repoObjectList.size());
+    for (RepoObject repoObject : repoObjectList) {
+      objectIds.add(repoObject.getId());
+    }
 
-      // Search a object by bucketName, key and uuid don't care object status
-      RepoObject repoObject = sqlService.getObject(repoCollection.getBucketName(), inputObject.getKey(), null, objectUUID, null, true, true);
-      if (repoObject != null) {
-        if (sqlService.insertCollectionObjects(collId, repoObject.getId())) {
-          repoObjectList.add(repoObject);
-        }
-      } else {
-        throw new RepoException(RepoException.Type.ObjectCollectionNotFound);
-      }
+    sqlService.insertCollectionObjects(collId, objectIds);
 
-    }
     // Add objects list to collection object
     repoCollection.addObjects(repoObjectList);
 
@@ -386,6 +426,52 @@ public class CollectionRepoService extends BaseRepoService {
     return repoCollection;
   }
 
+  /**
+   * Resolve the objects of a new collection with one query per {@link #MEMBER_LOOKUP_CHUNK_SIZE} members, no matter
+   * the object status.
+   *
+   * @return the objects, in the order of <code>inputObjects</code>
+   * @throws RepoException of type ObjectCollectionNotFound, listing every member that does not exist
+   */
+  private List<RepoObject> getCollectionMembers(String bucketName, List<InputObject> inputObjects) throws SQLException, RepoException {
+    Map<UUID, RepoObject> objectsByUuid = new HashMap<>();
+
+    for (List<InputObject> chunk : Lists.partition(inputObjects, MEMBER_LOOKUP_CHUNK_SIZE)) {
+      Set<String> keys = new HashSet<>();
+      Set<UUID> uuids = new HashSet<>();
+
+      for (InputObject inputObject : chunk) {
+        keys.add(inputObject.getKey());
+        uuids.add(UUIDFormatter.getUuid(inputObject.getUuid()));
+      }
+
+      for (RepoObject repoObject : sqlService.getObjects(bucketName, keys, uuids)) {
+        objectsByUuid.put(repoObject.getUuid(), repoObject);
+      }
+    }
+
+    List<RepoObject> repoObjects = new ArrayList<>(inputObjects.size());
+    List<String> missingObjects = new ArrayList<>();
+
+    for (InputObject inputObject : inputObjects) {
+      RepoObject repoObject = objectsByUuid.get(UUIDFormatter.getUuid(inputObject.getUuid()));
+
+      // the query matched keys and uuids separately, make sure they belong to the same object. Keys are compared the
+      // way MySQL collates them
+      if (repoObject != null && repoObject.getKey().equalsIgnoreCase(inputObject.getKey())) {
+        repoObjects.add(repoObject);
+      } else {
+        missingObjects.add("key: " + inputObject.getKey() + ", uuid: " + inputObject.getUuid());
+      }
+    }
+
+    if (!missingObjects.isEmpty()) {
+      throw new RepoException(RepoException.Type.ObjectCollectionNotFound, missingObjects);
+    }
+
+    return repoObjects;
+  }
+
   @Override
   public Logger getLog() {
     return log;
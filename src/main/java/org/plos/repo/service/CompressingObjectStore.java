@@ -0,0 +1,489 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import com.google.common.base.Optional;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.plos.repo.models.Bucket;
+import org.plos.repo.models.RepoObject;
+import org.plos.repo.models.output.DataRootStatus;
+import org.plos.repo.util.ChecksumGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stores the content of the given content types gzip compressed in another store. The checksum and size of an object
+ * remain those of its uncompressed content, which is what reads return, but clients that accept gzip can be sent the
+ * compressed content as it is stored.
+ * <p/>
+ * Compressed content is stored under its checksum with a <code>.gz</code> suffix. Since content is stored once for all
+ * the objects that share its checksum, whatever their content type, content is looked up under both names, the one
+ * expected for the content type first.
+ * <p/>
+ * The stored files no longer hold the content as it was uploaded, so this store does not reproxy.
+ */
+public class CompressingObjectStore extends ObjectStore {
+
+  private static final Logger log = LoggerFactory.getLogger(CompressingObjectStore.class);
+
+  private static final String COMPRESSED_SUFFIX = ".gz";
+
+  public static final String DEFAULT_CONTENT_TYPES =
+      "text/*,application/xml,application/json,application/javascript,+xml,+json";
+
+  /**
+   * Content staged compressed in the other store, described by its uncompressed checksum and size.
+   */
+  private static class CompressedUpload implements UploadInfo {
+
+    private final UploadInfo staged;
+
+    private final String checksum;
+
+    private final long size;
+
+    CompressedUpload(UploadInfo staged, String checksum, long size) {
+      this.staged = staged;
+      this.checksum = checksum;
+      this.size = size;
+    }
+
+    @Override
+    public Long getSize() {
+      return size;
+    }
+
+    @Override
+    public String getTempLocation() {
+      return staged.getTempLocation();
+    }
+
+    @Override
+    public String getChecksum() {
+      return checksum;
+    }
+
+    @Override
+    public String getContentMd5() {
+      return null;
+    }
+  }
+
+  /**
+   * The compressed content of an upload, as the other store saves it: under the compressed name.
+   */
+  private static class StoredUpload implements UploadInfo {
+
+    private final UploadInfo staged;
+
+    private final String checksum;
+
+    StoredUpload(UploadInfo staged, String checksum) {
+      this.staged = staged;
+      this.checksum = checksum;
+    }
+
+    @Override
+    public Long getSize() {
+      return staged.getSize();
+    }
+
+    @Override
+    public String getTempLocation() {
+      return staged.getTempLocation();
+    }
+
+    @Override
+    public String getChecksum() {
+      return getCompressedName(checksum);
+    }
+
+    @Override
+    public String getContentMd5() {
+      return staged.getContentMd5();
+    }
+  }
+
+  /**
+   * Gzip compresses the content of another stream as it is read, counting and digesting the uncompressed bytes.
+   */
+  private static class GzipCompressingInputStream extends InputStream {
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final InputStream in;
+
+    private final MessageDigest digest;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] input = new byte[64 * 1024];
+
+    private final byte[] output = new byte[input.length];
+
+    private int position = 0;
+
+    private int limit = HEADER.length;
+
+    private long size = 0;
+
+    private boolean finished = false;
+
+    GzipCompressingInputStream(InputStream in, MessageDigest digest) {
+      this.in = in;
+      this.digest = digest;
+      System.arraycopy(HEADER, 0, output, 0, HEADER.length);
+    }
+
+    /**
+     * @return false once the whole content and the trailer have been read
+     */
+    private boolean fill() throws IOException {
+      while (position == limit) {
+        if (finished) {
+          return false;
+        }
+
+        if (deflater.finished()) {
+          writeTrailer();
+          finished = true;
+          return true;
+        }
+
+        if (deflater.needsInput()) {
+          int read = in.read(input);
+          if (read < 0) {
+            deflater.finish();
+          } else if (read > 0) {
+            crc.update(input, 0, read);
+            digest.update(input, 0, read);
+            size += read;
+            deflater.setInput(input, 0, read);
+          }
+        }
+
+        position = 0;
+        limit = deflater.deflate(output);
+      }
+
+      return true;
+    }
+
+    private void writeTrailer() {
+      long[] values = {crc.getValue(), size};
+      position = 0;
+      limit = 0;
+      for (long value : values) {
+        for (int i = 0; i < 4; i++) {
+          output[limit++] = (byte) (value >> (8 * i));
+        }
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      return fill() ? output[position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+
+      int count = Math.min(len, limit - position);
+      System.arraycopy(output, position, b, off, count);
+      position += count;
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      deflater.end();
+      in.close();
+    }
+  }
+
+  private final ObjectStore store;
+
+  // lower case full types, "type/*" wildcards and "+suffix" structured syntax suffixes
+  private final List<String> contentTypes = new ArrayList<>();
+
+  /**
+   * @param store        the store the content is kept in
+   * @param contentTypes the comma separated content types to compress: full types such as
+   *                     <code>application/xml</code>, wildcards such as <code>text/*</code>, or structured syntax
+   *                     suffixes such as <code>+xml</code>
+   */
+  public CompressingObjectStore(ObjectStore store, String contentTypes) {
+    this.store = store;
+
+    for (String contentType : contentTypes.split(",")) {
+      if (!contentType.trim().isEmpty()) {
+        this.contentTypes.add(contentType.trim().toLowerCase(Locale.ENGLISH));
+      }
+    }
+  }
+
+  private static String getCompressedName(String checksum) {
+    return checksum + COMPRESSED_SUFFIX;
+  }
+
+  private static RepoObject getCompressedObject(RepoObject repoObject) {
+    RepoObject compressedObject = new RepoObject();
+    compressedObject.setKey(repoObject.getKey());
+    compressedObject.setBucketName(repoObject.getBucketName());
+    compressedObject.setVersionNumber(repoObject.getVersionNumber());
+    // the size of the stored content is not known
+    compressedObject.setChecksum(getCompressedName(repoObject.getChecksum()));
+    return compressedObject;
+  }
+
+  @Override
+  public boolean compressesContentType(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+
+    String type = contentType.toLowerCase(Locale.ENGLISH);
+    int parameters = type.indexOf(';');
+    if (parameters >= 0) {
+      type = type.substring(0, parameters);
+    }
+    type = type.trim();
+
+    for (String compressed : contentTypes) {
+      if (compressed.equals(type) ||
+          (compressed.endsWith("/*") && type.startsWith(compressed.substring(0, compressed.length() - 1))) ||
+          (compressed.startsWith("+") && type.endsWith(compressed))) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * @return the stored content of an object, compressed or not as asked, or null if it is not stored that way
+   */
+  private InputStream getStoredInputStream(RepoObject repoObject, boolean compressed) {
+    try {
+      return store.getInputStream(compressed ? getCompressedObject(repoObject) : repoObject);
+    } catch (RepoException e) {
+      log.debug("The content {} is not stored {}", repoObject.getChecksum(), compressed ? "compressed" : "uncompressed");
+      return null;
+    }
+  }
+
+  private static InputStream decompress(InputStream compressed) throws RepoException {
+    try {
+      return new GZIPInputStream(compressed, 64 * 1024);
+    } catch (IOException e) {
+      IOUtils.closeQuietly(compressed);
+      throw new RepoException(e);
+    }
+  }
+
+  @Override
+  public InputStream getCompressedInputStream(RepoObject repoObject) {
+    if (!compressesContentType(repoObject.getContentType())) {
+      return null;
+    }
+
+    return getStoredInputStream(repoObject, true);
+  }
+
+  @Override
+  public InputStream getInputStream(RepoObject repoObject) throws RepoException {
+    boolean compressed = compressesContentType(repoObject.getContentType());
+
+    InputStream in = getStoredInputStream(repoObject, compressed);
+    if (in != null) {
+      return compressed ? decompress(in) : in;
+    }
+
+    in = store.getInputStream(compressed ? repoObject : getCompressedObject(repoObject));
+    if (in == null) {
+      return null;
+    }
+    return compressed ? in : decompress(in);
+  }
+
+  @Override
+  public InputStream getInputStream(RepoObject repoObject, long offset, long length) throws RepoException {
+    if (!compressesContentType(repoObject.getContentType())) {
+      try {
+        InputStream in = store.getInputStream(repoObject, offset, length);
+        if (in != null) {
+          return in;
+        }
+      } catch (RepoException e) {
+        log.debug("The content {} is not stored uncompressed", repoObject.getChecksum());
+      }
+    }
+
+    // compressed content can only be read from its start
+    InputStream in = getInputStream(repoObject);
+    if (in == null) {
+      return null;
+    }
+
+    try {
+      IOUtils.skipFully(in, offset);
+    } catch (IOException e) {
+      IOUtils.closeQuietly(in);
+      throw new RepoException(e);
+    }
+
+    return new BoundedInputStream(in, length);
+  }
+
+  @Override
+  public UploadInfo uploadTempObject(InputStream uploadedInputStream) throws RepoException {
+    return store.uploadTempObject(uploadedInputStream);
+  }
+
+  @Override
+  public UploadInfo uploadTempObject(InputStream uploadedInputStream, String contentType) throws RepoException {
+    return uploadTempObject(uploadedInputStream, contentType, null);
+  }
+
+  @Override
+  public UploadInfo uploadTempObject(InputStream uploadedInputStream, String contentType, String checksum)
+      throws RepoException {
+    if (uploadedInputStream == null || !compressesContentType(contentType)) {
+      return store.uploadTempObject(uploadedInputStream, contentType, checksum);
+    }
+
+    GzipCompressingInputStream compressing =
+        new GzipCompressingInputStream(uploadedInputStream, ChecksumGenerator.getDigestMessage());
+    UploadInfo staged = store.uploadTempObject(compressing, null, checksum == null ? null : getCompressedName(checksum));
+
+    return new CompressedUpload(staged, ChecksumGenerator.checksumToString(compressing.digest.digest()),
+        compressing.size);
+  }
+
+  @Override
+  public boolean saveUploadedObject(Bucket bucket, UploadInfo uploadInfo, RepoObject repoObject) {
+    if (uploadInfo instanceof CompressedUpload) {
+      CompressedUpload compressedUpload = (CompressedUpload) uploadInfo;
+      return store.saveUploadedObject(bucket, new StoredUpload(compressedUpload.staged, compressedUpload.checksum),
+          repoObject);
+    }
+
+    return store.saveUploadedObject(bucket, uploadInfo, repoObject);
+  }
+
+  @Override
+  public boolean deleteTempUpload(UploadInfo uploadInfo) {
+    if (uploadInfo instanceof CompressedUpload) {
+      return store.deleteTempUpload(((CompressedUpload) uploadInfo).staged);
+    }
+
+    return store.deleteTempUpload(uploadInfo);
+  }
+
+  @Override
+  public boolean objectExists(RepoObject repoObject) {
+    boolean compressed = compressesContentType(repoObject.getContentType());
+
+    return store.objectExists(compressed ? getCompressedObject(repoObject) : repoObject) ||
+        store.objectExists(compressed ? repoObject : getCompressedObject(repoObject));
+  }
+
+  @Override
+  public boolean deleteObject(RepoObject repoObject) {
+    boolean deleted = store.deleteObject(repoObject);
+    deleted |= store.deleteObject(getCompressedObject(repoObject));
+    return deleted;
+  }
+
+  @Override
+  public File getLocalFile(RepoObject repoObject) {
+    // only uncompressed content can be sent as it is stored
+    return store.getLocalFile(repoObject);
+  }
+
+  @Override
+  public boolean hasXReproxy() {
+    return false;
+  }
+
+  @Override
+  public String[] getFilePaths(RepoObject repoObject) throws RepoException {
+    return new String[0];
+  }
+
+  @Override
+  public boolean sharesContentAcrossBuckets() {
+    return store.sharesContentAcrossBuckets();
+  }
+
+  @Override
+  public Optional<Boolean> bucketExists(Bucket bucket) {
+    return store.bucketExists(bucket);
+  }
+
+  @Override
+  public Optional<Boolean> createBucket(Bucket bucket) {
+    return store.createBucket(bucket);
+  }
+
+  @Override
+  public Optional<Boolean> deleteBucket(Bucket bucket) {
+    return store.deleteBucket(bucket);
+  }
+
+  @Override
+  public void setParallelGet(ParallelRangeInputStream.Settings parallelGet) {
+    store.setParallelGet(parallelGet);
+  }
+
+  @Override
+  public boolean rebalance() {
+    return store.rebalance();
+  }
+
+  @Override
+  public List<DataRootStatus> getDataRootStatus() {
+    return store.getDataRootStatus();
+  }
+
+}
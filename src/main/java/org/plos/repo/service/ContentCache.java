@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of the content of small objects in direct memory, keyed by bucket and checksum, for the objects read
+ * at high rates. Hits are read straight from the direct buffers, without the object store and without copying the
+ * content to the heap.
+ * <p/>
+ * The accesses to every small object, cached or not, are counted in a compact frequency sketch. When the cache is
+ * full, a new content is only admitted if it is read more often than the least recently read contents it would evict,
+ * so that contents read once do not push out the ones read all the time. The counts are halved periodically so that
+ * old popularity fades.
+ */
+public class ContentCache {
+
+  public static final int DEFAULT_MAXIMUM_OBJECT_SIZE = 64 * 1024;
+
+  private final long maximumBytes;
+
+  private final int maximumObjectSize;
+
+  // by bucket and checksum, from the least to the most recently read
+  private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private final FrequencySketch sketch;
+
+  private long cachedBytes = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+
+  private final AtomicLong misses = new AtomicLong();
+
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maximumBytes      the most content cached. Zero disables caching.
+   * @param maximumObjectSize the size of the largest object cached
+   */
+  public ContentCache(long maximumBytes, int maximumObjectSize) {
+    this.maximumBytes = maximumBytes;
+    this.maximumObjectSize = maximumObjectSize;
+    this.sketch = new FrequencySketch((int) Math.max(16, maximumBytes / 1024));
+  }
+
+  private static String getKey(String bucketName, String checksum) {
+    return bucketName + "/" + checksum;
+  }
+
+  /**
+   * @return true if the content of an object of this size may be cached
+   */
+  public boolean accepts(Long size) {
+    return maximumBytes > 0 && size != null && size <= maximumObjectSize;
+  }
+
+  /**
+   * Count an access to the content and return it if it is cached.
+   *
+   * @return a read-only view of the cached content, or null if it is not cached
+   */
+  public ByteBuffer get(String bucketName, String checksum) {
+    String key = getKey(bucketName, checksum);
+    ByteBuffer content;
+
+    synchronized (this) {
+      sketch.increment(key);
+      content = entries.get(key);
+    }
+
+    if (content == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    hits.incrementAndGet();
+    return content.duplicate();
+  }
+
+  /**
+   * Offer the content for caching. It is only kept if it fits, or if it is read more often than the contents it would
+   * evict.
+   *
+   * @param content a direct buffer holding the whole content, which must not be modified afterwards
+   * @return true if the content was cached
+   */
+  public synchronized boolean put(String bucketName, String checksum, ByteBuffer content) {
+    String key = getKey(bucketName, checksum);
+    int size = content.capacity();
+
+    if (!makeRoom(key, size)) {
+      return false;
+    }
+
+    entries.put(key, content.asReadOnlyBuffer());
+    cachedBytes += size;
+    return true;
+  }
+
+  /**
+   * @return the least recently read contents to evict to make room for a content of the given size, or null if the
+   * content is not admitted
+   */
+  private List<String> findVictims(String key, int size) {
+    if (size > maximumObjectSize || size > maximumBytes || entries.containsKey(key)) {
+      return null;
+    }
+
+    List<String> victims = new ArrayList<>();
+    long freedBytes = 0;
+    int frequency = sketch.frequency(key);
+
+    Iterator<Map.Entry<String, ByteBuffer>> iterator = entries.entrySet().iterator();
+    while (cachedBytes - freedBytes + size > maximumBytes) {
+      Map.Entry<String, ByteBuffer> victim = iterator.next();
+
+      if (sketch.frequency(victim.getKey()) >= frequency) {
+        return null;
+      }
+
+      victims.add(victim.getKey());
+      freedBytes += victim.getValue().capacity();
+    }
+
+    return victims;
+  }
+
+  /**
+   * Evict what it takes to admit a content of the given size.
+   *
+   * @return false if the content is not admitted, in which case nothing is evicted
+   */
+  private boolean makeRoom(String key, int size) {
+    List<String> victims = findVictims(key, size);
+
+    if (victims == null) {
+      return false;
+    }
+
+    for (String victim : victims) {
+      cachedBytes -= entries.remove(victim).capacity();
+    }
+
+    evictions.addAndGet(victims.size());
+    return true;
+  }
+
+  /**
+   * @return true if the content is cached, without counting an access to it
+   */
+  synchronized boolean contains(String bucketName, String checksum) {
+    return entries.containsKey(getKey(bucketName, checksum));
+  }
+
+  public synchronized void invalidate(String bucketName, String checksum) {
+    ByteBuffer content = entries.remove(getKey(bucketName, checksum));
+
+    if (content != null) {
+      cachedBytes -= content.capacity();
+    }
+  }
+
+  public synchronized void invalidateAll() {
+    entries.clear();
+    cachedBytes = 0;
+  }
+
+  /**
+   * Offer the content of an object for caching as it is read. Content the cache would not admit is returned as it is;
+   * otherwise it is read whole, and only copied into a direct buffer if it is still admitted once read.
+   *
+   * @param in   the content of the object, closed once read
+   * @param size the size of the content of the object
+   * @return the content read from <code>in</code>
+   * @throws IOException if the content could not be read
+   */
+  public InputStream fill(String bucketName, String checksum, InputStream in, int size) throws IOException {
+    String key = getKey(bucketName, checksum);
+
+    synchronized (this) {
+      if (findVictims(key, size) == null) {
+        return in;
+      }
+    }
+
+    byte[] content = new byte[size];
+    int length = ByteStreams.read(in, content, 0, size);
+    int next = length == size ? in.read() : -1;
+
+    if (length < size || next != -1) {
+      // the size of the object does not match its content, which is returned as it is without being cached
+      InputStream read = new ByteArrayInputStream(content, 0, length);
+
+      if (next == -1) {
+        in.close();
+        return read;
+      }
+
+      return new SequenceInputStream(read, new SequenceInputStream(new ByteArrayInputStream(new byte[]{(byte) next}),
+          in));
+    }
+
+    in.close();
+
+    synchronized (this) {
+      if (makeRoom(key, size)) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(content).flip();
+        entries.put(key, buffer.asReadOnlyBuffer());
+        cachedBytes += size;
+      }
+    }
+
+    return new ByteArrayInputStream(content);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public synchronized long getCachedBytes() {
+    return cachedBytes;
+  }
+
+  /**
+   * Reads the content of a buffer, leaving the buffer itself untouched.
+   */
+  public static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+
+      int count = Math.min(len, buffer.remaining());
+      buffer.get(b, off, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long n) {
+      int count = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+
+  /**
+   * Count-min sketch of 4-bit counters estimating how often each key was read, halved after every
+   * <code>10 * width</code> increments.
+   */
+  static class FrequencySketch {
+
+    private static final int DEPTH = 4;
+
+    private static final int MAXIMUM_COUNT = 15;
+
+    private static final int[] SEEDS = {0x97c29b3a, 0x3c6ef372, 0xa54ff53a, 0x510e527f};
+
+    private final byte[][] counters;
+
+    private final int mask;
+
+    private final int samplePeriod;
+
+    private int increments = 0;
+
+    FrequencySketch(int expectedKeys) {
+      int width = Integer.highestOneBit(Math.max(16, expectedKeys) - 1) << 1;
+      counters = new byte[DEPTH][width];
+      mask = width - 1;
+      samplePeriod = 10 * width;
+    }
+
+    private int index(String key, int row) {
+      int hash = (key.hashCode() + SEEDS[row]) * 0x9e3779b9;
+      hash ^= hash >>> 16;
+      hash *= 0x85ebca6b;
+      return (hash ^ (hash >>> 13)) & mask;
+    }
+
+    void increment(String key) {
+      for (int row = 0; row < DEPTH; row++) {
+        int i = index(key, row);
+        if (counters[row][i] < MAXIMUM_COUNT) {
+          counters[row][i]++;
+        }
+      }
+
+      if (++increments == samplePeriod) {
+        increments = 0;
+        for (byte[] row : counters) {
+          for (int i = 0; i < row.length; i++) {
+            row[i] >>= 1;
+          }
+        }
+      }
+    }
+
+    int frequency(String key) {
+      int frequency = MAXIMUM_COUNT;
+      for (int row = 0; row < DEPTH; row++) {
+        frequency = Math.min(frequency, counters[row][index(key, row)]);
+      }
+      return frequency;
+    }
+  }
+
+}
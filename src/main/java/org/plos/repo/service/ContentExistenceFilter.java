@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.sql.SQLException;
+
+/**
+ * Tells which contents are surely not in the object store, so that saving new content does not need to ask the store
+ * first. It is a Bloom filter of the contents referenced by the objects table, loaded at startup and completed as
+ * contents are saved. Contents are never removed from it: a purged content only costs a probe of the store, like any
+ * false positive.
+ * <p/>
+ * Contents saved by another instance of the service since this one started are unknown to the filter, so they are
+ * saved again. Stores that refuse to overwrite a content, like MogileFS, then fail the save, and the store is probed
+ * before the save is reported as failed.
+ */
+public class ContentExistenceFilter {
+
+  private static final Logger log = LoggerFactory.getLogger(ContentExistenceFilter.class);
+
+  public static final int DEFAULT_EXPECTED_CONTENTS = 1000000;
+
+  private static final double FALSE_POSITIVE_RATE = 0.01;
+
+  @Inject
+  private SqlService sqlService;
+
+  @Inject
+  private ObjectStore objectStore;
+
+  private final int expectedContents;
+
+  // null until loaded, when every content might exist
+  private BloomFilter<CharSequence> filter;
+
+  /**
+   * @param expectedContents the number of contents the filter is sized for at least; it is sized for twice the
+   *                         contents in the database if there are more
+   */
+  public ContentExistenceFilter(int expectedContents) {
+    this.expectedContents = expectedContents;
+  }
+
+  @PostConstruct
+  public void load() {
+    try {
+      sqlService.getReadOnlyConnection();
+
+      long storedContents = sqlService.countStoredContents(!objectStore.sharesContentAcrossBuckets());
+      BloomFilter<CharSequence> loaded = BloomFilter.create(Funnels.stringFunnel(),
+          (int) Math.min(Integer.MAX_VALUE, Math.max(expectedContents, storedContents * 2)), FALSE_POSITIVE_RATE);
+
+      sqlService.putStoredContents(loaded, !objectStore.sharesContentAcrossBuckets());
+
+      synchronized (this) {
+        filter = loaded;
+      }
+
+      log.info("Content existence filter loaded with " + storedContents + " contents");
+    } catch (SQLException e) {
+      log.error("Error loading the content existence filter, the object store will be probed for every content", e);
+    } finally {
+      try {
+        sqlService.releaseConnection();
+      } catch (SQLException e) {
+        log.error("Error releasing the connection", e);
+      }
+    }
+  }
+
+  /**
+   * @param perBucket true if the store keeps a copy of the content in each bucket
+   * @return the key of a content in the filter
+   */
+  static String getKey(boolean perBucket, String bucketName, String checksum) {
+    return perBucket ? bucketName + "/" + checksum : checksum;
+  }
+
+  private String getKey(String bucketName, String checksum) {
+    return getKey(!objectStore.sharesContentAcrossBuckets(), bucketName, checksum);
+  }
+
+  /**
+   * @return false if the content is surely not in the object store; true if it might be
+   */
+  public synchronized boolean mightExist(String bucketName, String checksum) {
+    return filter == null || filter.mightContain(getKey(bucketName, checksum));
+  }
+
+  /**
+   * Record that the object store holds the content.
+   */
+  public synchronized void add(String bucketName, String checksum) {
+    if (filter != null) {
+      filter.put(getKey(bucketName, checksum));
+    }
+  }
+
+}
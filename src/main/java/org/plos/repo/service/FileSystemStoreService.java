@@ -22,59 +22,326 @@
 
 package org.plos.repo.service;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.plos.repo.models.Bucket;
 import org.plos.repo.models.RepoObject;
-import org.plos.repo.util.ChecksumGenerator;
+import org.plos.repo.models.output.DataRootStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
-import java.security.DigestOutputStream;
-import java.security.MessageDigest;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
-
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores content in one or more data directories, usually one per disk. Content belongs to a directory picked by a
+ * consistent hash of its checksum, so that appending a directory to the list only moves the share of the content that
+ * now belongs to it, which {@link #rebalance()} does while the store keeps serving. An upload whose checksum is not
+ * known in advance is staged on the directories in turn and saved on the one it was staged on, so that saving it is
+ * always a rename; lookups check every directory. Buckets and the content stored before it was shared across buckets
+ * stay in the first directory.
+ * <p/>
+ * Within a data directory, content is filed under one level of subdirectories per pair of leading hex digits of its
+ * checksum, so that no directory grows too large to be searched quickly. Changing the number of levels also takes a
+ * {@link #rebalance()}, until which content is still found at its previous depth.
+ * <p/>
+ * With a {@link GroupSync}, saved content is durable once it is saved: its data is synced before it is renamed into
+ * place, then the directories whose entries changed are synced.
+ */
 public class FileSystemStoreService extends ObjectStore {
 
   private static final Logger log = LoggerFactory.getLogger(FileSystemStoreService.class);
 
-  private String dataDirectory;
+  // content is stored once per checksum under this directory, whatever bucket it was uploaded to
+  private static final String BLOBS_DIRECTORY = "_blobs";
+
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  // times a save is retried when the subdirectory it is moved to is removed meanwhile
+  private static final int MAX_MOVE_ATTEMPTS = 3;
+
+  public static final int DEFAULT_FAN_OUT_LEVELS = 1;
+
+  // deepest layout content is looked up in
+  public static final int MAX_FAN_OUT_LEVELS = 3;
+
+  // files moved per second by a rebalance
+  public static final double DEFAULT_RELAYOUT_RATE = 100;
+
+  /**
+   * @return the path, relative to a data directory, of the content with the given checksum when it is filed under
+   * <code>levels</code> levels of subdirectories
+   */
+  private static String getObjectPath(String checksum, int levels) {
+    StringBuilder path = new StringBuilder(BLOBS_DIRECTORY).append('/');
+    for (int i = 0; i < levels; i++) {
+      path.append(checksum, 2 * i, 2 * i + 2).append('/');
+    }
+    return path.append(checksum).toString();
+  }
+
+  /**
+   * A data directory, with the load it took since the service started.
+   */
+  private static class DataRoot {
+
+    private final String directory;
+
+    private final String reproxyBaseUrl;
+
+    private final AtomicLong reads = new AtomicLong();
+
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    DataRoot(String directory, String reproxyBaseUrl) {
+      this.directory = directory;
+      this.reproxyBaseUrl = reproxyBaseUrl;
+    }
+
+    String getObjectLocationString(String checksum, int levels) {
+      return directory + "/" + getObjectPath(checksum, levels);
+    }
+
+    void wrote(long size) {
+      writes.incrementAndGet();
+      bytesWritten.addAndGet(size);
+    }
+  }
+
+  /**
+   * Where the content with a checksum was found.
+   */
+  private static class ContentLocation {
+
+    private final DataRoot root;
+
+    private final String path;
+
+    ContentLocation(DataRoot root, String path) {
+      this.root = root;
+      this.path = path;
+    }
+
+    File getFile() {
+      return new File(root.directory + "/" + path);
+    }
+  }
+
+  private final List<DataRoot> roots;
 
-  private String reproxyBaseUrl;
+  private final int fanOutLevels;
+
+  // paces the files moved by a rebalance, so that it leaves most of the disk time to the requests
+  private final RateLimiter relayoutLimiter;
+
+  // where uploads are written before they are moved to their final location, a data directory if null
+  private String stagingDirectory;
+
+  // data directory the next upload is staged on, when there is no staging directory
+  private final AtomicInteger nextStagingRoot = new AtomicInteger();
+
+  private final ExecutorService rebalanceExecutor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("fs-rebalance-%d").setDaemon(true).build());
+
+  private final AtomicBoolean rebalancing = new AtomicBoolean();
+
+  // syncs saved content to the disk when set
+  private GroupSync groupSync;
 
   public FileSystemStoreService(String dataDirectory, String reproxyBaseUrl) {
-    this.dataDirectory = dataDirectory;
-    this.reproxyBaseUrl = reproxyBaseUrl;
+    this(dataDirectory, reproxyBaseUrl, null);
+  }
+
+  /**
+   * @param stagingDirectory the directory uploads are written to before they are saved, the data directory if null.
+   *                         On the same volume as the data directory, saving an upload is a rename instead of a copy.
+   */
+  public FileSystemStoreService(String dataDirectory, String reproxyBaseUrl, String stagingDirectory) {
+    this(Collections.singletonList(dataDirectory),
+        reproxyBaseUrl == null ? null : Collections.singletonList(reproxyBaseUrl),
+        stagingDirectory);
+  }
+
+  /**
+   * @param dataDirectories  the directories content is spread over. Directories may only be appended to the list, since
+   *                         the position of a directory decides which content it holds.
+   * @param reproxyBaseUrls  the base URL each data directory is served from, in the same order, or null if the files
+   *                         are not reproxyable
+   * @param stagingDirectory the directory uploads are written to before they are saved. If null, uploads are spread
+   *                         over the data directories and saved on the one they were staged on.
+   */
+  public FileSystemStoreService(List<String> dataDirectories, List<String> reproxyBaseUrls, String stagingDirectory) {
+    this(dataDirectories, reproxyBaseUrls, stagingDirectory, DEFAULT_FAN_OUT_LEVELS, DEFAULT_RELAYOUT_RATE);
+  }
+
+  /**
+   * @param fanOutLevels the levels of subdirectories content is filed under, from 1 to {@link #MAX_FAN_OUT_LEVELS}
+   * @param relayoutRate the files per second a rebalance may move
+   */
+  public FileSystemStoreService(List<String> dataDirectories, List<String> reproxyBaseUrls, String stagingDirectory,
+                                int fanOutLevels, double relayoutRate) {
+    if (dataDirectories.isEmpty()) {
+      throw new IllegalArgumentException("At least one data directory is required");
+    }
+    if (reproxyBaseUrls != null && reproxyBaseUrls.size() != dataDirectories.size()) {
+      throw new IllegalArgumentException("One reproxy base URL is required for each data directory");
+    }
+    if (fanOutLevels < 1 || fanOutLevels > MAX_FAN_OUT_LEVELS) {
+      throw new IllegalArgumentException("The fan out levels must be between 1 and " + MAX_FAN_OUT_LEVELS);
+    }
+
+    this.fanOutLevels = fanOutLevels;
+    this.relayoutLimiter = RateLimiter.create(relayoutRate);
+
+    roots = new ArrayList<>(dataDirectories.size());
+    for (int i = 0; i < dataDirectories.size(); i++) {
+      roots.add(new DataRoot(dataDirectories.get(i), reproxyBaseUrls == null ? null : reproxyBaseUrls.get(i)));
+      new File(dataDirectories.get(i)).mkdir();
+    }
+
+    this.stagingDirectory = stagingDirectory;
+    if (stagingDirectory != null) {
+      new File(stagingDirectory).mkdirs();
+    }
+  }
 
-    File dir = new File(dataDirectory);
-    dir.mkdir();
+  /**
+   * @param groupSync the syncs that make saved content durable, or null to leave writing it back to the OS
+   */
+  public void setGroupSync(GroupSync groupSync) {
+    this.groupSync = groupSync;
+  }
+
+  /**
+   * Sync files and directories to the disk if the store makes saved content durable.
+   */
+  protected void sync(Path... paths) throws IOException {
+    if (groupSync != null) {
+      groupSync.sync(paths);
+    }
   }
 
   private String getBucketLocationString(String bucketName) {
-    return dataDirectory + "/" + bucketName + "/";
+    return roots.get(0).directory + "/" + bucketName + "/";
+  }
+
+  /**
+   * @return the data directory the content with the given checksum belongs to
+   */
+  private DataRoot getRoot(String checksum) {
+    if (roots.size() == 1) {
+      return roots.get(0);
+    }
+
+    return roots.get(Hashing.consistentHash(Hashing.murmur3_128().hashString(checksum, Charsets.UTF_8), roots.size()));
   }
 
-  public String getObjectLocationString(String bucketName, String checksum) {
+  public String getObjectLocationString(String checksum) {
+    return getRoot(checksum).getObjectLocationString(checksum, fanOutLevels);
+  }
+
+  /**
+   * @return the location the content was stored at before it was shared across buckets, still read until the files
+   * are relocated
+   */
+  private String getLegacyObjectLocationString(String bucketName, String checksum) {
     return getBucketLocationString(bucketName) + checksum.substring(0, 2) + "/" + checksum;
   }
 
+  /**
+   * @return where the content with the given checksum is: where it belongs, unless it was saved on the data directory
+   * it was staged on or a rebalance has not moved it there yet; null if the content is not in any data directory
+   */
+  private ContentLocation findContent(String checksum) {
+    DataRoot root = getRoot(checksum);
+
+    List<DataRoot> candidates = new ArrayList<>(roots.size());
+    candidates.add(root);
+    for (DataRoot other : roots) {
+      if (other != root) {
+        candidates.add(other);
+      }
+    }
+
+    // the current layout first, on every data directory, then the previous depths
+    List<Integer> depths = new ArrayList<>(MAX_FAN_OUT_LEVELS);
+    depths.add(fanOutLevels);
+    for (int levels = 1; levels <= MAX_FAN_OUT_LEVELS; levels++) {
+      if (levels != fanOutLevels) {
+        depths.add(levels);
+      }
+    }
+
+    for (int levels : depths) {
+      String path = getObjectPath(checksum, levels);
+      for (DataRoot candidate : candidates) {
+        if (new File(candidate.directory + "/" + path).exists()) {
+          return new ContentLocation(candidate, path);
+        }
+      }
+    }
+
+    return null;
+  }
+
+  private File getObjectFile(RepoObject repoObject, boolean read) {
+    String checksum = repoObject.getChecksum();
+    ContentLocation location = findContent(checksum);
+
+    if (location != null) {
+      if (read) {
+        location.root.reads.incrementAndGet();
+      }
+      return location.getFile();
+    }
+
+    File legacyFile = new File(getLegacyObjectLocationString(repoObject.getBucketName(), checksum));
+    if (legacyFile.exists()) {
+      if (read) {
+        roots.get(0).reads.incrementAndGet();
+      }
+      return legacyFile;
+    }
+
+    return new File(getObjectLocationString(checksum));
+  }
+
   @Override
   public boolean objectExists(RepoObject repoObject) {
-    return new File(getObjectLocationString(repoObject.getBucketName(), repoObject.getChecksum())).exists();
+    return getObjectFile(repoObject, false).exists();
   }
 
   @Override
   public InputStream getInputStream(RepoObject repoObject) {
     try {
-      return new FileInputStream(getObjectLocationString(repoObject.getBucketName(), repoObject.getChecksum()));
+      return new FileInputStream(getObjectFile(repoObject, true));
     } catch (FileNotFoundException e) {
       log.debug("The content for the object was not found. Object --> key {} , bucket name: {} , content checksum: {} , version number: {} ",
           repoObject.getKey(),
@@ -85,6 +352,39 @@ public class FileSystemStoreService extends ObjectStore {
     }
   }
 
+  @Override
+  public InputStream getInputStream(RepoObject repoObject, long offset, long length) throws RepoException {
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(getObjectFile(repoObject, true).toPath(), StandardOpenOption.READ);
+      channel.position(offset);
+
+      return new BoundedInputStream(Channels.newInputStream(channel), length);
+    } catch (NoSuchFileException e) {
+      log.debug("The content for the object was not found. Object --> key {} , bucket name: {} , content checksum: {} , version number: {} ",
+          repoObject.getKey(),
+          repoObject.getBucketName(),
+          repoObject.getChecksum(),
+          repoObject.getVersionNumber());
+      return null;
+    } catch (IOException e) {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (IOException e2) {
+          log.error("Error closing file channel", e2);
+        }
+      }
+      throw new RepoException(e);
+    }
+  }
+
+  @Override
+  public File getLocalFile(RepoObject repoObject) {
+    File file = getObjectFile(repoObject, true);
+    return file.isFile() ? file : null;
+  }
+
   @Override
   public Optional<Boolean> bucketExists(Bucket bucket) {
     return Optional.of(new File(getBucketLocationString(bucket.getBucketName())).isDirectory());
@@ -104,7 +404,7 @@ public class FileSystemStoreService extends ObjectStore {
 
   @Override
   public boolean hasXReproxy() {
-    return reproxyBaseUrl != null;
+    return roots.get(0).reproxyBaseUrl != null;
   }
 
   @Override
@@ -115,7 +415,13 @@ public class FileSystemStoreService extends ObjectStore {
         return new String[0]; // since the filesystem is not reproxyable
       }
 
-      path = reproxyBaseUrl + "/" + repoObject.getBucketName() + "/" + repoObject.getChecksum().substring(0, 2) + "/" + repoObject.getChecksum();
+      String checksum = repoObject.getChecksum();
+      ContentLocation location = findContent(checksum);
+      if (location != null) {
+        path = location.root.reproxyBaseUrl + "/" + location.path;
+      } else {
+        path = roots.get(0).reproxyBaseUrl + "/" + repoObject.getBucketName() + "/" + checksum.substring(0, 2) + "/" + checksum;
+      }
 
       if (path == null) {
         throw new RepoException(RepoException.Type.ObjectFilePathMissing);
@@ -134,34 +440,153 @@ public class FileSystemStoreService extends ObjectStore {
 
   @Override
   public boolean saveUploadedObject(Bucket bucket, UploadInfo uploadInfo, RepoObject repoObject) {
-    File tempFile = new File(uploadInfo.getTempLocation());
+    String checksum = uploadInfo.getChecksum();
+    File staged = new File(uploadInfo.getTempLocation());
+
+    // content staged on a data directory stays there, rather than being copied to the one it belongs to
+    DataRoot root = getStagingRoot(staged);
+    if (root == null) {
+      root = getRoot(checksum);
+    } else if (findContent(checksum) != null) {
+      // already stored, possibly on another data directory
+      return staged.delete();
+    }
+
+    try {
+      moveContent(staged, root, checksum);
+      return true;
+    } catch (IOException e) {
+      log.error("Error moving upload " + uploadInfo.getTempLocation() + " to " + root.directory, e);
+      return false;
+    }
+  }
 
-    File newFile = new File(getObjectLocationString(bucket.getBucketName(), uploadInfo.getChecksum()));
+  /**
+   * @return the data directory a file was staged on, or null if it was staged in the staging directory
+   */
+  private DataRoot getStagingRoot(File staged) {
+    if (stagingDirectory != null) {
+      return null;
+    }
 
-    // create the subdirectory if it does not exist
-    File subDir = new File(newFile.getParent());
+    File directory = staged.getAbsoluteFile().getParentFile();
+    for (DataRoot root : roots) {
+      if (new File(root.directory).getAbsoluteFile().equals(directory)) {
+        return root;
+      }
+    }
 
-    if (!subDir.exists()) {
-      if (!subDir.mkdir()) {
-        log.error("Object subdirectory was not able to be created : " + subDir);
-        return false;
+    return null;
+  }
+
+  /**
+   * Move a file to the location of the content with the given checksum in a data directory. The content only appears
+   * there once it is complete: a file on another volume is first copied next to its destination, then renamed.
+   */
+  private void moveContent(File file, DataRoot root, String checksum) throws IOException {
+    Path source = file.toPath();
+    Path target = Paths.get(root.getObjectLocationString(checksum, fanOutLevels));
+    long size = file.length();
+
+    // the data must be on the disk before the name pointing to it is
+    sync(source);
+
+    Path copy = null;
+    try {
+      for (int attempt = 1; ; attempt++) {
+        List<Path> changedDirs = createDirectories(target.getParent());
+
+        try {
+          if (copy == null) {
+            try {
+              Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+              // the file is on another volume
+              copy = Paths.get(root.directory, UUID.randomUUID().toString() + TEMP_SUFFIX);
+              Files.copy(source, copy);
+              sync(copy);
+              Files.move(copy, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+          } else {
+            Files.move(copy, target, StandardCopyOption.ATOMIC_MOVE);
+          }
+
+          sync(changedDirs.toArray(new Path[changedDirs.size()]));
+          break;
+        } catch (NoSuchFileException e) {
+          // a delete or a rebalance removed the subdirectory once it was empty, before the content got there
+          if (attempt == MAX_MOVE_ATTEMPTS) {
+            throw e;
+          }
+        }
+      }
+
+      if (copy != null) {
+        copy = null;
+        Files.delete(source);
+      }
+    } finally {
+      if (copy != null) {
+        Files.deleteIfExists(copy);
+      }
+    }
+
+    root.wrote(size);
+  }
+
+  /**
+   * Create a directory and its missing parents.
+   *
+   * @return the directories whose entries changed: the directory, and the parents of the directories created
+   */
+  private static List<Path> createDirectories(Path directory) throws IOException {
+    List<Path> changedDirs = new ArrayList<>();
+    for (Path dir = directory; dir != null; dir = dir.getParent()) {
+      changedDirs.add(dir);
+      if (Files.isDirectory(dir)) {
+        break;
       }
     }
 
-    return tempFile.renameTo(newFile);
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new IOException("Object subdirectory was not able to be created : " + directory, e);
+    }
+
+    return changedDirs;
   }
 
   @Override
   public boolean deleteObject(RepoObject repoObject) {
-    File file = new File(getObjectLocationString(repoObject.getBucketName(), repoObject.getChecksum()));
-    File parentDir = new File(file.getParent());
+    boolean result = false;
+
+    // a rebalance may not have moved the content to where it belongs yet
+    for (DataRoot root : roots) {
+      for (int levels = 1; levels <= MAX_FAN_OUT_LEVELS; levels++) {
+        result |= deleteFile(new File(root.getObjectLocationString(repoObject.getChecksum(), levels)), levels);
+      }
+    }
+
+    // the content may still be at its location from before it was shared across buckets
+    result |= deleteFile(new File(getLegacyObjectLocationString(repoObject.getBucketName(), repoObject.getChecksum())), 1);
+
+    return result;
+  }
+
+  /**
+   * Delete a file, then the given number of levels of parent subdirectories as long as they are empty.
+   */
+  private boolean deleteFile(File file, int levels) {
+    File parentDir = file.getParentFile();
 
     boolean result = file.delete();
 
-    // delete the parent subdirectory if it is empty
+    // delete the parent subdirectories if they are empty
 
-    if (parentDir.isDirectory() && parentDir.list().length == 0) {
+    for (int i = 0; i < levels && parentDir.isDirectory() && parentDir.list().length == 0; i++) {
       parentDir.delete(); // TODO: log an error if this fails
+      parentDir = parentDir.getParentFile();
     }
 
     return result;
@@ -174,55 +599,140 @@ public class FileSystemStoreService extends ObjectStore {
 
   @Override
   public UploadInfo uploadTempObject(InputStream uploadedInputStream) throws RepoException {
-    final String tempFileLocation = dataDirectory + "/" + UUID.randomUUID().toString() + ".tmp";
+    return uploadTempObjectFor(uploadedInputStream, null);
+  }
+
+  /**
+   * Stage the upload on the data directory its content belongs to, when the checksum is known, so that saving it is a
+   * rename.
+   */
+  @Override
+  public UploadInfo uploadTempObject(InputStream uploadedInputStream, String contentType, String checksum)
+      throws RepoException {
+    return uploadTempObjectFor(uploadedInputStream, checksum);
+  }
+
+  private UploadInfo uploadTempObjectFor(InputStream uploadedInputStream, String checksum) throws RepoException {
+    String directory = stagingDirectory;
+    if (directory == null) {
+      DataRoot root = checksum != null ? getRoot(checksum)
+          : roots.get((nextStagingRoot.getAndIncrement() & Integer.MAX_VALUE) % roots.size());
+      directory = root.directory;
+    }
+
+    final String tempFileLocation = directory + "/" + UUID.randomUUID().toString() + TEMP_SUFFIX;
 
     try {
      if (uploadedInputStream == null) {
        throw new RepoException(RepoException.Type.NoFileEntered);
      }
 
-      FileOutputStream fos = new FileOutputStream(tempFileLocation);
-
-      ReadableByteChannel in = Channels.newChannel(uploadedInputStream);
-      MessageDigest digest = ChecksumGenerator.getDigestMessage();
-      WritableByteChannel out = Channels.newChannel(new DigestOutputStream(fos, digest));
-      ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+      try (FileChannel out = FileChannel.open(Paths.get(tempFileLocation), StandardOpenOption.CREATE_NEW,
+          StandardOpenOption.WRITE)) {
+        return stageUpload(uploadedInputStream, out, tempFileLocation);
+      }
+    } catch (Exception e) {
+      // a failed or rejected upload leaves nothing behind in the staging directory
+      new File(tempFileLocation).delete();
+      throw new RepoException(e);
+    }
+  }
 
-      long size = 0;
+  /**
+   * Start moving, in the background, the content that is not where the store now places it: in another data directory,
+   * typically after one was appended to the list or because it was saved where it was staged, or at another depth of
+   * subdirectories. The moves are paced by the
+   * relayout rate. Content is read and deleted wherever it is until it has been moved.
+   *
+   * @return true, or false if a rebalance is already running
+   */
+  @Override
+  public boolean rebalance() {
+    if (!rebalancing.compareAndSet(false, true)) {
+      return false;
+    }
 
-      while (in.read(buffer) != -1) {
-        buffer.flip();
-        size += out.write(buffer);
-        buffer.clear();
+    rebalanceExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (DataRoot root : roots) {
+            rebalance(root, new File(root.directory, BLOBS_DIRECTORY), 0);
+          }
+        } finally {
+          rebalancing.set(false);
+        }
       }
+    });
 
-      fos.flush();
+    return true;
+  }
 
-      final String checksum = ChecksumGenerator.checksumToString(digest.digest());
-      final long finalSize = size;
+  /**
+   * Move the content found in a directory that is <code>depth</code> levels of subdirectories below the blobs directory
+   * of a data directory.
+   */
+  private void rebalance(DataRoot root, File directory, int depth) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
 
-      in.close();
-      out.close();
+    for (File file : files) {
+      if (file.isDirectory()) {
+        if (depth < MAX_FAN_OUT_LEVELS) {
+          rebalance(root, file, depth + 1);
 
-      return new UploadInfo() {
-        @Override
-        public Long getSize() {
-          return finalSize;
+          if (file.list().length == 0) {
+            file.delete();
+          }
         }
+        continue;
+      }
 
-        @Override
-        public String getTempLocation() {
-          return tempFileLocation;
-        }
+      String checksum = file.getName();
+      DataRoot target = getRoot(checksum);
+      if (depth == 0 || (target == root && depth == fanOutLevels)) {
+        continue;
+      }
+
+      relayoutLimiter.acquire();
 
-        @Override
-        public String getChecksum() {
-          return checksum;
+      try {
+        if (new File(target.getObjectLocationString(checksum, fanOutLevels)).exists()) {
+          // the same content was saved again where it belongs since the layout changed
+          Files.delete(file.toPath());
+        } else {
+          moveContent(file, target, checksum);
         }
-      };
-    } catch (Exception e) {
-      throw new RepoException(e);
+      } catch (IOException e) {
+        log.error("Error moving " + file + " to " + target.directory, e);
+      }
+    }
+  }
+
+  /**
+   * @return true while a rebalance started by {@link #rebalance()} is running
+   */
+  public boolean isRebalancing() {
+    return rebalancing.get();
+  }
+
+  @Override
+  public List<DataRootStatus> getDataRootStatus() {
+    List<DataRootStatus> statuses = new ArrayList<>(roots.size());
+
+    for (DataRoot root : roots) {
+      DataRootStatus status = new DataRootStatus();
+      status.directory = root.directory;
+      status.reads = root.reads.get();
+      status.writes = root.writes.get();
+      status.bytesWritten = root.bytesWritten.get();
+      status.usableSpace = new File(root.directory).getUsableSpace();
+      statuses.add(status);
     }
+
+    return statuses;
   }
 
 }
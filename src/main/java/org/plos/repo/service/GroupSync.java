@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes files and directories durable with fsync, in batches shared by the writes that ask for it at about the same
+ * time. A batch collects the requests that arrive within a short window after the first one; each file or directory
+ * of the batch is then synced once, however many requests named it, and the syncs of a batch run concurrently so that
+ * the file system can commit them together.
+ */
+public class GroupSync {
+
+  private static final Logger log = LoggerFactory.getLogger(GroupSync.class);
+
+  public static final long DEFAULT_WINDOW_MICROS = 2000;
+
+  public static final int DEFAULT_CONCURRENCY = 8;
+
+  /**
+   * The paths a writer waits for.
+   */
+  private static class Request {
+
+    private final List<Path> paths;
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private IOException failure;
+
+    Request(List<Path> paths) {
+      this.paths = paths;
+    }
+  }
+
+  private final long windowMicros;
+
+  private final BlockingQueue<Request> requests = new LinkedBlockingQueue<>();
+
+  private final ExecutorService syncExecutor;
+
+  private final AtomicLong batches = new AtomicLong();
+
+  private final AtomicLong syncs = new AtomicLong();
+
+  /**
+   * @param windowMicros how long a batch waits for more requests after its first one
+   * @param concurrency  how many syncs of a batch run at once
+   */
+  public GroupSync(long windowMicros, int concurrency) {
+    this.windowMicros = windowMicros;
+    this.syncExecutor = Executors.newFixedThreadPool(concurrency,
+        new ThreadFactoryBuilder().setNameFormat("group-sync-%d").setDaemon(true).build());
+
+    Thread batcher = new ThreadFactoryBuilder().setNameFormat("group-sync-batcher").setDaemon(true).build()
+        .newThread(new Runnable() {
+          @Override
+          public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+              try {
+                syncBatch();
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+            }
+          }
+        });
+    batcher.start();
+  }
+
+  /**
+   * Sync the content of the given files, or the entries of the given directories, to the disk. Return once they are
+   * durable, by a sync that started after this call.
+   *
+   * @param paths the files and directories to sync
+   * @throws IOException if any of them could not be synced
+   */
+  public void sync(Path... paths) throws IOException {
+    Request request = new Request(Arrays.asList(paths));
+    requests.add(request);
+
+    try {
+      request.done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a sync", e);
+    }
+
+    if (request.failure != null) {
+      throw request.failure;
+    }
+  }
+
+  private void syncBatch() throws InterruptedException {
+    List<Request> batch = new ArrayList<>();
+    batch.add(requests.take());
+
+    long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(windowMicros);
+    long remaining;
+    while ((remaining = deadline - System.nanoTime()) > 0) {
+      Request request = requests.poll(remaining, TimeUnit.NANOSECONDS);
+      if (request == null) {
+        break;
+      }
+      batch.add(request);
+    }
+    requests.drainTo(batch);
+
+    // each path once, in the order it was first asked for
+    Map<Path, Future<Void>> results = new LinkedHashMap<>();
+    for (Request request : batch) {
+      for (final Path path : request.paths) {
+        if (!results.containsKey(path)) {
+          results.put(path, syncExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              force(path);
+              return null;
+            }
+          }));
+        }
+      }
+    }
+
+    batches.incrementAndGet();
+    syncs.addAndGet(results.size());
+
+    for (Request request : batch) {
+      for (Path path : request.paths) {
+        try {
+          results.get(path).get();
+        } catch (ExecutionException e) {
+          if (request.failure == null) {
+            request.failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e);
+          }
+        }
+      }
+      request.done.countDown();
+    }
+  }
+
+  private static void force(Path path) throws IOException {
+    boolean directory = Files.isDirectory(path);
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      if (directory) {
+        // some platforms can not open directories; their entries are as durable as the platform makes them
+        log.debug("Could not sync directory " + path, e);
+      } else {
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * @return the number of batches synced
+   */
+  public long getBatches() {
+    return batches.get();
+  }
+
+  /**
+   * @return the number of files and directories synced, each counted once per batch
+   */
+  public long getSyncs() {
+    return syncs.get();
+  }
+
+}
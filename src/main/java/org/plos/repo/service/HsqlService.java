@@ -47,6 +47,14 @@ public class HsqlService extends SqlService {
     connection.close();
   }
 
+  @Override
+  protected String getAddBlobReferencesQuery() {
+    return "MERGE INTO blobs USING (VALUES(CAST(? AS VARCHAR(255)), CAST(? AS BIGINT), CAST(? AS INTEGER))) " +
+        "AS v(checksum, size, refCount) ON blobs.checksum = v.checksum " +
+        "WHEN MATCHED THEN UPDATE SET blobs.refCount = blobs.refCount + v.refCount " +
+        "WHEN NOT MATCHED THEN INSERT (checksum, size, refCount) VALUES (v.checksum, v.size, v.refCount)";
+  }
+
   public void postDbInit() throws SQLException {
     // kludges for dealing with HSQLDB
 
@@ -23,18 +23,18 @@
 package org.plos.repo.service;
 
 import com.google.common.base.Optional;
-import org.apache.commons.io.IOUtils;
 import org.plos.repo.models.Bucket;
 import org.plos.repo.models.RepoObject;
-import org.plos.repo.util.ChecksumGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
-import java.security.MessageDigest;
-import java.util.HashMap;
+import java.nio.channels.Channels;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -42,8 +42,10 @@ public class InMemoryFileStoreService extends ObjectStore {
 
   private static final Logger log = LoggerFactory.getLogger(InMemoryFileStoreService.class);
 
-  // bucketName -> data checksum -> file content
-  private Map<String, Map<String, byte[]>> data = new ConcurrentHashMap<>();
+  private Set<String> buckets = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  // data checksum -> file content, shared by all the buckets
+  private Map<String, byte[]> data = new ConcurrentHashMap<>();
 
   private Map<String, byte[]> tempdata = new ConcurrentHashMap<>();
 
@@ -52,17 +54,14 @@ public class InMemoryFileStoreService extends ObjectStore {
 
   @Override
   public boolean objectExists(RepoObject repoObject) {
-    return (data.get(repoObject.getBucketName()) != null && data.get(repoObject.getBucketName()).get(repoObject.getChecksum()) != null);
+    return data.containsKey(repoObject.getChecksum());
   }
 
   @Override
   public InputStream getInputStream(RepoObject repoObject) {
-    Map<String, byte[]> bucket = data.get(repoObject.getBucketName());
-    if (bucket != null) {
-      byte[] content = bucket.get(repoObject.getChecksum());
-      if (content != null) {
-        return new ByteArrayInputStream(content);
-      }
+    byte[] content = data.get(repoObject.getChecksum());
+    if (content != null) {
+      return new ByteArrayInputStream(content);
     }
     log.debug("The content for the object was not found. Object --> key {} , bucket name: {} , content checksum: {} , version number: {} ",
         repoObject.getKey(),
@@ -72,14 +71,23 @@ public class InMemoryFileStoreService extends ObjectStore {
     return null;
   }
 
+  @Override
+  public InputStream getInputStream(RepoObject repoObject, long offset, long length) {
+    byte[] content = data.get(repoObject.getChecksum());
+    if (content != null) {
+      return new ByteArrayInputStream(content, (int) offset, (int) length);
+    }
+    return null;
+  }
+
   @Override
   public Optional<Boolean> bucketExists(Bucket bucket) {
-    return Optional.of(data.containsKey(bucket.getBucketName()));
+    return Optional.of(buckets.contains(bucket.getBucketName()));
   }
 
   @Override
   public Optional<Boolean> createBucket(Bucket bucket) {
-    return Optional.of(data.put(bucket.getBucketName(), new HashMap<String, byte[]>()) == null);
+    return Optional.of(buckets.add(bucket.getBucketName()));
   }
 
   @Override
@@ -97,13 +105,13 @@ public class InMemoryFileStoreService extends ObjectStore {
   public Optional<Boolean> deleteBucket(Bucket bucket) {
     // TODO: what if it contains stuff?
 
-    return Optional.of(data.remove(bucket.getBucketName()) != null);
+    return Optional.of(buckets.remove(bucket.getBucketName()));
   }
 
   @Override
   public boolean saveUploadedObject(Bucket bucket, UploadInfo uploadInfo, RepoObject repoObject) {
     byte[] tempContent = tempdata.get(uploadInfo.getTempLocation());
-    data.get(bucket.getBucketName()).put(uploadInfo.getChecksum(), tempContent);
+    data.put(uploadInfo.getChecksum(), tempContent);
     return (tempdata.remove(uploadInfo.getTempLocation()) != null);
   }
 
@@ -113,7 +121,7 @@ public class InMemoryFileStoreService extends ObjectStore {
       return false;
     }
 
-    return data.get(repoObject.getBucketName()).remove(repoObject.getChecksum()) != null;
+    return data.remove(repoObject.getChecksum()) != null;
   }
 
   @Override
@@ -126,33 +134,14 @@ public class InMemoryFileStoreService extends ObjectStore {
   @Override
   public UploadInfo uploadTempObject(InputStream uploadedInputStream) throws RepoException {
     try {
-      MessageDigest digest = ChecksumGenerator.getDigestMessage();
-
       final String tempFileLocation = UUID.randomUUID().toString() + ".tmp";
 
-      byte[] bytes = IOUtils.toByteArray(uploadedInputStream);
-
-      tempdata.put(tempFileLocation, bytes);
-
-      final String checksum = ChecksumGenerator.checksumToString(digest.digest(bytes));
-      final long finalSize = bytes.length;
-
-      return new UploadInfo() {
-        @Override
-        public Long getSize() {
-          return finalSize;
-        }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      UploadInfo uploadInfo = stageUpload(uploadedInputStream, Channels.newChannel(bytes), tempFileLocation);
 
-        @Override
-        public String getTempLocation() {
-          return tempFileLocation;
-        }
+      tempdata.put(tempFileLocation, bytes.toByteArray());
 
-        @Override
-        public String getChecksum() {
-          return checksum;
-        }
-      };
+      return uploadInfo;
     } catch (Exception e) {
       throw new RepoException(e);
     }
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.plos.repo.models.RepoCollection;
+import org.plos.repo.models.RepoObject;
+import org.plos.repo.models.input.ElementFilter;
+import org.plos.repo.util.UUIDFormatter;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded in-process read-through cache of object and collection metadata, keyed by bucket, key and {@link
+ * org.plos.repo.models.input.ElementFilter}.
+ * <p/>
+ * Entries pinned by version or uuid only change when a version is deleted or purged, so creating a new version only
+ * drops the entries resolved by the latest version or tag. Each section keeps a generation counter that is bumped on
+ * every invalidation; a value read from the database is only stored if no invalidation happened since the read
+ * started, so a slow reader can not put back a stale entry.
+ * <p/>
+ * Values are copied when they are stored and when they are returned, so that callers can change what they get, e.g.
+ * set its reproxy URLs, without affecting the other readers.
+ */
+public class MetadataCache {
+
+  public static final long DEFAULT_MAXIMUM_KEYS = 10000;
+
+  private final Section<RepoObject> objects;
+
+  private final Section<RepoCollection> collections;
+
+  /**
+   * @param maximumKeys maximum number of bucket/key pairs kept per section. Zero disables caching.
+   */
+  public MetadataCache(long maximumKeys) {
+    objects = new Section<>(maximumKeys, new Copier<RepoObject>() {
+      @Override
+      public RepoObject copy(RepoObject repoObject) {
+        return new RepoObject(repoObject);
+      }
+    });
+    collections = new Section<>(maximumKeys, new Copier<RepoCollection>() {
+      @Override
+      public RepoCollection copy(RepoCollection repoCollection) {
+        return new RepoCollection(repoCollection);
+      }
+    });
+  }
+
+  public long objectGeneration() {
+    return objects.generation.get();
+  }
+
+  public RepoObject getObject(String bucketName, String key, ElementFilter elementFilter) throws RepoException {
+    return objects.get(bucketName, key, elementFilter);
+  }
+
+  public void putObject(String bucketName, String key, ElementFilter elementFilter, RepoObject repoObject,
+                        long generation) throws RepoException {
+    objects.put(bucketName, key, elementFilter, repoObject, generation);
+  }
+
+  /**
+   * Drop the entries of an object resolved by the latest version or by tag, after a new version was created.
+   */
+  public void invalidateObjectLatest(String bucketName, String key) {
+    objects.invalidateLatest(bucketName, key);
+  }
+
+  /**
+   * Drop every entry of an object, after one of its versions changed status. Collections list the status of their
+   * objects, so their entries are dropped too.
+   */
+  public void invalidateObject(String bucketName, String key) {
+    objects.invalidate(bucketName, key);
+    collections.invalidateAll();
+  }
+
+  public long collectionGeneration() {
+    return collections.generation.get();
+  }
+
+  public RepoCollection getCollection(String bucketName, String key, ElementFilter elementFilter) throws RepoException {
+    return collections.get(bucketName, key, elementFilter);
+  }
+
+  public void putCollection(String bucketName, String key, ElementFilter elementFilter, RepoCollection repoCollection,
+                            long generation) throws RepoException {
+    collections.put(bucketName, key, elementFilter, repoCollection, generation);
+  }
+
+  public void invalidateCollectionLatest(String bucketName, String key) {
+    collections.invalidateLatest(bucketName, key);
+  }
+
+  public void invalidateCollection(String bucketName, String key) {
+    collections.invalidate(bucketName, key);
+  }
+
+  public void invalidateAll() {
+    objects.invalidateAll();
+    collections.invalidateAll();
+  }
+
+  private static boolean isPinned(ElementFilter elementFilter) {
+    return elementFilter != null && (elementFilter.getVersion() != null || elementFilter.getUuid() != null);
+  }
+
+  private static String filterKey(ElementFilter elementFilter) throws RepoException {
+    if (elementFilter == null || elementFilter.isEmpty()) {
+      return "";
+    }
+
+    // normalize the uuid, so the same version is not cached twice
+    UUID uuid = UUIDFormatter.getUuid(elementFilter.getUuid());
+
+    return elementFilter.getVersion() + "|" + uuid + "|" + elementFilter.getTag();
+  }
+
+  private interface Copier<T> {
+
+    T copy(T value);
+
+  }
+
+  private static class Section<T> {
+
+    // bucketName + key -> filter -> value
+    private final Cache<String, ConcurrentMap<String, Entry<T>>> entries;
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final Copier<T> copier;
+
+    Section(long maximumKeys, Copier<T> copier) {
+      entries = CacheBuilder.newBuilder().maximumSize(maximumKeys).build();
+      this.copier = copier;
+    }
+
+    T get(String bucketName, String key, ElementFilter elementFilter) throws RepoException {
+      ConcurrentMap<String, Entry<T>> filters = entries.getIfPresent(cacheKey(bucketName, key));
+
+      if (filters == null) {
+        return null;
+      }
+
+      Entry<T> entry = filters.get(filterKey(elementFilter));
+      return entry == null ? null : copier.copy(entry.value);
+    }
+
+    void put(String bucketName, String key, ElementFilter elementFilter, T value, long readGeneration)
+        throws RepoException {
+      String cacheKey = cacheKey(bucketName, key);
+      String filterKey = filterKey(elementFilter);
+
+      synchronized (this) {
+        if (generation.get() != readGeneration) {
+          return;
+        }
+
+        ConcurrentMap<String, Entry<T>> filters = entries.getIfPresent(cacheKey);
+
+        if (filters == null) {
+          filters = new ConcurrentHashMap<>();
+          entries.put(cacheKey, filters);
+        }
+
+        filters.put(filterKey, new Entry<>(copier.copy(value), isPinned(elementFilter)));
+      }
+    }
+
+    synchronized void invalidateLatest(String bucketName, String key) {
+      generation.incrementAndGet();
+
+      ConcurrentMap<String, Entry<T>> filters = entries.getIfPresent(cacheKey(bucketName, key));
+
+      if (filters != null) {
+        Iterator<Map.Entry<String, Entry<T>>> iterator = filters.entrySet().iterator();
+        while (iterator.hasNext()) {
+          if (!iterator.next().getValue().pinned) {
+            iterator.remove();
+          }
+        }
+      }
+    }
+
+    synchronized void invalidate(String bucketName, String key) {
+      generation.incrementAndGet();
+      entries.invalidate(cacheKey(bucketName, key));
+    }
+
+    synchronized void invalidateAll() {
+      generation.incrementAndGet();
+      entries.invalidateAll();
+    }
+
+    private static String cacheKey(String bucketName, String key) {
+      return bucketName + "/" + key;
+    }
+
+  }
+
+  private static class Entry<T> {
+
+    private final T value;
+
+    private final boolean pinned;
+
+    Entry(T value, boolean pinned) {
+      this.value = value;
+      this.pinned = pinned;
+    }
+
+  }
+
+}
@@ -25,17 +25,20 @@ package org.plos.repo.service;
 import com.google.common.base.Optional;
 import com.guba.mogilefs.MogileFS;
 import com.guba.mogilefs.PooledMogileFSImpl;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.plos.repo.models.Bucket;
 import org.plos.repo.models.RepoObject;
-import org.plos.repo.util.ChecksumGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.UUID;
 
 public class MogileStoreService extends ObjectStore {
@@ -46,25 +49,50 @@ public class MogileStoreService extends ObjectStore {
 
   public MogileFS mfs = null;
 
+  // where uploads of unknown length are spooled before they are stored in MogileFS, the system temporary directory if
+  // null
+  private File stagingDirectory;
+
   public MogileStoreService(String domain, String[] trackerStrings, int maxTrackerConnections, int maxIdleConnections, long maxIdleTimeMillis) throws Exception {
+    this(domain, trackerStrings, maxTrackerConnections, maxIdleConnections, maxIdleTimeMillis, null);
+  }
+
+  public MogileStoreService(String domain, String[] trackerStrings, int maxTrackerConnections, int maxIdleConnections, long maxIdleTimeMillis, String stagingDirectory) throws Exception {
     mfs = new PooledMogileFSImpl(domain, trackerStrings, maxTrackerConnections, maxIdleConnections, maxIdleTimeMillis);
+
+    if (stagingDirectory != null) {
+      this.stagingDirectory = new File(stagingDirectory);
+      this.stagingDirectory.mkdirs();
+    }
   }
 
-  private String getObjectLocationString(String bucketName, String checksum) {
+  private String getObjectLocationString(String checksum) {
+    return checksum;
+  }
+
+  /**
+   * @return the key the content was stored at before it was shared across buckets, still read until it is purged
+   */
+  private String getLegacyObjectLocationString(String bucketName, String checksum) {
     return checksum + "-" + bucketName;
   }
 
+  private InputStream getFileStream(RepoObject repoObject) throws Exception {
+    InputStream in = mfs.getFileStream(getObjectLocationString(repoObject.getChecksum()));
+
+    if (in == null) {
+      in = mfs.getFileStream(getLegacyObjectLocationString(repoObject.getBucketName(), repoObject.getChecksum()));
+    }
+
+    return in;
+  }
+
   @Override
   public boolean objectExists(RepoObject repoObject) {
     try {
-      InputStream in = mfs.getFileStream(getObjectLocationString(repoObject.getBucketName(), repoObject.getChecksum()));
-
-      if (in == null) {
-        return false;
-      }
-
-      in.close();
-      return true;
+      // a path lookup on the tracker, rather than opening the content on a storage node
+      return mfs.getPaths(getObjectLocationString(repoObject.getChecksum()), true) != null ||
+          mfs.getPaths(getLegacyObjectLocationString(repoObject.getBucketName(), repoObject.getChecksum()), true) != null;
     } catch (Exception e) {
       return false;
     }
@@ -79,7 +107,11 @@ public class MogileStoreService extends ObjectStore {
   public String[] getFilePaths(RepoObject repoObject) throws RepoException {
     String[] paths = null;
     try {
-      paths = mfs.getPaths(getObjectLocationString(repoObject.getBucketName(), repoObject.getChecksum()), true);
+      paths = mfs.getPaths(getObjectLocationString(repoObject.getChecksum()), true);
+
+      if (paths == null) {
+        paths = mfs.getPaths(getLegacyObjectLocationString(repoObject.getBucketName(), repoObject.getChecksum()), true);
+      }
 
       if (paths == null) {
         throw new RepoException(RepoException.Type.ObjectFilePathMissing);
@@ -93,13 +125,107 @@ public class MogileStoreService extends ObjectStore {
 
   @Override
   public InputStream getInputStream(RepoObject repoObject) throws RepoException {
+    InputStream parallel = getParallelInputStream(repoObject);
+
+    if (parallel != null) {
+      return parallel;
+    }
+
+    try {
+      return getFileStream(repoObject);
+    } catch (Exception e) {
+      throw new RepoException(e);
+    }
+  }
+
+  @Override
+  public InputStream getInputStream(RepoObject repoObject, long offset, long length) throws RepoException {
+    String[] paths;
+
+    try {
+      paths = getFilePaths(repoObject);
+    } catch (RepoException e) {
+      if (RepoException.Type.ObjectFilePathMissing.equals(e.getType())) {
+        return null;
+      }
+      throw e;
+    }
+
+    InputStream range = getRangeStream(paths, offset, length);
+
+    if (range != null) {
+      return range;
+    }
+
+    // the nodes ignore ranges; skip to the range of the whole file
+    InputStream content = null;
     try {
-      return mfs.getFileStream(getObjectLocationString(repoObject.getBucketName(), repoObject.getChecksum()));
+      content = getFileStream(repoObject);
+
+      if (content == null) {
+        return null;
+      }
+
+      IOUtils.skipFully(content, offset);
+      return new BoundedInputStream(content, length);
     } catch (Exception e) {
+      IOUtils.closeQuietly(content);
       throw new RepoException(e);
     }
   }
 
+  /**
+   * Ask the storage nodes for a range of a file, one after the other if they fail.
+   *
+   * @return the range, or null if no node served it
+   */
+  private InputStream getRangeStream(String[] paths, long offset, long length) {
+    for (String path : paths) {
+      HttpURLConnection connection = null;
+      try {
+        connection = (HttpURLConnection) new URL(path).openConnection();
+        connection.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
+
+        if (connection.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+          return connection.getInputStream();
+        }
+
+        connection.disconnect();
+      } catch (IOException e) {
+        log.warn("Error reading a range of " + path, e);
+        if (connection != null) {
+          connection.disconnect();
+        }
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Read the object in parallel only if its storage nodes serve ranges. Otherwise each chunk would stream the file from
+   * its start, so the object is read with a single stream instead.
+   */
+  @Override
+  protected boolean supportsRangedReads(RepoObject repoObject) {
+    String[] paths;
+
+    try {
+      paths = getFilePaths(repoObject);
+    } catch (RepoException e) {
+      return false;
+    }
+
+    InputStream probe = getRangeStream(paths, 0, 1);
+
+    if (probe == null) {
+      return false;
+    }
+
+    IOUtils.closeQuietly(probe);
+    return true;
+  }
+
   @Override
   public Optional<Boolean> bucketExists(Bucket bucket) {
     return Optional.absent();
@@ -116,36 +242,26 @@ public class MogileStoreService extends ObjectStore {
     return Optional.absent();
   }
 
+  /**
+   * Spool the upload to a local file, then store the file in MogileFS. MogileFS opens a new file with its length,
+   * which is sent as the Content-Length of the PUT to the storage node, and the length of an upload is not known until
+   * it is read through; so the upload can not be streamed straight into <code>mfs.newFile</code>.
+   */
   @Override
   public UploadInfo uploadTempObject(InputStream uploadedInputStream) throws RepoException {
     final String tempKey = UUID.randomUUID().toString() + ".tmp";
     File tempFile = null;
     try {
-      tempFile = File.createTempFile("input", "mogile");
-      MessageDigest digest = ChecksumGenerator.getDigestMessage();
-      InputStream dis = new DigestInputStream(uploadedInputStream, digest);
-      FileUtils.copyInputStreamToFile(dis, tempFile);
-      mfs.storeFile(tempKey, mogileFileClass, tempFile);
+      tempFile = File.createTempFile("input", "mogile", stagingDirectory);
 
-      final String checksum = ChecksumGenerator.checksumToString(digest.digest());
-      final long finalSize = tempFile.length();
-      
-      return new UploadInfo() {
-        @Override
-        public Long getSize() {
-          return finalSize;
-        }
+      UploadInfo uploadInfo;
+      try (FileChannel out = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+        uploadInfo = stageUpload(uploadedInputStream, out, tempKey);
+      }
 
-        @Override
-        public String getTempLocation() {
-          return tempKey;
-        }
+      mfs.storeFile(tempKey, mogileFileClass, tempFile);
 
-        @Override
-        public String getChecksum() {
-          return checksum;
-        }
-      };
+      return uploadInfo;
     } catch (Exception e) {
       throw new RepoException(e);
     } finally {
@@ -158,7 +274,7 @@ public class MogileStoreService extends ObjectStore {
   @Override
   public boolean saveUploadedObject(Bucket bucket, UploadInfo uploadInfo, RepoObject repoObject) {
     try {
-      mfs.rename(uploadInfo.getTempLocation(), getObjectLocationString(bucket.getBucketName(), uploadInfo.getChecksum()));
+      mfs.rename(uploadInfo.getTempLocation(), getObjectLocationString(uploadInfo.getChecksum()));
       return true;
     } catch (Exception e) {
       return false;
@@ -177,8 +293,14 @@ public class MogileStoreService extends ObjectStore {
 
   @Override
   public boolean deleteObject(RepoObject repoObject) {
+    boolean deleted = deleteKey(getObjectLocationString(repoObject.getChecksum()));
+    deleted |= deleteKey(getLegacyObjectLocationString(repoObject.getBucketName(), repoObject.getChecksum()));
+    return deleted;
+  }
+
+  private boolean deleteKey(String key) {
     try {
-      mfs.delete(getObjectLocationString(repoObject.getBucketName(), repoObject.getChecksum()));
+      mfs.delete(key);
       return true;
     } catch (Exception e) {
       return false;
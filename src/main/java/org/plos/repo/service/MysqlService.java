@@ -29,4 +29,19 @@ public class MysqlService extends SqlService {
   public void postDbInit() {
   }
 
+  /**
+   * Connector/J buffers the whole result set unless the fetch size is Integer.MIN_VALUE, which makes it stream the rows
+   * one at a time.
+   */
+  @Override
+  protected int getStreamingFetchSize() {
+    return Integer.MIN_VALUE;
+  }
+
+  @Override
+  protected String getAddBlobReferencesQuery() {
+    return "INSERT INTO blobs (checksum, size, refCount) VALUES (?,?,?) " +
+        "ON DUPLICATE KEY UPDATE refCount = refCount + VALUES(refCount)";
+  }
+
 }
@@ -23,29 +23,79 @@
 package org.plos.repo.service;
 
 import com.google.common.base.Optional;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.plos.repo.models.Bucket;
 import org.plos.repo.models.RepoObject;
 import org.plos.repo.models.Status;
+import org.plos.repo.models.output.DataRootStatus;
 import org.plos.repo.util.ChecksumGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
 import java.util.regex.Pattern;
 
 public abstract class ObjectStore {
 
   private static final Logger log = LoggerFactory.getLogger(ObjectStore.class);
 
+  // fetches large objects with concurrent ranged reads when set; only useful for stores read over the network
+  private ParallelRangeInputStream.Settings parallelGet;
+
   public static interface UploadInfo {
     Long getSize();
 
     String getTempLocation();
 
     String getChecksum();
+
+    /**
+     * @return the base64 MD5 of the content, or null if it was not computed
+     */
+    String getContentMd5();
+  }
+
+  /**
+   * Content copied to the staging location of a store by {@link #stageUpload}.
+   */
+  public static class StagedUpload implements UploadInfo {
+
+    private final String tempLocation;
+
+    private final UploadPipeline.Result result;
+
+    StagedUpload(String tempLocation, UploadPipeline.Result result) {
+      this.tempLocation = tempLocation;
+      this.result = result;
+    }
+
+    @Override
+    public Long getSize() {
+      return result.getSize();
+    }
+
+    @Override
+    public String getTempLocation() {
+      return tempLocation;
+    }
+
+    @Override
+    public String getChecksum() {
+      return result.getChecksum();
+    }
+
+    @Override
+    public String getContentMd5() {
+      return result.getContentMd5();
+    }
   }
 
   public static boolean isValidFileName(String name) {
@@ -99,6 +149,16 @@ public abstract class ObjectStore {
 
   abstract public boolean hasXReproxy();
 
+  /**
+   * Tell whether the content of an object is stored once for all the buckets, keyed by its checksum alone. When it is,
+   * the content may only be removed once no object in any bucket references the checksum anymore.
+   *
+   * @return true if the store keeps a single copy of each content across buckets; false if it keeps one per bucket
+   */
+  public boolean sharesContentAcrossBuckets() {
+    return true;
+  }
+
   /**
    * Retrieve the file paths of the given repo object <code>repoObject</code>. Throw a {@link
    * org.plos.repo.service.RepoException} if the path is null or an error occurs.
@@ -131,6 +191,48 @@ public abstract class ObjectStore {
 
   abstract public UploadInfo uploadTempObject(InputStream uploadedInputStream) throws RepoException;
 
+  /**
+   * Stage an upload of a known content type, for the stores that store some content types differently. The checksum
+   * and size of the returned {@link UploadInfo} are those of the uploaded content.
+   *
+   * @param uploadedInputStream the content of the upload
+   * @param contentType         the content type of the object the content is uploaded for, or null
+   * @return the {@link UploadInfo} of the staged content
+   * @throws RepoException
+   */
+  public UploadInfo uploadTempObject(InputStream uploadedInputStream, String contentType) throws RepoException {
+    return uploadTempObject(uploadedInputStream);
+  }
+
+  /**
+   * Stage an upload whose checksum is known in advance, for the stores that stage content where it will be saved.
+   *
+   * @param uploadedInputStream the content of the upload
+   * @param contentType         the content type of the object the content is uploaded for, or null
+   * @param checksum            the checksum the content is expected to be saved under, or null if it is not known
+   * @return the {@link UploadInfo} of the staged content
+   * @throws RepoException
+   */
+  public UploadInfo uploadTempObject(InputStream uploadedInputStream, String contentType, String checksum)
+      throws RepoException {
+    return uploadTempObject(uploadedInputStream, contentType);
+  }
+
+  /**
+   * Copy an upload to the staging location of the store through the shared {@link UploadPipeline}, computing its
+   * checksum and MD5 on the way. The channel is not closed.
+   *
+   * @param uploadedInputStream the content of the upload
+   * @param out                 the channel writing to the staging location
+   * @param tempLocation        the staging location, as returned by {@link UploadInfo#getTempLocation()}
+   * @return the {@link UploadInfo} of the staged content
+   * @throws IOException if the content could not be read or written
+   */
+  protected UploadInfo stageUpload(InputStream uploadedInputStream, WritableByteChannel out, String tempLocation)
+      throws IOException {
+    return new StagedUpload(tempLocation, UploadPipeline.getShared().transfer(uploadedInputStream, out));
+  }
+
   abstract public boolean saveUploadedObject(Bucket bucket, UploadInfo uploadInfo, RepoObject repoObject);
 
   abstract public boolean deleteObject(RepoObject repoObject);
@@ -147,4 +249,123 @@ public abstract class ObjectStore {
    */
   abstract public InputStream getInputStream(RepoObject repoObject) throws RepoException;
 
+  /**
+   * @return true if the store keeps content of the given type gzip compressed, in which case it can be read as stored
+   * with {@link #getCompressedInputStream}
+   */
+  public boolean compressesContentType(String contentType) {
+    return false;
+  }
+
+  /**
+   * Retrieve the data of the given repo object <code>repoObject</code> gzip compressed, as it is stored, so it can be
+   * sent to clients that accept it without being decompressed. Return null if the data is not stored compressed.
+   *
+   * @param repoObject a single {@link org.plos.repo.models.RepoObject} that represents the object to be searched.
+   * @return an inputStream object with the gzip compressed data of the given repoObject, or null
+   * @throws RepoException
+   */
+  public InputStream getCompressedInputStream(RepoObject repoObject) throws RepoException {
+    return null;
+  }
+
+  /**
+   * Fetch the data of objects at least as large as the threshold of <code>parallelGet</code> with several concurrent
+   * ranged reads, for the stores that support it.
+   *
+   * @param parallelGet when and how to fetch objects in parallel, or null to always read them with a single stream
+   */
+  public void setParallelGet(ParallelRangeInputStream.Settings parallelGet) {
+    this.parallelGet = parallelGet;
+  }
+
+  /**
+   * Retrieve the data of the given repo object <code>repoObject</code> with concurrent ranged reads, if parallel reads
+   * are enabled and the object is large enough.
+   *
+   * @param repoObject a single {@link org.plos.repo.models.RepoObject} that represents the object to be searched.
+   * @return an inputStream object with the data of the given repoObject, or null to read it with a single stream,
+   * which is also the case when the first range could not be read so the single stream reports why
+   */
+  protected InputStream getParallelInputStream(RepoObject repoObject) {
+    if (parallelGet == null || !parallelGet.appliesTo(repoObject) || !supportsRangedReads(repoObject)) {
+      return null;
+    }
+
+    try {
+      return new ParallelRangeInputStream(this, repoObject, parallelGet);
+    } catch (IOException e) {
+      log.warn("Error reading the first range of object " + repoObject.getKey() + ", reading it with a single stream",
+          e);
+      return null;
+    }
+  }
+
+  /**
+   * @return true if ranges of the data of the given repo object <code>repoObject</code> can be read without reading the
+   * data that precedes them, which parallel reads rely on
+   */
+  protected boolean supportsRangedReads(RepoObject repoObject) {
+    return true;
+  }
+
+  /**
+   * Retrieve <code>length</code> bytes of the data of the given repo object <code>repoObject</code>, starting at
+   * <code>offset</code>. Return null if the data does not exist, or throw a {@link org.plos.repo.service.RepoException}
+   * if an error occurs.
+   * <p/>
+   * The default implementation skips the leading bytes of the full stream; stores that can seek or issue ranged
+   * requests should override it.
+   *
+   * @param repoObject a single {@link org.plos.repo.models.RepoObject} that represents the object to be searched.
+   * @param offset     the position of the first byte to read
+   * @param length     the number of bytes to read
+   * @return an inputStream object with the requested range of the data of the given repoObject
+   * @throws RepoException
+   */
+  public InputStream getInputStream(RepoObject repoObject, long offset, long length) throws RepoException {
+    InputStream content = getInputStream(repoObject);
+
+    if (content == null) {
+      return null;
+    }
+
+    try {
+      IOUtils.skipFully(content, offset);
+    } catch (IOException e) {
+      IOUtils.closeQuietly(content);
+      throw new RepoException(e);
+    }
+
+    return new BoundedInputStream(content, length);
+  }
+
+  /**
+   * Start moving the stored data to where the current layout of the store places it, while the store keeps serving.
+   *
+   * @return true if a rebalance was started; false if one is already running or the store has nothing to rebalance
+   */
+  public boolean rebalance() {
+    return false;
+  }
+
+  /**
+   * @return the load taken by each local data directory of the store, or null if the store has none
+   */
+  public List<DataRootStatus> getDataRootStatus() {
+    return null;
+  }
+
+  /**
+   * Retrieve the local file holding the data of the given repo object <code>repoObject</code>, so it can be sent
+   * without being copied through an input stream. Return null if the store is not backed by the local file system or
+   * the file does not exist.
+   *
+   * @param repoObject a single {@link org.plos.repo.models.RepoObject} that represents the object to be searched.
+   * @return the file with the data of the given repoObject, or null
+   */
+  public File getLocalFile(RepoObject repoObject) {
+    return null;
+  }
+
 }
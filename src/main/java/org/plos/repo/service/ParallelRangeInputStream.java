@@ -0,0 +1,400 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.IOUtils;
+import org.plos.repo.models.RepoObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reads the data of an object as consecutive chunks fetched concurrently with ranged reads of the store, returned in
+ * order. At most <code>concurrency</code> chunks are fetched ahead of the reader. The chunk buffers and the threads
+ * fetching them are shared by all the downloads of a {@link Settings}, which bounds the memory they hold together to
+ * <code>maxChunks * chunkSize</code> bytes; a download only fetches ahead while buffers are free, and waits for one
+ * when it has none left to read.
+ */
+public class ParallelRangeInputStream extends InputStream {
+
+  /**
+   * When and how a store fetches the data of an object in parallel, and the buffers and threads its downloads share.
+   */
+  public static class Settings {
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_CHUNKS = 16;
+
+    private final long threshold;
+
+    private final int concurrency;
+
+    private final int chunkSize;
+
+    private final int maxChunks;
+
+    private final ChunkBuffers buffers;
+
+    private final ExecutorService rangeExecutor;
+
+    /**
+     * @param threshold   the size from which objects are fetched in parallel
+     * @param concurrency the number of chunks fetched at once for a single object, {@link #DEFAULT_CONCURRENCY} if
+     *                    null
+     * @param chunkSize   the size of the ranges fetched, {@link #DEFAULT_CHUNK_SIZE} if null
+     */
+    public Settings(long threshold, Integer concurrency, Integer chunkSize) {
+      this(threshold, concurrency, chunkSize, null);
+    }
+
+    /**
+     * @param threshold   the size from which objects are fetched in parallel
+     * @param concurrency the number of chunks fetched at once for a single object, {@link #DEFAULT_CONCURRENCY} if
+     *                    null
+     * @param chunkSize   the size of the ranges fetched, {@link #DEFAULT_CHUNK_SIZE} if null
+     * @param maxChunks   the number of chunks held in memory by all the downloads together, {@link
+     *                    #DEFAULT_MAX_CHUNKS} if null
+     */
+    public Settings(long threshold, Integer concurrency, Integer chunkSize, Integer maxChunks) {
+      this.threshold = threshold;
+      this.concurrency = concurrency != null ? concurrency : DEFAULT_CONCURRENCY;
+      this.chunkSize = chunkSize != null ? chunkSize : DEFAULT_CHUNK_SIZE;
+      this.maxChunks = maxChunks != null ? maxChunks : DEFAULT_MAX_CHUNKS;
+
+      if (this.concurrency < 1 || this.chunkSize < 1 || this.maxChunks < 1) {
+        throw new IllegalArgumentException("The concurrency, chunk size and maximum chunks of parallel reads must be " +
+            "positive");
+      }
+
+      this.buffers = new ChunkBuffers(this.chunkSize, this.maxChunks);
+
+      // every fetch holds a buffer, so there are never more fetches than buffers
+      this.rangeExecutor = Executors.newFixedThreadPool(this.maxChunks,
+          new ThreadFactoryBuilder().setNameFormat("parallel-get-%d").setDaemon(true).build());
+    }
+
+    public long getThreshold() {
+      return threshold;
+    }
+
+    public int getConcurrency() {
+      return concurrency;
+    }
+
+    public int getChunkSize() {
+      return chunkSize;
+    }
+
+    public int getMaxChunks() {
+      return maxChunks;
+    }
+
+    /**
+     * @return true if the data of <code>repoObject</code> is large enough to be fetched in parallel
+     */
+    public boolean appliesTo(RepoObject repoObject) {
+      return repoObject.getSize() != null && repoObject.getSize() >= threshold && repoObject.getSize() > chunkSize;
+    }
+  }
+
+  /**
+   * A bounded pool of chunk buffers, reused from one chunk to the next instead of being allocated for each of them.
+   */
+  private static class ChunkBuffers {
+
+    private final int chunkSize;
+
+    private final Semaphore available;
+
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+    private ChunkBuffers(int chunkSize, int maxBuffers) {
+      this.chunkSize = chunkSize;
+      this.available = new Semaphore(maxBuffers);
+    }
+
+    /**
+     * Take a buffer, waiting for one to be released if they are all in use.
+     */
+    private byte[] acquire() throws InterruptedException {
+      available.acquire();
+      return take();
+    }
+
+    /**
+     * @return a buffer, or null if they are all in use
+     */
+    private byte[] tryAcquire() {
+      return available.tryAcquire() ? take() : null;
+    }
+
+    private byte[] take() {
+      byte[] buffer = free.poll();
+      return buffer != null ? buffer : new byte[chunkSize];
+    }
+
+    private void release(byte[] buffer) {
+      free.add(buffer);
+      available.release();
+    }
+  }
+
+  /**
+   * A range of the data, and the buffer it is fetched into. The buffer goes back to the pool once both the fetch and
+   * the stream are done with it, whichever is last.
+   */
+  private static class Chunk {
+
+    private final byte[] buffer;
+
+    private final int length;
+
+    // set by the first of the fetch and the stream to give the chunk up
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    private Future<Chunk> future;
+
+    private Chunk(byte[] buffer, int length) {
+      this.buffer = buffer;
+      this.length = length;
+    }
+  }
+
+  private final ObjectStore objectStore;
+
+  private final RepoObject repoObject;
+
+  private final long size;
+
+  private final Settings settings;
+
+  // chunks being fetched, in the order of their offsets
+  private final Queue<Chunk> pending = new ArrayDeque<>();
+
+  private long nextOffset = 0;
+
+  // the chunk being read, owned by the stream
+  private Chunk current;
+
+  private int position = 0;
+
+  private volatile boolean closed = false;
+
+  /**
+   * Start fetching the data of <code>repoObject</code> and wait for its first chunk, so that data missing from the store
+   * is reported before anything is read.
+   *
+   * @throws IOException if the first chunk could not be fetched
+   */
+  public ParallelRangeInputStream(ObjectStore objectStore, RepoObject repoObject, Settings settings)
+      throws IOException {
+    this.objectStore = objectStore;
+    this.repoObject = repoObject;
+    this.size = repoObject.getSize();
+    this.settings = settings;
+
+    try {
+      nextChunk();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Fetch chunks ahead while buffers are free. Waits for a buffer only when no chunk is being fetched, when the stream
+   * holds no buffer.
+   */
+  private void fetchAhead() throws IOException {
+    while (pending.size() < settings.getConcurrency() && nextOffset < size) {
+      final long offset = nextOffset;
+      final int length = (int) Math.min(settings.getChunkSize(), size - offset);
+
+      byte[] buffer;
+
+      if (pending.isEmpty()) {
+        try {
+          buffer = settings.buffers.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while reading object " + repoObject.getKey());
+        }
+      } else {
+        buffer = settings.buffers.tryAcquire();
+
+        if (buffer == null) {
+          return;
+        }
+      }
+
+      final Chunk chunk = new Chunk(buffer, length);
+
+      chunk.future = settings.rangeExecutor.submit(new Callable<Chunk>() {
+        @Override
+        public Chunk call() throws RepoException, IOException {
+          try {
+            if (closed) {
+              return chunk;
+            }
+
+            InputStream in = objectStore.getInputStream(repoObject, offset, length);
+
+            if (in == null) {
+              throw new IOException("The data of object " + repoObject.getKey() + " is missing at offset " + offset);
+            }
+
+            try {
+              IOUtils.readFully(in, chunk.buffer, 0, length);
+              return chunk;
+            } finally {
+              IOUtils.closeQuietly(in);
+            }
+          } finally {
+            giveUp(chunk);
+          }
+        }
+      });
+
+      pending.add(chunk);
+      nextOffset += length;
+    }
+  }
+
+  /**
+   * Give a chunk up, releasing its buffer if the other side already did.
+   */
+  private void giveUp(Chunk chunk) {
+    if (!chunk.settled.compareAndSet(false, true)) {
+      settings.buffers.release(chunk.buffer);
+    }
+  }
+
+  /**
+   * @return false if there is nothing left to read
+   */
+  private boolean nextChunk() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+
+    while (current == null || position == current.length) {
+      if (current != null) {
+        settings.buffers.release(current.buffer);
+        current = null;
+      }
+
+      fetchAhead();
+
+      Chunk next = pending.poll();
+
+      if (next == null) {
+        return false;
+      }
+
+      try {
+        next.future.get();
+      } catch (InterruptedException e) {
+        giveUp(next);
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while reading object " + repoObject.getKey());
+      } catch (ExecutionException e) {
+        // the fetch gave the chunk up already
+        settings.buffers.release(next.buffer);
+        throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+      }
+
+      current = next;
+      position = 0;
+    }
+
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!nextChunk()) {
+      return -1;
+    }
+
+    return current.buffer[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+
+    if (!nextChunk()) {
+      return -1;
+    }
+
+    int count = Math.min(len, current.length - position);
+    System.arraycopy(current.buffer, position, b, off, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return current != null ? current.length - position : 0;
+  }
+
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+
+    closed = true;
+
+    if (current != null) {
+      settings.buffers.release(current.buffer);
+      current = null;
+    }
+
+    // the fetches still running release their buffers when they end
+    for (Chunk chunk : pending) {
+      giveUp(chunk);
+    }
+
+    pending.clear();
+    position = 0;
+  }
+
+}
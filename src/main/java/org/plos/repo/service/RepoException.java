@@ -22,6 +22,9 @@
 
 package org.plos.repo.service;
 
+import java.util.Collections;
+import java.util.List;
+
 /**
  * RepoExceptions usually capture a user/client side error
  */
@@ -56,6 +59,8 @@ public class RepoException extends Exception {
     MoreThanOneTaggedObject(25, "There are more than one object with that tag. Please specify version or versionNumber. "),
     InvalidUserMetadataFormat(26, "The user metadata must be a valid json. "),
     InvalidUuid(27, "The uuid format is invalid. "),
+    RangeNotSatisfiable(28, "The requested range is not satisfiable"),
+    InvalidPageToken(29, "Invalid page token"),
 
 
     // user errors for system state
@@ -68,7 +73,25 @@ public class RepoException extends Exception {
     CantCreateCollectionWithNoObjects(36, "Can not create a collection that does not have objects"),
     ObjectFilePathMissing(37, "The file path object is missing"),
     // user error for missing file
-    NoFileEntered(38, "No file data entered");
+    NoFileEntered(38, "No file data entered"),
+
+    // user errors for requests on many objects
+    NoBatchObjectsEntered(39, "No objects entered for the batch"),
+    InvalidBatchObjects(40, "The batch objects must be a valid json array"),
+    BatchFilePartNotFound(41, "The file part named by a batch object was not found"),
+    BatchAborted(42, "The batch was not committed since another of its objects failed"),
+    NoObjectSelectorsEntered(43, "No objects entered"),
+    TooManyObjectSelectors(44, "Too many objects requested at once"),
+
+    // user errors for content negotiated by checksum
+    InvalidChecksum(45, "The checksum must be a lowercase hex SHA-1 digest"),
+    ChecksumMismatch(46, "The uploaded content does not match the checksum entered"),
+    ChecksumNotFound(47, "No content with the checksum entered was found"),
+    NoChecksumsEntered(48, "No checksums entered"),
+    TooManyChecksums(49, "Too many checksums requested at once"),
+
+    // user error for streamed uploads
+    InvalidStreamedForm(50, "The streamed upload must be a multipart form with the file as its last part");
 
     private final int value;
     private final String message;
@@ -90,24 +113,42 @@ public class RepoException extends Exception {
 
   private final Type repoExceptionType;
 
+  private final List<String> details;
+
   public Type getType() {
     return repoExceptionType;
   }
 
+  /**
+   * @return the elements the error applies to, e.g. every missing object of a collection, or an empty list
+   */
+  public List<String> getDetails() {
+    return details;
+  }
+
   public RepoException(Type type) {
     //super();
     super(type.getMessage());
     repoExceptionType = type;
+    details = Collections.emptyList();
+  }
+
+  public RepoException(Type type, List<String> details) {
+    super(type.getMessage() + " " + details);
+    repoExceptionType = type;
+    this.details = Collections.unmodifiableList(details);
   }
 
   public RepoException(Exception e) {  // server errors only
     super(e);
     repoExceptionType = (e instanceof RepoException) ? ((RepoException) e).getType() : Type.ServerError;
+    details = (e instanceof RepoException) ? ((RepoException) e).getDetails() : Collections.<String>emptyList();
   }
 
   public RepoException(String message) {  // server errors only
     super(message);
     repoExceptionType = Type.ServerError;
+    details = Collections.emptyList();
   }
 
 }
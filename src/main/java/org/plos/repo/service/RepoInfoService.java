@@ -51,6 +51,9 @@ public class RepoInfoService {
   @Inject
   private RepoService repoService;
 
+  @Inject
+  private ContentCache contentCache;
+
   private String projectVersion = "unknown";
 
   private Date startTime;
@@ -107,6 +110,10 @@ public class RepoInfoService {
     status.serviceStarted = startTime.toString();
     status.readsSinceStart = readCount;
     status.writesSinceStart = writeCount;
+    status.contentCacheHits = contentCache.getHits();
+    status.contentCacheMisses = contentCache.getMisses();
+    status.contentCacheEvictions = contentCache.getEvictions();
+    status.dataRoots = objectStore.getDataRootStatus();
 
     return status;
   }
@@ -24,6 +24,8 @@ package org.plos.repo.service;
 
 import com.google.common.base.Optional;
 import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.hsqldb.lib.StringUtil;
 import org.plos.repo.models.Audit;
 import org.plos.repo.models.Bucket;
@@ -31,25 +33,43 @@ import org.plos.repo.models.Operation;
 import org.plos.repo.models.RepoObject;
 import org.plos.repo.models.Status;
 import org.plos.repo.models.input.ElementFilter;
+import org.plos.repo.models.input.InputObjectSelector;
 import org.plos.repo.models.input.InputRepoObject;
 import org.plos.repo.models.validator.InputRepoObjectValidator;
 import org.plos.repo.models.validator.TimestampInputValidator;
+import org.plos.repo.util.ByteRange;
+import org.plos.repo.util.ChecksumGenerator;
+import org.plos.repo.util.PageToken;
 import org.plos.repo.util.UUIDFormatter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.ws.rs.core.MediaType;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 
@@ -62,6 +82,18 @@ public class RepoService extends BaseRepoService {
 
   private static final Logger log = LoggerFactory.getLogger(RepoService.class);
 
+  // maximum number of objects resolved by a single getObjects call
+  public static final int MAX_OBJECT_SELECTORS = 1000;
+
+  // maximum number of checksums probed by a single getStoredChecksums call
+  public static final int MAX_CHECKSUMS = 1000;
+
+  // number of batch object contents uploaded to the object store at the same time
+  private static final int BATCH_STAGING_THREADS = 8;
+
+  private final ExecutorService stagingExecutor = Executors.newFixedThreadPool(BATCH_STAGING_THREADS,
+      new ThreadFactoryBuilder().setNameFormat("batch-staging-%d").setDaemon(true).build());
+
   @Inject
   private ObjectStore objectStore;
 
@@ -71,6 +103,20 @@ public class RepoService extends BaseRepoService {
   @Inject
   private TimestampInputValidator timestampValidator;
 
+  @Inject
+  private MetadataCache metadataCache;
+
+  @Inject
+  private ContentExistenceFilter contentExistenceFilter;
+
+  @Inject
+  private ContentCache contentCache;
+
+
+  @PreDestroy
+  public void shutdown() {
+    stagingExecutor.shutdownNow();
+  }
 
   public List<Bucket> listBuckets() throws RepoException {
     try {
@@ -86,8 +132,8 @@ public class RepoService extends BaseRepoService {
   public Bucket createBucket(String name, String creationDateTimeString) throws RepoException {
     timestampValidator.validate(creationDateTimeString, RepoException.Type.CouldNotParseCreationDate);
 
-    Lock writeLock = this.rwLocks.get(name).writeLock();
-    writeLock.lock();
+    ReadWriteLock rwLock = this.rwLocks.get(name);
+    rwLock.writeLock().lock();
 
     boolean rollback = false;
     Optional<Boolean> bucketCreation = Optional.absent();
@@ -131,6 +177,8 @@ public class RepoService extends BaseRepoService {
 
       sqlService.transactionCommit();
       rollback = false;
+
+      sqlService.invalidateBuckets();
     } catch (SQLException e) {
       throw new RepoException(e);
     } finally {
@@ -144,7 +192,7 @@ public class RepoService extends BaseRepoService {
       }
 
       sqlReleaseConnection();
-      writeLock.unlock();
+      rwLock.writeLock().unlock();
     }
 
     return newBucket;
@@ -161,8 +209,8 @@ public class RepoService extends BaseRepoService {
    *                       object store
    */
   public void deleteBucket(String name) throws RepoException {
-    Lock writeLock = this.rwLocks.get(name).writeLock();
-    writeLock.lock();
+    ReadWriteLock rwLock = this.rwLocks.get(name);
+    rwLock.writeLock().lock();
 
     boolean rollback = false;
     Optional<Boolean> bucketDeletion = Optional.absent();
@@ -200,6 +248,9 @@ public class RepoService extends BaseRepoService {
 
       sqlService.transactionCommit();
       rollback = false;
+
+      sqlService.invalidateBuckets();
+      metadataCache.invalidateAll();
     } catch (SQLException e) {
       throw new RepoException(e);
     } finally {
@@ -213,7 +264,7 @@ public class RepoService extends BaseRepoService {
       }
 
       sqlReleaseConnection();
-      writeLock.unlock();
+      rwLock.writeLock().unlock();
     }
   }
 
@@ -237,12 +288,28 @@ public class RepoService extends BaseRepoService {
    */
   public List<RepoObject> listObjects(String bucketName, Integer offset, Integer limit, boolean includeDeleted,
                                       boolean includePurged, String tag) throws RepoException {
+    return listObjects(bucketName, offset, limit, includeDeleted, includePurged, tag, null);
+  }
+
+  /**
+   * List objects filtered by the parameters passed to the method, in (bucket, key, version) order.
+   *
+   * @param pageToken a token returned with a previous page, used to continue the listing right after its last object.
+   *                  If null, the listing starts at the beginning
+   * @throws RepoException if the page token is invalid, and as {@link #listObjects(String, Integer, Integer, boolean,
+   *                       boolean, String)}
+   * @see org.plos.repo.util.PageToken
+   */
+  public List<RepoObject> listObjects(String bucketName, Integer offset, Integer limit, boolean includeDeleted,
+                                      boolean includePurged, String tag, String pageToken) throws RepoException {
     // TODO: should this function return a list of objects and their nested versions instead of one flat last?
 
     if (StringUtil.isEmpty(bucketName)) {
       throw new RepoException(RepoException.Type.NoBucketEntered);
     }
 
+    PageToken after = PageToken.decodeElement(pageToken);
+
     List<RepoObject> repoObjects = null;
 
     if (offset == null) {
@@ -261,7 +328,7 @@ public class RepoService extends BaseRepoService {
         throw new RepoException(RepoException.Type.BucketNotFound);
       }
 
-      repoObjects = sqlService.listObjects(bucketName, offset, limit, includeDeleted, includePurged, tag);
+      repoObjects = sqlService.listObjects(bucketName, offset, limit, includeDeleted, includePurged, tag, after);
     } catch (SQLException e) {
       throw new RepoException(e);
     } finally {
@@ -271,6 +338,72 @@ public class RepoService extends BaseRepoService {
     return this.addProxyData(repoObjects);
   }
 
+  /**
+   * Check the parameters of {@link #streamObjects}, so errors can be reported before the response starts.
+   *
+   * @throws RepoException if bucket name has not been entered; if the page token is invalid; if the given bucket is
+   *                       not found in the DB
+   */
+  public void validateObjectStream(String bucketName, Integer limit, String pageToken) throws RepoException {
+    if (StringUtil.isEmpty(bucketName)) {
+      throw new RepoException(RepoException.Type.NoBucketEntered);
+    }
+
+    if (limit != null && limit <= 0) {
+      throw new RepoException(RepoException.Type.InvalidLimit);
+    }
+
+    PageToken.decodeElement(pageToken);
+
+    try {
+      sqlService.getReadOnlyConnection();
+
+      if (sqlService.getBucket(bucketName) == null) {
+        throw new RepoException(RepoException.Type.BucketNotFound);
+      }
+    } catch (SQLException e) {
+      throw new RepoException(e);
+    } finally {
+      sqlReleaseConnection();
+    }
+  }
+
+  /**
+   * Pass the objects filtered by the parameters to <code>handler</code> as they are read from the DB, in the order of
+   * {@link #listObjects(String, Integer, Integer, boolean, boolean, String, String)}. Unlike the listing, the number
+   * of objects is not capped by the maximum page size.
+   *
+   * @param limit   the maximum number of objects to stream, or null to stream all of them
+   * @param handler receives the objects, it must not call back into the repo services
+   * @throws RepoException as {@link #validateObjectStream}, or if there's an error when attempting to query the DB
+   * @throws IOException   if <code>handler</code> fails
+   */
+  public void streamObjects(String bucketName, Integer limit, boolean includeDeleted, boolean includePurged,
+                            String tag, String pageToken, final SqlService.RowHandler<RepoObject> handler)
+      throws RepoException, IOException {
+    validateObjectStream(bucketName, limit, pageToken);
+
+    try {
+      sqlService.getReadOnlyConnection();
+
+      sqlService.streamObjects(bucketName, limit, includeDeleted, includePurged, tag,
+          PageToken.decodeElement(pageToken), new SqlService.RowHandler<RepoObject>() {
+            @Override
+            public void handle(RepoObject repoObject) throws IOException {
+              try {
+                handler.handle(addProxyData(repoObject));
+              } catch (RepoException e) {
+                throw new IOException(e);
+              }
+            }
+          });
+    } catch (SQLException e) {
+      throw new RepoException(e);
+    } finally {
+      sqlReleaseConnection();
+    }
+  }
+
   private List<RepoObject> addProxyData(List<RepoObject> repoObjects) throws RepoException {
     if (repoObjects != null && repoObjects.size() > 0 && this.serverSupportsReproxy()) {
       for (RepoObject repoObject : repoObjects) {
@@ -290,33 +423,188 @@ public class RepoService extends BaseRepoService {
   }
 
   public RepoObject getObject(String bucketName, String key, ElementFilter elementFilter) throws RepoException {
-    Lock readLock = this.rwLocks.get(bucketName + key).readLock();
-    readLock.lock();
+    ReadWriteLock rwLock = this.rwLocks.get(bucketName + key);
+    rwLock.readLock().lock();
 
     RepoObject repoObject = null;
 
     try {
-      sqlService.getReadOnlyConnection();
+      repoObject = metadataCache.getObject(bucketName, key, elementFilter);
 
-      if ((elementFilter == null) || (elementFilter.isEmpty())) {
-        repoObject = sqlService.getObject(bucketName, key);
-      } else {
-        UUID uuid = UUIDFormatter.getUuid(elementFilter.getUuid());
-        repoObject = sqlService.getObject(bucketName, key, elementFilter.getVersion(), uuid, elementFilter.getTag());
+      if (repoObject == null) {
+        long generation = metadataCache.objectGeneration();
+
+        try {
+          sqlService.getReadOnlyConnection();
+
+          if ((elementFilter == null) || (elementFilter.isEmpty())) {
+            repoObject = sqlService.getObject(bucketName, key);
+          } else {
+            UUID uuid = UUIDFormatter.getUuid(elementFilter.getUuid());
+            repoObject = sqlService.getObject(bucketName, key, elementFilter.getVersion(), uuid, elementFilter.getTag());
+          }
+        } catch (SQLException e) {
+          throw new RepoException(e);
+        } finally {
+          sqlReleaseConnection();
+        }
+
+        if (repoObject == null) {
+          throw new RepoException(RepoException.Type.ObjectNotFound);
+        }
+
+        metadataCache.putObject(bucketName, key, elementFilter, repoObject, generation);
       }
+    } finally {
+      rwLock.readLock().unlock();
+    }
 
+    return this.addProxyData(repoObject);
+  }
 
-      if (repoObject == null) {
-        throw new RepoException(RepoException.Type.ObjectNotFound);
+  /**
+   * Resolve many objects of a bucket at once, each one the way {@link #getObject(String, String, ElementFilter)}
+   * would. The objects that are not in the metadata cache are fetched together, on a single connection.
+   *
+   * @param bucketName a single String identifying the bucket name where the objects are
+   * @param selectors  the key and optional filter of each object
+   * @return the object of each selector, in the same order, or null where no object matches
+   * @throws RepoException if the bucket does not exist, or if any selector has no key or an invalid uuid
+   */
+  public List<RepoObject> getObjects(String bucketName, List<? extends InputObjectSelector> selectors)
+      throws RepoException {
+    if (StringUtil.isEmpty(bucketName)) {
+      throw new RepoException(RepoException.Type.NoBucketEntered);
+    }
+
+    if (selectors == null || selectors.isEmpty()) {
+      throw new RepoException(RepoException.Type.NoObjectSelectorsEntered);
+    }
+
+    if (selectors.size() > MAX_OBJECT_SELECTORS) {
+      throw new RepoException(RepoException.Type.TooManyObjectSelectors);
+    }
+
+    Set<String> lockKeys = new HashSet<>();
+    for (InputObjectSelector selector : selectors) {
+      if (selector == null || selector.getKey() == null) {
+        throw new RepoException(RepoException.Type.NoKeyEntered);
+      }
+
+      UUIDFormatter.getUuid(selector.getUuid());
+      lockKeys.add(bucketName + selector.getKey());
+    }
+
+    List<Lock> readLocks = new ArrayList<>();
+    for (ReadWriteLock rwLock : rwLocks.bulkGet(lockKeys)) {
+      rwLock.readLock().lock();
+      readLocks.add(rwLock.readLock());
+    }
+
+    try {
+      List<RepoObject> repoObjects = new ArrayList<>(selectors.size());
+      List<Integer> misses = new ArrayList<>();
+
+      for (int i = 0; i < selectors.size(); i++) {
+        InputObjectSelector selector = selectors.get(i);
+        RepoObject repoObject = metadataCache.getObject(bucketName, selector.getKey(), selector);
+
+        repoObjects.add(repoObject);
+        if (repoObject == null) {
+          misses.add(i);
+        }
+      }
+
+      if (!misses.isEmpty()) {
+        long generation = metadataCache.objectGeneration();
+
+        List<String> keys = new ArrayList<>(misses.size());
+        List<InputObjectSelector> filters = new ArrayList<>(misses.size());
+        for (Integer miss : misses) {
+          keys.add(selectors.get(miss).getKey());
+          filters.add(selectors.get(miss));
+        }
+
+        List<RepoObject> found;
+        try {
+          sqlService.getReadOnlyConnection();
+
+          if (sqlService.getBucket(bucketName) == null) {
+            throw new RepoException(RepoException.Type.BucketNotFound);
+          }
+
+          found = sqlService.getObjects(bucketName, keys, filters);
+        } catch (SQLException e) {
+          throw new RepoException(e);
+        } finally {
+          sqlReleaseConnection();
+        }
+
+        for (int i = 0; i < misses.size(); i++) {
+          RepoObject repoObject = found.get(i);
+
+          if (repoObject != null) {
+            repoObjects.set(misses.get(i), repoObject);
+            metadataCache.putObject(bucketName, keys.get(i), filters.get(i), repoObject, generation);
+          }
+        }
+      }
+
+      for (RepoObject repoObject : repoObjects) {
+        addProxyData(repoObject);
       }
+
+      return repoObjects;
+    } finally {
+      for (Lock readLock : readLocks) {
+        readLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Find which of <code>checksums</code> can be used to create an object of the bucket <code>bucketName</code> by
+   * reference, without sending its content. When the object store shares content across buckets, the content of any
+   * bucket is found.
+   *
+   * @param bucketName a single String identifying the bucket name
+   * @param checksums  the SHA-1 checksums to look for
+   * @return the checksums that are stored, a subset of <code>checksums</code>
+   * @throws RepoException if the bucket does not exist, or a checksum is invalid
+   */
+  public Set<String> getStoredChecksums(String bucketName, List<String> checksums) throws RepoException {
+    if (StringUtil.isEmpty(bucketName)) {
+      throw new RepoException(RepoException.Type.NoBucketEntered);
+    }
+
+    if (checksums == null || checksums.isEmpty()) {
+      throw new RepoException(RepoException.Type.NoChecksumsEntered);
+    }
+
+    if (checksums.size() > MAX_CHECKSUMS) {
+      throw new RepoException(RepoException.Type.TooManyChecksums);
+    }
+
+    for (String checksum : checksums) {
+      if (!ChecksumGenerator.isValidChecksum(checksum)) {
+        throw new RepoException(RepoException.Type.InvalidChecksum);
+      }
+    }
+
+    try {
+      sqlService.getReadOnlyConnection();
+
+      if (sqlService.getBucket(bucketName) == null) {
+        throw new RepoException(RepoException.Type.BucketNotFound);
+      }
+
+      return sqlService.getReferencedContentSizes(objectStore.sharesContentAcrossBuckets() ? null : bucketName,
+          checksums).keySet();
     } catch (SQLException e) {
       throw new RepoException(e);
     } finally {
       sqlReleaseConnection();
-      readLock.unlock();
     }
-
-    return this.addProxyData(repoObject);
   }
 
   public List<RepoObject> getObjectVersions(String bucketName, String objectKey) throws RepoException {
@@ -324,8 +612,8 @@ public class RepoService extends BaseRepoService {
       throw new RepoException(RepoException.Type.NoKeyEntered);
     }
 
-    Lock readLock = this.rwLocks.get(bucketName + objectKey).readLock();
-    readLock.lock();
+    ReadWriteLock rwLock = this.rwLocks.get(bucketName + objectKey);
+    rwLock.readLock().lock();
 
     List<RepoObject> repoObjects = null;
     try {
@@ -335,7 +623,7 @@ public class RepoService extends BaseRepoService {
       throw new RepoException(e);
     } finally {
       sqlReleaseConnection();
-      readLock.unlock();
+      rwLock.readLock().unlock();
     }
 
     return this.addProxyData(repoObjects);
@@ -374,9 +662,69 @@ public class RepoService extends BaseRepoService {
   }
 
   public InputStream getObjectInputStream(RepoObject repoObject) throws RepoException {
+    return getObjectInputStream(repoObject, null);
+  }
+
+  /**
+   * @param repoObject a single {@link org.plos.repo.models.RepoObject}
+   * @return true if the object store keeps the content of the object gzip compressed
+   */
+  public boolean isObjectCompressed(RepoObject repoObject) {
+    return objectStore.compressesContentType(repoObject.getContentType());
+  }
+
+  /**
+   * @param repoObject a single {@link org.plos.repo.models.RepoObject} whose content will be read
+   * @return the gzip compressed content of the object as it is stored, or null if it is not stored compressed
+   * @throws RepoException if the content could not be read
+   */
+  public InputStream getObjectCompressedInputStream(RepoObject repoObject) throws RepoException {
+    return objectStore.getCompressedInputStream(repoObject);
+  }
+
+  /**
+   * @param repoObject a single {@link org.plos.repo.models.RepoObject} whose content will be read
+   * @return the local file holding the content of the object, or null if the object store is not file backed
+   */
+  public File getObjectLocalFile(RepoObject repoObject) {
+    return objectStore.getLocalFile(repoObject);
+  }
+
+  /**
+   * Retrieve the content of the given <code>repoObject</code>, or only the requested <code>range</code> of it.
+   *
+   * @param repoObject a single {@link org.plos.repo.models.RepoObject} whose content will be read
+   * @param range      the {@link org.plos.repo.util.ByteRange} to read, or null to read the whole content
+   * @return an input stream with the requested content
+   * @throws RepoException if the content is not found or can not be read
+   */
+  public InputStream getObjectInputStream(RepoObject repoObject, ByteRange range) throws RepoException {
+    boolean cacheable = contentCache.accepts(repoObject.getSize());
+
+    if (cacheable) {
+      ByteBuffer cached = contentCache.get(repoObject.getBucketName(), repoObject.getChecksum());
+
+      if (cached != null) {
+        if (range != null) {
+          cached.limit((int) (range.getOffset() + range.getLength()));
+          cached.position((int) range.getOffset());
+        }
+        return new ContentCache.ByteBufferInputStream(cached);
+      }
+    }
+
     InputStream content = null;
     try {
-      content = objectStore.getInputStream(repoObject);
+      if (range == null) {
+        content = objectStore.getInputStream(repoObject);
+
+        if (content != null && cacheable) {
+          content = contentCache.fill(repoObject.getBucketName(), repoObject.getChecksum(), content,
+              repoObject.getSize().intValue());
+        }
+      } else {
+        content = objectStore.getInputStream(repoObject, range.getOffset(), range.getLength());
+      }
     } catch (Exception e) {
       log.error("Error retrieving content for object.  Key: {} , bucketName: {} , uuid: {} . Error: {}",
           repoObject.getKey(),
@@ -430,8 +778,8 @@ public class RepoService extends BaseRepoService {
    *                       does not exists
    */
   public void deleteObject(String bucketName, String key, ElementFilter elementFilter, Status status) throws RepoException {
-    Lock writeLock = this.rwLocks.get(bucketName + key).writeLock();
-    writeLock.lock();
+    ReadWriteLock rwLock = this.rwLocks.get(bucketName + key);
+    rwLock.writeLock().lock();
 
     boolean rollback = false;
     RepoObject repoObject = null;
@@ -480,6 +828,8 @@ public class RepoService extends BaseRepoService {
 
       sqlService.transactionCommit();
       rollback = false;
+
+      metadataCache.invalidateObject(bucketName, key);
     } catch (SQLException e) {
       throw new RepoException(e);
     } finally {
@@ -488,7 +838,7 @@ public class RepoService extends BaseRepoService {
       }
 
       sqlReleaseConnection();
-      writeLock.unlock();
+      rwLock.writeLock().unlock();
     }
   }
 
@@ -505,12 +855,9 @@ public class RepoService extends BaseRepoService {
    */
   private void purgeObjectContentAndDb(RepoObject repoObject, ElementFilter elementFilter) throws RepoException {
     try {
-      try (InputStream content = getObjectInputStream(repoObject)) {
-        if (content == null) {
-          throw new RepoException(RepoException.Type.ObjectNotFound);
-        }
-      } catch (IOException e) {
-        throw new RepoException(e);
+      // ask the store itself, without reading the content or going through the content cache
+      if (!objectStore.objectExists(repoObject)) {
+        throw new RepoException(RepoException.Type.ObjectNotFound);
       }
 
       UUID uuid = UUIDFormatter.getUuid(elementFilter.getUuid());
@@ -528,7 +875,12 @@ public class RepoService extends BaseRepoService {
 
       // verify if any other USED or DELETED objects has a reference to the same file. If it is the last reference to the object, remove it from the system,
       // if not, just mark the record in the DB as purge
-      if (sqlService.countUsedAndDeletedObjectsReference(repoObject.getBucketName(), repoObject.getChecksum()) == 0) {
+      int references = objectStore.sharesContentAcrossBuckets() ?
+          sqlService.lockBlobReferenceCount(repoObject.getChecksum()) :
+          sqlService.countUsedAndDeletedObjectsReference(repoObject.getBucketName(), repoObject.getChecksum());
+
+      if (references == 0) {
+        contentCache.invalidate(repoObject.getBucketName(), repoObject.getChecksum());
         boolean removed = objectStore.deleteObject(repoObject);
         if (!removed) {
           throw new RepoException(RepoException.Type.ObjectNotFound);
@@ -539,16 +891,466 @@ public class RepoService extends BaseRepoService {
     }
   }
 
+  /**
+   * Creates a new object or a new version of an existing one. The write is split in two phases:
+   * <ul>
+   * <li>stage: the content is streamed, hashed and written to the object store temporary location. No lock is held and
+   * no database connection is checked out, so a slow upload does not block readers or other writers.</li>
+   * <li>commit: under the per-key write lock and in a single short transaction, the version is allocated, the row and
+   * the audit record are inserted and the staged content is moved to its final location.</li>
+   * </ul>
+   *
+   * @param method          a {@link org.plos.repo.service.BaseRepoService.CreateMethod}
+   * @param inputRepoObject a {@link org.plos.repo.models.input.InputRepoObject} holding the new object data
+   * @return the {@link org.plos.repo.models.RepoObject} created
+   * @throws RepoException
+   */
   public RepoObject createObject(CreateMethod method,
                                  InputRepoObject inputRepoObject) throws RepoException {
-    Lock writeLock = this.rwLocks.get(inputRepoObject.getBucketName() + inputRepoObject.getKey()).writeLock();
-    writeLock.lock();
+    inputRepoObjectValidator.validate(inputRepoObject);
 
-    RepoObject existingRepoObject;
+    ObjectStore.UploadInfo uploadInfo = stageObject(inputRepoObject);
+    boolean committed = false;
+
+    try {
+      RepoObject repoObject = commitObject(method, inputRepoObject, uploadInfo);
+      committed = true;
+      return repoObject;
+    } finally {
+      // a commit moves the staged content, or drops it when the store already holds it
+      if (!committed && uploadInfo != null) {
+        objectStore.deleteTempUpload(uploadInfo);
+      }
+    }
+  }
+
+  /**
+   * Create or version all the objects of <code>inputRepoObjects</code> at once. The content of every object is
+   * streamed into the object store temporary location in parallel, then all the rows and audit entries are written
+   * in a single transaction with JDBC batches, so either every object of the batch is created or none is.
+   *
+   * @param inputRepoObjects the objects to create, each one with its own creation method
+   * @return the created objects, in the order of <code>inputRepoObjects</code>
+   * @throws BatchItemException if one of the objects fails, in which case nothing is committed
+   * @throws RepoException      if the batch is empty or could not be committed
+   */
+  public List<RepoObject> createObjects(List<? extends InputRepoObject> inputRepoObjects) throws RepoException {
+    if (inputRepoObjects == null || inputRepoObjects.isEmpty()) {
+      throw new RepoException(RepoException.Type.NoBatchObjectsEntered);
+    }
+
+    List<CreateMethod> methods = new ArrayList<>(inputRepoObjects.size());
+
+    for (int i = 0; i < inputRepoObjects.size(); i++) {
+      try {
+        inputRepoObjectValidator.validate(inputRepoObjects.get(i));
+        methods.add(CreateMethod.fromString(inputRepoObjects.get(i).getCreate()));
+      } catch (RepoException e) {
+        throw new BatchItemException(i, e);
+      }
+    }
 
+    checkBatchBuckets(inputRepoObjects);
+
+    List<ObjectStore.UploadInfo> uploadInfos = stageObjects(inputRepoObjects);
+    boolean committed = false;
+
+    try {
+      List<RepoObject> repoObjects = commitObjects(methods, inputRepoObjects, uploadInfos);
+      committed = true;
+      return repoObjects;
+    } finally {
+      if (!committed) {
+        deleteTempUploads(uploadInfos);
+      }
+    }
+  }
+
+  /**
+   * Fail fast, before any transfer, when one of the buckets of a batch does not exist.
+   */
+  private void checkBatchBuckets(List<? extends InputRepoObject> inputRepoObjects) throws RepoException {
     try {
-      inputRepoObjectValidator.validate(inputRepoObject);
+      sqlService.getReadOnlyConnection();
+
+      for (int i = 0; i < inputRepoObjects.size(); i++) {
+        if (sqlService.getBucket(inputRepoObjects.get(i).getBucketName()) == null) {
+          throw new BatchItemException(i, new RepoException(RepoException.Type.BucketNotFound));
+        }
+      }
+    } catch (SQLException e) {
+      throw new RepoException(e);
+    } finally {
+      sqlReleaseConnection();
+    }
+  }
+
+  /**
+   * Upload the content of every object of a batch on the staging executor. If any upload fails, the ones that
+   * succeeded are deleted.
+   *
+   * @return the staged content of each object, null for the objects without content
+   * @throws BatchItemException for the first object whose content could not be uploaded
+   */
+  private List<ObjectStore.UploadInfo> stageObjects(List<? extends InputRepoObject> inputRepoObjects)
+      throws RepoException {
+    List<Future<ObjectStore.UploadInfo>> uploads = new ArrayList<>(inputRepoObjects.size());
+
+    for (final InputRepoObject inputRepoObject : inputRepoObjects) {
+      uploads.add(stagingExecutor.submit(new Callable<ObjectStore.UploadInfo>() {
+        @Override
+        public ObjectStore.UploadInfo call() throws RepoException {
+          return uploadContent(inputRepoObject);
+        }
+      }));
+    }
+
+    List<ObjectStore.UploadInfo> uploadInfos = new ArrayList<>(uploads.size());
+    BatchItemException failure = null;
 
+    // wait for every upload, even after a failure, so none of them is left behind in the temporary location
+    for (int i = 0; i < uploads.size(); i++) {
+      try {
+        uploadInfos.add(Uninterruptibles.getUninterruptibly(uploads.get(i)));
+      } catch (ExecutionException e) {
+        uploadInfos.add(null);
+
+        if (failure == null) {
+          failure = new BatchItemException(i, e.getCause() instanceof RepoException ?
+              (RepoException) e.getCause() : new RepoException(e));
+        }
+      }
+    }
+
+    if (failure != null) {
+      deleteTempUploads(uploadInfos);
+      throw failure;
+    }
+
+    return uploadInfos;
+  }
+
+  private void deleteTempUploads(List<ObjectStore.UploadInfo> uploadInfos) {
+    for (ObjectStore.UploadInfo uploadInfo : uploadInfos) {
+      if (uploadInfo != null) {
+        objectStore.deleteTempUpload(uploadInfo);
+      }
+    }
+  }
+
+  private List<RepoObject> commitObjects(List<CreateMethod> methods, List<? extends InputRepoObject> inputRepoObjects,
+                                         List<ObjectStore.UploadInfo> uploadInfos) throws RepoException {
+    Set<String> lockKeys = new HashSet<>();
+    for (InputRepoObject inputRepoObject : inputRepoObjects) {
+      lockKeys.add(inputRepoObject.getBucketName() + inputRepoObject.getKey());
+    }
+
+    // bulkGet returns the stripes in a fixed order, so two batches sharing keys can not deadlock
+    List<Lock> writeLocks = new ArrayList<>();
+    for (ReadWriteLock rwLock : rwLocks.bulkGet(lockKeys)) {
+      rwLock.writeLock().lock();
+      writeLocks.add(rwLock.writeLock());
+    }
+
+    List<RepoObject> repoObjects = new ArrayList<>(inputRepoObjects.size());
+    List<Audit> audits = new ArrayList<>(inputRepoObjects.size());
+
+    // latest version of each key, including the versions created earlier in this batch
+    Map<String, RepoObject> latestObjects = new HashMap<>();
+
+    boolean rollback = false;
+
+    try {
+      try {
+        sqlService.getConnection();
+        rollback = true;
+      } catch (SQLException e) {
+        throw new RepoException(e);
+      }
+
+      for (int i = 0; i < inputRepoObjects.size(); i++) {
+        InputRepoObject inputRepoObject = inputRepoObjects.get(i);
+        String objectKey = inputRepoObject.getBucketName() + "/" + inputRepoObject.getKey();
+
+        try {
+          boolean inBatch = latestObjects.containsKey(objectKey);
+          RepoObject existingRepoObject = inBatch ? latestObjects.get(objectKey) :
+              sqlService.getObject(inputRepoObject.getBucketName(), inputRepoObject.getKey());
+
+          RepoObject repoObject = prepareBatchObject(methods.get(i), inputRepoObject, uploadInfos.get(i),
+              existingRepoObject);
+
+          // an earlier version of this batch is not in the database yet
+          repoObject.setVersionNumber(inBatch ? existingRepoObject.getVersionNumber() + 1 :
+              sqlService.getObjectNextAvailableVersion(inputRepoObject.getBucketName(), inputRepoObject.getKey()));
+
+          repoObjects.add(repoObject);
+          latestObjects.put(objectKey, repoObject);
+
+          audits.add(new Audit.AuditBuilder(repoObject.getBucketName(),
+              existingRepoObject == null ? Operation.CREATE_OBJECT : Operation.UPDATE_OBJECT)
+              .setKey(repoObject.getKey())
+              .setUuid(repoObject.getUuid())
+              .build());
+        } catch (SQLException e) {
+          throw new BatchItemException(i, new RepoException(e));
+        } catch (RepoException e) {
+          throw new BatchItemException(i, e);
+        }
+      }
+
+      if (sqlService.insertObjects(repoObjects) != repoObjects.size()) {
+        throw new RepoException("Error saving content to database");
+      }
+
+      if (!sqlService.insertAudits(audits)) {
+        throw new RepoException("Error saving audit operations to database");
+      }
+
+      sqlService.transactionCommit();
+      rollback = false;
+
+      for (RepoObject repoObject : repoObjects) {
+        metadataCache.invalidateObjectLatest(repoObject.getBucketName(), repoObject.getKey());
+      }
+    } catch (SQLException e) {
+      throw new RepoException(e);
+    } finally {
+      if (rollback) {
+        sqlRollback("batch of " + inputRepoObjects.size() + " objects");
+      }
+
+      sqlReleaseConnection();
+
+      for (Lock writeLock : writeLocks) {
+        writeLock.unlock();
+      }
+    }
+
+    return repoObjects;
+  }
+
+  /**
+   * Build the row of one object of a batch, without its version number, and save its content to the object store
+   * the same way {@link #commitObject} does for a single object, but without writing to the database.
+   *
+   * @param existingRepoObject the latest version of the object, either in the database or earlier in the batch
+   */
+  private RepoObject prepareBatchObject(CreateMethod method, InputRepoObject inputRepoObject,
+                                        ObjectStore.UploadInfo uploadInfo, RepoObject existingRepoObject)
+      throws RepoException, SQLException {
+    Bucket bucket = sqlService.getBucket(inputRepoObject.getBucketName());
+
+    if (bucket == null) {
+      throw new RepoException(RepoException.Type.BucketNotFound);
+    }
+
+    if (method == CreateMethod.NEW && existingRepoObject != null) {
+      throw new RepoException(RepoException.Type.CantCreateNewObjectWithUsedKey);
+    }
+
+    if (method == CreateMethod.VERSION && existingRepoObject == null) {
+      throw new RepoException(RepoException.Type.CantCreateVersionWithNoOrig);
+    }
+
+    Timestamp creationDate = inputRepoObject.getCreationDateTime() != null ?
+        Timestamp.valueOf(inputRepoObject.getCreationDateTime()) : new Timestamp(new Date().getTime());
+
+    Timestamp timestamp = inputRepoObject.getTimestamp() != null ?
+        Timestamp.valueOf(inputRepoObject.getTimestamp()) : creationDate;
+
+    RepoObject repoObject;
+
+    if (uploadInfo == null) {
+      uploadInfo = getContentReference(inputRepoObject);
+    }
+
+    if (existingRepoObject == null) {
+      if (uploadInfo == null) {
+        throw new RepoException(RepoException.Type.NoFileEntered);
+      }
+
+      if (uploadInfo.getSize() == 0) {
+        throw new RepoException(RepoException.Type.ObjectDataEmpty);
+      }
+
+      repoObject = createNewRepoObject(inputRepoObject, bucket, uploadInfo, timestamp, creationDate);
+    } else {
+      repoObject = createNewRepoObjectForUpate(inputRepoObject, existingRepoObject, timestamp, creationDate);
+      repoObject.setUuid(UUID.randomUUID());
+
+      if (uploadInfo == null) {
+        // metadata-only update, the content is the same as the last version of the object
+        repoObject.setChecksum(existingRepoObject.getChecksum());
+        repoObject.setSize(existingRepoObject.getSize());
+      } else {
+        repoObject.setChecksum(uploadInfo.getChecksum());
+        repoObject.setSize(uploadInfo.getSize());
+      }
+    }
+
+    if (uploadInfo != null) {
+      saveContent(uploadInfo, repoObject);
+    }
+
+    return repoObject;
+  }
+
+  /**
+   * Stream the content of <code>inputRepoObject</code> into the object store temporary location, without holding any
+   * lock or database connection.
+   *
+   * @param inputRepoObject a {@link org.plos.repo.models.input.InputRepoObject} holding the content to upload
+   * @return the {@link org.plos.repo.service.ObjectStore.UploadInfo} of the staged content, or null if the input does
+   * not have any content (metadata-only update)
+   * @throws RepoException if the bucket does not exist or the content could not be uploaded
+   */
+  private ObjectStore.UploadInfo stageObject(InputRepoObject inputRepoObject) throws RepoException {
+    InputStream content = inputRepoObject.getUploadedInputStream();
+
+    if (content == null) {
+      return null;
+    }
+
+    // fail fast, before the transfer, when the bucket does not exist
+    try {
+      sqlService.getReadOnlyConnection();
+
+      if (sqlService.getBucket(inputRepoObject.getBucketName()) == null) {
+        throw new RepoException(RepoException.Type.BucketNotFound);
+      }
+    } catch (SQLException e) {
+      throw new RepoException(e);
+    } finally {
+      sqlReleaseConnection();
+    }
+
+    return uploadContent(inputRepoObject);
+  }
+
+  /**
+   * Stream the content of <code>inputRepoObject</code> into the object store temporary location and close it.
+   *
+   * @return the {@link org.plos.repo.service.ObjectStore.UploadInfo} of the staged content, or null if the input does
+   * not have any content
+   * @throws RepoException if the content could not be uploaded
+   */
+  private ObjectStore.UploadInfo uploadContent(InputRepoObject inputRepoObject) throws RepoException {
+    InputStream content = inputRepoObject.getUploadedInputStream();
+
+    if (content == null) {
+      return null;
+    }
+
+    ObjectStore.UploadInfo uploadInfo;
+
+    try {
+      uploadInfo = objectStore.uploadTempObject(content, inputRepoObject.getContentType(),
+          inputRepoObject.getChecksum());
+    } finally {
+      try {
+        content.close();
+      } catch (IOException e) {
+        log.error("Error closing the uploaded stream for object. Key: {} , bucketName: {}",
+            inputRepoObject.getKey(), inputRepoObject.getBucketName(), e);
+      }
+    }
+
+    if (inputRepoObject.getChecksum() != null && !inputRepoObject.getChecksum().equals(uploadInfo.getChecksum())) {
+      objectStore.deleteTempUpload(uploadInfo);
+      throw new RepoException(RepoException.Type.ChecksumMismatch);
+    }
+
+    return uploadInfo;
+  }
+
+  /**
+   * Resolve the checksum entered without any content to the content already stored under it, so the object can be
+   * created by reference. Must be called with a connection checked out.
+   *
+   * @return the {@link org.plos.repo.service.ObjectStore.UploadInfo} of the stored content, or null if no checksum was
+   * entered
+   * @throws RepoException if no object of the bucket, or of any bucket when the store shares content across buckets,
+   *                       holds the content
+   */
+  private ObjectStore.UploadInfo getContentReference(InputRepoObject inputRepoObject)
+      throws RepoException, SQLException {
+    final String checksum = inputRepoObject.getChecksum();
+
+    if (checksum == null) {
+      return null;
+    }
+
+    final Long size = sqlService.getReferencedContentSizes(
+        objectStore.sharesContentAcrossBuckets() ? null : inputRepoObject.getBucketName(),
+        Collections.singletonList(checksum)).get(checksum);
+
+    if (size == null) {
+      throw new RepoException(RepoException.Type.ChecksumNotFound);
+    }
+
+    return new ContentReference(checksum, size);
+  }
+
+  /**
+   * Move the staged content of <code>repoObject</code> to its final location, or drop it if the store already holds
+   * the content, so that nothing is left staged once the content is saved.
+   *
+   * @throws RepoException if the content is a reference to stored content that is gone, or could not be saved
+   */
+  private void saveContent(ObjectStore.UploadInfo uploadInfo, RepoObject repoObject) throws RepoException {
+    if (objectStore.sharesContentAcrossBuckets()) {
+      // lock the row of the content, creating it if needed, before looking the content up: an object of another bucket
+      // purged concurrently then either deletes the content before this, or sees the reference of this object. The
+      // reference itself is added with the row of the object.
+      try {
+        sqlService.addBlobReferences(repoObject.getChecksum(), repoObject.getSize(), 0);
+      } catch (SQLException e) {
+        throw new RepoException(e);
+      }
+    }
+
+    // the filter may not know about references saved by other instances, so they are always looked up in the store
+    boolean mightExist = uploadInfo instanceof ContentReference ||
+        contentExistenceFilter.mightExist(repoObject.getBucketName(), repoObject.getChecksum());
+
+    if (mightExist && objectStore.objectExists(repoObject)) {
+      // dont bother storing the file since the data already exists in the system
+      deleteStagedContent(uploadInfo);
+      return;
+    }
+
+    if (uploadInfo instanceof ContentReference) {
+      throw new RepoException(RepoException.Type.ChecksumNotFound);
+    }
+
+    if (!objectStore.saveUploadedObject(new Bucket(repoObject.getBucketName()), uploadInfo, repoObject)) {
+      // the content may have been saved by another instance since the filter was loaded, and some stores refuse to
+      // save it again
+      if (mightExist || !objectStore.objectExists(repoObject)) {
+        throw new RepoException("Error saving content to object store");
+      }
+
+      deleteStagedContent(uploadInfo);
+    }
+
+    contentExistenceFilter.add(repoObject.getBucketName(), repoObject.getChecksum());
+  }
+
+  private void deleteStagedContent(ObjectStore.UploadInfo uploadInfo) {
+    if (!(uploadInfo instanceof ContentReference)) {
+      objectStore.deleteTempUpload(uploadInfo);
+    }
+  }
+
+  private RepoObject commitObject(CreateMethod method, InputRepoObject inputRepoObject,
+                                  ObjectStore.UploadInfo uploadInfo) throws RepoException {
+    ReadWriteLock rwLock = this.rwLocks.get(inputRepoObject.getBucketName() + inputRepoObject.getKey());
+    rwLock.writeLock().lock();
+
+    RepoObject existingRepoObject;
+
+    try {
       try {
         existingRepoObject = getObject(inputRepoObject.getBucketName(), inputRepoObject.getKey(), null);
       } catch (RepoException e) {
@@ -571,33 +1373,33 @@ public class RepoService extends BaseRepoService {
           if (existingRepoObject != null) {
             throw new RepoException(RepoException.Type.CantCreateNewObjectWithUsedKey);
           }
-          return createNewObject(inputRepoObject, timestamp, creationDate);
+          return createNewObject(inputRepoObject, uploadInfo, timestamp, creationDate);
 
         case VERSION:
           if (existingRepoObject == null) {
             throw new RepoException(RepoException.Type.CantCreateVersionWithNoOrig);
           }
-          return updateObject(inputRepoObject, timestamp, existingRepoObject, creationDate);
+          return updateObject(inputRepoObject, uploadInfo, timestamp, existingRepoObject, creationDate);
 
         case AUTO:
           if (existingRepoObject == null) {
-            return createNewObject(inputRepoObject, timestamp, creationDate);
+            return createNewObject(inputRepoObject, uploadInfo, timestamp, creationDate);
           } else {
-            return updateObject(inputRepoObject, timestamp, existingRepoObject, creationDate);
+            return updateObject(inputRepoObject, uploadInfo, timestamp, existingRepoObject, creationDate);
           }
 
         default:
           throw new RepoException(RepoException.Type.InvalidCreationMethod);
       }
     } finally {
-      writeLock.unlock();
+      rwLock.writeLock().unlock();
     }
   }
 
   private RepoObject createNewObject(InputRepoObject inputRepoObject,
+                                     ObjectStore.UploadInfo uploadInfo,
                                      Timestamp timestamp,
                                      Timestamp cretationDateTime) throws RepoException {
-    ObjectStore.UploadInfo uploadInfo = null;
     Integer versionNumber;
     Bucket bucket;
 
@@ -619,13 +1421,12 @@ public class RepoService extends BaseRepoService {
         throw new RepoException(RepoException.Type.BucketNotFound);
       }
 
-      InputStream content = inputRepoObject.getUploadedInputStream();
-      uploadInfo = objectStore.uploadTempObject(content);
+      if (uploadInfo == null) {
+        uploadInfo = getContentReference(inputRepoObject);
+      }
 
-      try {
-        content.close();
-      } catch (IOException e) {
-        throw new RepoException(e);
+      if (uploadInfo == null) {
+        throw new RepoException(RepoException.Type.NoFileEntered);
       }
 
       if (uploadInfo.getSize() == 0) {
@@ -639,36 +1440,11 @@ public class RepoService extends BaseRepoService {
         throw new RepoException(e);
       }
 
-      repoObject = new RepoObject(inputRepoObject.getKey(), bucket.getBucketId(),
-          inputRepoObject.getBucketName(), Status.USED);
-      repoObject.setDownloadName(inputRepoObject.getDownloadName());
-      repoObject.setContentType(inputRepoObject.getContentType());
-      repoObject.setUserMetadata(inputRepoObject.getUserMetadata());
-      repoObject.setTag(inputRepoObject.getTag());
-      repoObject.setChecksum(uploadInfo.getChecksum());
-      repoObject.setTimestamp(timestamp);
-      repoObject.setSize(uploadInfo.getSize());
+      repoObject = createNewRepoObject(inputRepoObject, bucket, uploadInfo, timestamp, cretationDateTime);
       repoObject.setVersionNumber(versionNumber);
-      repoObject.setCreationDate(cretationDateTime);
-
-      repoObject.setUuid(UUID.randomUUID());
 
       // determine if the object should be added to the store or not
-      if (objectStore.objectExists(repoObject)) {
-//      if (FileUtils.contentEquals(tempFile, new File(objectStore.getObjectLocationString(bucketName, checksum)))) {
-//        log.info("not adding object to store since content exists");
-//      } else {
-//        log.info("checksum collision!!");
-//        status = HttpStatus.CONFLICT;
-//      }
-
-        // dont bother storing the file since the data already exists in the system
-      } else {
-        if (!objectStore.saveUploadedObject(new Bucket(inputRepoObject.getBucketName()),
-            uploadInfo, repoObject)) {
-          throw new RepoException("Error saving content to object store");
-        }
-      }
+      saveContent(uploadInfo, repoObject);
 
       // add a record to the DB
 
@@ -683,13 +1459,11 @@ public class RepoService extends BaseRepoService {
 
       sqlService.transactionCommit();
       rollback = false;
+
+      metadataCache.invalidateObjectLatest(repoObject.getBucketName(), repoObject.getKey());
     } catch (SQLException e) {
       throw new RepoException(e);
     } finally {
-      if (uploadInfo != null) {
-        objectStore.deleteTempUpload(uploadInfo);
-      }
-
       if (rollback) {
         sqlRollback("object " + inputRepoObject.getBucketName() + ", " + inputRepoObject.getKey());
         // TODO: handle objectStore rollback, or not?
@@ -701,12 +1475,34 @@ public class RepoService extends BaseRepoService {
     return repoObject;
   }
 
+  /**
+   * Create the {@link org.plos.repo.models.RepoObject} of a new object, with a random uuid and no version number.
+   */
+  private RepoObject createNewRepoObject(InputRepoObject inputRepoObject, Bucket bucket,
+                                         ObjectStore.UploadInfo uploadInfo, Timestamp timestamp,
+                                         Timestamp cretationDateTime) {
+    RepoObject repoObject = new RepoObject(inputRepoObject.getKey(), bucket.getBucketId(),
+        inputRepoObject.getBucketName(), Status.USED);
+    repoObject.setDownloadName(inputRepoObject.getDownloadName());
+    repoObject.setContentType(inputRepoObject.getContentType());
+    repoObject.setUserMetadata(inputRepoObject.getUserMetadata());
+    repoObject.setTag(inputRepoObject.getTag());
+    repoObject.setChecksum(uploadInfo.getChecksum());
+    repoObject.setTimestamp(timestamp);
+    repoObject.setSize(uploadInfo.getSize());
+    repoObject.setCreationDate(cretationDateTime);
+
+    repoObject.setUuid(UUID.randomUUID());
+
+    return repoObject;
+  }
+
   private RepoObject updateObject(
       InputRepoObject inputRepoObject,
+      ObjectStore.UploadInfo uploadInfo,
       Timestamp timestamp,
       RepoObject repoObject,
       Timestamp cretationDateTime) throws RepoException {
-    ObjectStore.UploadInfo uploadInfo = null;
     boolean rollback = false;
 
     RepoObject newRepoObject = null;
@@ -721,23 +1517,19 @@ public class RepoService extends BaseRepoService {
         throw new RepoException(RepoException.Type.BucketNotFound);
       }
 
-      InputStream uploadedInputStream = inputRepoObject.getUploadedInputStream();
+      if (uploadInfo == null) {
+        uploadInfo = getContentReference(inputRepoObject);
+      }
 
-      if (uploadedInputStream == null) {
+      if (uploadInfo == null) {
         // handle metadata-only update, the content would be the same as the last version of the object
         newRepoObject.setChecksum(repoObject.getChecksum());
         newRepoObject.setSize(repoObject.getSize());
       } else {
         // determine if the new object should be added to the store or not
-        uploadInfo = objectStore.uploadTempObject(uploadedInputStream);
-        uploadedInputStream.close();
         newRepoObject.setChecksum(uploadInfo.getChecksum());
         newRepoObject.setSize(uploadInfo.getSize());
-        if (!objectStore.objectExists(newRepoObject)) {
-          if (!objectStore.saveUploadedObject(new Bucket(inputRepoObject.getBucketName()), uploadInfo, newRepoObject)) {
-            throw new RepoException("Error saving content to object store");
-          }
-        }
+        saveContent(uploadInfo, newRepoObject);
       }
 
       newRepoObject.setUuid(UUID.randomUUID());
@@ -756,13 +1548,11 @@ public class RepoService extends BaseRepoService {
 
       sqlService.transactionCommit();
       rollback = false;
-    } catch (SQLException | IOException e) {
+
+      metadataCache.invalidateObjectLatest(newRepoObject.getBucketName(), newRepoObject.getKey());
+    } catch (SQLException e) {
       throw new RepoException(e);
     } finally {
-      if (uploadInfo != null) {
-        objectStore.deleteTempUpload(uploadInfo);
-      }
-
       if (rollback) {
         sqlRollback("object " + inputRepoObject.getBucketName() + ", " + repoObject.getKey());
         // TODO: handle objectStore rollback, or not?
@@ -828,4 +1618,39 @@ public class RepoService extends BaseRepoService {
     return log;
   }
 
+  /**
+   * Content already in the object store, entered by its checksum instead of being uploaded.
+   */
+  private static class ContentReference implements ObjectStore.UploadInfo {
+
+    private final String checksum;
+
+    private final Long size;
+
+    ContentReference(String checksum, Long size) {
+      this.checksum = checksum;
+      this.size = size;
+    }
+
+    @Override
+    public Long getSize() {
+      return size;
+    }
+
+    @Override
+    public String getTempLocation() {
+      return null;
+    }
+
+    @Override
+    public String getChecksum() {
+      return checksum;
+    }
+
+    @Override
+    public String getContentMd5() {
+      return null;
+    }
+  }
+
 }
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A channel writing its content to an S3 multipart upload. Every full part is sent on its own thread while the next
+ * one is written, and a failed part is sent again on its own instead of the whole object. At most
+ * <code>maxPartsInFlight</code> parts are held in memory; writes wait for one of them to be sent beyond that. The part
+ * buffers are taken from a {@link PartBuffers} shared by all the uploads, which bounds the memory they hold together.
+ */
+class S3MultipartUpload implements WritableByteChannel {
+
+  private static final Logger log = LoggerFactory.getLogger(S3MultipartUpload.class);
+
+  static final int RETRIES = 3;
+
+  static final long RETRY_DELAY_MILLIS = 500;
+
+  /**
+   * A bounded pool of part buffers, reused from one part to the next instead of being allocated for each of them.
+   */
+  static class PartBuffers {
+
+    private final int partSize;
+
+    private final Semaphore available;
+
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param partSize   the size of the buffers
+     * @param maxBuffers the most buffers handed out at once
+     */
+    PartBuffers(int partSize, int maxBuffers) {
+      this.partSize = partSize;
+      this.available = new Semaphore(maxBuffers);
+    }
+
+    int getPartSize() {
+      return partSize;
+    }
+
+    /**
+     * Take a buffer, waiting for one to be released if they are all in use.
+     */
+    byte[] acquire() throws InterruptedException {
+      available.acquire();
+
+      byte[] buffer = free.poll();
+      return buffer != null ? buffer : new byte[partSize];
+    }
+
+    void release(byte[] buffer) {
+      free.add(buffer);
+      available.release();
+    }
+  }
+
+  private final AmazonS3 s3Client;
+
+  private final String bucketName;
+
+  private final String key;
+
+  private final String uploadId;
+
+  private final ExecutorService partExecutor;
+
+  private final PartBuffers partBuffers;
+
+  private final int partSize;
+
+  private final Semaphore partsInFlight;
+
+  private final List<Future<PartETag>> parts = new ArrayList<>();
+
+  private byte[] part;
+
+  private int partLength = 0;
+
+  private boolean open = true;
+
+  // parts not sent yet are dropped once set
+  private volatile boolean aborted = false;
+
+  S3MultipartUpload(AmazonS3 s3Client, String bucketName, String key, ExecutorService partExecutor,
+                    PartBuffers partBuffers, int maxPartsInFlight) {
+    this.s3Client = s3Client;
+    this.bucketName = bucketName;
+    this.key = key;
+    this.partExecutor = partExecutor;
+    this.partBuffers = partBuffers;
+    this.partSize = partBuffers.getPartSize();
+    this.partsInFlight = new Semaphore(maxPartsInFlight);
+    this.uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucketName, key)).getUploadId();
+  }
+
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    if (!open) {
+      throw new ClosedChannelException();
+    }
+
+    int written = src.remaining();
+
+    while (src.hasRemaining()) {
+      if (part == null) {
+        acquirePart();
+      }
+
+      int length = Math.min(src.remaining(), partSize - partLength);
+      src.get(part, partLength, length);
+      partLength += length;
+
+      if (partLength == partSize) {
+        sendPart();
+      }
+    }
+
+    return written;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return open;
+  }
+
+  @Override
+  public void close() {
+    open = false;
+  }
+
+  /**
+   * Send the last part and wait for all of them, then assemble the object. The caller should {@link #abort} the upload
+   * if this fails.
+   *
+   * @throws IOException if a part could not be sent or the object could not be assembled
+   */
+  void complete() throws IOException {
+    close();
+
+    // S3 needs at least one part, even if it is empty
+    if (part != null || parts.isEmpty()) {
+      if (part == null) {
+        acquirePart();
+      }
+      sendPart();
+    }
+
+    List<PartETag> partETags = new ArrayList<>(parts.size());
+
+    try {
+      for (Future<PartETag> future : parts) {
+        partETags.add(future.get());
+      }
+
+      retry("complete upload " + key, new Callable<Object>() {
+        @Override
+        public Object call() {
+          return s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId,
+              partETags));
+        }
+      });
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while sending upload " + key);
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Stop sending parts and discard the ones already sent.
+   */
+  void abort() {
+    close();
+    aborted = true;
+
+    if (part != null) {
+      partBuffers.release(part);
+      part = null;
+    }
+
+    // the parts not sent yet release their buffers without being sent. The ones being sent are not interrupted, since
+    // their buffers may only be reused once S3 has read them.
+
+    try {
+      s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+    } catch (Exception e) {
+      log.error("Error aborting upload " + key, e);
+    }
+  }
+
+  private void acquirePart() throws IOException {
+    try {
+      part = partBuffers.acquire();
+      partLength = 0;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a buffer for upload " + key);
+    }
+  }
+
+  private void sendPart() throws IOException {
+    try {
+      partsInFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to send a part of upload " + key);
+    }
+
+    final byte[] content = part;
+    final int length = partLength;
+    final int partNumber = parts.size() + 1;
+    final String md5;
+
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      digest.update(content, 0, length);
+      md5 = Base64.getEncoder().encodeToString(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      partsInFlight.release();
+      throw new IOException(e);
+    }
+
+    part = null;
+    partLength = 0;
+
+    parts.add(partExecutor.submit(new Callable<PartETag>() {
+      @Override
+      public PartETag call() throws IOException {
+        try {
+          if (aborted) {
+            throw new InterruptedIOException("Upload " + key + " was aborted");
+          }
+
+          return retry("send part " + partNumber + " of upload " + key, new Callable<PartETag>() {
+            @Override
+            public PartETag call() {
+              UploadPartRequest request = new UploadPartRequest()
+                  .withBucketName(bucketName)
+                  .withKey(key)
+                  .withUploadId(uploadId)
+                  .withPartNumber(partNumber)
+                  .withPartSize(length)
+                  .withMD5Digest(md5)
+                  .withInputStream(new ByteArrayInputStream(content, 0, length));
+
+              return s3Client.uploadPart(request).getPartETag();
+            }
+          });
+        } finally {
+          partBuffers.release(content);
+          partsInFlight.release();
+        }
+      }
+    }));
+  }
+
+  /**
+   * Call <code>request</code> until it succeeds, at most {@link #RETRIES} times, waiting longer after each failure.
+   *
+   * @param description what the request does, for the log
+   * @throws IOException with the last failure as cause if no call succeeded
+   */
+  static <T> T retry(String description, Callable<T> request) throws IOException {
+    long delay = RETRY_DELAY_MILLIS;
+
+    for (int tryCount = 1; ; tryCount++) {
+      try {
+        return request.call();
+      } catch (Exception e) {
+        if (tryCount == RETRIES) {
+          throw new IOException("Could not " + description, e);
+        }
+
+        log.warn("Error trying to " + description + ", trying again", e);
+
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e2) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while trying to " + description);
+        }
+
+        delay *= 2;
+      }
+    }
+  }
+
+}
@@ -23,34 +23,43 @@
 package org.plos.repo.service;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
 import com.amazonaws.services.s3.model.CreateBucketRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.Region;
-import com.amazonaws.services.s3.model.S3Object;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.plos.repo.models.Bucket;
 import org.plos.repo.models.RepoObject;
-import org.plos.repo.util.ChecksumGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
-import java.security.DigestOutputStream;
-import java.security.MessageDigest;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class S3StoreService extends ObjectStore {
 
@@ -58,25 +67,82 @@ public class S3StoreService extends ObjectStore {
 
   private AmazonS3Client s3Client = null;
 
-  private static final String temp_upload_dir = "/tmp";
+  private static final String DEFAULT_TEMP_UPLOAD_DIR = "/tmp";
+
+  // S3 takes parts of 5 MiB at least, except for the last one
+  static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+  // parts of a single upload held in memory while they are sent
+  static final int MAX_PARTS_IN_FLIGHT = 4;
+
+  private static final int PART_THREADS = 16;
+
+  // part buffers held by all the uploads together: enough to keep every part thread busy while as many parts are filled
+  private static final int MAX_PART_BUFFERS = 2 * PART_THREADS;
+
+  // the largest object S3 copies in a single request
+  private static final long MAX_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+
+  private static final long COPY_PART_SIZE = 512L * 1024 * 1024;
+
+  private final String tempUploadDir;
+
+  private final String stagingBucket;
+
+  private final S3MultipartUpload.PartBuffers partBuffers;
+
+  private final ExecutorService partExecutor;
 
   // NOTE: our object versions does not make use of S3's versioning system
 
   public S3StoreService(String aws_access_key, String aws_secret_key) {
-    s3Client = new AmazonS3Client(new BasicAWSCredentials(aws_access_key, aws_secret_key));
+    this(aws_access_key, aws_secret_key, null);
+  }
+
+  /**
+   * @param stagingDirectory the directory uploads are written to before they are sent to S3, /tmp if null
+   */
+  public S3StoreService(String aws_access_key, String aws_secret_key, String stagingDirectory) {
+    this(aws_access_key, aws_secret_key, stagingDirectory, null);
+  }
+
+  /**
+   * @param stagingDirectory the directory uploads are written to before they are sent to S3, /tmp if null
+   * @param stagingBucket    the S3 bucket uploads are streamed to before they are copied to their bucket, or null to
+   *                         write them to the staging directory instead
+   */
+  public S3StoreService(String aws_access_key, String aws_secret_key, String stagingDirectory, String stagingBucket) {
+    this(new AmazonS3Client(new BasicAWSCredentials(aws_access_key, aws_secret_key)), stagingDirectory, stagingBucket,
+        DEFAULT_PART_SIZE);
+  }
+
+  S3StoreService(AmazonS3Client s3Client, String stagingDirectory, String stagingBucket, int partSize) {
+    this.s3Client = s3Client;
+    this.tempUploadDir = stagingDirectory != null ? stagingDirectory : DEFAULT_TEMP_UPLOAD_DIR;
+    this.stagingBucket = stagingBucket;
+    this.partBuffers = new S3MultipartUpload.PartBuffers(partSize, MAX_PART_BUFFERS);
+    this.partExecutor = Executors.newFixedThreadPool(PART_THREADS,
+        new ThreadFactoryBuilder().setNameFormat("s3-part-%d").setDaemon(true).build());
+  }
+
+  /**
+   * @return true if uploads are streamed to the staging bucket; false if they are written to the staging directory
+   */
+  private boolean streamsUploads() {
+    return stagingBucket != null;
   }
 
   @Override
   public boolean objectExists(RepoObject repoObject) {
     try {
-      S3Object obj = s3Client.getObject(repoObject.getBucketName(), repoObject.getChecksum());
-
-      if (obj == null) {
-        return false;
-      }
-
-      obj.close();
+      // a HEAD request, rather than opening the content
+      s3Client.getObjectMetadata(repoObject.getBucketName(), repoObject.getChecksum());
       return true;
+    } catch (AmazonServiceException e) {
+      if (e.getStatusCode() != 404) {
+        log.error("Error checking object " + repoObject.getChecksum(), e);
+      }
+      return false;
     } catch (Exception e) {
       return false;
     }
@@ -87,6 +153,12 @@ public class S3StoreService extends ObjectStore {
     return true;
   }
 
+  @Override
+  public boolean sharesContentAcrossBuckets() {
+    // every repo bucket is its own S3 bucket, so the content is kept once per bucket
+    return false;
+  }
+
   @Override
   public String[] getFilePaths(RepoObject repoObject) throws RepoException {
     String s3Url = s3Client.getResourceUrl(repoObject.getBucketName(), repoObject.getChecksum());
@@ -100,6 +172,12 @@ public class S3StoreService extends ObjectStore {
 
   @Override
   public InputStream getInputStream(RepoObject repoObject) throws RepoException {
+    InputStream parallel = getParallelInputStream(repoObject);
+
+    if (parallel != null) {
+      return parallel;
+    }
+
     try {
       return s3Client.getObject(repoObject.getBucketName(), repoObject.getChecksum()).getObjectContent();
     } catch (AmazonClientException e) {
@@ -107,6 +185,18 @@ public class S3StoreService extends ObjectStore {
     }
   }
 
+  @Override
+  public InputStream getInputStream(RepoObject repoObject, long offset, long length) throws RepoException {
+    try {
+      GetObjectRequest request = new GetObjectRequest(repoObject.getBucketName(), repoObject.getChecksum())
+          .withRange(offset, offset + length - 1);
+
+      return s3Client.getObject(request).getObjectContent();
+    } catch (AmazonClientException e) {
+      throw new RepoException(e);
+    }
+  }
+
   @Override
   public Optional<Boolean> bucketExists(Bucket bucket) {
     return Optional.of(s3Client.doesBucketExist(bucket.getBucketName()));
@@ -149,47 +239,41 @@ public class S3StoreService extends ObjectStore {
    */
   @Override
   public UploadInfo uploadTempObject(InputStream uploadedInputStream) throws RepoException {
-    final String tempFileLocation = temp_upload_dir + "/" + UUID.randomUUID().toString() + ".tmp";
-
-    try {
-      FileOutputStream fos = new FileOutputStream(tempFileLocation);
-
-      ReadableByteChannel in = Channels.newChannel(uploadedInputStream);
-      MessageDigest digest = ChecksumGenerator.getDigestMessage();
-      WritableByteChannel out = Channels.newChannel(new DigestOutputStream(fos, digest));
-      ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+    if (streamsUploads()) {
+      return streamTempObject(uploadedInputStream);
+    }
 
-      long size = 0;
+    final String tempFileLocation = tempUploadDir + "/" + UUID.randomUUID().toString() + ".tmp";
 
-      while (in.read(buffer) != -1) {
-        buffer.flip();
-        size += out.write(buffer);
-        buffer.clear();
-      }
-
-      final String checksum = ChecksumGenerator.checksumToString(digest.digest());
-      final long finalSize = size;
+    try (FileChannel out = FileChannel.open(Paths.get(tempFileLocation), StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE)) {
+      return stageUpload(uploadedInputStream, out, tempFileLocation);
+    } catch (Exception e) {
+      // a failed or rejected upload leaves nothing behind in the staging directory
+      new File(tempFileLocation).delete();
+      throw new RepoException(e);
+    }
+  }
 
-      out.close();
-      in.close();
+  /**
+   * Send the upload to the staging bucket as it is read, in parts sent concurrently, without a local copy.
+   */
+  private UploadInfo streamTempObject(InputStream uploadedInputStream) throws RepoException {
+    String tempKey = UUID.randomUUID().toString() + ".tmp";
+    S3MultipartUpload upload = null;
 
-      return new UploadInfo() {
-        @Override
-        public Long getSize() {
-          return finalSize;
-        }
+    try {
+      upload = new S3MultipartUpload(s3Client, stagingBucket, tempKey, partExecutor, partBuffers,
+          MAX_PARTS_IN_FLIGHT);
 
-        @Override
-        public String getTempLocation() {
-          return tempFileLocation;
-        }
+      UploadInfo uploadInfo = stageUpload(uploadedInputStream, upload, tempKey);
+      upload.complete();
 
-        @Override
-        public String getChecksum() {
-          return checksum;
-        }
-      };
+      return uploadInfo;
     } catch (Exception e) {
+      if (upload != null) {
+        upload.abort();
+      }
       throw new RepoException(e);
     }
   }
@@ -221,6 +305,15 @@ public class S3StoreService extends ObjectStore {
     objectMetadata.setContentLength(uploadInfo.getSize());
     objectMetadata.setUserMetadata(propsStr);
 
+    if (streamsUploads()) {
+      return copyUploadedObject(bucket, uploadInfo, objectMetadata);
+    }
+
+    // lets S3 reject content corrupted on the way, the MD5 having been computed while the upload was staged
+    if (uploadInfo.getContentMd5() != null) {
+      objectMetadata.setContentMD5(uploadInfo.getContentMd5());
+    }
+
     File tempFile = new File(uploadInfo.getTempLocation());
 
     PutObjectRequest putObjectRequest = new PutObjectRequest(bucket.getBucketName(), uploadInfo.getChecksum(), tempFile);
@@ -247,8 +340,95 @@ public class S3StoreService extends ObjectStore {
     return false;
   }
 
+  /**
+   * Copy a streamed upload from the staging bucket to its bucket on the S3 side, then delete it from the staging
+   * bucket.
+   */
+  private boolean copyUploadedObject(final Bucket bucket, final UploadInfo uploadInfo,
+                                     final ObjectMetadata objectMetadata) {
+    try {
+      if (uploadInfo.getSize() <= MAX_COPY_SIZE) {
+        S3MultipartUpload.retry("copy upload " + uploadInfo.getTempLocation(), new Callable<Object>() {
+          @Override
+          public Object call() {
+            return s3Client.copyObject(new CopyObjectRequest(stagingBucket, uploadInfo.getTempLocation(),
+                bucket.getBucketName(), uploadInfo.getChecksum())
+                .withNewObjectMetadata(objectMetadata)
+                .withCannedAccessControlList(CannedAccessControlList.PublicRead));
+          }
+        });
+      } else {
+        copyUploadedObjectInParts(bucket, uploadInfo, objectMetadata);
+      }
+    } catch (Exception e) {
+      log.error("Error copying upload " + uploadInfo.getTempLocation(), e);
+      return false;
+    }
+
+    deleteTempUpload(uploadInfo);
+    return true;
+  }
+
+  /**
+   * Copy an upload too large for a single copy request, in ranges copied by S3 into the parts of a new object.
+   */
+  private void copyUploadedObjectInParts(Bucket bucket, final UploadInfo uploadInfo, ObjectMetadata objectMetadata)
+      throws IOException {
+    final String bucketName = bucket.getBucketName();
+    final String key = uploadInfo.getChecksum();
+
+    InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(bucketName, key, objectMetadata)
+        .withCannedACL(CannedAccessControlList.PublicRead);
+    final String uploadId = s3Client.initiateMultipartUpload(initiateRequest).getUploadId();
+
+    try {
+      final List<PartETag> partETags = new ArrayList<>();
+
+      for (long offset = 0; offset < uploadInfo.getSize(); offset += COPY_PART_SIZE) {
+        final CopyPartRequest request = new CopyPartRequest()
+            .withSourceBucketName(stagingBucket)
+            .withSourceKey(uploadInfo.getTempLocation())
+            .withDestinationBucketName(bucketName)
+            .withDestinationKey(key)
+            .withUploadId(uploadId)
+            .withPartNumber(partETags.size() + 1)
+            .withFirstByte(offset)
+            .withLastByte(Math.min(offset + COPY_PART_SIZE, uploadInfo.getSize()) - 1);
+
+        partETags.add(S3MultipartUpload.retry("copy part " + request.getPartNumber() + " of upload "
+            + uploadInfo.getTempLocation(), new Callable<PartETag>() {
+          @Override
+          public PartETag call() {
+            return s3Client.copyPart(request).getPartETag();
+          }
+        }));
+      }
+
+      S3MultipartUpload.retry("complete copy of upload " + uploadInfo.getTempLocation(), new Callable<Object>() {
+        @Override
+        public Object call() {
+          return s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId,
+              partETags));
+        }
+      });
+    } catch (IOException | RuntimeException e) {
+      s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+      throw e;
+    }
+  }
+
   @Override
   public boolean deleteTempUpload(UploadInfo uploadInfo) {
+    if (streamsUploads()) {
+      try {
+        s3Client.deleteObject(stagingBucket, uploadInfo.getTempLocation());
+        return true;
+      } catch (Exception e) {
+        log.error("Error deleting upload " + uploadInfo.getTempLocation(), e);
+        return false;
+      }
+    }
+
     return new File(uploadInfo.getTempLocation()).delete();
   }
 
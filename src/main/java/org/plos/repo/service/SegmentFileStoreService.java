@@ -0,0 +1,546 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.plos.repo.models.Bucket;
+import org.plos.repo.models.RepoObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A file system store that packs small content into large append-only segment files instead of giving each content a
+ * file of its own, which spares inodes and makes backups and cold reads of small objects cheaper. Larger content is
+ * stored in files as by {@link FileSystemStoreService}.
+ * <p/>
+ * Each segment has an index file next to it, to which a record is appended whenever a content is added to the segment
+ * or removed from it; the index of all the segments is rebuilt from them on startup. Removed content is left in its
+ * segment until the segment is compacted: once the share of removed bytes in a segment reaches the compaction
+ * threshold, the content still in it is copied to the segment being written and the segment is deleted.
+ * <p/>
+ * Packed content can not be served as static files, so this store does not reproxy.
+ * <p/>
+ * With a {@link GroupSync}, the segment and index content is appended to are synced before a save returns, so the
+ * saves that arrive together share the syncs of the segment they were appended to.
+ */
+public class SegmentFileStoreService extends FileSystemStoreService {
+
+  private static final Logger log = LoggerFactory.getLogger(SegmentFileStoreService.class);
+
+  private static final String SEGMENTS_DIRECTORY = "_segments";
+
+  private static final String SEGMENT_SUFFIX = ".dat";
+
+  private static final String INDEX_SUFFIX = ".idx";
+
+  private static final byte PUT_RECORD = 1;
+
+  private static final byte DELETE_RECORD = 0;
+
+  public static final long DEFAULT_MAXIMUM_PACKED_SIZE = 64 * 1024;
+
+  public static final long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024;
+
+  public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+  /**
+   * Where a content is in the segments.
+   */
+  private static class Entry {
+
+    private final int segment;
+
+    private final long offset;
+
+    private final long length;
+
+    Entry(int segment, long offset, long length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * The bytes of a segment file, and how many of them belong to content that was not removed.
+   */
+  private static class Segment {
+
+    private final int id;
+
+    private long size;
+
+    private long liveBytes;
+
+    private boolean compactionScheduled;
+
+    Segment(int id) {
+      this.id = id;
+    }
+
+    double getDeadRatio() {
+      return size == 0 ? 0 : 1 - (double) liveBytes / size;
+    }
+  }
+
+  private final String segmentsDirectory;
+
+  private final long maxPackedSize;
+
+  private final long segmentSize;
+
+  private final double compactionThreshold;
+
+  private final Map<String, Entry> index = new ConcurrentHashMap<>();
+
+  // guarded by this
+  private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+
+  // the segment content is appended to, guarded by this
+  private Segment activeSegment;
+
+  private FileChannel activeChannel;
+
+  private FileOutputStream activeIndex;
+
+  private final ExecutorService compactionExecutor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("segment-compaction-%d").setDaemon(true).build());
+
+  private final AtomicInteger pendingCompactions = new AtomicInteger();
+
+  /**
+   * @param dataDirectories     the directories content is spread over, see {@link FileSystemStoreService}. The segments
+   *                            are kept in the first one.
+   * @param stagingDirectory    the directory uploads are written to before they are saved, or null
+   * @param fanOutLevels        the levels of subdirectories the content that is not packed is filed under
+   * @param relayoutRate        the files per second a rebalance may move
+   * @param maxPackedSize       the size up to which content is packed into segments
+   * @param segmentSize         the size past which a new segment is started
+   * @param compactionThreshold the share of removed bytes from which a segment is compacted
+   * @throws IOException if the segments could not be read
+   */
+  public SegmentFileStoreService(List<String> dataDirectories, String stagingDirectory, int fanOutLevels,
+                                 double relayoutRate, long maxPackedSize, long segmentSize, double compactionThreshold)
+      throws IOException {
+    super(dataDirectories, null, stagingDirectory, fanOutLevels, relayoutRate);
+
+    this.segmentsDirectory = dataDirectories.get(0) + "/" + SEGMENTS_DIRECTORY;
+    this.maxPackedSize = maxPackedSize;
+    this.segmentSize = segmentSize;
+    this.compactionThreshold = compactionThreshold;
+
+    new File(segmentsDirectory).mkdirs();
+    load();
+  }
+
+  private File getSegmentFile(int id, String suffix) {
+    return new File(segmentsDirectory, String.format("segment-%08d%s", id, suffix));
+  }
+
+  /**
+   * Rebuild the index from the index files of the segments, oldest first, so that content copied to a newer segment by
+   * a compaction that did not complete is read from there.
+   */
+  private synchronized void load() throws IOException {
+    File[] files = new File(segmentsDirectory).listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.startsWith("segment-") && name.endsWith(SEGMENT_SUFFIX)) {
+          int id = Integer.parseInt(name.substring("segment-".length(), name.length() - SEGMENT_SUFFIX.length()));
+          Segment segment = new Segment(id);
+          segment.size = file.length();
+          segments.put(id, segment);
+        }
+      }
+    }
+
+    for (Segment segment : segments.values()) {
+      File indexFile = getSegmentFile(segment.id, INDEX_SUFFIX);
+      if (!indexFile.exists()) {
+        continue;
+      }
+
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+        while (true) {
+          byte type = in.readByte();
+          String checksum = in.readUTF();
+          long offset = in.readLong();
+          long length = in.readLong();
+
+          Entry current = index.get(checksum);
+
+          if (type == PUT_RECORD) {
+            if (current != null) {
+              segments.get(current.segment).liveBytes -= current.length;
+            }
+            index.put(checksum, new Entry(segment.id, offset, length));
+            segment.liveBytes += length;
+          } else if (current != null && current.segment == segment.id) {
+            index.remove(checksum);
+            segment.liveBytes -= current.length;
+          }
+        }
+      } catch (EOFException e) {
+        // end of the index, or a record that was being written when the service stopped
+      }
+    }
+
+    int nextId = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+    startSegment(nextId);
+
+    for (Segment segment : new ArrayList<>(segments.values())) {
+      scheduleCompaction(segment);
+    }
+  }
+
+  // guarded by this
+  private void startSegment(int id) throws IOException {
+    Segment previous = activeSegment;
+
+    if (activeChannel != null) {
+      activeChannel.close();
+      activeIndex.close();
+    }
+
+    activeSegment = new Segment(id);
+    segments.put(id, activeSegment);
+    activeChannel = FileChannel.open(getSegmentFile(id, SEGMENT_SUFFIX).toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE);
+    activeIndex = new FileOutputStream(getSegmentFile(id, INDEX_SUFFIX), true);
+
+    // content may have been removed from the segment while it was being written
+    if (previous != null) {
+      scheduleCompaction(previous);
+    }
+  }
+
+  private void writeRecord(FileOutputStream out, byte type, String checksum, Entry entry) throws IOException {
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(record);
+    data.writeByte(type);
+    data.writeUTF(checksum);
+    data.writeLong(entry.offset);
+    data.writeLong(entry.length);
+
+    // a single write, so that a record is only ever cut short at the end of the file
+    out.write(record.toByteArray());
+  }
+
+  /**
+   * Append content to the active segment and record where it is.
+   */
+  private synchronized Entry append(String checksum, byte[] content) throws IOException {
+    if (activeSegment.size > 0 && activeSegment.size + content.length > segmentSize) {
+      startSegment(activeSegment.id + 1);
+    }
+
+    Entry entry = new Entry(activeSegment.id, activeSegment.size, content.length);
+
+    ByteBuffer buffer = ByteBuffer.wrap(content);
+    while (buffer.hasRemaining()) {
+      activeChannel.write(buffer, entry.offset + buffer.position());
+    }
+    activeSegment.size += content.length;
+
+    writeRecord(activeIndex, PUT_RECORD, checksum, entry);
+
+    Entry previous = index.put(checksum, entry);
+    if (previous != null) {
+      removed(previous);
+    }
+    activeSegment.liveBytes += content.length;
+
+    return entry;
+  }
+
+  /**
+   * Sync a segment, its index, and the directory holding them, if the store makes saved content durable.
+   */
+  private void syncSegment(int id) throws IOException {
+    sync(getSegmentFile(id, SEGMENT_SUFFIX).toPath(), getSegmentFile(id, INDEX_SUFFIX).toPath(),
+        new File(segmentsDirectory).toPath());
+  }
+
+  private byte[] read(Entry entry) throws IOException {
+    byte[] content = new byte[(int) entry.length];
+
+    try (FileChannel channel = FileChannel.open(getSegmentFile(entry.segment, SEGMENT_SUFFIX).toPath(),
+        StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.wrap(content);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, entry.offset + buffer.position()) < 0) {
+          throw new EOFException("Segment " + entry.segment + " is shorter than its index");
+        }
+      }
+    }
+
+    return content;
+  }
+
+  // guarded by this
+  private void removed(Entry entry) {
+    Segment segment = segments.get(entry.segment);
+    if (segment != null) {
+      segment.liveBytes -= entry.length;
+      scheduleCompaction(segment);
+    }
+  }
+
+  // guarded by this
+  private void scheduleCompaction(final Segment segment) {
+    if (segment == activeSegment || segment.compactionScheduled || segment.getDeadRatio() < compactionThreshold) {
+      return;
+    }
+
+    segment.compactionScheduled = true;
+    pendingCompactions.incrementAndGet();
+
+    compactionExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          compact(segment.id);
+        } catch (IOException e) {
+          log.error("Error compacting segment " + segment.id, e);
+        } finally {
+          pendingCompactions.decrementAndGet();
+        }
+      }
+    });
+  }
+
+  /**
+   * Wait until the scheduled compactions, and those they schedule in turn, are done.
+   */
+  void awaitCompactions() throws InterruptedException, ExecutionException {
+    while (pendingCompactions.get() > 0) {
+      // the executor runs one task at a time, so this returns once the compactions queued before it are done
+      compactionExecutor.submit(new Runnable() {
+        @Override
+        public void run() {
+        }
+      }).get();
+    }
+  }
+
+  /**
+   * Copy the content still in a segment to the active segment, then delete it.
+   */
+  void compact(int id) throws IOException {
+    synchronized (this) {
+      Segment segment = segments.get(id);
+      if (segment == null || segment == activeSegment || segment.getDeadRatio() < compactionThreshold) {
+        return;
+      }
+    }
+
+    Set<Integer> copiedTo = new TreeSet<>();
+
+    for (Map.Entry<String, Entry> mapping : index.entrySet()) {
+      Entry entry = mapping.getValue();
+      if (entry.segment != id) {
+        continue;
+      }
+
+      byte[] content = read(entry);
+
+      synchronized (this) {
+        // skip the content removed while it was being read
+        if (index.get(mapping.getKey()) == entry) {
+          copiedTo.add(append(mapping.getKey(), content).segment);
+        }
+      }
+    }
+
+    // the copies must be on the disk before the only other copy is deleted
+    for (int segment : copiedTo) {
+      syncSegment(segment);
+    }
+
+    synchronized (this) {
+      segments.remove(id);
+      getSegmentFile(id, INDEX_SUFFIX).delete();
+      getSegmentFile(id, SEGMENT_SUFFIX).delete();
+    }
+  }
+
+  /**
+   * @return the number of segment files
+   */
+  synchronized int getSegmentCount() {
+    return segments.size();
+  }
+
+  @Override
+  public boolean hasXReproxy() {
+    return false;
+  }
+
+  @Override
+  public boolean objectExists(RepoObject repoObject) {
+    return index.containsKey(repoObject.getChecksum()) || super.objectExists(repoObject);
+  }
+
+  @Override
+  public InputStream getInputStream(RepoObject repoObject) {
+    if (!index.containsKey(repoObject.getChecksum())) {
+      return super.getInputStream(repoObject);
+    }
+
+    try {
+      return getInputStream(repoObject, 0, Long.MAX_VALUE);
+    } catch (RepoException e) {
+      log.error("Error reading the segment of " + repoObject.getChecksum(), e);
+      return null;
+    }
+  }
+
+  @Override
+  public InputStream getInputStream(RepoObject repoObject, long offset, long length) throws RepoException {
+    // a compaction may move the content between the lookup and the read
+    for (int attempt = 0; attempt < 2; attempt++) {
+      Entry entry = index.get(repoObject.getChecksum());
+      if (entry == null) {
+        return super.getInputStream(repoObject, offset, length);
+      }
+
+      FileChannel channel = null;
+      try {
+        channel = FileChannel.open(getSegmentFile(entry.segment, SEGMENT_SUFFIX).toPath(), StandardOpenOption.READ);
+        channel.position(entry.offset + Math.min(offset, entry.length));
+
+        return new BoundedInputStream(Channels.newInputStream(channel), Math.min(length, entry.length - offset));
+      } catch (NoSuchFileException e) {
+        log.debug("Segment {} was compacted while opening {}", entry.segment, repoObject.getChecksum());
+      } catch (IOException e) {
+        if (channel != null) {
+          try {
+            channel.close();
+          } catch (IOException e2) {
+            log.error("Error closing file channel", e2);
+          }
+        }
+        throw new RepoException(e);
+      }
+    }
+
+    throw new RepoException(RepoException.Type.ServerError);
+  }
+
+  @Override
+  public File getLocalFile(RepoObject repoObject) {
+    if (index.containsKey(repoObject.getChecksum())) {
+      return null;
+    }
+    return super.getLocalFile(repoObject);
+  }
+
+  @Override
+  public boolean saveUploadedObject(Bucket bucket, UploadInfo uploadInfo, RepoObject repoObject) {
+    if (uploadInfo.getSize() > maxPackedSize) {
+      return super.saveUploadedObject(bucket, uploadInfo, repoObject);
+    }
+
+    File tempFile = new File(uploadInfo.getTempLocation());
+
+    try {
+      Entry entry = index.get(uploadInfo.getChecksum());
+
+      if (entry == null) {
+        byte[] content = new byte[uploadInfo.getSize().intValue()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(tempFile))) {
+          in.readFully(content);
+        }
+        entry = append(uploadInfo.getChecksum(), content);
+
+        // outside of the lock, so that the saves appended meanwhile share the sync
+        syncSegment(entry.segment);
+      }
+
+      tempFile.delete();
+      return true;
+    } catch (IOException e) {
+      log.error("Error packing upload " + tempFile, e);
+      return false;
+    }
+  }
+
+  @Override
+  public boolean deleteObject(RepoObject repoObject) {
+    boolean result = false;
+
+    synchronized (this) {
+      Entry entry = index.remove(repoObject.getChecksum());
+
+      if (entry != null) {
+        try {
+          if (entry.segment == activeSegment.id) {
+            writeRecord(activeIndex, DELETE_RECORD, repoObject.getChecksum(), entry);
+          } else {
+            try (FileOutputStream out = new FileOutputStream(getSegmentFile(entry.segment, INDEX_SUFFIX), true)) {
+              writeRecord(out, DELETE_RECORD, repoObject.getChecksum(), entry);
+            }
+          }
+          removed(entry);
+          result = true;
+        } catch (IOException e) {
+          log.error("Error removing " + repoObject.getChecksum() + " from segment " + entry.segment, e);
+          index.put(repoObject.getChecksum(), entry);
+          return false;
+        }
+      }
+    }
+
+    return super.deleteObject(repoObject) || result;
+  }
+
+}
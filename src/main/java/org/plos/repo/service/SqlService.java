@@ -22,18 +22,24 @@
 
 package org.plos.repo.service;
 
+import com.google.common.base.Joiner;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.BloomFilter;
 import org.plos.repo.models.Audit;
 import org.plos.repo.models.Bucket;
 import org.plos.repo.models.Operation;
 import org.plos.repo.models.RepoCollection;
 import org.plos.repo.models.RepoObject;
 import org.plos.repo.models.Status;
+import org.plos.repo.models.input.ElementFilter;
+import org.plos.repo.util.PageToken;
 import org.plos.repo.util.UUIDFormatter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Required;
 
 import javax.sql.DataSource;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -41,8 +47,16 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public abstract class SqlService {
 
@@ -52,6 +66,36 @@ public abstract class SqlService {
 
   private static final ThreadLocal<Connection> connectionLocal = new ThreadLocal<>();
 
+  // buckets already checked against the database by the transaction of the thread
+  private static final ThreadLocal<Map<String, Bucket>> transactionBucketsLocal = new ThreadLocal<>();
+
+  private final BucketRegistry bucketRegistry = new BucketRegistry();
+
+  private final Lock bucketRefreshLock = new ReentrantLock();
+
+  private static final int STREAMING_FETCH_SIZE = 500;
+
+  private static final Joiner IN_LIST_JOINER = Joiner.on(',');
+
+  // maximum number of values bound to a single IN list
+  private static final int IN_LIST_CHUNK_SIZE = 500;
+
+  private static final String INSERT_OBJECT_QUERY = "INSERT INTO objects (objKey, checksum, timestamp, bucketId, " +
+      "contentType, downloadName, size, tag, versionNumber, status, creationDate, userMetadata, uuid) " +
+      "VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?)";
+
+  private static final String INSERT_AUDIT_QUERY = "INSERT INTO audit (bucketName, keyValue, operation, uuid) " +
+      "VALUES (?,?,?,?)";
+
+  /**
+   * Receives the rows of a streamed query one at a time.
+   */
+  public interface RowHandler<T> {
+
+    void handle(T row) throws IOException;
+
+  }
+
   private static final String OBJECT_KEY_COLUMN = "OBJKEY";
   private static final String COLLECTION_KEY_COLUMN = "COLLKEY";
   private static final String BUCKET_ID_COLUMN = "BUCKETID";
@@ -90,9 +134,19 @@ public abstract class SqlService {
 
   public abstract void postDbInit() throws SQLException;
 
+  /**
+   * @return the upsert that adds references to a row of the blobs table, creating it if needed. Its parameters are
+   * the checksum, the size and the number of references to add.
+   */
+  protected abstract String getAddBlobReferencesQuery();
+
   private static RepoObject mapObjectRow(ResultSet rs) throws SQLException, RepoException {
+    return mapObjectRow(rs, rs.getString(BUCKET_NAME_COLUMN));
+  }
+
+  private static RepoObject mapObjectRow(ResultSet rs, String bucketName) throws SQLException, RepoException {
     RepoObject repoObject = new RepoObject(rs.getString(OBJECT_KEY_COLUMN), rs.getInt(BUCKET_ID_COLUMN),
-        rs.getString(BUCKET_NAME_COLUMN), Status.STATUS_VALUES.get(rs.getInt(STATUS_COLUMN)));
+        bucketName, Status.STATUS_VALUES.get(rs.getInt(STATUS_COLUMN)));
     repoObject.setId(rs.getInt(ID_COLUMN));
     repoObject.setChecksum(rs.getString(CHECKSUM_COLUMN));
     repoObject.setTimestamp(rs.getTimestamp(TIMESTAMP_COLUMN));
@@ -109,8 +163,12 @@ public abstract class SqlService {
   }
 
   private static RepoCollection mapCollectionRow(ResultSet rs) throws SQLException, RepoException {
+    return mapCollectionRow(rs, rs.getString(BUCKET_NAME_COLUMN));
+  }
+
+  private static RepoCollection mapCollectionRow(ResultSet rs, String bucketName) throws SQLException, RepoException {
     RepoCollection collection = new RepoCollection(rs.getString(COLLECTION_KEY_COLUMN), rs.getInt(BUCKET_ID_COLUMN),
-        rs.getString(BUCKET_NAME_COLUMN), Status.STATUS_VALUES.get(rs.getInt(STATUS_COLUMN)));
+        bucketName, Status.STATUS_VALUES.get(rs.getInt(STATUS_COLUMN)));
     collection.setId(rs.getInt(ID_COLUMN));
     collection.setTimestamp(rs.getTimestamp(TIMESTAMP_COLUMN));
     collection.setVersionNumber(rs.getInt(VERSION_NUMBER_COLUMN));
@@ -147,6 +205,7 @@ public abstract class SqlService {
     Connection dbConnection = dataSource.getConnection();
     dbConnection.setAutoCommit(false);
     connectionLocal.set(dbConnection);
+    transactionBucketsLocal.set(new HashMap<String, Bucket>());
   }
 
   /**
@@ -167,34 +226,127 @@ public abstract class SqlService {
     if (dbConnection != null) {
       dbConnection.close();
       connectionLocal.remove();
+      transactionBucketsLocal.remove();
     }
   }
 
   public void transactionCommit() throws SQLException {
     Connection dbConnection = connectionLocal.get();
     dbConnection.commit();
+    clearTransactionBuckets();
   }
 
   public void transactionRollback() throws SQLException {
     Connection dbConnection = connectionLocal.get();
     dbConnection.rollback();
+    clearTransactionBuckets();
   }
 
   public Bucket getBucket(String bucketName) throws SQLException {
-    try (PreparedStatement p = connectionLocal.get().prepareStatement("SELECT * FROM buckets WHERE bucketName=?")) {
+    return resolveBucket(bucketName);
+  }
+
+  private static void clearTransactionBuckets() {
+    Map<String, Bucket> transactionBuckets = transactionBucketsLocal.get();
+
+    if (transactionBuckets != null) {
+      transactionBuckets.clear();
+    }
+  }
+
+  /**
+   * Drop the in-memory bucket registry so the next lookup reloads it. Call it once a bucket creation or deletion is
+   * committed.
+   */
+  public void invalidateBuckets() {
+    bucketRegistry.invalidate();
+  }
+
+  /**
+   * Reload the in-memory bucket registry from the database, on the connection of the calling thread. Only one thread
+   * reloads at a time; the others keep using the previous snapshot meanwhile.
+   */
+  private void refreshBuckets(Connection connection) throws SQLException {
+    if (!bucketRefreshLock.tryLock()) {
+      return;
+    }
+
+    try {
+      long generation = bucketRegistry.generation();
+      List<Bucket> buckets = new ArrayList<>();
+
+      try (PreparedStatement p = connection.prepareStatement("SELECT * FROM buckets");
+           ResultSet result = p.executeQuery()) {
+        while (result.next()) {
+          buckets.add(mapBucketRow(result));
+        }
+      }
+
+      bucketRegistry.load(buckets, generation);
+    } finally {
+      bucketRefreshLock.unlock();
+    }
+  }
+
+  /**
+   * Look the bucket up in the registry, falling back to the database for buckets that are not registered yet, i.e.
+   * created by the current transaction or by another instance since the last refresh. A transaction checks each
+   * bucket against the database the first time it uses it, so that no row is written against a bucket that was
+   * deleted, or deleted and created again, since the registry was loaded; a registry that turns out to be out of date
+   * is dropped.
+   */
+  private Bucket resolveBucket(String bucketName) throws SQLException {
+    Connection connection = connectionLocal.get();
+    boolean inTransaction = !connection.getAutoCommit();
+    Map<String, Bucket> transactionBuckets = inTransaction ? transactionBucketsLocal.get() : null;
+
+    if (transactionBuckets != null) {
+      Bucket checked = transactionBuckets.get(bucketName);
+
+      if (checked != null) {
+        return checked;
+      }
+    }
+
+    // a transaction may see its own uncommitted bucket changes, or an older snapshot of the table, so only
+    // connections in autocommit mode reload the registry
+    if (!inTransaction && bucketRegistry.isStale()) {
+      refreshBuckets(connection);
+    }
+
+    Bucket bucket = bucketRegistry.getBucket(bucketName);
+
+    if (bucket != null && !inTransaction) {
+      return bucket;
+    }
+
+    Bucket stored;
+    try (PreparedStatement p = connection.prepareStatement("SELECT * FROM buckets WHERE bucketName=?")) {
       p.setString(1, bucketName);
 
       try (ResultSet result = p.executeQuery()) {
-        if (result.next()) {
-          return mapBucketRow(result);
-        } else {
-          return null;
-        }
+        stored = result.next() ? mapBucketRow(result) : null;
       }
     }
+
+    if (bucket != null && (stored == null || !stored.getBucketId().equals(bucket.getBucketId()))) {
+      bucketRegistry.invalidate();
+    }
+
+    if (stored != null && transactionBuckets != null) {
+      transactionBuckets.put(bucketName, stored);
+    }
+
+    return stored;
   }
 
   public int deleteBucket(String bucketName) throws SQLException {
+    Map<String, Bucket> transactionBuckets = transactionBucketsLocal.get();
+
+    if (transactionBuckets != null) {
+      transactionBuckets.remove(bucketName);
+    }
+
     try (PreparedStatement p = connectionLocal.get().prepareStatement("DELETE FROM buckets WHERE bucketName=?")) {
       p.setString(1, bucketName);
 
@@ -217,48 +369,93 @@ public abstract class SqlService {
       return 0;
     }
 
-    StringBuilder query = new StringBuilder();
-    query.append("UPDATE objects SET status=? WHERE objKey=? AND bucketId=?");
+    StringBuilder filter = new StringBuilder(" WHERE objKey=? AND bucketId=?");
 
     if (version != null) {
-      query.append(" AND versionNumber=?");
+      filter.append(" AND versionNumber=?");
     }
     if (uuid != null) {
-      query.append(" AND uuid = ?");
+      filter.append(" AND uuid = ?");
     }
     if (tag != null) {
-      query.append(" AND tag=?");
+      filter.append(" AND tag=?");
     }
 
-    try (PreparedStatement p = connectionLocal.get().prepareStatement(query.toString())) {
-      p.setInt(1, status.getValue());
-      p.setString(2, key);
-      p.setInt(3, bucket.getBucketId());
+    // the blobs only count the references of the versions that are not purged
+    Map<String, Integer> blobReferences = new HashMap<>();
+    Map<String, Long> blobSizes = new HashMap<>();
 
-      int i = 4;
-      if (version != null) {
-        p.setInt(i++, version);
-      }
-      if (uuid != null) {
-        p.setString(i++, uuid.toString());
+    try (PreparedStatement p = connectionLocal.get().prepareStatement("SELECT checksum, COUNT(*), MAX(size) FROM objects"
+        + filter + " AND status" + (status == Status.PURGED ? "<>" : "=") + "? GROUP BY checksum")) {
+      int i = setMarkObjectFilterParameters(p, 1, key, bucket, version, uuid, tag);
+      p.setInt(i, Status.PURGED.getValue());
+
+      try (ResultSet result = p.executeQuery()) {
+        while (result.next()) {
+          blobReferences.put(result.getString(1), result.getInt(2));
+          blobSizes.put(result.getString(1), result.getLong(3));
+        }
       }
-      if (tag != null) {
-        p.setString(i++, tag);
+    }
+
+    int updated;
+
+    try (PreparedStatement p = connectionLocal.get().prepareStatement("UPDATE objects SET status=?" + filter)) {
+      p.setInt(1, status.getValue());
+      setMarkObjectFilterParameters(p, 2, key, bucket, version, uuid, tag);
+
+      updated = p.executeUpdate();
+    }
+
+    for (Map.Entry<String, Integer> blob : blobReferences.entrySet()) {
+      if (status == Status.PURGED) {
+        removeBlobReferences(blob.getKey(), blob.getValue());
+      } else {
+        addBlobReferences(blob.getKey(), blobSizes.get(blob.getKey()), blob.getValue());
       }
+    }
 
-      return p.executeUpdate();
+    return updated;
+  }
+
+  /**
+   * Bind the filter of {@link #markObject} starting at <code>index</code>
+   *
+   * @return the index of the next parameter
+   */
+  private static int setMarkObjectFilterParameters(PreparedStatement p, int index, String key, Bucket bucket,
+                                                   Integer version, UUID uuid, String tag) throws SQLException {
+    p.setString(index++, key);
+    p.setInt(index++, bucket.getBucketId());
+
+    if (version != null) {
+      p.setInt(index++, version);
     }
+    if (uuid != null) {
+      p.setString(index++, uuid.toString());
+    }
+    if (tag != null) {
+      p.setString(index++, tag);
+    }
+
+    return index;
   }
 
   private Integer getNextAvailableVersionNumber(String bucketName, String key, String tableName, String keyName) throws SQLException {
-    String query = "SELECT versionNumber FROM  "
+    Bucket bucket = resolveBucket(bucketName);
+
+    if (bucket == null) {
+      return 0;
+    }
+
+    String query = "SELECT versionNumber FROM "
         + tableName
-        + " a, buckets b WHERE a.bucketId = b.bucketId AND b.bucketName=? AND "
+        + " WHERE bucketId=? AND "
         + keyName
         + "=? ORDER BY versionNumber DESC LIMIT 1";
 
     try (PreparedStatement p = connectionLocal.get().prepareStatement(query)) {
-      p.setString(1, bucketName);
+      p.setInt(1, bucket.getBucketId());
       p.setString(2, key);
 
       try (ResultSet result = p.executeQuery()) {
@@ -280,16 +477,22 @@ public abstract class SqlService {
   }
 
   public RepoObject getObject(String bucketName, String key) throws SQLException, RepoException {
-    try (PreparedStatement p = connectionLocal.get().prepareStatement("SELECT " + OBJECT_COLUMNS + ", b.BUCKETNAME  FROM objects obj, buckets b " +
-        "WHERE obj.bucketId = b.bucketId AND b.bucketName=? AND obj.objKey=? AND status=? ORDER BY obj.creationDate " +
+    Bucket bucket = resolveBucket(bucketName);
+
+    if (bucket == null) {
+      return null;
+    }
+
+    try (PreparedStatement p = connectionLocal.get().prepareStatement("SELECT " + OBJECT_COLUMNS + " FROM objects obj " +
+        "WHERE obj.bucketId=? AND obj.objKey=? AND status=? ORDER BY obj.creationDate " +
         "DESC LIMIT 1")) {
-      p.setString(1, bucketName);
+      p.setInt(1, bucket.getBucketId());
       p.setString(2, key);
       p.setInt(3, Status.USED.getValue());
 
       try (ResultSet result = p.executeQuery()) {
         if (result.next()) {
-          RepoObject repoObject = mapObjectRow(result);
+          RepoObject repoObject = mapObjectRow(result, bucket.getBucketName());
 
           if (repoObject.getStatus() == Status.DELETED || repoObject.getStatus() == Status.PURGED) {
             log.info("searched for object which has been deleted/purged. id: " + repoObject.getId());
@@ -305,9 +508,15 @@ public abstract class SqlService {
   }
 
   public RepoObject getObject(String bucketName, String key, Integer version, UUID uuid, String tag) throws SQLException, RepoException {
+    Bucket bucket = resolveBucket(bucketName);
+
+    if (bucket == null) {
+      return null;
+    }
+
     StringBuilder query = new StringBuilder();
-    query.append("SELECT ").append(OBJECT_COLUMNS).append(", b.BUCKETNAME FROM objects obj, buckets b ")
-        .append("WHERE obj.bucketId = b.bucketId AND b.bucketName=? AND obj.objKey=?");
+    query.append("SELECT ").append(OBJECT_COLUMNS).append(" FROM objects obj ")
+        .append("WHERE obj.bucketId=? AND obj.objKey=?");
 
     if (version != null) {
       query.append(" AND versionNumber=?");
@@ -322,7 +531,7 @@ public abstract class SqlService {
     query.append(" ORDER BY obj.creationDate DESC LIMIT 1");
 
     try (PreparedStatement p = connectionLocal.get().prepareStatement(query.toString())) {
-      p.setString(1, bucketName);
+      p.setInt(1, bucket.getBucketId());
       p.setString(2, key);
 
       int i = 3;
@@ -338,7 +547,7 @@ public abstract class SqlService {
 
       try (ResultSet result = p.executeQuery()) {
         if (result.next()) {
-          RepoObject repoObject = mapObjectRow(result);
+          RepoObject repoObject = mapObjectRow(result, bucket.getBucketName());
 
           if (repoObject.getStatus() == Status.DELETED || repoObject.getStatus() == Status.PURGED) {
             log.info("searched for object which has been deleted/purged. id: " + repoObject.getId());
@@ -355,9 +564,15 @@ public abstract class SqlService {
 
   public RepoObject getObject(String bucketName, String key, Integer version, UUID uuid,
                               String tag, boolean searchInDeleted, boolean searchInPurged) throws SQLException, RepoException {
+    Bucket bucket = resolveBucket(bucketName);
+
+    if (bucket == null) {
+      return null;
+    }
+
     StringBuilder query = new StringBuilder();
-    query.append("SELECT ").append(OBJECT_COLUMNS).append(", b.BUCKETNAME FROM objects obj, buckets b ")
-        .append("WHERE obj.bucketId = b.bucketId AND b.bucketName=? AND obj.objKey=?");
+    query.append("SELECT ").append(OBJECT_COLUMNS).append(" FROM objects obj ")
+        .append("WHERE obj.bucketId=? AND obj.objKey=?");
 
     if (version != null) {
       query.append(" AND versionNumber=?");
@@ -378,7 +593,7 @@ public abstract class SqlService {
     query.append(" ORDER BY obj.creationDate DESC LIMIT 1");
 
     try (PreparedStatement p = connectionLocal.get().prepareStatement(query.toString())) {
-      p.setString(1, bucketName);
+      p.setInt(1, bucket.getBucketId());
       p.setString(2, key);
 
       int i = 3;
@@ -404,7 +619,7 @@ public abstract class SqlService {
 
       try (ResultSet result = p.executeQuery()) {
         if (result.next()) {
-          return mapObjectRow(result);
+          return mapObjectRow(result, bucket.getBucketName());
         } else {
           return null;
         }
@@ -415,25 +630,94 @@ public abstract class SqlService {
   public int insertObject(RepoObject repoObject) throws SQLException {
     // TODO: return object or objectid from this function?
 
-    try (PreparedStatement p = connectionLocal.get().prepareStatement("INSERT INTO objects (objKey, checksum, timestamp, bucketId, contentType, downloadName, size, " +
-        "tag, versionNumber, status, creationDate, userMetadata, uuid) " +
-        "VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?)")) {
-      p.setString(1, repoObject.getKey());
-      p.setString(2, repoObject.getChecksum());
-      p.setTimestamp(3, repoObject.getTimestamp());
-      p.setInt(4, repoObject.getBucketId());
-      p.setString(5, repoObject.getContentType());
-      p.setString(6, repoObject.getDownloadName());
-      p.setLong(7, repoObject.getSize());
-      p.setString(8, repoObject.getTag());
-      p.setInt(9, repoObject.getVersionNumber());
-      p.setInt(10, repoObject.getStatus().getValue());
-      p.setTimestamp(11, repoObject.getTimestamp());
-      p.setString(12, repoObject.getUserMetadata());
-      p.setString(13, repoObject.getUuid().toString());
+    int inserted;
 
-      return p.executeUpdate();
+    try (PreparedStatement p = connectionLocal.get().prepareStatement(INSERT_OBJECT_QUERY)) {
+      setInsertObjectParameters(p, repoObject);
+
+      inserted = p.executeUpdate();
+    }
+
+    if (inserted > 0) {
+      addBlobReferences(repoObject.getChecksum(), repoObject.getSize(), 1);
     }
+
+    return inserted;
+  }
+
+  /**
+   * Insert the rows of <code>repoObjects</code> with a single JDBC batch.
+   *
+   * @return the number of rows inserted
+   * @throws SQLException
+   */
+  public int insertObjects(List<RepoObject> repoObjects) throws SQLException {
+    int inserted;
+
+    try (PreparedStatement p = connectionLocal.get().prepareStatement(INSERT_OBJECT_QUERY)) {
+      for (RepoObject repoObject : repoObjects) {
+        setInsertObjectParameters(p, repoObject);
+        p.addBatch();
+      }
+
+      inserted = countBatchUpdates(p.executeBatch());
+    }
+
+    // one upsert per distinct content
+    Map<String, RepoObject> blobs = new HashMap<>();
+    Map<String, Integer> blobReferences = new HashMap<>();
+
+    for (RepoObject repoObject : repoObjects) {
+      Integer references = blobReferences.get(repoObject.getChecksum());
+      blobReferences.put(repoObject.getChecksum(), references == null ? 1 : references + 1);
+      blobs.put(repoObject.getChecksum(), repoObject);
+    }
+
+    try (PreparedStatement p = connectionLocal.get().prepareStatement(getAddBlobReferencesQuery())) {
+      for (Map.Entry<String, Integer> blob : blobReferences.entrySet()) {
+        p.setString(1, blob.getKey());
+        p.setLong(2, blobs.get(blob.getKey()).getSize());
+        p.setInt(3, blob.getValue());
+        p.addBatch();
+      }
+
+      p.executeBatch();
+    }
+
+    return inserted;
+  }
+
+  private void setInsertObjectParameters(PreparedStatement p, RepoObject repoObject) throws SQLException {
+    p.setString(1, repoObject.getKey());
+    p.setString(2, repoObject.getChecksum());
+    p.setTimestamp(3, repoObject.getTimestamp());
+    p.setInt(4, repoObject.getBucketId());
+    p.setString(5, repoObject.getContentType());
+    p.setString(6, repoObject.getDownloadName());
+    p.setLong(7, repoObject.getSize());
+    p.setString(8, repoObject.getTag());
+    p.setInt(9, repoObject.getVersionNumber());
+    p.setInt(10, repoObject.getStatus().getValue());
+    p.setTimestamp(11, repoObject.getTimestamp());
+    p.setString(12, repoObject.getUserMetadata());
+    p.setString(13, repoObject.getUuid().toString());
+  }
+
+  /**
+   * @return the number of rows changed by a batch, counting the statements the driver could not tell about as one
+   */
+  private static int countBatchUpdates(int[] updateCounts) {
+    int count = 0;
+
+    for (int updateCount : updateCounts) {
+      if (updateCount == Statement.SUCCESS_NO_INFO) {
+        count++;
+      } else if (updateCount > 0) {
+        count += updateCount;
+      }
+    }
+
+    return count;
   }
 
   public Integer objectCount(boolean includeDeleted, String bucketName) throws SQLException {
@@ -512,8 +796,62 @@ public abstract class SqlService {
   }
 
   public List<RepoObject> listObjects(String bucketName, Integer offset, Integer limit, boolean includeDeleted, boolean includePurge, String tag) throws SQLException, RepoException {
+    return listObjects(bucketName, offset, limit, includeDeleted, includePurge, tag, null);
+  }
+
+  /**
+   * List objects in (bucketId, objKey, versionNumber) order, the order of the keyVersion unique key.
+   *
+   * @param pageToken if not null, only the objects after the position it records are listed
+   */
+  public List<RepoObject> listObjects(String bucketName, Integer offset, Integer limit, boolean includeDeleted, boolean includePurge, String tag, PageToken pageToken) throws SQLException, RepoException {
     List<RepoObject> repoObjects = new ArrayList<>();
 
+    try (PreparedStatement p = connectionLocal.get().prepareStatement(
+        getObjectListQuery(bucketName, offset, limit, includeDeleted, includePurge, tag, pageToken))) {
+      setObjectListParameters(p, bucketName, includeDeleted, includePurge, tag, pageToken);
+
+      try (ResultSet result = p.executeQuery()) {
+        while (result.next()) {
+          repoObjects.add(mapObjectRow(result));
+        }
+      }
+
+      return repoObjects;
+    }
+  }
+
+  /**
+   * Pass the objects matching the given filters to <code>handler</code> one at a time, in the same order as {@link
+   * #listObjects(String, Integer, Integer, boolean, boolean, String, PageToken)}. The rows are read through a forward
+   * only cursor, so memory use does not depend on the number of objects listed.
+   *
+   * @param limit the maximum number of objects to read, or null to read them all
+   * @throws IOException if <code>handler</code> fails, in which case the remaining rows are not read
+   */
+  public void streamObjects(String bucketName, Integer limit, boolean includeDeleted, boolean includePurge, String tag, PageToken pageToken, RowHandler<RepoObject> handler) throws SQLException, RepoException, IOException {
+    try (PreparedStatement p = connectionLocal.get().prepareStatement(
+        getObjectListQuery(bucketName, null, limit, includeDeleted, includePurge, tag, pageToken),
+        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+      p.setFetchSize(getStreamingFetchSize());
+      setObjectListParameters(p, bucketName, includeDeleted, includePurge, tag, pageToken);
+
+      try (ResultSet result = p.executeQuery()) {
+        while (result.next()) {
+          handler.handle(mapObjectRow(result));
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the fetch size hint for the cursors of {@link #streamObjects}
+   */
+  protected int getStreamingFetchSize() {
+    return STREAMING_FETCH_SIZE;
+  }
+
+  private String getObjectListQuery(String bucketName, Integer offset, Integer limit, boolean includeDeleted, boolean includePurge, String tag, PageToken pageToken) {
     StringBuilder q = new StringBuilder();
     q.append("SELECT ").append(OBJECT_COLUMNS).append(", b.BUCKETNAME FROM objects as obj, buckets as b ")
         .append("WHERE obj.bucketId = b.bucketId");
@@ -530,43 +868,195 @@ public abstract class SqlService {
     if (tag != null) {
       q.append(" AND TAG=?");
     }
+    if (pageToken != null) {
+      q.append(" AND ").append(keysetPredicate("obj", OBJECT_KEY_COLUMN));
+    }
+    q.append(" ORDER BY obj.bucketId, obj.").append(OBJECT_KEY_COLUMN).append(", obj.versionNumber");
     if (limit != null) {
       q.append(" LIMIT ").append(limit);
     }
     if (offset != null) {
       q.append(" OFFSET ").append(offset);
     }
-    try (PreparedStatement p = connectionLocal.get().prepareStatement(q.toString())) {
+
+    return q.toString();
+  }
+
+  private static void setObjectListParameters(PreparedStatement p, String bucketName, boolean includeDeleted, boolean includePurge, String tag, PageToken pageToken) throws SQLException {
+    int i = 1;
+
+    if (!includeDeleted && !includePurge) {
+      p.setInt(i++, Status.USED.getValue());
+    }
+    if (includeDeleted && !includePurge) {
+      p.setInt(i++, Status.USED.getValue());
+      p.setInt(i++, Status.DELETED.getValue());
+    }
+    if (!includeDeleted && includePurge) {
+      p.setInt(i++, Status.USED.getValue());
+      p.setInt(i++, Status.PURGED.getValue());
+    }
+
+    if (bucketName != null) {
+      p.setString(i++, bucketName);
+    }
+
+    if (tag != null) {
+      p.setString(i++, tag);
+    }
+
+    if (pageToken != null) {
+      setKeysetParameters(p, i, pageToken);
+    }
+  }
+
+  /**
+   * Fetch the objects of the bucket <code>bucketName</code> whose key is one of <code>keys</code> and uuid one of
+   * <code>uuids</code>, no matter the status. The key filter lets the keyVersion index narrow the search; callers pair
+   * keys and uuids themselves.
+   *
+   * @param bucketName a single String identifying the bucket name where the objects are.
+   * @param keys       the object keys, must not be empty
+   * @param uuids      the object uuids, must not be empty
+   * @return a list of {@link org.plos.repo.models.RepoObject}, in no particular order
+   * @throws SQLException
+   */
+  public List<RepoObject> getObjects(String bucketName, Collection<String> keys, Collection<UUID> uuids) throws SQLException, RepoException {
+    List<RepoObject> repoObjects = new ArrayList<>();
+    Bucket bucket = resolveBucket(bucketName);
+
+    if (bucket == null) {
+      return repoObjects;
+    }
+
+    String query = "SELECT " + OBJECT_COLUMNS + " FROM objects obj WHERE obj.bucketId=?"
+        + " AND obj." + OBJECT_KEY_COLUMN + " IN (" + IN_LIST_JOINER.join(Collections.nCopies(keys.size(), "?")) + ")"
+        + " AND obj." + UUID_COLUMN + " IN (" + IN_LIST_JOINER.join(Collections.nCopies(uuids.size(), "?")) + ")";
+
+    try (PreparedStatement p = connectionLocal.get().prepareStatement(query)) {
       int i = 1;
+      p.setInt(i++, bucket.getBucketId());
 
-      if (!includeDeleted && !includePurge) {
-        p.setInt(i++, Status.USED.getValue());
+      for (String key : keys) {
+        p.setString(i++, key);
       }
-      if (includeDeleted && !includePurge) {
-        p.setInt(i++, Status.USED.getValue());
-        p.setInt(i++, Status.DELETED.getValue());
+      for (UUID uuid : uuids) {
+        p.setString(i++, uuid.toString());
       }
-      if (!includeDeleted && includePurge) {
-        p.setInt(i++, Status.USED.getValue());
-        p.setInt(i++, Status.PURGED.getValue());
+
+      try (ResultSet result = p.executeQuery()) {
+        while (result.next()) {
+          repoObjects.add(mapObjectRow(result, bucket.getBucketName()));
+        }
       }
 
-      if (bucketName != null) {
-        p.setString(i++, bucketName);
+      return repoObjects;
+    }
+  }
+
+  /**
+   * Resolve many objects of the bucket <code>bucketName</code> at once. Every version of the requested keys is
+   * fetched with a single query per chunk of keys, then each key is matched against its filter the same way {@link
+   * #getObject(String, String)} does for an empty filter and {@link #getObject(String, String, Integer, UUID, String)}
+   * does otherwise. Keys are matched case insensitively, as the database does.
+   *
+   * @param bucketName     a single String identifying the bucket name where the objects are.
+   * @param keys           the object keys
+   * @param elementFilters the filter of each key, in the same order; null or empty for the latest version
+   * @return the object matching each key and filter, in the same order, or null where no object matches
+   * @throws SQLException
+   * @throws RepoException if one of the filters has an invalid uuid
+   */
+  public List<RepoObject> getObjects(String bucketName, List<String> keys, List<? extends ElementFilter> elementFilters)
+      throws SQLException, RepoException {
+    List<RepoObject> repoObjects = new ArrayList<>(Collections.nCopies(keys.size(), (RepoObject) null));
+    Bucket bucket = resolveBucket(bucketName);
+
+    if (bucket == null) {
+      return repoObjects;
+    }
+
+    Map<String, List<RepoObject>> versions = new HashMap<>();
+
+    for (List<String> chunk : Iterables.partition(new LinkedHashSet<>(keys), IN_LIST_CHUNK_SIZE)) {
+      String query = "SELECT " + OBJECT_COLUMNS + " FROM objects obj WHERE obj.bucketId=?"
+          + " AND obj." + OBJECT_KEY_COLUMN + " IN (" + IN_LIST_JOINER.join(Collections.nCopies(chunk.size(), "?")) + ")";
+
+      try (PreparedStatement p = connectionLocal.get().prepareStatement(query)) {
+        int i = 1;
+        p.setInt(i++, bucket.getBucketId());
+
+        for (String key : chunk) {
+          p.setString(i++, key);
+        }
+
+        try (ResultSet result = p.executeQuery()) {
+          while (result.next()) {
+            RepoObject repoObject = mapObjectRow(result, bucket.getBucketName());
+
+            List<RepoObject> keyVersions = versions.get(getKeyGroup(repoObject.getKey()));
+            if (keyVersions == null) {
+              keyVersions = new ArrayList<>();
+              versions.put(getKeyGroup(repoObject.getKey()), keyVersions);
+            }
+            keyVersions.add(repoObject);
+          }
+        }
       }
+    }
 
-      if (tag != null) {
-        p.setString(i++, tag);
+    for (int i = 0; i < keys.size(); i++) {
+      List<RepoObject> keyVersions = versions.get(getKeyGroup(keys.get(i)));
+
+      if (keyVersions != null) {
+        repoObjects.set(i, selectObject(keyVersions, elementFilters.get(i)));
       }
+    }
 
-      try (ResultSet result = p.executeQuery()) {
-        while (result.next()) {
-          repoObjects.add(mapObjectRow(result));
+    return repoObjects;
+  }
+
+  /**
+   * @return the key the versions of an object are grouped by, matching keys the way MySQL collates them, case
+   * insensitively
+   */
+  private static String getKeyGroup(String key) {
+    return key.toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+   * Pick among the versions of a key the one a single object query with <code>elementFilter</code> would return.
+   */
+  private static RepoObject selectObject(List<RepoObject> keyVersions, ElementFilter elementFilter)
+      throws RepoException {
+    boolean latest = elementFilter == null || elementFilter.isEmpty();
+    UUID uuid = latest ? null : UUIDFormatter.getUuid(elementFilter.getUuid());
+
+    RepoObject selected = null;
+
+    for (RepoObject repoObject : keyVersions) {
+      if (latest) {
+        if (repoObject.getStatus() != Status.USED) {
+          continue;
         }
+      } else if ((elementFilter.getVersion() != null && !elementFilter.getVersion().equals(repoObject.getVersionNumber()))
+          || (uuid != null && !uuid.equals(repoObject.getUuid()))
+          || (elementFilter.getTag() != null && !elementFilter.getTag().equals(repoObject.getTag()))) {
+        continue;
       }
 
-      return repoObjects;
+      if (selected == null || repoObject.getCreationDate().after(selected.getCreationDate())) {
+        selected = repoObject;
+      }
+    }
+
+    // a filter may point to a deleted or purged version, which is not returned
+    if (selected != null && selected.getStatus() != Status.USED) {
+      log.info("searched for object which has been deleted/purged. id: " + selected.getId());
+      return null;
     }
+
+    return selected;
   }
 
   public List<RepoObject> listObjects(Timestamp timestamp) throws SQLException, RepoException {
@@ -600,33 +1090,19 @@ public abstract class SqlService {
    * @throws SQLException
    */
   public List<RepoCollection> listCollections(String bucketName, Integer offset, Integer limit, Boolean includeDeleted, String tag) throws SQLException, RepoException {
-    List<RepoCollection> repoCollections = new ArrayList<>();
-
-    try (PreparedStatement p = connectionLocal.get().prepareStatement(
-        getCollectionMetadataQuery(bucketName, offset, limit, includeDeleted, tag))) {
-      int i = 1;
-      if (!includeDeleted) {
-        p.setInt(i++, Status.USED.getValue());
-      }
-
-      if (bucketName != null) {
-        p.setString(i++, bucketName);
-      }
-
-      if (tag != null) {
-        p.setString(i++, tag);
-      }
-
-      try (ResultSet result = p.executeQuery()) {
-        while (result.next()) {
-          RepoCollection c = mapCollectionRow(result);
-          c.addObjects(listCollectionObjects(c.getId()));
-          repoCollections.add(c);
-        }
-      }
+    return listCollections(bucketName, offset, limit, includeDeleted, tag, null);
+  }
 
-      return repoCollections;
-    }
+  /**
+   * Returns a list of collections, with their objects, in the order of {@link #listCollectionsMetaData(String,
+   * Integer, Integer, Boolean, String, PageToken)}. The objects of the whole page are fetched together.
+   *
+   * @param pageToken if not null, only the collections after the position it records are listed
+   */
+  public List<RepoCollection> listCollections(String bucketName, Integer offset, Integer limit, Boolean includeDeleted, String tag, PageToken pageToken) throws SQLException, RepoException {
+    List<RepoCollection> repoCollections = listCollectionsMetaData(bucketName, offset, limit, includeDeleted, tag, pageToken);
+    addCollectionObjects(repoCollections);
+    return repoCollections;
   }
 
   /**
@@ -641,9 +1117,19 @@ public abstract class SqlService {
    * @throws SQLException
    */
   public List<RepoCollection> listCollectionsMetaData(String bucketName, Integer offset, Integer limit, Boolean includeDeleted, String tag) throws SQLException, RepoException {
+    return listCollectionsMetaData(bucketName, offset, limit, includeDeleted, tag, null);
+  }
+
+  /**
+   * Returns a list of collections meta data in (bucketId, collKey, versionNumber) order, the order of the keyVersion
+   * unique key.
+   *
+   * @param pageToken if not null, only the collections after the position it records are listed
+   */
+  public List<RepoCollection> listCollectionsMetaData(String bucketName, Integer offset, Integer limit, Boolean includeDeleted, String tag, PageToken pageToken) throws SQLException, RepoException {
     List<RepoCollection> repoCollections = new ArrayList<>();
 
-    try (PreparedStatement p = connectionLocal.get().prepareStatement(getCollectionMetadataQuery(bucketName, offset, limit, includeDeleted, tag))) {
+    try (PreparedStatement p = connectionLocal.get().prepareStatement(getCollectionMetadataQuery(bucketName, offset, limit, includeDeleted, tag, pageToken))) {
       int i = 1;
       if (!includeDeleted) {
         p.setInt(i++, Status.USED.getValue());
@@ -657,6 +1143,10 @@ public abstract class SqlService {
         p.setString(i++, tag);
       }
 
+      if (pageToken != null) {
+        setKeysetParameters(p, i, pageToken);
+      }
+
       try (ResultSet result = p.executeQuery()) {
         while (result.next()) {
           RepoCollection c = mapCollectionRow(result);
@@ -668,7 +1158,7 @@ public abstract class SqlService {
     }
   }
 
-  private String getCollectionMetadataQuery(String bucketName, Integer offset, Integer limit, boolean includeDeleted, String tag) {
+  private String getCollectionMetadataQuery(String bucketName, Integer offset, Integer limit, boolean includeDeleted, String tag, PageToken pageToken) {
     StringBuilder q = new StringBuilder();
     q.append("SELECT ").append(COLLECTION_COLUMNS).append(", b.BUCKETNAME ")
         .append("FROM collections c, buckets b WHERE c.bucketId = b.bucketId");
@@ -682,6 +1172,10 @@ public abstract class SqlService {
     if (tag != null) {
       q.append(" AND TAG=?");
     }
+    if (pageToken != null) {
+      q.append(" AND ").append(keysetPredicate("c", COLLECTION_KEY_COLUMN));
+    }
+    q.append(" ORDER BY c.bucketId, c.").append(COLLECTION_KEY_COLUMN).append(", c.versionNumber");
     if (limit != null) {
       q.append(" LIMIT ").append(limit);
     }
@@ -692,6 +1186,25 @@ public abstract class SqlService {
     return q.toString();
   }
 
+  /**
+   * Build the condition selecting the rows after a (bucketId, key, versionNumber) position. It is spelled out with
+   * OR rather than as a row value comparison so MySQL can use the keyVersion index as a range.
+   */
+  private static String keysetPredicate(String alias, String keyColumn) {
+    String key = alias + "." + keyColumn;
+    return "(" + alias + ".bucketId > ? OR (" + alias + ".bucketId = ? AND (" + key + " > ? OR (" + key + " = ? AND "
+        + alias + ".versionNumber > ?))))";
+  }
+
+  private static int setKeysetParameters(PreparedStatement p, int i, PageToken pageToken) throws SQLException {
+    p.setInt(i++, pageToken.getBucketId());
+    p.setInt(i++, pageToken.getBucketId());
+    p.setString(i++, pageToken.getKey());
+    p.setString(i++, pageToken.getKey());
+    p.setInt(i++, pageToken.getVersionNumber());
+    return i;
+  }
+
   public List<RepoCollection> listCollections(Timestamp timestamp) throws SQLException, RepoException {
     List<RepoCollection> repoCollections = new ArrayList<>();
 
@@ -709,6 +1222,49 @@ public abstract class SqlService {
     }
   }
 
+  /**
+   * Fill in the objects of every collection of <code>repoCollections</code>, with one query per {@link
+   * #IN_LIST_CHUNK_SIZE} collections instead of one per collection. Objects are always stored in the bucket of their
+   * collection.
+   *
+   * @param repoCollections the collections, as read from the DB
+   * @throws SQLException
+   */
+  private void addCollectionObjects(List<RepoCollection> repoCollections) throws SQLException, RepoException {
+    Map<Integer, RepoCollection> collectionsById = new HashMap<>();
+    Map<Integer, List<RepoObject>> objectsByCollection = new HashMap<>();
+
+    for (RepoCollection repoCollection : repoCollections) {
+      collectionsById.put(repoCollection.getId(), repoCollection);
+      objectsByCollection.put(repoCollection.getId(), new ArrayList<RepoObject>());
+    }
+
+    for (List<Integer> ids : Iterables.partition(collectionsById.keySet(), IN_LIST_CHUNK_SIZE)) {
+      String q = "SELECT co.collectionId, " + OBJECT_COLUMNS + " FROM collectionObject co, objects obj "
+          + "WHERE co.collectionId IN (" + IN_LIST_JOINER.join(Collections.nCopies(ids.size(), "?")) + ") "
+          + "AND co.objectId = obj.id";
+
+      try (PreparedStatement p = connectionLocal.get().prepareStatement(q)) {
+        int i = 1;
+        for (Integer id : ids) {
+          p.setInt(i++, id);
+        }
+
+        try (ResultSet result = p.executeQuery()) {
+          while (result.next()) {
+            Integer collectionId = result.getInt("collectionId");
+            String bucketName = collectionsById.get(collectionId).getBucketName();
+            objectsByCollection.get(collectionId).add(mapObjectRow(result, bucketName));
+          }
+        }
+      }
+    }
+
+    for (RepoCollection repoCollection : repoCollections) {
+      repoCollection.addObjects(objectsByCollection.get(repoCollection.getId()));
+    }
+  }
+
   /**
    * Returns the list of objects contains in the given collection <code>id</code>
    *
@@ -748,18 +1304,24 @@ public abstract class SqlService {
    * @throws SQLException
    */
   public RepoCollection getCollection(String bucketName, String key) throws SQLException, RepoException {
-    String query = "SELECT " + COLLECTION_COLUMNS + ", b.BUCKETNAME FROM collections c, buckets b "
-        + "WHERE c.bucketId = b.bucketId AND b.bucketName=? "
+    Bucket bucket = resolveBucket(bucketName);
+
+    if (bucket == null) {
+      return null;
+    }
+
+    String query = "SELECT " + COLLECTION_COLUMNS + " FROM collections c "
+        + "WHERE c.bucketId=? "
         + "AND collKey=? AND status=? ORDER BY c.creationDate DESC LIMIT 1";
 
     try (PreparedStatement p = connectionLocal.get().prepareStatement(query)) {
-      p.setString(1, bucketName);
+      p.setInt(1, bucket.getBucketId());
       p.setString(2, key);
       p.setInt(3, Status.USED.getValue());
 
       try (ResultSet result = p.executeQuery()) {
         if (result.next()) {
-          RepoCollection repoCollection = mapCollectionRow(result);
+          RepoCollection repoCollection = mapCollectionRow(result, bucket.getBucketName());
 
           if (repoCollection.getStatus() == Status.DELETED) {
             log.info("searched for collection which has been deleted. id: " + repoCollection.getId());
@@ -790,9 +1352,15 @@ public abstract class SqlService {
    * @throws SQLException
    */
   public RepoCollection getCollection(String bucketName, String key, Integer version, String tag, UUID uuid) throws SQLException, RepoException {
+    Bucket bucket = resolveBucket(bucketName);
+
+    if (bucket == null) {
+      return null;
+    }
+
     StringBuilder query = new StringBuilder();
-    query.append("SELECT ").append(COLLECTION_COLUMNS).append(", b.BUCKETNAME FROM collections c, buckets b ")
-        .append("WHERE c.bucketId = b.bucketId AND b.bucketName=? AND collKey=? ");
+    query.append("SELECT ").append(COLLECTION_COLUMNS).append(" FROM collections c ")
+        .append("WHERE c.bucketId=? AND collKey=? ");
 
     if (version != null) {
       query.append(" AND versionNumber=?");
@@ -807,7 +1375,7 @@ public abstract class SqlService {
     query.append(" ORDER BY c.creationDate DESC LIMIT 1");
 
     try (PreparedStatement p = connectionLocal.get().prepareStatement(query.toString())) {
-      p.setString(1, bucketName);
+      p.setInt(1, bucket.getBucketId());
       p.setString(2, key);
 
       int i = 3;
@@ -823,7 +1391,7 @@ public abstract class SqlService {
 
       try (ResultSet result = p.executeQuery()) {
         if (result.next()) {
-          RepoCollection repoCollection = mapCollectionRow(result);
+          RepoCollection repoCollection = mapCollectionRow(result, bucket.getBucketName());
 
           if (repoCollection.getStatus() == Status.DELETED) {
             log.info("searched for collection which has been deleted. id: " + repoCollection.getId());
@@ -850,22 +1418,27 @@ public abstract class SqlService {
    */
   public List<RepoCollection> listCollectionVersions(String bucketName, String key) throws SQLException, RepoException {
     List<RepoCollection> repoCollections = new ArrayList<>();
+    Bucket bucket = resolveBucket(bucketName);
 
-    try (PreparedStatement p = connectionLocal.get().prepareStatement("SELECT " + COLLECTION_COLUMNS + ", b.BUCKETNAME FROM collections c, buckets b " +
-        "WHERE c.bucketId = b.bucketId AND b.bucketName=? AND c.collKey=? AND c.status=? " +
+    if (bucket == null) {
+      return repoCollections;
+    }
+
+    try (PreparedStatement p = connectionLocal.get().prepareStatement("SELECT " + COLLECTION_COLUMNS + " FROM collections c " +
+        "WHERE c.bucketId=? AND c.collKey=? AND c.status=? " +
         "ORDER BY versionNumber ASC")) {
-      p.setString(1, bucketName);
+      p.setInt(1, bucket.getBucketId());
       p.setString(2, key);
       p.setInt(3, Status.USED.getValue());
 
       try (ResultSet result = p.executeQuery()) {
         while (result.next()) {
-          RepoCollection c = mapCollectionRow(result);
-          c.addObjects(listCollectionObjects(c.getId()));
-          repoCollections.add(c);
+          repoCollections.add(mapCollectionRow(result, bucket.getBucketName()));
         }
       }
 
+      addCollectionObjects(repoCollections);
+
       return repoCollections;
     }
   }
@@ -923,17 +1496,22 @@ public abstract class SqlService {
 
   public List<RepoObject> listObjectVersions(String bucketName, String objectKey) throws SQLException, RepoException {
     List<RepoObject> repoObjects = new ArrayList<>();
+    Bucket bucket = resolveBucket(bucketName);
 
-    try (PreparedStatement p = connectionLocal.get().prepareStatement("SELECT " + OBJECT_COLUMNS + ", b.BUCKETNAME FROM objects obj, buckets b " +
-        "WHERE obj.bucketId = b.bucketId AND bucketName=? AND obj.objKey=? AND status=? " +
+    if (bucket == null) {
+      return repoObjects;
+    }
+
+    try (PreparedStatement p = connectionLocal.get().prepareStatement("SELECT " + OBJECT_COLUMNS + " FROM objects obj " +
+        "WHERE obj.bucketId=? AND obj.objKey=? AND status=? " +
         "ORDER BY versionNumber ASC")) {
-      p.setString(1, bucketName);
+      p.setInt(1, bucket.getBucketId());
       p.setString(2, objectKey);
       p.setInt(3, Status.USED.getValue());
 
       try (ResultSet result = p.executeQuery()) {
         while (result.next()) {
-          repoObjects.add(mapObjectRow(result));
+          repoObjects.add(mapObjectRow(result, bucket.getBucketName()));
         }
       }
 
@@ -984,13 +1562,180 @@ public abstract class SqlService {
     }
   }
 
-  public boolean insertCollectionObjects(Integer collectionId, Integer objectId) throws SQLException {
+  /**
+   * Add the objects <code>objectIds</code> to the collection <code>collectionId</code>, with a single JDBC batch.
+   *
+   * @throws SQLException
+   */
+  public void insertCollectionObjects(Integer collectionId, List<Integer> objectIds) throws SQLException {
     try (PreparedStatement p = connectionLocal.get().prepareStatement("INSERT INTO collectionObject (collectionId, objectId) " +
         "VALUES (?,?)")) {
-      p.setInt(1, collectionId);
-      p.setInt(2, objectId);
+      for (Integer objectId : objectIds) {
+        p.setInt(1, collectionId);
+        p.setInt(2, objectId);
+        p.addBatch();
+      }
 
-      return p.executeUpdate() > 0;
+      p.executeBatch();
+    }
+  }
+
+  /**
+   * Add <code>count</code> references to the content <code>checksum</code>, creating its row in the blobs table if it
+   * is not there yet.
+   *
+   * @param size the size of the content, only used when the row is created
+   * @throws SQLException
+   */
+  public void addBlobReferences(String checksum, long size, int count) throws SQLException {
+    try (PreparedStatement p = connectionLocal.get().prepareStatement(getAddBlobReferencesQuery())) {
+      p.setString(1, checksum);
+      p.setLong(2, size);
+      p.setInt(3, count);
+
+      p.executeUpdate();
+    }
+  }
+
+  /**
+   * Remove <code>count</code> references to the content <code>checksum</code>, deleting its row from the blobs table
+   * once nothing references it.
+   *
+   * @throws SQLException
+   */
+  public void removeBlobReferences(String checksum, int count) throws SQLException {
+    try (PreparedStatement p = connectionLocal.get().prepareStatement("UPDATE blobs SET refCount = refCount - ? " +
+        "WHERE checksum=?")) {
+      p.setInt(1, count);
+      p.setString(2, checksum);
+
+      p.executeUpdate();
+    }
+
+    try (PreparedStatement p = connectionLocal.get().prepareStatement("DELETE FROM blobs WHERE checksum=? " +
+        "AND refCount <= 0")) {
+      p.setString(1, checksum);
+
+      p.executeUpdate();
+    }
+  }
+
+  /**
+   * @return the number of USED or DELETED objects of any bucket holding the content <code>checksum</code>
+   * @throws SQLException
+   */
+  public int getBlobReferenceCount(String checksum) throws SQLException {
+    try (PreparedStatement p = connectionLocal.get().prepareStatement("SELECT refCount FROM blobs WHERE checksum=?")) {
+      p.setString(1, checksum);
+
+      try (ResultSet result = p.executeQuery()) {
+        return result.next() ? result.getInt(1) : 0;
+      }
+    }
+  }
+
+  /**
+   * Read the number of references to the content <code>checksum</code> with a locking read, so that objects created
+   * with the same content by other transactions either commit before it or wait for the current transaction.
+   *
+   * @return the number of USED or DELETED objects of any bucket holding the content <code>checksum</code>
+   * @throws SQLException
+   */
+  public int lockBlobReferenceCount(String checksum) throws SQLException {
+    try (PreparedStatement p = connectionLocal.get().prepareStatement("SELECT refCount FROM blobs WHERE checksum=? " +
+        "FOR UPDATE")) {
+      p.setString(1, checksum);
+
+      try (ResultSet result = p.executeQuery()) {
+        return result.next() ? result.getInt(1) : 0;
+      }
+    }
+  }
+
+  /**
+   * Find which of <code>checksums</code> is the content of a USED or DELETED object, with a single query per chunk of
+   * checksums.
+   *
+   * @param bucketName the bucket the objects must be in, or null to look at the objects of every bucket
+   * @param checksums  the checksums to look for
+   * @return the size of the content of each checksum found
+   * @throws SQLException
+   */
+  public Map<String, Long> getReferencedContentSizes(String bucketName, Collection<String> checksums)
+      throws SQLException {
+    Map<String, Long> sizes = new HashMap<>();
+
+    for (List<String> chunk : Iterables.partition(new LinkedHashSet<>(checksums), IN_LIST_CHUNK_SIZE)) {
+      String in = " IN (" + IN_LIST_JOINER.join(Collections.nCopies(chunk.size(), "?")) + ")";
+      String query = bucketName == null ?
+          "SELECT checksum, size FROM blobs WHERE refCount > 0 AND checksum" + in :
+          "SELECT a.checksum, MAX(a.size) FROM objects a, buckets b WHERE a.bucketId = b.bucketId"
+              + " AND b.bucketName=? AND a.status IN (?,?) AND a.checksum" + in + " GROUP BY a.checksum";
+
+      try (PreparedStatement p = connectionLocal.get().prepareStatement(query)) {
+        int i = 1;
+
+        if (bucketName != null) {
+          p.setString(i++, bucketName);
+          p.setInt(i++, Status.USED.getValue());
+          p.setInt(i++, Status.DELETED.getValue());
+        }
+
+        for (String checksum : chunk) {
+          p.setString(i++, checksum);
+        }
+
+        try (ResultSet result = p.executeQuery()) {
+          while (result.next()) {
+            sizes.put(result.getString(1), result.getLong(2));
+          }
+        }
+      }
+    }
+
+    return sizes;
+  }
+
+  private static String getStoredContentsQuery(boolean perBucket, String columns) {
+    return "SELECT " + columns + " FROM (SELECT DISTINCT " + (perBucket ? "b.bucketName, " : "") + "a.checksum"
+        + " FROM objects a, buckets b WHERE a.bucketId = b.bucketId AND a.status IN (?,?)) c";
+  }
+
+  /**
+   * @param perBucket true to count a content once per bucket referencing it; false to count it once for all buckets
+   * @return the number of contents referenced by used or deleted objects
+   */
+  public long countStoredContents(boolean perBucket) throws SQLException {
+    try (PreparedStatement p = connectionLocal.get().prepareStatement(getStoredContentsQuery(perBucket, "COUNT(*)"))) {
+      p.setInt(1, Status.USED.getValue());
+      p.setInt(2, Status.DELETED.getValue());
+
+      try (ResultSet result = p.executeQuery()) {
+        result.next();
+        return result.getLong(1);
+      }
+    }
+  }
+
+  /**
+   * Put the contents referenced by used or deleted objects in <code>filter</code>, keyed as in {@link
+   * ContentExistenceFilter}.
+   *
+   * @param perBucket true to put a content once per bucket referencing it; false to put it once for all buckets
+   */
+  public void putStoredContents(BloomFilter<CharSequence> filter, boolean perBucket) throws SQLException {
+    try (PreparedStatement p = connectionLocal.get().prepareStatement(getStoredContentsQuery(perBucket, "*"),
+        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+      p.setInt(1, Status.USED.getValue());
+      p.setInt(2, Status.DELETED.getValue());
+      p.setFetchSize(getStreamingFetchSize());
+
+      try (ResultSet result = p.executeQuery()) {
+        while (result.next()) {
+          String checksum = result.getString(perBucket ? 2 : 1);
+          filter.put(ContentExistenceFilter.getKey(perBucket, perBucket ? result.getString(1) : null, checksum));
+        }
+      }
     }
   }
 
@@ -1062,18 +1807,39 @@ public abstract class SqlService {
    * @throws SQLException
    */
   public boolean insertAudit(Audit audit) throws SQLException {
-    try (PreparedStatement p = connectionLocal.get().prepareStatement("INSERT INTO audit (bucketName, keyValue, operation, uuid) VALUES (?,?,?,?)")) {
-      p.setString(1, audit.getBucket());
-      //The key could be NULL if the operation is about bucket
-      p.setString(2, audit.getKey() == null ? "" : audit.getKey());
-      p.setString(3, audit.getOperation().getValue());
-      //The versionChecksum could be NULL if the operation is about bucket
-      p.setString(4, audit.getUuid() == null ? "" : audit.getUuid().toString());
+    try (PreparedStatement p = connectionLocal.get().prepareStatement(INSERT_AUDIT_QUERY)) {
+      setInsertAuditParameters(p, audit);
 
       return p.executeUpdate() > 0;
     }
   }
 
+  /**
+   * Insert the rows of <code>audits</code> with a single JDBC batch.
+   *
+   * @return TRUE if every audit was inserted and FALSE in otherwise
+   * @throws SQLException
+   */
+  public boolean insertAudits(List<Audit> audits) throws SQLException {
+    try (PreparedStatement p = connectionLocal.get().prepareStatement(INSERT_AUDIT_QUERY)) {
+      for (Audit audit : audits) {
+        setInsertAuditParameters(p, audit);
+        p.addBatch();
+      }
+
+      return countBatchUpdates(p.executeBatch()) == audits.size();
+    }
+  }
+
+  private void setInsertAuditParameters(PreparedStatement p, Audit audit) throws SQLException {
+    p.setString(1, audit.getBucket());
+    //The key could be NULL if the operation is about bucket
+    p.setString(2, audit.getKey() == null ? "" : audit.getKey());
+    p.setString(3, audit.getOperation().getValue());
+    //The versionChecksum could be NULL if the operation is about bucket
+    p.setString(4, audit.getUuid() == null ? "" : audit.getUuid().toString());
+  }
+
   /**
    * List the audit table
    *
@@ -1154,10 +1920,23 @@ public abstract class SqlService {
    * @throws SQLException
    */
   public List<Audit> listAuditRecords(Integer offset, Integer limit) throws SQLException, RepoException {
+    return listAuditRecords(offset, limit, null);
+  }
+
+  /**
+   * Returns a list of audit records order by id, starting right after the record recorded by <code>pageToken</code>
+   * if it is not null.
+   */
+  public List<Audit> listAuditRecords(Integer offset, Integer limit, PageToken pageToken) throws SQLException, RepoException {
     List<Audit> auditRecords = new ArrayList<>();
 
-    String query = "SELECT * FROM audit a ORDER BY a.id LIMIT " + limit + " OFFSET " + offset;
+    String query = "SELECT * FROM audit a " + (pageToken != null ? "WHERE a.id > ? " : "")
+        + "ORDER BY a.id LIMIT " + limit + " OFFSET " + offset;
     try (PreparedStatement p = connectionLocal.get().prepareStatement(query)) {
+      if (pageToken != null) {
+        p.setInt(1, pageToken.getId());
+      }
+
       try (ResultSet result = p.executeQuery()) {
         while (result.next()) {
           auditRecords.add(mapAuditRow(result));
@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.plos.repo.util.ChecksumGenerator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies uploads to their staging location while computing their SHA-1 and MD5 in the same pass. Every upload takes
+ * a small ring of direct buffers from a bounded pool shared by all the uploads. While the request thread reads the
+ * next buffer, the previous ones are hashed and written by two other threads, so the network read, the digests and
+ * the write overlap instead of running one after the other.
+ */
+public class UploadPipeline {
+
+  public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+  // 64 MiB of direct memory, enough for 64 uploads at once before they wait for each other
+  public static final int DEFAULT_POOL_SIZE = 256;
+
+  // buffers of a single upload: one being read, one being hashed and written, and some slack between the stages
+  public static final int RING_SIZE = 4;
+
+  private static final long STAGE_POLL_MILLIS = 100;
+
+  private static final UploadPipeline SHARED = new UploadPipeline(DEFAULT_BUFFER_SIZE, DEFAULT_POOL_SIZE);
+
+  // marks the end of the content in the queue of a stage
+  private static final Slot END = new Slot(null);
+
+  /**
+   * What was learned about the content while it was copied.
+   */
+  public static class Result {
+
+    private final long size;
+    private final String checksum;
+    private final String contentMd5;
+
+    private Result(long size, String checksum, String contentMd5) {
+      this.size = size;
+      this.checksum = checksum;
+      this.contentMd5 = contentMd5;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    /**
+     * @return the hex SHA-1 of the content, as returned by {@link ChecksumGenerator#checksumToString}
+     */
+    public String getChecksum() {
+      return checksum;
+    }
+
+    /**
+     * @return the base64 MD5 of the content, as sent in a Content-MD5 header
+     */
+    public String getContentMd5() {
+      return contentMd5;
+    }
+  }
+
+  /**
+   * A buffer of the ring, returned to the reader once both the digest and the write stages are done with it.
+   */
+  private static class Slot {
+
+    private final ByteBuffer buffer;
+    private final AtomicInteger stagesLeft = new AtomicInteger();
+
+    Slot(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    void done(Queue<Slot> free) {
+      if (stagesLeft.decrementAndGet() == 0) {
+        free.add(this);
+      }
+    }
+  }
+
+  private final int bufferSize;
+
+  private final int poolSize;
+
+  private final Semaphore poolPermits;
+
+  private final Queue<ByteBuffer> idleBuffers = new ConcurrentLinkedQueue<>();
+
+  private final ExecutorService stageExecutor = Executors.newCachedThreadPool(
+      new ThreadFactoryBuilder().setNameFormat("upload-pipeline-%d").setDaemon(true).build());
+
+  /**
+   * @param bufferSize the size of each direct buffer
+   * @param poolSize   the most direct buffers allocated at once; uploads wait for a ring to be free beyond that
+   */
+  public UploadPipeline(int bufferSize, int poolSize) {
+    if (poolSize < RING_SIZE) {
+      throw new IllegalArgumentException("The pool must hold at least " + RING_SIZE + " buffers");
+    }
+
+    this.bufferSize = bufferSize;
+    this.poolSize = poolSize;
+    this.poolPermits = new Semaphore(poolSize, true);
+  }
+
+  /**
+   * @return the pipeline shared by all the object stores
+   */
+  public static UploadPipeline getShared() {
+    return SHARED;
+  }
+
+  /**
+   * @return the number of direct buffers not taken by an upload
+   */
+  public int getAvailableBuffers() {
+    return poolPermits.availablePermits();
+  }
+
+  public int getPoolSize() {
+    return poolSize;
+  }
+
+  /**
+   * Copy <code>in</code> to <code>out</code> until the end of <code>in</code>. Neither of them is closed.
+   *
+   * @return the size and digests of the content
+   * @throws IOException if the content could not be read or written
+   */
+  public Result transfer(InputStream in, WritableByteChannel out) throws IOException {
+    try {
+      poolPermits.acquire(RING_SIZE);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for upload buffers");
+    }
+
+    List<ByteBuffer> ring = new ArrayList<>(RING_SIZE);
+
+    try {
+      for (int i = 0; i < RING_SIZE; i++) {
+        ByteBuffer buffer = idleBuffers.poll();
+        ring.add(buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize));
+      }
+
+      return transfer(in, out, ring);
+    } finally {
+      for (ByteBuffer buffer : ring) {
+        buffer.clear();
+        idleBuffers.add(buffer);
+      }
+
+      poolPermits.release(RING_SIZE);
+    }
+  }
+
+  private Result transfer(InputStream in, final WritableByteChannel out, List<ByteBuffer> ring) throws IOException {
+    final MessageDigest sha1;
+    final MessageDigest md5;
+
+    try {
+      sha1 = ChecksumGenerator.getDigestMessage();
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (RepoException | NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+
+    final BlockingQueue<Slot> free = new ArrayBlockingQueue<>(ring.size());
+    for (ByteBuffer buffer : ring) {
+      free.add(new Slot(buffer));
+    }
+
+    // room for every slot and the end marker, so the reader never blocks on a stage that failed
+    final BlockingQueue<Slot> toDigest = new ArrayBlockingQueue<>(ring.size() + 1);
+    final BlockingQueue<Slot> toWrite = new ArrayBlockingQueue<>(ring.size() + 1);
+
+    Future<?> digestStage = stageExecutor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        Slot slot;
+        while ((slot = toDigest.take()) != END) {
+          sha1.update(slot.buffer.duplicate());
+          md5.update(slot.buffer.duplicate());
+          slot.done(free);
+        }
+        return null;
+      }
+    });
+
+    Future<?> writeStage = stageExecutor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        Slot slot;
+        while ((slot = toWrite.take()) != END) {
+          ByteBuffer content = slot.buffer.duplicate();
+          while (content.hasRemaining()) {
+            out.write(content);
+          }
+          slot.done(free);
+        }
+        return null;
+      }
+    });
+
+    long size = 0;
+
+    try {
+      ReadableByteChannel channel = Channels.newChannel(in);
+      boolean eof = false;
+
+      while (!eof) {
+        Slot slot = nextFreeSlot(free, digestStage, writeStage);
+
+        slot.buffer.clear();
+        while (slot.buffer.hasRemaining()) {
+          if (channel.read(slot.buffer) == -1) {
+            eof = true;
+            break;
+          }
+        }
+        slot.buffer.flip();
+
+        if (slot.buffer.hasRemaining()) {
+          size += slot.buffer.remaining();
+          slot.stagesLeft.set(2);
+          toDigest.add(slot);
+          toWrite.add(slot);
+        } else {
+          free.add(slot);
+        }
+      }
+    } finally {
+      toDigest.add(END);
+      toWrite.add(END);
+
+      awaitStage(digestStage);
+      awaitStage(writeStage);
+    }
+
+    return new Result(size, ChecksumGenerator.checksumToString(sha1.digest()),
+        Base64.getEncoder().encodeToString(md5.digest()));
+  }
+
+  /**
+   * Wait for a buffer the stages are done with, failing as soon as one of the stages does.
+   */
+  private static Slot nextFreeSlot(BlockingQueue<Slot> free, Future<?>... stages) throws IOException {
+    while (true) {
+      Slot slot;
+      try {
+        slot = free.poll(STAGE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for an upload buffer");
+      }
+
+      if (slot != null) {
+        return slot;
+      }
+
+      for (Future<?> stage : stages) {
+        if (stage.isDone()) {
+          awaitStage(stage);
+          throw new IOException("An upload stage stopped before the end of the content");
+        }
+      }
+    }
+  }
+
+  private static void awaitStage(Future<?> stage) throws IOException {
+    try {
+      Uninterruptibles.getUninterruptibly(stage);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.util;
+
+import org.plos.repo.service.RepoException;
+
+/**
+ * A single byte range of an object content, as requested with an HTTP <code>Range</code> header (RFC 7233).
+ */
+public class ByteRange {
+
+  private static final String BYTES_UNIT = "bytes=";
+
+  private final long offset;
+
+  private final long length;
+
+  public ByteRange(long offset, long length) {
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /**
+   * Parse the given <code>Range</code> header value against an object of <code>contentLength</code> bytes. Only a
+   * single range is supported; multiple ranges, other units or a malformed header return null, meaning the whole
+   * content should be sent.
+   *
+   * @param rangeHeader   the value of the Range header
+   * @param contentLength the size of the object content
+   * @return the {@link org.plos.repo.util.ByteRange} requested, or null if the header should be ignored
+   * @throws RepoException of type RangeNotSatisfiable if the range does not overlap the content
+   */
+  public static ByteRange parse(String rangeHeader, long contentLength) throws RepoException {
+    if (rangeHeader == null || !rangeHeader.trim().startsWith(BYTES_UNIT)) {
+      return null;
+    }
+
+    String spec = rangeHeader.trim().substring(BYTES_UNIT.length()).trim();
+    int dash = spec.indexOf('-');
+
+    if (spec.contains(",") || dash < 0) {
+      return null;
+    }
+
+    String first = spec.substring(0, dash).trim();
+    String last = spec.substring(dash + 1).trim();
+
+    try {
+      if (first.isEmpty()) {
+        // suffix range, the last N bytes
+        long suffixLength = Long.parseLong(last);
+
+        if (suffixLength <= 0 || contentLength == 0) {
+          throw new RepoException(RepoException.Type.RangeNotSatisfiable);
+        }
+
+        long length = Math.min(suffixLength, contentLength);
+        return new ByteRange(contentLength - length, length);
+      }
+
+      long firstPos = Long.parseLong(first);
+      long lastPos = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+
+      if (firstPos < 0 || lastPos < firstPos) {
+        return null;
+      }
+
+      if (firstPos >= contentLength) {
+        throw new RepoException(RepoException.Type.RangeNotSatisfiable);
+      }
+
+      lastPos = Math.min(lastPos, contentLength - 1);
+      return new ByteRange(firstPos, lastPos - firstPos + 1);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  public long getOffset() {
+    return offset;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  public long getLast() {
+    return offset + length - 1;
+  }
+
+  /**
+   * @param contentLength the size of the object content
+   * @return the value of the <code>Content-Range</code> header for this range
+   */
+  public String toContentRange(long contentLength) {
+    return "bytes " + offset + "-" + getLast() + "/" + contentLength;
+  }
+
+}
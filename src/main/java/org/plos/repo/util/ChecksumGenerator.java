@@ -24,6 +24,7 @@ package org.plos.repo.util;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
 
 import org.apache.commons.codec.binary.Hex;
 import org.plos.repo.service.RepoException;
@@ -35,6 +36,8 @@ public class ChecksumGenerator {
 
   private static final String DIGEST_ALGORITHM = "SHA-1";
 
+  private static final Pattern CHECKSUM_PATTERN = Pattern.compile("[0-9a-f]{40}");
+
   public static MessageDigest getDigestMessage() throws RepoException {
     try {
       MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
@@ -48,5 +51,12 @@ public class ChecksumGenerator {
   public static String checksumToString(byte[] checksum) {
     return new String(Hex.encodeHex(checksum));
   }
+
+  /**
+   * @return true if <code>checksum</code> has the format of the strings returned by {@link #checksumToString}
+   */
+  public static boolean isValidChecksum(String checksum) {
+    return checksum != null && CHECKSUM_PATTERN.matcher(checksum).matches();
+  }
 }
 
@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the parts of a <code>multipart/form-data</code> body (RFC 7578) in the order they are sent, straight from the
+ * request stream. Nothing is buffered beyond a fixed size window, so the content of a file part can be piped to its
+ * destination as it arrives.
+ */
+public class MultipartFormReader {
+
+  /**
+   * The body is not a well formed multipart form, or not in the order the reader was asked for.
+   */
+  public static class MultipartFormException extends IOException {
+
+    private static final long serialVersionUID = -1787013521403236367L;
+
+    public MultipartFormException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * One part of the form. Its content must be read before the next part is requested, after which it is skipped.
+   */
+  public static class Part {
+
+    private final String name;
+    private final String fileName;
+    private final String contentType;
+    private final InputStream content;
+
+    private Part(String name, String fileName, String contentType, InputStream content) {
+      this.name = name;
+      this.fileName = fileName;
+      this.contentType = contentType;
+      this.content = content;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getFileName() {
+      return fileName;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public InputStream getInputStream() {
+      return content;
+    }
+
+    /**
+     * @return the content of a text field, decoded as UTF-8
+     * @throws MultipartFormException if the content is longer than <code>maxBytes</code>
+     */
+    public String getString(int maxBytes) throws IOException {
+      // fields are usually a few bytes, so grow with the content rather than reserving maxBytes up front
+      ByteArrayOutputStream value = new ByteArrayOutputStream();
+      byte[] chunk = new byte[(int) Math.min(maxBytes + 1L, 8 * 1024)];
+      int n;
+
+      while ((n = content.read(chunk)) != -1) {
+        if (n > maxBytes - value.size()) {
+          throw new MultipartFormException("The form field " + name + " is too long");
+        }
+        value.write(chunk, 0, n);
+      }
+
+      return new String(value.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int MAX_HEADER_LINE = 8 * 1024;
+
+  private static final Pattern BOUNDARY_PATTERN = Pattern.compile("(?i);\\s*boundary=(\"([^\"]*)\"|[^;\\s]+)");
+
+  private static final Pattern NAME_PATTERN = Pattern.compile("(?i);\\s*name=\"([^\"]*)\"");
+
+  private static final Pattern FILE_NAME_PATTERN = Pattern.compile("(?i);\\s*filename=\"([^\"]*)\"");
+
+  private final InputStream in;
+
+  // the line break before the boundary belongs to the delimiter, not to the content of the part
+  private final byte[] delimiter;
+
+  private final byte[] buffer;
+
+  private int position;
+
+  private int limit;
+
+  private PartInputStream current;
+
+  private boolean finished;
+
+  public MultipartFormReader(InputStream in, String boundary) {
+    this.in = in;
+    this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.US_ASCII);
+    this.buffer = new byte[Math.max(BUFFER_SIZE, 2 * MAX_HEADER_LINE)];
+
+    // the first delimiter may start the body, without a line break before it
+    buffer[limit++] = '\r';
+    buffer[limit++] = '\n';
+
+    // what comes before the first delimiter is a preamble to skip
+    current = new PartInputStream();
+  }
+
+  /**
+   * @return the boundary parameter of a multipart <code>Content-Type</code> header, or null if there is none
+   */
+  public static String getBoundary(String contentType) {
+    if (contentType == null) {
+      return null;
+    }
+
+    Matcher matcher = BOUNDARY_PATTERN.matcher(contentType);
+
+    if (!matcher.find()) {
+      return null;
+    }
+
+    return matcher.group(2) != null ? matcher.group(2) : matcher.group(1);
+  }
+
+  /**
+   * Skip what is left of the current part and read the headers of the next one.
+   *
+   * @return the next part, or null once the closing delimiter is read
+   * @throws MultipartFormException if the body is not well formed
+   */
+  public Part nextPart() throws IOException {
+    if (finished) {
+      return null;
+    }
+
+    byte[] skipped = new byte[4096];
+    while (current.read(skipped) != -1) {
+      // the rest of the previous part is not wanted
+    }
+
+    if (!fill(2)) {
+      throw new MultipartFormException("The multipart body ends without a closing delimiter");
+    }
+
+    if (buffer[position] == '-' && buffer[position + 1] == '-') {
+      finished = true;
+      return null;
+    }
+
+    // the rest of the delimiter line is transport padding
+    readLine();
+
+    Map<String, String> headers = new HashMap<>();
+    String line;
+
+    while (!(line = readLine()).isEmpty()) {
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ENGLISH), line.substring(colon + 1).trim());
+      }
+    }
+
+    String disposition = headers.get("content-disposition");
+    if (disposition == null) {
+      throw new MultipartFormException("A form part does not have a Content-Disposition header");
+    }
+
+    current = new PartInputStream();
+
+    return new Part(getParameter(NAME_PATTERN, disposition), getParameter(FILE_NAME_PATTERN, disposition),
+        headers.get("content-type"), current);
+  }
+
+  /**
+   * Wrap the content of <code>part</code> so that, once it is read to its end, the body is checked to end there as
+   * well. Used for a file part, which must be the last one since the form is not buffered.
+   */
+  public InputStream asLastPart(final Part part) {
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = part.getInputStream().read(b, off, len);
+
+        if (n == -1 && nextPart() != null) {
+          throw new MultipartFormException("The form part " + part.getName() + " must be the last one");
+        }
+
+        return n;
+      }
+    };
+  }
+
+  private static String getParameter(Pattern pattern, String header) {
+    Matcher matcher = pattern.matcher(header);
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  /**
+   * Make sure at least <code>count</code> bytes are buffered, reading as much as the stream gives at once.
+   *
+   * @return false if the stream ends before
+   */
+  private boolean fill(int count) throws IOException {
+    if (limit - position >= count) {
+      return true;
+    }
+
+    System.arraycopy(buffer, position, buffer, 0, limit - position);
+    limit -= position;
+    position = 0;
+
+    while (limit < count) {
+      int n = in.read(buffer, limit, buffer.length - limit);
+
+      if (n == -1) {
+        return false;
+      }
+
+      limit += n;
+    }
+
+    return true;
+  }
+
+  private String readLine() throws IOException {
+    int scanned = 0;
+
+    while (true) {
+      for (int i = position + scanned; i < limit; i++) {
+        if (buffer[i] == '\n') {
+          int end = i > position && buffer[i - 1] == '\r' ? i - 1 : i;
+          String line = new String(buffer, position, end - position, StandardCharsets.UTF_8);
+          position = i + 1;
+          return line;
+        }
+      }
+
+      scanned = limit - position;
+
+      if (scanned >= MAX_HEADER_LINE) {
+        throw new MultipartFormException("A form part header line is too long");
+      }
+
+      if (!fill(scanned + 1)) {
+        throw new MultipartFormException("The multipart body ends in the headers of a part");
+      }
+    }
+  }
+
+  /**
+   * The content of a part, up to the next delimiter.
+   */
+  private class PartInputStream extends InputStream {
+
+    private boolean ended;
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (ended) {
+        return -1;
+      }
+
+      if (len == 0) {
+        return 0;
+      }
+
+      if (!fill(delimiter.length)) {
+        throw new MultipartFormException("The multipart body ends in the content of a part");
+      }
+
+      int index = indexOfDelimiter();
+
+      if (index == position) {
+        position += delimiter.length;
+        ended = true;
+        return -1;
+      }
+
+      // without a whole delimiter in the buffer, its first bytes may be at the end, so they are kept
+      int available = index >= 0 ? index - position : limit - position - (delimiter.length - 1);
+      int n = Math.min(len, available);
+
+      System.arraycopy(buffer, position, b, off, n);
+      position += n;
+
+      return n;
+    }
+
+    private int indexOfDelimiter() {
+      int last = limit - delimiter.length;
+
+      for (int i = position; i <= last; i++) {
+        if (buffer[i] != delimiter[0]) {
+          continue;
+        }
+
+        int j = 1;
+        while (j < delimiter.length && buffer[i + j] == delimiter[j]) {
+          j++;
+        }
+
+        if (j == delimiter.length) {
+          return i;
+        }
+      }
+
+      return -1;
+    }
+  }
+
+}
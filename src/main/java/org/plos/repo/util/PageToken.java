@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.plos.repo.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import org.plos.repo.service.RepoException;
+
+/**
+ * Opaque continuation token for keyset pagination. Objects and collections are listed in
+ * (bucketId, key, versionNumber) order, audit records in id order, and the token records the position of the last
+ * element of a page so the next page can start right after it instead of skipping rows with an offset.
+ */
+public class PageToken {
+
+  /**
+   * Response header carrying the token of the next page. It is only present when the page is full.
+   */
+  public static final String NEXT_PAGE_HEADER = "X-Next-Page-Token";
+
+  private static final BaseEncoding ENCODING = BaseEncoding.base64Url().omitPadding();
+
+  private static final char SEPARATOR = ':';
+
+  private static final String ELEMENT_PREFIX = "e";
+
+  private static final String ID_PREFIX = "i";
+
+  private final Integer bucketId;
+
+  private final String key;
+
+  private final Integer versionNumber;
+
+  private final Integer id;
+
+  private PageToken(Integer bucketId, String key, Integer versionNumber, Integer id) {
+    this.bucketId = bucketId;
+    this.key = key;
+    this.versionNumber = versionNumber;
+    this.id = id;
+  }
+
+  public static PageToken afterElement(Integer bucketId, String key, Integer versionNumber) {
+    return new PageToken(bucketId, key, versionNumber, null);
+  }
+
+  public static PageToken afterId(Integer id) {
+    return new PageToken(null, null, null, id);
+  }
+
+  public Integer getBucketId() {
+    return bucketId;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public Integer getVersionNumber() {
+    return versionNumber;
+  }
+
+  public Integer getId() {
+    return id;
+  }
+
+  public String encode() {
+    String value = id != null
+        ? ID_PREFIX + SEPARATOR + id
+        : ELEMENT_PREFIX + SEPARATOR + bucketId + SEPARATOR + versionNumber + SEPARATOR + key;
+
+    return ENCODING.encode(value.getBytes(Charsets.UTF_8));
+  }
+
+  /**
+   * @param token a token returned by {@link #encode()} for an object or collection listing, or null
+   * @return the decoded token, or null if <code>token</code> is null
+   * @throws RepoException of type InvalidPageToken if the token is malformed
+   */
+  public static PageToken decodeElement(String token) throws RepoException {
+    if (token == null) {
+      return null;
+    }
+
+    String[] fields = decode(token, ELEMENT_PREFIX, 4);
+    return afterElement(parseInt(fields[1]), fields[3], parseInt(fields[2]));
+  }
+
+  /**
+   * @param token a token returned by {@link #encode()} for an audit listing, or null
+   * @return the decoded token, or null if <code>token</code> is null
+   * @throws RepoException of type InvalidPageToken if the token is malformed
+   */
+  public static PageToken decodeId(String token) throws RepoException {
+    if (token == null) {
+      return null;
+    }
+
+    String[] fields = decode(token, ID_PREFIX, 2);
+    return afterId(parseInt(fields[1]));
+  }
+
+  private static String[] decode(String token, String prefix, int fieldCount) throws RepoException {
+    String value;
+
+    try {
+      value = new String(ENCODING.decode(token), Charsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      throw new RepoException(RepoException.Type.InvalidPageToken);
+    }
+
+    // the key is the last field and may itself contain the separator
+    String[] fields = value.split(String.valueOf(SEPARATOR), fieldCount);
+
+    if (fields.length != fieldCount || !prefix.equals(fields[0])) {
+      throw new RepoException(RepoException.Type.InvalidPageToken);
+    }
+
+    return fields;
+  }
+
+  private static Integer parseInt(String value) throws RepoException {
+    try {
+      return Integer.valueOf(value);
+    } catch (NumberFormatException e) {
+      throw new RepoException(RepoException.Type.InvalidPageToken);
+    }
+  }
+
+}
@@ -42,6 +42,7 @@ import java.util.Iterator;
 
 import static junit.framework.TestCase.assertNotNull;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class CollectionControllerTest extends RepoBaseJerseyTest {
 
@@ -290,6 +291,35 @@ public class CollectionControllerTest extends RepoBaseJerseyTest {
     assertEquals(response.getStatus(), Response.Status.NOT_FOUND.getStatusCode());
   }
 
+  @Test
+  public void createCollectionReportsAllMissingObjects() {
+    generateBuckets(bucketName);
+    String uuidObj1 = createObject(bucketName, objectName1, contentType1);
+
+    InputCollection inputCollection = new InputCollection();
+    inputCollection.setBucketName(bucketName);
+    inputCollection.setKey("missingMembers");
+    inputCollection.setCreate("new");
+    inputCollection.setObjects(Arrays.asList(
+        new InputObject("missing1", "046b6c7f-0b8a-43b9-b35d-6489e6daee91"),
+        new InputObject(objectName1, uuidObj1),
+        new InputObject(objectName2, uuidObj1)));
+    Entity<InputCollection> collectionEntity = Entity.entity(inputCollection, MediaType.APPLICATION_JSON_TYPE);
+
+    Response response = target("/collections").request()
+        .accept(MediaType.APPLICATION_JSON_TYPE)
+        .post(collectionEntity);
+    assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+
+    JsonObject responseObj = gson.fromJson(response.readEntity(String.class), JsonElement.class).getAsJsonObject();
+    assertEquals(RepoException.Type.ObjectCollectionNotFound.getValue(), responseObj.get("repoErrorCode").getAsInt());
+
+    JsonArray details = responseObj.get("details").getAsJsonArray();
+    assertEquals(2, details.size());
+    assertEquals("key: missing1, uuid: 046b6c7f-0b8a-43b9-b35d-6489e6daee91", details.get(0).getAsString());
+    assertEquals("key: " + objectName2 + ", uuid: " + uuidObj1, details.get(1).getAsString());
+  }
+
   @Test
   public void createColletionNonexistingObject() {
     generateBuckets(bucketName);
@@ -362,6 +392,34 @@ public class CollectionControllerTest extends RepoBaseJerseyTest {
     assertEquals("collection2", next.get("key").getAsString());
   }
 
+  @Test
+  public void listCollectionsWithObjects() {
+    generateCollectionData();
+
+    Response response = target("/collections").queryParam("bucketName", bucketName)
+        .queryParam("includeObjects", "true")
+        .request(MediaType.APPLICATION_JSON_TYPE)
+        .accept(MediaType.APPLICATION_JSON_TYPE)
+        .get();
+    assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+    JsonArray responseObj = gson.fromJson(response.readEntity(String.class), JsonElement.class).getAsJsonArray();
+    assertEquals(2, responseObj.size());
+    assertEquals(0, responseObj.get(0).getAsJsonObject().get("versionNumber").getAsInt());
+    assertEquals(1, responseObj.get(0).getAsJsonObject().get("objects").getAsJsonArray().size());
+    assertEquals(1, responseObj.get(1).getAsJsonObject().get("versionNumber").getAsInt());
+    assertEquals(2, responseObj.get(1).getAsJsonObject().get("objects").getAsJsonArray().size());
+
+    response = target("/collections").queryParam("bucketName", bucketName)
+        .request(MediaType.APPLICATION_JSON_TYPE)
+        .accept(MediaType.APPLICATION_JSON_TYPE)
+        .get();
+
+    responseObj = gson.fromJson(response.readEntity(String.class), JsonElement.class).getAsJsonArray();
+    assertEquals(2, responseObj.size());
+    assertNull(responseObj.get(0).getAsJsonObject().get("objects"));
+  }
+
   @Test
   public void getCollectionsWithPagination() {
     generateBuckets(bucketName);
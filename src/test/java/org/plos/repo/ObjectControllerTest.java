@@ -29,9 +29,13 @@ import junit.framework.TestCase;
 import org.apache.commons.io.IOUtils;
 import org.glassfish.jersey.media.multipart.FormDataMultiPart;
 import org.junit.Test;
+import org.plos.repo.rest.ObjectController;
 import org.plos.repo.service.RepoException;
+import org.plos.repo.util.ChecksumGenerator;
+import org.plos.repo.util.PageToken;
 
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.Form;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -40,10 +44,15 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * ObjectController test. Real implementations of dependencies (services, daos, validatores) are being used. The only
@@ -175,6 +184,43 @@ public class ObjectControllerTest extends RepoBaseJerseyTest {
     );
   }
 
+  @Test
+  public void readRange() {
+    createBucket(bucketName, CREATION_DATE_TIME);
+
+    assertEquals(target("/objects").request()
+            .post(Entity.entity(new FormDataMultiPart()
+                    .field("bucketName", bucketName).field("create", "new")
+                    .field("key", "rangeObject").field("contentType", "text/plain")
+                    .field("file", testData1, MediaType.TEXT_PLAIN_TYPE),
+                MediaType.MULTIPART_FORM_DATA
+            )).getStatus(),
+        Response.Status.CREATED.getStatusCode()
+    );
+
+    Response response = target("/objects/" + bucketName).queryParam("key", "rangeObject").request()
+        .header("Range", "bytes=5-8").get();
+    assertEquals(Response.Status.PARTIAL_CONTENT.getStatusCode(), response.getStatus());
+    assertEquals("bytes 5-8/" + testData1.length(), response.getHeaderString("Content-Range"));
+    assertEquals(testData1.substring(5, 9), response.readEntity(String.class));
+
+    response = target("/objects/" + bucketName).queryParam("key", "rangeObject").request()
+        .header("Range", "bytes=-5").get();
+    assertEquals(Response.Status.PARTIAL_CONTENT.getStatusCode(), response.getStatus());
+    assertEquals(testData1.substring(testData1.length() - 5), response.readEntity(String.class));
+
+    // a stale If-Range validator sends the whole content
+    response = target("/objects/" + bucketName).queryParam("key", "rangeObject").request()
+        .header("Range", "bytes=5-8").header("If-Range", "\"staleChecksum\"").get();
+    assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+    assertEquals(testData1, response.readEntity(String.class));
+
+    response = target("/objects/" + bucketName).queryParam("key", "rangeObject").request()
+        .header("Range", "bytes=" + testData1.length() + "-").get();
+    assertEquals(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE.getStatusCode(), response.getStatus());
+    assertEquals("bytes */" + testData1.length(), response.getHeaderString("Content-Range"));
+  }
+
   @Test
   public void createVersionWithoutOrig() {
     createBucket(bucketName, CREATION_DATE_TIME);
@@ -427,6 +473,341 @@ public class ObjectControllerTest extends RepoBaseJerseyTest {
     }
   }
 
+  @Test
+  public void pageToken() {
+    createBucket(bucketName, CREATION_DATE_TIME);
+
+    int count = 5;
+    for (int i = count - 1; i >= 0; --i) {
+      assertEquals(target("/objects").request()
+              .accept(MediaType.APPLICATION_JSON_TYPE)
+              .post(Entity.entity(new FormDataMultiPart()
+                      .field("bucketName", bucketName).field("create", "new")
+                      .field("key", "page" + i).field("contentType", "text/plain")
+                      .field("file", "value" + i, MediaType.TEXT_PLAIN_TYPE),
+                  MediaType.MULTIPART_FORM_DATA
+              )).getStatus(),
+          Response.Status.CREATED.getStatusCode()
+      );
+    }
+
+    List<String> keys = new ArrayList<>();
+    String pageToken = null;
+    int pages = 0;
+
+    do {
+      WebTarget page = target("/objects").queryParam("bucketName", bucketName).queryParam("limit", 2);
+      if (pageToken != null) {
+        page = page.queryParam("pageToken", pageToken);
+      }
+
+      Response response = page.request().accept(MediaType.APPLICATION_JSON_TYPE).get();
+      assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+      JsonArray jsonArray = gson.fromJson(response.readEntity(String.class), JsonElement.class).getAsJsonArray();
+      for (JsonElement element : jsonArray) {
+        keys.add(element.getAsJsonObject().get("key").getAsString());
+      }
+
+      pageToken = response.getHeaderString(PageToken.NEXT_PAGE_HEADER);
+      pages++;
+    } while (pageToken != null);
+
+    assertEquals(Arrays.asList("page0", "page1", "page2", "page3", "page4"), keys);
+    assertEquals(3, pages);
+
+    assertRepoError(target("/objects").queryParam("bucketName", bucketName).queryParam("pageToken", "not a token")
+            .request().accept(MediaType.APPLICATION_JSON_TYPE).get(),
+        Response.Status.BAD_REQUEST, RepoException.Type.InvalidPageToken);
+  }
+
+  @Test
+  public void streamObjects() {
+    createBucket(bucketName, CREATION_DATE_TIME);
+
+    for (int i = 0; i < 3; ++i) {
+      assertEquals(target("/objects").request()
+              .accept(MediaType.APPLICATION_JSON_TYPE)
+              .post(Entity.entity(new FormDataMultiPart()
+                      .field("bucketName", bucketName).field("create", "new")
+                      .field("key", "stream" + i).field("contentType", "text/plain")
+                      .field("file", "value" + i, MediaType.TEXT_PLAIN_TYPE),
+                  MediaType.MULTIPART_FORM_DATA
+              )).getStatus(),
+          Response.Status.CREATED.getStatusCode()
+      );
+    }
+
+    Response response = target("/objects").queryParam("bucketName", bucketName).request()
+        .accept(ObjectController.APPLICATION_NDJSON).get();
+    assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+    assertEquals(ObjectController.APPLICATION_NDJSON, response.getMediaType().toString());
+
+    String[] lines = response.readEntity(String.class).split("\n");
+    assertEquals(3, lines.length);
+    for (int i = 0; i < lines.length; ++i) {
+      JsonObject object = gson.fromJson(lines[i], JsonElement.class).getAsJsonObject();
+      assertEquals("stream" + i, object.get("key").getAsString());
+      assertEquals("USED", object.get("status").getAsString());
+    }
+
+    // a client accepting anything keeps getting the JSON array
+    response = target("/objects").queryParam("bucketName", bucketName).request().accept(MediaType.WILDCARD).get();
+    assertEquals(MediaType.APPLICATION_JSON_TYPE, response.getMediaType());
+    assertEquals(3, gson.fromJson(response.readEntity(String.class), JsonElement.class).getAsJsonArray().size());
+
+    assertRepoError(target("/objects").queryParam("bucketName", "nobucket").request()
+            .accept(ObjectController.APPLICATION_NDJSON).get(),
+        Response.Status.NOT_FOUND, RepoException.Type.BucketNotFound);
+  }
+
+  @Test
+  public void createBatch() {
+    createBucket(bucketName, CREATION_DATE_TIME);
+
+    assertEquals(target("/objects").request()
+            .post(Entity.entity(new FormDataMultiPart()
+                    .field("bucketName", bucketName).field("create", "new")
+                    .field("key", "existing").field("contentType", "text/plain")
+                    .field("file", "existing content", MediaType.TEXT_PLAIN_TYPE),
+                MediaType.MULTIPART_FORM_DATA
+            )).getStatus(),
+        Response.Status.CREATED.getStatusCode()
+    );
+
+    // a new object, a version of an existing one and a metadata only version of the object created in the batch
+    String objects = "[{\"bucketName\":\"" + bucketName + "\",\"key\":\"batch1\",\"create\":\"new\",\"file\":\"f1\"}," +
+        "{\"bucketName\":\"" + bucketName + "\",\"key\":\"existing\",\"create\":\"version\",\"file\":\"f2\"}," +
+        "{\"bucketName\":\"" + bucketName + "\",\"key\":\"batch1\",\"create\":\"auto\",\"contentType\":\"text/html\"}]";
+
+    Response response = target("/objects/batch").request(MediaType.APPLICATION_JSON_TYPE)
+        .post(Entity.entity(new FormDataMultiPart()
+                .field("objects", objects)
+                .field("f1", "batch content 1", MediaType.TEXT_PLAIN_TYPE)
+                .field("f2", "batch content 2", MediaType.TEXT_PLAIN_TYPE),
+            MediaType.MULTIPART_FORM_DATA));
+    assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+
+    JsonArray outcomes = gson.fromJson(response.readEntity(String.class), JsonElement.class).getAsJsonArray();
+    assertEquals(3, outcomes.size());
+    int[] versionNumbers = {0, 1, 1};
+    for (int i = 0; i < outcomes.size(); ++i) {
+      JsonObject outcome = outcomes.get(i).getAsJsonObject();
+      assertEquals(i, outcome.get("index").getAsInt());
+      assertEquals("CREATED", outcome.get("outcome").getAsString());
+      assertEquals(versionNumbers[i], outcome.getAsJsonObject("object").get("versionNumber").getAsInt());
+    }
+    JsonObject metadataVersion = outcomes.get(2).getAsJsonObject().getAsJsonObject("object");
+    assertEquals("text/html", metadataVersion.get("contentType").getAsString());
+    assertEquals(outcomes.get(0).getAsJsonObject().getAsJsonObject("object").get("checksum").getAsString(),
+        metadataVersion.get("checksum").getAsString());
+
+    assertEquals("batch content 2", target("/objects/" + bucketName).queryParam("key", "existing")
+        .request().get(String.class));
+
+    // a used key fails the whole batch
+    objects = "[{\"bucketName\":\"" + bucketName + "\",\"key\":\"batch2\",\"create\":\"new\",\"file\":\"f1\"}," +
+        "{\"bucketName\":\"" + bucketName + "\",\"key\":\"existing\",\"create\":\"new\",\"file\":\"f2\"}]";
+
+    response = target("/objects/batch").request(MediaType.APPLICATION_JSON_TYPE)
+        .post(Entity.entity(new FormDataMultiPart()
+                .field("objects", objects)
+                .field("f1", "batch content 3", MediaType.TEXT_PLAIN_TYPE)
+                .field("f2", "batch content 4", MediaType.TEXT_PLAIN_TYPE),
+            MediaType.MULTIPART_FORM_DATA));
+    assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+
+    outcomes = gson.fromJson(response.readEntity(String.class), JsonElement.class).getAsJsonArray();
+    assertEquals("ABORTED", outcomes.get(0).getAsJsonObject().get("outcome").getAsString());
+    assertEquals(RepoException.Type.BatchAborted.getValue(),
+        outcomes.get(0).getAsJsonObject().getAsJsonObject("error").get("repoErrorCode").getAsInt());
+    assertEquals("FAILED", outcomes.get(1).getAsJsonObject().get("outcome").getAsString());
+    assertEquals(RepoException.Type.CantCreateNewObjectWithUsedKey.getValue(),
+        outcomes.get(1).getAsJsonObject().getAsJsonObject("error").get("repoErrorCode").getAsInt());
+
+    assertRepoError(target("/objects/meta/" + bucketName).queryParam("key", "batch2").request().get(),
+        Response.Status.NOT_FOUND, RepoException.Type.ObjectNotFound);
+
+    // a file part that is not in the request
+    response = target("/objects/batch").request(MediaType.APPLICATION_JSON_TYPE)
+        .post(Entity.entity(new FormDataMultiPart()
+                .field("objects", "[{\"bucketName\":\"" + bucketName + "\",\"key\":\"batch3\",\"create\":\"new\",\"file\":\"f3\"}]"),
+            MediaType.MULTIPART_FORM_DATA));
+    assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+    outcomes = gson.fromJson(response.readEntity(String.class), JsonElement.class).getAsJsonArray();
+    assertEquals(RepoException.Type.BatchFilePartNotFound.getValue(),
+        outcomes.get(0).getAsJsonObject().getAsJsonObject("error").get("repoErrorCode").getAsInt());
+
+    assertRepoError(target("/objects/batch").request(MediaType.APPLICATION_JSON_TYPE)
+            .post(Entity.entity(new FormDataMultiPart().field("objects", "{not json"), MediaType.MULTIPART_FORM_DATA)),
+        Response.Status.BAD_REQUEST, RepoException.Type.InvalidBatchObjects);
+  }
+
+  @Test
+  public void readManyMetadata() {
+    createBucket(bucketName, CREATION_DATE_TIME);
+
+    String[][] objects = {{"many1", "new", "v0", "first"}, {"many1", "version", "v1", "second"}, {"many2", "new", "v0", null}};
+    for (String[] object : objects) {
+      FormDataMultiPart form = new FormDataMultiPart()
+          .field("bucketName", bucketName).field("create", object[1])
+          .field("key", object[0]).field("contentType", "text/plain")
+          .field("file", object[2], MediaType.TEXT_PLAIN_TYPE);
+      if (object[3] != null) {
+        form.field("tag", object[3]);
+      }
+
+      assertEquals(Response.Status.CREATED.getStatusCode(), target("/objects").request()
+          .post(Entity.entity(form, MediaType.MULTIPART_FORM_DATA)).getStatus());
+    }
+
+    String selectors = "[{\"key\":\"many2\"},{\"key\":\"many1\"},{\"key\":\"many1\",\"version\":0}," +
+        "{\"key\":\"missing\"},{\"key\":\"many1\",\"tag\":\"first\"},{\"key\":\"many2\",\"version\":3}]";
+
+    Response response = target("/objects/meta/" + bucketName).request(MediaType.APPLICATION_JSON_TYPE)
+        .post(Entity.entity(selectors, MediaType.APPLICATION_JSON_TYPE));
+    assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+    JsonArray results = gson.fromJson(response.readEntity(String.class), JsonElement.class).getAsJsonArray();
+    assertEquals(6, results.size());
+
+    String[] keys = {"many2", "many1", "many1", "missing", "many1", "many2"};
+    Integer[] versionNumbers = {0, 1, 0, null, 0, null};
+    for (int i = 0; i < results.size(); ++i) {
+      JsonObject result = results.get(i).getAsJsonObject();
+      assertEquals(keys[i], result.get("key").getAsString());
+
+      if (versionNumbers[i] == null) {
+        assertEquals(RepoException.Type.ObjectNotFound.getValue(),
+            result.getAsJsonObject("error").get("repoErrorCode").getAsInt());
+      } else {
+        assertEquals(versionNumbers[i].intValue(), result.getAsJsonObject("object").get("versionNumber").getAsInt());
+      }
+    }
+
+    // served from the metadata cache the second time
+    response = target("/objects/meta/" + bucketName).request(MediaType.APPLICATION_JSON_TYPE)
+        .post(Entity.entity(selectors, MediaType.APPLICATION_JSON_TYPE));
+    assertEquals(results, gson.fromJson(response.readEntity(String.class), JsonElement.class).getAsJsonArray());
+
+    assertRepoError(target("/objects/meta/nobucket").request(MediaType.APPLICATION_JSON_TYPE)
+            .post(Entity.entity("[{\"key\":\"many1\"}]", MediaType.APPLICATION_JSON_TYPE)),
+        Response.Status.NOT_FOUND, RepoException.Type.BucketNotFound);
+
+    assertRepoError(target("/objects/meta/" + bucketName).request(MediaType.APPLICATION_JSON_TYPE)
+            .post(Entity.entity("[]", MediaType.APPLICATION_JSON_TYPE)),
+        Response.Status.BAD_REQUEST, RepoException.Type.NoObjectSelectorsEntered);
+
+    assertRepoError(target("/objects/meta/" + bucketName).request(MediaType.APPLICATION_JSON_TYPE)
+            .post(Entity.entity("[{\"key\":\"many1\",\"uuid\":\"bad\"}]", MediaType.APPLICATION_JSON_TYPE)),
+        Response.Status.BAD_REQUEST, RepoException.Type.InvalidUuid);
+  }
+
+  @Test
+  public void createByChecksum() throws Exception {
+    createBucket(bucketName, CREATION_DATE_TIME);
+
+    String checksum1 = sha1(testData1);
+    String checksum2 = sha1(testData2);
+    Form probe = new Form().param("checksum", checksum1).param("checksum", checksum2);
+
+    JsonArray stored = gson.fromJson(target("/objects/checksums/" + bucketName).request(MediaType.APPLICATION_JSON_TYPE)
+        .post(Entity.form(probe), String.class), JsonElement.class).getAsJsonArray();
+    assertFalse(stored.get(0).getAsJsonObject().get("stored").getAsBoolean());
+    assertFalse(stored.get(1).getAsJsonObject().get("stored").getAsBoolean());
+
+    // the content is verified when it is sent
+    assertRepoError(target("/objects").request()
+            .post(Entity.entity(new FormDataMultiPart()
+                    .field("bucketName", bucketName).field("create", "new").field("key", "object1")
+                    .field("checksum", checksum1).field("file", testData2, MediaType.TEXT_PLAIN_TYPE),
+                MediaType.MULTIPART_FORM_DATA)),
+        Response.Status.BAD_REQUEST, RepoException.Type.ChecksumMismatch);
+
+    assertEquals(Response.Status.CREATED.getStatusCode(), target("/objects").request()
+        .post(Entity.entity(new FormDataMultiPart()
+                .field("bucketName", bucketName).field("create", "new").field("key", "object1")
+                .field("checksum", checksum1).field("file", testData1, MediaType.TEXT_PLAIN_TYPE),
+            MediaType.MULTIPART_FORM_DATA)).getStatus());
+
+    stored = gson.fromJson(target("/objects/checksums/" + bucketName).request(MediaType.APPLICATION_JSON_TYPE)
+        .post(Entity.form(probe), String.class), JsonElement.class).getAsJsonArray();
+    assertEquals(checksum1, stored.get(0).getAsJsonObject().get("checksum").getAsString());
+    assertTrue(stored.get(0).getAsJsonObject().get("stored").getAsBoolean());
+    assertFalse(stored.get(1).getAsJsonObject().get("stored").getAsBoolean());
+
+    // created by reference, without any file
+    Response response = target("/objects").request()
+        .post(Entity.entity(new FormDataMultiPart()
+                .field("bucketName", bucketName).field("create", "auto").field("key", "object2")
+                .field("contentType", "text/plain").field("checksum", checksum1),
+            MediaType.MULTIPART_FORM_DATA));
+    assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+    JsonObject object2 = gson.fromJson(response.readEntity(String.class), JsonElement.class).getAsJsonObject();
+    assertEquals(checksum1, object2.get("checksum").getAsString());
+    assertEquals(testData1.length(), object2.get("size").getAsInt());
+
+    assertEquals(testData1, target("/objects/" + bucketName).queryParam("key", "object2").request().get(String.class));
+
+    assertRepoError(target("/objects").request()
+            .post(Entity.entity(new FormDataMultiPart()
+                    .field("bucketName", bucketName).field("create", "version").field("key", "object2")
+                    .field("checksum", checksum2),
+                MediaType.MULTIPART_FORM_DATA)),
+        Response.Status.BAD_REQUEST, RepoException.Type.ChecksumNotFound);
+
+    assertRepoError(target("/objects").request()
+            .post(Entity.entity(new FormDataMultiPart()
+                    .field("bucketName", bucketName).field("create", "version").field("key", "object2")
+                    .field("checksum", "notAChecksum"),
+                MediaType.MULTIPART_FORM_DATA)),
+        Response.Status.BAD_REQUEST, RepoException.Type.InvalidChecksum);
+
+    assertRepoError(target("/objects/checksums/nobucket").request(MediaType.APPLICATION_JSON_TYPE)
+            .post(Entity.form(probe)),
+        Response.Status.NOT_FOUND, RepoException.Type.BucketNotFound);
+
+    assertRepoError(target("/objects/checksums/" + bucketName).request(MediaType.APPLICATION_JSON_TYPE)
+            .post(Entity.form(new Form())),
+        Response.Status.BAD_REQUEST, RepoException.Type.NoChecksumsEntered);
+  }
+
+  @Test
+  public void createStreamed() throws Exception {
+    createBucket(bucketName, CREATION_DATE_TIME);
+
+    String form = "--XyZ\r\nContent-Disposition: form-data; name=\"bucketName\"\r\n\r\n" + bucketName +
+        "\r\n--XyZ\r\nContent-Disposition: form-data; name=\"key\"\r\n\r\nstreamed" +
+        "\r\n--XyZ\r\nContent-Disposition: form-data; name=\"create\"\r\n\r\nnew" +
+        "\r\n--XyZ\r\nContent-Disposition: form-data; name=\"contentType\"\r\n\r\ntext/plain" +
+        "\r\n--XyZ\r\nContent-Disposition: form-data; name=\"file\"; filename=\"data.txt\"\r\n\r\n" + testData1 +
+        "\r\n--XyZ--\r\n";
+
+    Response response = target("/objects/stream").request()
+        .post(Entity.entity(form, "multipart/form-data; boundary=XyZ"));
+    assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+
+    JsonObject object = gson.fromJson(response.readEntity(String.class), JsonElement.class).getAsJsonObject();
+    assertEquals(sha1(testData1), object.get("checksum").getAsString());
+    assertEquals("text/plain", object.get("contentType").getAsString());
+    assertEquals(testData1, target("/objects/" + bucketName).queryParam("key", "streamed").request().get(String.class));
+
+    // the file must be the last part, since the fields after it would arrive once it is uploaded
+    String fieldAfterFile = form.replace("streamed", "streamed2").replace("\r\n--XyZ--\r\n",
+        "\r\n--XyZ\r\nContent-Disposition: form-data; name=\"tag\"\r\n\r\nlate\r\n--XyZ--\r\n");
+    assertRepoError(target("/objects/stream").request()
+            .post(Entity.entity(fieldAfterFile, "multipart/form-data; boundary=XyZ")),
+        Response.Status.BAD_REQUEST, RepoException.Type.InvalidStreamedForm);
+
+    assertRepoError(target("/objects/stream").request()
+            .post(Entity.entity(form, MediaType.MULTIPART_FORM_DATA)),
+        Response.Status.BAD_REQUEST, RepoException.Type.InvalidStreamedForm);
+  }
+
+  private static String sha1(String data) throws RepoException {
+    return ChecksumGenerator.checksumToString(ChecksumGenerator.getDigestMessage().digest(data.getBytes()));
+  }
+
   @Test
   // TODO : rewrite test to include the new changes
   public void crudHappyPath() throws Exception {
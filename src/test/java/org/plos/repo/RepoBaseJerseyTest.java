@@ -33,6 +33,8 @@ import org.junit.AfterClass;
 import org.junit.Before;
 import org.plos.repo.models.Bucket;
 import org.plos.repo.models.RepoObject;
+import org.plos.repo.service.ContentCache;
+import org.plos.repo.service.MetadataCache;
 import org.plos.repo.service.ObjectStore;
 import org.plos.repo.service.RepoException;
 import org.plos.repo.service.SqlService;
@@ -55,6 +57,10 @@ public abstract class RepoBaseJerseyTest extends JerseyTest{
 
   protected DataSource dataSource;
 
+  protected MetadataCache metadataCache;
+
+  protected ContentCache contentCache;
+
   protected Gson gson = new Gson();
 
   protected static AnnotationConfigApplicationContext context;
@@ -64,6 +70,8 @@ public abstract class RepoBaseJerseyTest extends JerseyTest{
     sqlService = context.getBean(SqlService.class);
     objectStore = context.getBean(ObjectStore.class);
     dataSource = context.getBean(DataSource.class);
+    metadataCache = context.getBean(MetadataCache.class);
+    contentCache = context.getBean(ContentCache.class);
   }
 
   protected void assertRepoError(Response response, Response.Status httpStatus, RepoException.Type repoError) {
@@ -119,7 +127,12 @@ public abstract class RepoBaseJerseyTest extends JerseyTest{
       st.executeUpdate("delete from objects");
       st.executeUpdate("delete from buckets");
       st.executeUpdate("delete from audit");
+      st.executeUpdate("delete from blobs");
     }
+
+    sqlService.invalidateBuckets();
+    metadataCache.invalidateAll();
+    contentCache.invalidateAll();
   }
 
 }
@@ -26,6 +26,8 @@ import org.junit.Before;
 import org.junit.runner.RunWith;
 import org.plos.repo.models.Bucket;
 import org.plos.repo.models.RepoObject;
+import org.plos.repo.service.ContentCache;
+import org.plos.repo.service.MetadataCache;
 import org.plos.repo.service.ObjectStore;
 import org.plos.repo.service.RepoService;
 import org.plos.repo.service.SqlService;
@@ -54,6 +56,12 @@ public abstract class RepoBaseSpringTest {
   @Inject
   protected DataSource dataSource;
 
+  @Inject
+  protected MetadataCache metadataCache;
+
+  @Inject
+  protected ContentCache contentCache;
+
   /**
    * Clean de data base before to run each test
    * @throws Exception
@@ -79,6 +87,11 @@ public abstract class RepoBaseSpringTest {
       st.executeUpdate("delete from objects");
       st.executeUpdate("delete from buckets");
       st.executeUpdate("delete from audit");
+      st.executeUpdate("delete from blobs");
     }
+
+    sqlService.invalidateBuckets();
+    metadataCache.invalidateAll();
+    contentCache.invalidateAll();
   }
 }
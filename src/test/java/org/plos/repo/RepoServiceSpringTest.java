@@ -45,10 +45,13 @@ import org.plos.repo.service.SqlService;
 
 import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.UUID;
 
 
 public class RepoServiceSpringTest extends RepoBaseSpringTest {
@@ -102,6 +105,51 @@ public class RepoServiceSpringTest extends RepoBaseSpringTest {
     sqlService.releaseConnection();
   }
 
+  @Test
+  public void bucketRecreatedBehindRegistry() throws Exception {
+    repoService.createBucket(bucket1.getBucketName(), CREATION_DATE_TIME_STRING);
+
+    // load the registry
+    sqlService.getReadOnlyConnection();
+    Integer oldId = sqlService.getBucket(bucket1.getBucketName()).getBucketId();
+    sqlService.releaseConnection();
+
+    // another instance deletes and creates the bucket again, without invalidating this registry
+    try (Connection connection = dataSource.getConnection();
+         Statement st = connection.createStatement()) {
+      st.executeUpdate("DELETE FROM buckets");
+    }
+    sqlService.getConnection();
+    sqlService.insertBucket(bucket1, CREATION_DATE_TIME);
+    sqlService.transactionCommit();
+    sqlService.releaseConnection();
+
+    // transactions check the database, and drop the out of date registry
+    sqlService.getConnection();
+    Integer newId = sqlService.getBucket(bucket1.getBucketName()).getBucketId();
+    sqlService.releaseConnection();
+    Assert.assertNotEquals(oldId, newId);
+
+    sqlService.getReadOnlyConnection();
+    Assert.assertEquals(newId, sqlService.getBucket(bucket1.getBucketName()).getBucketId());
+    sqlService.releaseConnection();
+  }
+
+  @Test
+  public void bucketCheckedOncePerTransaction() throws Exception {
+    repoService.createBucket(bucket1.getBucketName(), CREATION_DATE_TIME_STRING);
+
+    sqlService.getConnection();
+    Bucket checked = sqlService.getBucket(bucket1.getBucketName());
+    Assert.assertSame(checked, sqlService.getBucket(bucket1.getBucketName()));
+    sqlService.transactionCommit();
+
+    // the next transaction on the connection checks the bucket again
+    Assert.assertNotSame(checked, sqlService.getBucket(bucket1.getBucketName()));
+    sqlService.transactionRollback();
+    sqlService.releaseConnection();
+  }
+
   @Test
   public void createBucket() throws Exception {
     try {
@@ -294,6 +342,34 @@ public class RepoServiceSpringTest extends RepoBaseSpringTest {
     Assert.assertFalse(objectStore.objectExists(repoObject));
   }
 
+  @Test
+  public void createNewObjectContentSavedByAnotherInstance() throws Exception {
+    repoService.createBucket(bucket1.getBucketName(), CREATION_DATE_TIME_STRING);
+
+    // another instance saves content that no test saved before, so the existence filter of this one does not know it
+    String content = "data-" + UUID.randomUUID();
+    ObjectStore.UploadInfo uploadInfo = objectStore.uploadTempObject(IOUtils.toInputStream(content));
+    RepoObject stored = new RepoObject();
+    stored.setChecksum(uploadInfo.getChecksum());
+    stored.setBucketName(bucket1.getBucketName());
+    Assert.assertTrue(objectStore.saveUploadedObject(bucket1, uploadInfo, stored));
+
+    // like MogileFS, the store refuses to save the content again
+    ObjectStore spyObjectStore = Mockito.spy(objectStore);
+    BDDMockito.willReturn(false).given(spyObjectStore).saveUploadedObject(Mockito.any(Bucket.class), Mockito.any(ObjectStore.UploadInfo.class), Mockito.any(RepoObject.class));
+
+    Field objStoreField = RepoService.class.getDeclaredField("objectStore");
+    objStoreField.setAccessible(true);
+    objStoreField.set(repoService, spyObjectStore);
+
+    InputRepoObject inputRepoObject = createInputRepoObject();
+    inputRepoObject.setUploadedInputStream(IOUtils.toInputStream(content));
+    RepoObject repoObject = repoService.createObject(RepoService.CreateMethod.NEW, inputRepoObject);
+
+    Assert.assertEquals(uploadInfo.getChecksum(), repoObject.getChecksum());
+    Assert.assertEquals(content, IOUtils.toString(objectStore.getInputStream(repoObject)));
+  }
+
   @Test
   public void createNewObjectRollback() throws Exception {
     repoService.createBucket(bucket1.getBucketName(), CREATION_DATE_TIME_STRING);
@@ -598,6 +674,24 @@ public class RepoServiceSpringTest extends RepoBaseSpringTest {
     }
   }
 
+  @Test
+  public void purgeObjectWithoutReadingContent() throws Exception {
+    repoService.createBucket(bucket1.getBucketName(), CREATION_DATE_TIME_STRING);
+    RepoObject repoObject = repoService.createObject(RepoService.CreateMethod.NEW, createInputRepoObject());
+
+    ObjectStore spyObjectStore = Mockito.spy(objectStore);
+
+    Field objStoreField = RepoService.class.getDeclaredField("objectStore");
+    objStoreField.setAccessible(true);
+    objStoreField.set(repoService, spyObjectStore);
+
+    repoService.deleteObject(bucket1.getBucketName(), KEY, true, new ElementFilter(0, null, null));
+
+    Mockito.verify(spyObjectStore, Mockito.atLeastOnce()).objectExists(Mockito.any(RepoObject.class));
+    Mockito.verify(spyObjectStore, Mockito.never()).getInputStream(Mockito.any(RepoObject.class));
+    Assert.assertFalse(objectStore.objectExists(repoObject));
+  }
+
   @Test
   public void purgeObject() throws Exception {
     repoService.createBucket(bucket1.getBucketName(), CREATION_DATE_TIME_STRING);
@@ -715,6 +809,55 @@ public class RepoServiceSpringTest extends RepoBaseSpringTest {
     Assert.assertTrue(repoService.listObjects(bucket1.getBucketName(), null, null, true, true, null).size() == 2);
   }
 
+  @Test
+  public void purgeObjectSameContentOtherBucket() throws Exception {
+    Bucket bucket2 = new Bucket("bucket2");
+    repoService.createBucket(bucket1.getBucketName(), CREATION_DATE_TIME_STRING);
+    repoService.createBucket(bucket2.getBucketName(), CREATION_DATE_TIME_STRING);
+
+    RepoObject object1 = null;
+    RepoObject object2 = null;
+
+    try {
+      object1 = repoService.createObject(RepoService.CreateMethod.NEW, createInputRepoObject());
+
+      InputRepoObject inputRepoObject = createInputRepoObject();
+      inputRepoObject.setBucketName(bucket2.getBucketName());
+      object2 = repoService.createObject(RepoService.CreateMethod.NEW, inputRepoObject);
+    } catch (RepoException e) {
+      Assert.fail(e.getMessage());
+    }
+
+    // both buckets reference the single copy of the content
+    Assert.assertEquals(object1.getChecksum(), object2.getChecksum());
+    sqlService.getReadOnlyConnection();
+    Assert.assertEquals(2, sqlService.getBlobReferenceCount(object1.getChecksum()));
+    sqlService.releaseConnection();
+
+    // deleting keeps the reference, purging releases it
+    repoService.deleteObject(bucket1.getBucketName(), KEY, new ElementFilter(null, null, object1.getUuid().toString()), Status.DELETED);
+    sqlService.getReadOnlyConnection();
+    Assert.assertEquals(2, sqlService.getBlobReferenceCount(object1.getChecksum()));
+    sqlService.releaseConnection();
+
+    repoService.deleteObject(bucket1.getBucketName(), KEY, new ElementFilter(null, null, object1.getUuid().toString()), Status.PURGED);
+    sqlService.getReadOnlyConnection();
+    Assert.assertEquals(1, sqlService.getBlobReferenceCount(object1.getChecksum()));
+    sqlService.releaseConnection();
+
+    // the content is still served for the object in the other bucket
+    Assert.assertTrue(objectStore.objectExists(object2));
+    Assert.assertEquals("data1", IOUtils.toString(repoService.getObjectInputStream(object2)));
+
+    // purging the last reference removes the content
+    repoService.deleteObject(bucket2.getBucketName(), KEY, new ElementFilter(null, null, object2.getUuid().toString()), Status.PURGED);
+    sqlService.getReadOnlyConnection();
+    Assert.assertEquals(0, sqlService.getBlobReferenceCount(object1.getChecksum()));
+    sqlService.releaseConnection();
+
+    Assert.assertFalse(objectStore.objectExists(object2));
+  }
+
   @Test
   public void getObjectReproxy() throws Exception {
     repoService.createBucket(bucket1.getBucketName(), CREATION_DATE_TIME_STRING);
@@ -68,4 +68,10 @@ public class RootControllerTest extends RepoBaseJerseyTest {
     assertNotNull(responseObj.get("writesSinceStart").getAsLong());
   }
 
+  @Test
+  public void rebalanceWithoutDataDirectories() {
+    Response response = target("/rebalance").request().post(Entity.form(new Form()));
+    assertEquals(Response.Status.CONFLICT.getStatusCode(), response.getStatus());
+  }
+
 }
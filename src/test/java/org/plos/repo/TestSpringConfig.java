@@ -28,8 +28,11 @@ import org.plos.repo.models.validator.InputRepoObjectValidator;
 import org.plos.repo.models.validator.TimestampInputValidator;
 import org.plos.repo.service.AuditRepoService;
 import org.plos.repo.service.CollectionRepoService;
+import org.plos.repo.service.ContentCache;
+import org.plos.repo.service.ContentExistenceFilter;
 import org.plos.repo.service.HsqlService;
 import org.plos.repo.service.InMemoryFileStoreService;
+import org.plos.repo.service.MetadataCache;
 import org.plos.repo.service.ObjectStore;
 import org.plos.repo.service.RepoInfoService;
 import org.plos.repo.service.RepoService;
@@ -70,6 +73,21 @@ public class TestSpringConfig {
   @Bean
   public AuditRepoService auditRepoService() {return new AuditRepoService();}
 
+  @Bean
+  public MetadataCache metadataCache() {
+    return new MetadataCache(MetadataCache.DEFAULT_MAXIMUM_KEYS);
+  }
+
+  @Bean
+  public ContentCache contentCache() {
+    return new ContentCache(1024 * 1024, ContentCache.DEFAULT_MAXIMUM_OBJECT_SIZE);
+  }
+
+  @Bean
+  public ContentExistenceFilter contentExistenceFilter() {
+    return new ContentExistenceFilter(ContentExistenceFilter.DEFAULT_EXPECTED_CONTENTS);
+  }
+
   @Bean
   public InputCollectionValidator inputCollectionValidator() {
     return new InputCollectionValidator();
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.rest;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FileChannelStreamingOutputTest {
+
+  private File file;
+
+  private byte[] content;
+
+  @Before
+  public void setup() throws Exception {
+    // bigger than the buffer so the copy loop runs more than once
+    content = new byte[FileChannelStreamingOutput.BUFFER_SIZE * 2 + 17];
+    new Random(42).nextBytes(content);
+
+    file = File.createTempFile("streamingoutput", ".tmp");
+    FileUtils.writeByteArrayToFile(file, content);
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void writeWholeFile() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new FileChannelStreamingOutput(file, 0, content.length).write(output);
+
+    assertArrayEquals(content, output.toByteArray());
+  }
+
+  @Test
+  public void writeRegion() throws Exception {
+    int position = FileChannelStreamingOutput.BUFFER_SIZE - 5;
+    int count = FileChannelStreamingOutput.BUFFER_SIZE + 10;
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new FileChannelStreamingOutput(file, position, count).write(output);
+
+    assertArrayEquals(Arrays.copyOfRange(content, position, position + count), output.toByteArray());
+  }
+
+  @Test
+  public void writeEmptyRegion() throws Exception {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    new FileChannelStreamingOutput(file, 10, 0).write(output);
+
+    assertArrayEquals(new byte[0], output.toByteArray());
+  }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.rest;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compares the ways an object file can be sent to a client: the stream copy done by the container for an
+ * {@link java.io.InputStream} entity, the {@link org.plos.repo.rest.FileChannelStreamingOutput} used when the
+ * container can not send files itself, and {@link java.nio.channels.FileChannel#transferTo} (sendfile) into a socket,
+ * which is what Tomcat does when the sendfile request attributes are set.
+ * <p/>
+ * Every variant writes into a loopback socket drained by another thread. It reports the throughput and the CPU time
+ * spent by the sending thread per GB. It is not run by the test suite; run it with
+ * <pre>
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.plos.repo.rest.FileServingBenchmark \
+ *     -Dexec.args="[fileSizeMb] [iterations]"
+ * </pre>
+ */
+public class FileServingBenchmark {
+
+  private static final long MB = 1024 * 1024;
+
+  private static final double GB = 1024.0 * 1024 * 1024;
+
+  private interface Sender {
+    void send(File file, SocketChannel socket) throws IOException;
+  }
+
+  public static void main(String[] args) throws Exception {
+    long fileSize = (args.length > 0 ? Long.parseLong(args[0]) : 512) * MB;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    File file = File.createTempFile("benchmark", ".tmp");
+    file.deleteOnExit();
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      byte[] block = new byte[(int) MB];
+      for (long i = 0; i < fileSize / MB; i++) {
+        raf.write(block);
+      }
+    }
+
+    run("input stream copy", file, iterations, new Sender() {
+      @Override
+      public void send(File file, SocketChannel socket) throws IOException {
+        // the container copies InputStream entities with an 8k buffer
+        try (InputStream in = new FileInputStream(file)) {
+          OutputStream out = Channels.newOutputStream(socket);
+          byte[] buffer = new byte[8192];
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+          }
+        }
+      }
+    });
+
+    run("file channel streaming output", file, iterations, new Sender() {
+      @Override
+      public void send(File file, SocketChannel socket) throws IOException {
+        new FileChannelStreamingOutput(file, 0, file.length()).write(Channels.newOutputStream(socket));
+      }
+    });
+
+    run("transferTo (sendfile)", file, iterations, new Sender() {
+      @Override
+      public void send(File file, SocketChannel socket) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+          long position = 0;
+          long size = channel.size();
+          while (position < size) {
+            position += channel.transferTo(position, size - position, socket);
+          }
+        }
+      }
+    });
+
+    file.delete();
+  }
+
+  private static void run(String name, File file, int iterations, Sender sender) throws Exception {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    long bytes = 0;
+    long elapsedNanos = 0;
+    long cpuNanos = 0;
+
+    for (int i = 0; i <= iterations; i++) {
+      try (ServerSocketChannel server = ServerSocketChannel.open()) {
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+
+        Thread drain = drain(server);
+
+        try (SocketChannel socket = SocketChannel.open(server.getLocalAddress())) {
+          long startCpu = threadMXBean.getCurrentThreadCpuTime();
+          long start = System.nanoTime();
+
+          sender.send(file, socket);
+
+          // the first iteration only warms up
+          if (i > 0) {
+            elapsedNanos += System.nanoTime() - start;
+            cpuNanos += threadMXBean.getCurrentThreadCpuTime() - startCpu;
+            bytes += file.length();
+          }
+        }
+
+        drain.join();
+      }
+    }
+
+    System.out.println(String.format("%-32s %10.1f MB/s %10.1f CPU ms/GB", name,
+        bytes / (double) MB / (elapsedNanos / 1e9),
+        cpuNanos / 1e6 / (bytes / GB)));
+  }
+
+  private static Thread drain(final ServerSocketChannel server) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try (SocketChannel client = server.accept()) {
+          ByteBuffer buffer = ByteBuffer.allocateDirect((int) MB);
+          while (client.read(buffer) != -1) {
+            buffer.clear();
+          }
+        } catch (IOException e) {
+          IOUtils.closeQuietly(server);
+        }
+      }
+    });
+    thread.start();
+    return thread;
+  }
+
+}
@@ -69,7 +69,7 @@ public class AuditRepoServiceTest {
   public void getStatusHappyPathTest() throws RepoException, SQLException {
 
     doNothing().when(sqlService).getReadOnlyConnection();
-    when(sqlService.listAuditRecords(OFFSET, LIMIT)).thenReturn(expectedAuditRecords);
+    when(sqlService.listAuditRecords(OFFSET, LIMIT, null)).thenReturn(expectedAuditRecords);
 
     List<Audit> auditResults= auditRepoService.listAuditRecords(OFFSET, LIMIT);
 
@@ -77,7 +77,7 @@ public class AuditRepoServiceTest {
     assertEquals(expectedAuditRecords, auditResults);
 
     verify(sqlService).getReadOnlyConnection();
-    verify(sqlService).listAuditRecords(OFFSET, LIMIT);
+    verify(sqlService).listAuditRecords(OFFSET, LIMIT, null);
   }
 
 
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.plos.repo.service;
+
+import org.junit.Test;
+import org.plos.repo.models.Bucket;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BucketRegistryTest {
+
+  private static final Timestamp NOW = new Timestamp(System.currentTimeMillis());
+
+  @Test
+  public void lookupByName() {
+    BucketRegistry registry = new BucketRegistry();
+    assertTrue(registry.isStale());
+
+    registry.load(Arrays.asList(new Bucket(1, "bucket-1", NOW, NOW), new Bucket(2, "bucket-2", NOW, NOW)),
+        registry.generation());
+
+    assertFalse(registry.isStale());
+    assertEquals(Integer.valueOf(2), registry.getBucket("bucket-2").getBucketId());
+    assertNull(registry.getBucket("bucket-3"));
+    assertNull(registry.getBucket(null));
+  }
+
+  @Test
+  public void lookupReturnsCopy() {
+    BucketRegistry registry = new BucketRegistry();
+    registry.load(Collections.singletonList(new Bucket(1, "bucket-1", NOW, NOW)), registry.generation());
+
+    Bucket bucket = registry.getBucket("bucket-1");
+    bucket.setActiveObjects(10);
+
+    assertNotSame(bucket, registry.getBucket("bucket-1"));
+    assertNull(registry.getBucket("bucket-1").getActiveObjects());
+  }
+
+  @Test
+  public void loadAfterInvalidateIsDiscarded() {
+    BucketRegistry registry = new BucketRegistry();
+    long generation = registry.generation();
+
+    registry.invalidate();
+    registry.load(Collections.singletonList(new Bucket(1, "bucket-1", NOW, NOW)), generation);
+
+    assertTrue(registry.isStale());
+    assertNull(registry.getBucket("bucket-1"));
+  }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.plos.repo.models.Bucket;
+import org.plos.repo.models.RepoObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class CachingObjectStoreTest {
+
+  private static final int OBJECT_SIZE = 1000;
+
+  // room for two objects, which are not larger than a tenth of the cache
+  private static final long CACHE_SIZE = OBJECT_SIZE * 10 * 2;
+
+  @Rule
+  public TemporaryFolder cacheFolder = new TemporaryFolder();
+
+  private InMemoryFileStoreService store;
+
+  private CachingObjectStore cachingStore;
+
+  @Before
+  public void setUp() {
+    store = spy(new InMemoryFileStoreService());
+    cachingStore = new CachingObjectStore(store, cacheFolder.getRoot().getPath(), CACHE_SIZE);
+  }
+
+  private RepoObject createObject(int seed, int size) throws RepoException {
+    byte[] content = new byte[size];
+    new Random(seed).nextBytes(content);
+
+    ObjectStore.UploadInfo uploadInfo = cachingStore.uploadTempObject(new ByteArrayInputStream(content));
+    cachingStore.saveUploadedObject(new Bucket("bucket1"), uploadInfo, null);
+
+    RepoObject repoObject = new RepoObject();
+    repoObject.setKey("key" + seed);
+    repoObject.setChecksum(uploadInfo.getChecksum());
+    repoObject.setSize(uploadInfo.getSize());
+    return repoObject;
+  }
+
+  private byte[] read(RepoObject repoObject) throws Exception {
+    try (InputStream in = cachingStore.getInputStream(repoObject)) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  @Test
+  public void readThrough() throws Exception {
+    RepoObject repoObject = createObject(1, OBJECT_SIZE);
+    assertNull(cachingStore.getLocalFile(repoObject));
+
+    byte[] content = read(repoObject);
+    assertTrue(cachingStore.isCached(repoObject.getChecksum()));
+
+    assertArrayEquals(content, read(repoObject));
+    verify(store, times(1)).getInputStream(repoObject);
+
+    // cached files may be evicted before a path handed out is opened
+    assertNull(cachingStore.getLocalFile(repoObject));
+
+    try (InputStream in = cachingStore.getInputStream(repoObject, 10, 20)) {
+      byte[] range = IOUtils.toByteArray(in);
+      assertEquals(20, range.length);
+      assertEquals(content[10], range[0]);
+      assertEquals(content[29], range[19]);
+    }
+  }
+
+  @Test
+  public void partialReadNotCached() throws Exception {
+    RepoObject repoObject = createObject(1, OBJECT_SIZE);
+
+    try (InputStream in = cachingStore.getInputStream(repoObject)) {
+      in.read(new byte[10]);
+    }
+
+    assertFalse(cachingStore.isCached(repoObject.getChecksum()));
+    assertEquals(0, cachingStore.getCachedBytes());
+    assertEquals(0, cacheFolder.getRoot().list().length);
+  }
+
+  @Test
+  public void largeObjectNotCached() throws Exception {
+    RepoObject repoObject = createObject(1, (int) (CACHE_SIZE / 10) + 1);
+    read(repoObject);
+
+    assertFalse(cachingStore.isCached(repoObject.getChecksum()));
+  }
+
+  @Test
+  public void evictLeastOftenRead() throws Exception {
+    RepoObject often = createObject(1, OBJECT_SIZE * 2);
+    RepoObject once = createObject(2, OBJECT_SIZE * 2);
+    RepoObject latest = createObject(3, OBJECT_SIZE * 2);
+
+    read(often);
+    read(often);
+    read(often);
+    read(once);
+
+    // the least recently read object is read more often, so the other one makes room
+    for (int i = 0; i < 8; i++) {
+      read(createObject(10 + i, OBJECT_SIZE * 2));
+    }
+    read(latest);
+
+    assertTrue(cachingStore.isCached(often.getChecksum()));
+    assertFalse(cachingStore.isCached(once.getChecksum()));
+    assertTrue(cachingStore.isCached(latest.getChecksum()));
+    assertTrue(cachingStore.getCachedBytes() <= CACHE_SIZE);
+  }
+
+  @Test
+  public void deleteInvalidates() throws Exception {
+    RepoObject repoObject = createObject(1, OBJECT_SIZE);
+    read(repoObject);
+
+    assertTrue(cachingStore.deleteObject(repoObject));
+
+    assertFalse(cachingStore.isCached(repoObject.getChecksum()));
+    assertNull(cachingStore.getInputStream(repoObject));
+  }
+
+  @Test
+  public void readSurvivesEviction() throws Exception {
+    RepoObject repoObject = createObject(1, OBJECT_SIZE);
+    byte[] content = read(repoObject);
+
+    try (InputStream in = cachingStore.getInputStream(repoObject)) {
+      assertTrue(cachingStore.deleteObject(repoObject));
+      assertFalse(cachingStore.isCached(repoObject.getChecksum()));
+
+      assertArrayEquals(content, IOUtils.toByteArray(in));
+    }
+  }
+
+  @Test
+  public void reloadCache() throws Exception {
+    RepoObject repoObject = createObject(1, OBJECT_SIZE);
+    byte[] content = read(repoObject);
+    new File(cacheFolder.getRoot(), "interrupted.tmp").createNewFile();
+
+    CachingObjectStore reloaded = new CachingObjectStore(store, cacheFolder.getRoot().getPath(), CACHE_SIZE);
+
+    assertTrue(reloaded.isCached(repoObject.getChecksum()));
+    assertEquals(OBJECT_SIZE, reloaded.getCachedBytes());
+    try (InputStream in = reloaded.getInputStream(repoObject)) {
+      assertArrayEquals(content, IOUtils.toByteArray(in));
+    }
+    verify(store, times(1)).getInputStream(repoObject);
+    assertFalse(new File(cacheFolder.getRoot(), "interrupted.tmp").exists());
+  }
+
+}
@@ -45,6 +45,7 @@ import java.util.concurrent.CountDownLatch;
 import static org.junit.Assert.assertEquals;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -98,6 +99,11 @@ public class CollectionLockTest extends RepoBaseSpringTest {
     sqlServiceField.setAccessible(true);
     sqlServiceField.set(collectionRepoService, spySqlService);
 
+    // the DB call counts verified below assume every read reaches the DB
+    Field metadataCacheField = CollectionRepoService.class.getDeclaredField("metadataCache");
+    metadataCacheField.setAccessible(true);
+    metadataCacheField.set(collectionRepoService, new MetadataCache(0));
+
     inputObjects = new ArrayList<>();
     for (int i = 0; i < 1000; i++) {
       String key = OBJECT_KEY + i;
@@ -156,7 +162,7 @@ public class CollectionLockTest extends RepoBaseSpringTest {
     assertEquals(Integer.valueOf(0), coll.getVersionNumber());
 
     verify(spySqlService, times(INSERT_THREADS + READER_THREADS * 2 + UPDATE_THREADS)).getCollection(anyString(), anyString()); // create new collection + list objects, when tag is null + update collection (when looking for exisiting ones)
-    verify(spySqlService, times(inputObjects.size())).insertCollectionObjects(anyInt(), anyInt());
+    verify(spySqlService, times(1)).insertCollectionObjects(anyInt(), anyListOf(Integer.class));
   }
 
   @Test
@@ -211,7 +217,7 @@ public class CollectionLockTest extends RepoBaseSpringTest {
     verify(spySqlService, times(READER_THREADS)).getCollection(anyString(), anyString(), anyInt(), anyString(), any(UUID.class)); // reading collections with tags
     verify(spySqlService, times(INSERT_THREADS + UPDATE_THREADS)).getCollectionNextAvailableVersion(anyString(), anyString()); // when creating and versioning a collection
     verify(spySqlService, times(INSERT_THREADS + UPDATE_THREADS)).insertCollection(any(RepoCollection.class)); // when creating and versioning a collection
-    verify(spySqlService, times((INSERT_THREADS + UPDATE_THREADS) * inputObjects.size())).insertCollectionObjects(anyInt(), anyInt());
+    verify(spySqlService, times(INSERT_THREADS + UPDATE_THREADS)).insertCollectionObjects(anyInt(), anyListOf(Integer.class)); // one batch per collection
   }
 
 
@@ -27,6 +27,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.plos.repo.models.Bucket;
 import org.plos.repo.models.RepoCollection;
 import org.plos.repo.models.input.ElementFilter;
@@ -78,6 +79,9 @@ public class CollectionRepoServiceTest {
   @Mock
   private RepoCollection expectedRepoCollection;
 
+  @Spy
+  private MetadataCache metadataCache = new MetadataCache(MetadataCache.DEFAULT_MAXIMUM_KEYS);
+
   @InjectMocks
   private CollectionRepoService collectionRepoService;
 
@@ -93,7 +97,7 @@ public class CollectionRepoServiceTest {
     doNothing().when(sqlService).getReadOnlyConnection();
     when(sqlService.getBucket(VALID_BUCKET)).thenReturn(bucket);
 
-    when(sqlService.listCollectionsMetaData(VALID_BUCKET, VALID_OFFSET, VALID_LIMIT, true, VALID_TAG)).thenReturn(repoCollections);
+    when(sqlService.listCollectionsMetaData(VALID_BUCKET, VALID_OFFSET, VALID_LIMIT, true, VALID_TAG, null)).thenReturn(repoCollections);
 
     List<RepoCollection> response = collectionRepoService.listCollections(VALID_BUCKET, VALID_OFFSET, VALID_LIMIT, true, VALID_TAG);
 
@@ -102,7 +106,7 @@ public class CollectionRepoServiceTest {
 
     verify(sqlService).getReadOnlyConnection();
     verify(sqlService).getBucket(VALID_BUCKET);
-    verify(sqlService).listCollectionsMetaData(VALID_BUCKET, VALID_OFFSET, VALID_LIMIT, true, VALID_TAG);
+    verify(sqlService).listCollectionsMetaData(VALID_BUCKET, VALID_OFFSET, VALID_LIMIT, true, VALID_TAG, null);
   }
 
   @Test
@@ -127,7 +131,7 @@ public class CollectionRepoServiceTest {
     doNothing().when(sqlService).getReadOnlyConnection();
     when(sqlService.getBucket(VALID_BUCKET)).thenReturn(bucket);
 
-    when(sqlService.listCollectionsMetaData(VALID_BUCKET, VALID_OFFSET, VALID_LIMIT, true, VALID_TAG)).thenThrow(SQL_EXCEP);
+    when(sqlService.listCollectionsMetaData(VALID_BUCKET, VALID_OFFSET, VALID_LIMIT, true, VALID_TAG, null)).thenThrow(SQL_EXCEP);
 
     List<RepoCollection> response = null;
 
@@ -139,7 +143,7 @@ public class CollectionRepoServiceTest {
       assertEquals(re.getCause(), SQL_EXCEP);
       verify(sqlService).getReadOnlyConnection();
       verify(sqlService).getBucket(VALID_BUCKET);
-      verify(sqlService).listCollectionsMetaData(VALID_BUCKET, VALID_OFFSET, VALID_LIMIT, true, VALID_TAG);
+      verify(sqlService).listCollectionsMetaData(VALID_BUCKET, VALID_OFFSET, VALID_LIMIT, true, VALID_TAG, null);
     }
   }
 
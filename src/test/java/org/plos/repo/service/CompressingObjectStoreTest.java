@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.plos.repo.models.Bucket;
+import org.plos.repo.models.RepoObject;
+import org.plos.repo.util.ChecksumGenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompressingObjectStoreTest {
+
+  private InMemoryFileStoreService store;
+
+  private CompressingObjectStore compressingStore;
+
+  private byte[] xml;
+
+  @Before
+  public void setUp() {
+    store = new InMemoryFileStoreService();
+    compressingStore = new CompressingObjectStore(store, CompressingObjectStore.DEFAULT_CONTENT_TYPES);
+
+    StringBuilder builder = new StringBuilder("<article>");
+    for (int i = 0; i < 5000; i++) {
+      builder.append("<p id=\"").append(i).append("\">Some repeated text</p>");
+    }
+    xml = builder.append("</article>").toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private RepoObject createObject(byte[] content, String contentType) throws RepoException {
+    ObjectStore.UploadInfo uploadInfo = compressingStore.uploadTempObject(new ByteArrayInputStream(content),
+        contentType);
+
+    RepoObject repoObject = new RepoObject();
+    repoObject.setKey("key");
+    repoObject.setBucketName("bucket1");
+    repoObject.setChecksum(uploadInfo.getChecksum());
+    repoObject.setSize(uploadInfo.getSize());
+    repoObject.setContentType(contentType);
+
+    assertTrue(compressingStore.saveUploadedObject(new Bucket("bucket1"), uploadInfo, repoObject));
+    return repoObject;
+  }
+
+  private static byte[] read(InputStream in) throws Exception {
+    try {
+      return IOUtils.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void compressContentType() throws Exception {
+    RepoObject repoObject = createObject(xml, "application/xml; charset=UTF-8");
+
+    // the checksum and size are those of the uploaded content
+    MessageDigest digest = ChecksumGenerator.getDigestMessage();
+    assertEquals(ChecksumGenerator.checksumToString(digest.digest(xml)), repoObject.getChecksum());
+    assertEquals(xml.length, repoObject.getSize().longValue());
+
+    assertFalse(store.objectExists(repoObject));
+    assertTrue(compressingStore.objectExists(repoObject));
+
+    byte[] compressed = read(compressingStore.getCompressedInputStream(repoObject));
+    assertTrue(compressed.length < xml.length / 5);
+    assertArrayEquals(xml, read(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+
+    assertArrayEquals(xml, read(compressingStore.getInputStream(repoObject)));
+    assertArrayEquals(Arrays.copyOfRange(xml, 1000, 1100), read(compressingStore.getInputStream(repoObject, 1000, 100)));
+    assertNull(compressingStore.getLocalFile(repoObject));
+
+    assertTrue(compressingStore.deleteObject(repoObject));
+    assertFalse(compressingStore.objectExists(repoObject));
+  }
+
+  @Test
+  public void storeOtherContentTypes() throws Exception {
+    RepoObject repoObject = createObject(xml, "application/octet-stream");
+
+    assertTrue(store.objectExists(repoObject));
+    assertNull(compressingStore.getCompressedInputStream(repoObject));
+    assertArrayEquals(xml, read(compressingStore.getInputStream(repoObject)));
+  }
+
+  @Test
+  public void shareContentAcrossContentTypes() throws Exception {
+    RepoObject textObject = createObject(xml, "text/plain");
+
+    // another object with the same content, whose content type is not compressed
+    RepoObject binaryObject = new RepoObject();
+    binaryObject.setBucketName("bucket1");
+    binaryObject.setChecksum(textObject.getChecksum());
+    binaryObject.setSize(textObject.getSize());
+    binaryObject.setContentType("application/octet-stream");
+
+    assertTrue(compressingStore.objectExists(binaryObject));
+    assertArrayEquals(xml, read(compressingStore.getInputStream(binaryObject)));
+    assertArrayEquals(Arrays.copyOfRange(xml, 10, 20), read(compressingStore.getInputStream(binaryObject, 10, 10)));
+  }
+
+  @Test
+  public void matchContentTypes() {
+    assertTrue(compressingStore.compressesContentType("text/html"));
+    assertTrue(compressingStore.compressesContentType("Application/JSON; charset=utf-8"));
+    assertTrue(compressingStore.compressesContentType("application/vnd.article+xml"));
+    assertFalse(compressingStore.compressesContentType("image/png"));
+    assertFalse(compressingStore.compressesContentType("application/xml-dtd"));
+    assertFalse(compressingStore.compressesContentType(null));
+  }
+
+}
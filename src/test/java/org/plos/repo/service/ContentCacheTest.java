@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ContentCacheTest {
+
+  private static final String BUCKET = "bucket1";
+
+  private static final int OBJECT_SIZE = 100;
+
+  // room for two objects
+  private final ContentCache contentCache = new ContentCache(OBJECT_SIZE * 2, OBJECT_SIZE);
+
+  private static byte[] content(String checksum) {
+    byte[] content = new byte[OBJECT_SIZE];
+    Arrays.fill(content, (byte) checksum.charAt(0));
+    return content;
+  }
+
+  /**
+   * Read like {@link RepoService#getObjectInputStream} does.
+   */
+  private byte[] read(String checksum) throws IOException {
+    ByteBuffer cached = contentCache.get(BUCKET, checksum);
+
+    if (cached != null) {
+      return IOUtils.toByteArray(new ContentCache.ByteBufferInputStream(cached));
+    }
+
+    return IOUtils.toByteArray(contentCache.fill(BUCKET, checksum, new ByteArrayInputStream(content(checksum)),
+        OBJECT_SIZE));
+  }
+
+  private boolean isCached(String checksum) {
+    return contentCache.contains(BUCKET, checksum);
+  }
+
+  @Test
+  public void hit() throws IOException {
+    assertArrayEquals(content("a"), read("a"));
+    assertEquals(1, contentCache.getMisses());
+
+    ByteBuffer cached = contentCache.get(BUCKET, "a");
+    assertNotNull(cached);
+    assertTrue(cached.isDirect());
+    assertTrue(cached.isReadOnly());
+    assertArrayEquals(content("a"), read("a"));
+    assertEquals(2, contentCache.getHits());
+
+    // keyed by bucket too
+    assertNull(contentCache.get("bucket2", "a"));
+  }
+
+  @Test
+  public void admitByFrequency() throws IOException {
+    read("a");
+    read("b");
+    read("a");
+    read("a");
+    assertEquals(OBJECT_SIZE * 2, contentCache.getCachedBytes());
+
+    // read as often as the least recently read content, so not admitted
+    read("c");
+    assertFalse(isCached("c"));
+    assertEquals(0, contentCache.getEvictions());
+
+    // now read more often than it
+    read("c");
+    assertTrue(isCached("c"));
+    assertTrue(isCached("a"));
+    assertEquals(1, contentCache.getEvictions());
+    assertEquals(OBJECT_SIZE * 2, contentCache.getCachedBytes());
+  }
+
+  @Test
+  public void rejectedContentNotBuffered() throws IOException {
+    read("a");
+    read("b");
+    read("a");
+    read("b");
+
+    // read less often than the cached contents, so streamed as it is
+    InputStream in = new ByteArrayInputStream(content("c"));
+    assertSame(in, contentCache.fill(BUCKET, "c", in, OBJECT_SIZE));
+    assertFalse(isCached("c"));
+  }
+
+  @Test
+  public void sizeMismatchNotCached() throws IOException {
+    byte[] content = content("a");
+
+    // longer than its size
+    assertArrayEquals(content, IOUtils.toByteArray(
+        contentCache.fill(BUCKET, "a", new ByteArrayInputStream(content), OBJECT_SIZE - 1)));
+
+    // shorter than its size
+    assertArrayEquals(Arrays.copyOf(content, OBJECT_SIZE - 1), IOUtils.toByteArray(
+        contentCache.fill(BUCKET, "a", new ByteArrayInputStream(content, 0, OBJECT_SIZE - 1), OBJECT_SIZE)));
+
+    assertFalse(isCached("a"));
+    assertEquals(0, contentCache.getCachedBytes());
+  }
+
+  @Test
+  public void disabled() {
+    ContentCache disabled = new ContentCache(0, OBJECT_SIZE);
+
+    assertFalse(disabled.accepts((long) OBJECT_SIZE));
+    assertFalse(contentCache.accepts(OBJECT_SIZE + 1L));
+    assertFalse(contentCache.accepts(null));
+    assertTrue(contentCache.accepts((long) OBJECT_SIZE));
+  }
+
+  @Test
+  public void invalidate() throws IOException {
+    read("a");
+    contentCache.invalidate(BUCKET, "a");
+
+    assertNull(contentCache.get(BUCKET, "a"));
+    assertEquals(0, contentCache.getCachedBytes());
+  }
+
+}
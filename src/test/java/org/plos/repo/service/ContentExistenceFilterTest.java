@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import com.google.common.hash.BloomFilter;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class ContentExistenceFilterTest {
+
+  private static final String STORED_CHECKSUM = "0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33";
+
+  private static final String NEW_CHECKSUM = "62cdb7020ff920e5aa642c3d4066950dd1f01f4d";
+
+  @Mock
+  private SqlService sqlService;
+
+  @Mock
+  private ObjectStore objectStore;
+
+  @InjectMocks
+  private ContentExistenceFilter contentExistenceFilter;
+
+  @Before
+  public void setUp() throws SQLException {
+    contentExistenceFilter = new ContentExistenceFilter(1000);
+    initMocks(this);
+
+    when(sqlService.countStoredContents(anyBoolean())).thenReturn(1L);
+    doAnswer(new Answer<Object>() {
+      @Override
+      @SuppressWarnings("unchecked")
+      public Object answer(InvocationOnMock invocation) {
+        boolean perBucket = (Boolean) invocation.getArguments()[1];
+        ((BloomFilter<CharSequence>) invocation.getArguments()[0]).put(
+            ContentExistenceFilter.getKey(perBucket, "bucket1", STORED_CHECKSUM));
+        return null;
+      }
+    }).when(sqlService).putStoredContents(any(BloomFilter.class), anyBoolean());
+  }
+
+  @Test
+  public void sharedContent() throws SQLException {
+    when(objectStore.sharesContentAcrossBuckets()).thenReturn(true);
+    contentExistenceFilter.load();
+
+    assertTrue(contentExistenceFilter.mightExist("bucket1", STORED_CHECKSUM));
+    assertTrue(contentExistenceFilter.mightExist("bucket2", STORED_CHECKSUM));
+    assertFalse(contentExistenceFilter.mightExist("bucket1", NEW_CHECKSUM));
+
+    contentExistenceFilter.add("bucket2", NEW_CHECKSUM);
+    assertTrue(contentExistenceFilter.mightExist("bucket1", NEW_CHECKSUM));
+
+    verify(sqlService).releaseConnection();
+  }
+
+  @Test
+  public void contentPerBucket() {
+    when(objectStore.sharesContentAcrossBuckets()).thenReturn(false);
+    contentExistenceFilter.load();
+
+    assertTrue(contentExistenceFilter.mightExist("bucket1", STORED_CHECKSUM));
+    assertFalse(contentExistenceFilter.mightExist("bucket2", STORED_CHECKSUM));
+
+    contentExistenceFilter.add("bucket2", STORED_CHECKSUM);
+    assertTrue(contentExistenceFilter.mightExist("bucket2", STORED_CHECKSUM));
+  }
+
+  @Test
+  public void failedLoad() throws SQLException {
+    when(sqlService.countStoredContents(anyBoolean())).thenThrow(new SQLException());
+    contentExistenceFilter.load();
+
+    // without a filter every content has to be looked up in the store
+    assertTrue(contentExistenceFilter.mightExist("bucket1", NEW_CHECKSUM));
+    verify(sqlService).releaseConnection();
+  }
+
+}
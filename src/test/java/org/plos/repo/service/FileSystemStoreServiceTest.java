@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.plos.repo.models.Bucket;
+import org.plos.repo.models.RepoObject;
+import org.plos.repo.models.output.DataRootStatus;
+import org.plos.repo.util.ChecksumGenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileSystemStoreServiceTest {
+
+  private static final int OBJECT_COUNT = 40;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private List<String> createDirectories(int count) {
+    List<String> directories = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      directories.add(new File(folder.getRoot(), "disk" + i).getPath());
+    }
+    return directories;
+  }
+
+  private static byte[] getContent(int seed) {
+    byte[] content = new byte[100 + seed];
+    new Random(seed).nextBytes(content);
+    return content;
+  }
+
+  private static RepoObject createObject(ObjectStore store, int seed) throws RepoException {
+    ObjectStore.UploadInfo uploadInfo = store.uploadTempObject(new ByteArrayInputStream(getContent(seed)));
+    assertTrue(store.saveUploadedObject(new Bucket("bucket1"), uploadInfo, null));
+
+    RepoObject repoObject = new RepoObject();
+    repoObject.setKey("key" + seed);
+    repoObject.setBucketName("bucket1");
+    repoObject.setChecksum(uploadInfo.getChecksum());
+    repoObject.setSize(uploadInfo.getSize());
+    return repoObject;
+  }
+
+  private static void assertContent(ObjectStore store, RepoObject repoObject, int seed) throws Exception {
+    try (InputStream in = store.getInputStream(repoObject)) {
+      assertArrayEquals(getContent(seed), IOUtils.toByteArray(in));
+    }
+  }
+
+  private static int countFiles(File directory) {
+    int count = 0;
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        count += file.isDirectory() ? countFiles(file) : 1;
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void singleDirectoryLayout() throws Exception {
+    String directory = createDirectories(1).get(0);
+    FileSystemStoreService store = new FileSystemStoreService(directory, null);
+
+    RepoObject repoObject = createObject(store, 1);
+
+    String checksum = repoObject.getChecksum();
+    assertTrue(new File(directory + "/_blobs/" + checksum.substring(0, 2) + "/" + checksum).isFile());
+    assertContent(store, repoObject, 1);
+  }
+
+  @Test
+  public void spreadOverDirectories() throws Exception {
+    List<String> directories = createDirectories(4);
+    FileSystemStoreService store = new FileSystemStoreService(directories, null, null);
+
+    List<RepoObject> repoObjects = new ArrayList<>();
+    for (int i = 0; i < OBJECT_COUNT; i++) {
+      repoObjects.add(createObject(store, i));
+    }
+
+    for (int i = 0; i < OBJECT_COUNT; i++) {
+      assertContent(store, repoObjects.get(i), i);
+    }
+
+    // every content is in the directory it belongs to, and no upload is left behind
+    int total = 0;
+    for (String directory : directories) {
+      int count = countFiles(new File(directory));
+      assertTrue(count > 0);
+      total += count;
+    }
+    assertEquals(OBJECT_COUNT, total);
+
+    long reads = 0;
+    long writes = 0;
+    for (DataRootStatus status : store.getDataRootStatus()) {
+      reads += status.reads;
+      writes += status.writes;
+      assertEquals(countFiles(new File(status.directory)), status.writes);
+    }
+    assertEquals(OBJECT_COUNT, reads);
+    assertEquals(OBJECT_COUNT, writes);
+
+    for (RepoObject repoObject : repoObjects) {
+      assertTrue(store.deleteObject(repoObject));
+      assertFalse(store.objectExists(repoObject));
+    }
+  }
+
+  @Test
+  public void saveWhereStaged() throws Exception {
+    List<String> directories = createDirectories(4);
+    FileSystemStoreService store = new FileSystemStoreService(directories, null, null);
+    byte[] content = getContent(1);
+
+    // without a checksum, each upload is saved on the directory it was staged on; the same content is stored once
+    for (int i = 0; i < directories.size(); i++) {
+      ObjectStore.UploadInfo uploadInfo = store.uploadTempObject(new ByteArrayInputStream(content));
+      File stagedOn = new File(uploadInfo.getTempLocation()).getParentFile();
+      assertTrue(store.saveUploadedObject(new Bucket("bucket1"), uploadInfo, null));
+
+      if (i == 0) {
+        assertEquals(1, countFiles(stagedOn));
+      }
+    }
+
+    int total = 0;
+    for (String directory : directories) {
+      total += countFiles(new File(directory));
+    }
+    assertEquals(1, total);
+
+    // with a checksum, the upload is staged on the directory its content belongs to
+    String checksum = ChecksumGenerator.checksumToString(ChecksumGenerator.getDigestMessage().digest(getContent(2)));
+    ObjectStore.UploadInfo uploadInfo = store.uploadTempObject(new ByteArrayInputStream(getContent(2)), null, checksum);
+    String belongsTo = new File(store.getObjectLocationString(checksum)).getParentFile().getParentFile().getParent();
+    assertEquals(new File(belongsTo), new File(uploadInfo.getTempLocation()).getParentFile());
+  }
+
+  @Test
+  public void rebalanceAfterAddingDirectory() throws Exception {
+    List<String> directories = createDirectories(3);
+    FileSystemStoreService store = new FileSystemStoreService(directories.subList(0, 2), null, null);
+
+    List<RepoObject> repoObjects = new ArrayList<>();
+    for (int i = 0; i < OBJECT_COUNT; i++) {
+      repoObjects.add(createObject(store, i));
+    }
+
+    store = new FileSystemStoreService(directories, null, null);
+
+    // content is found where it was until it is moved
+    for (int i = 0; i < OBJECT_COUNT; i++) {
+      assertTrue(store.objectExists(repoObjects.get(i)));
+      assertContent(store, repoObjects.get(i), i);
+    }
+
+    assertTrue(store.rebalance());
+    while (store.isRebalancing()) {
+      Thread.sleep(10);
+    }
+
+    int moved = countFiles(new File(directories.get(2)));
+    assertTrue(moved > 0);
+    assertTrue(moved < OBJECT_COUNT);
+
+    for (int i = 0; i < OBJECT_COUNT; i++) {
+      RepoObject repoObject = repoObjects.get(i);
+      assertTrue(new File(store.getObjectLocationString(repoObject.getChecksum())).isFile());
+      assertContent(store, repoObject, i);
+    }
+    assertEquals(OBJECT_COUNT, countFiles(folder.getRoot()));
+  }
+
+  @Test
+  public void relayoutToDeeperFanOut() throws Exception {
+    List<String> directories = createDirectories(1);
+    FileSystemStoreService store = new FileSystemStoreService(directories, null, null);
+
+    List<RepoObject> repoObjects = new ArrayList<>();
+    for (int i = 0; i < OBJECT_COUNT; i++) {
+      repoObjects.add(createObject(store, i));
+    }
+
+    store = new FileSystemStoreService(directories, null, null, 2, 1000);
+
+    // content is found at its previous depth until it is moved
+    for (int i = 0; i < OBJECT_COUNT; i++) {
+      assertContent(store, repoObjects.get(i), i);
+    }
+
+    RepoObject added = createObject(store, OBJECT_COUNT);
+    String checksum = added.getChecksum();
+    assertTrue(new File(directories.get(0) + "/_blobs/" + checksum.substring(0, 2) + "/" + checksum.substring(2, 4)
+        + "/" + checksum).isFile());
+
+    assertTrue(store.rebalance());
+    while (store.isRebalancing()) {
+      Thread.sleep(10);
+    }
+
+    for (int i = 0; i < OBJECT_COUNT; i++) {
+      RepoObject repoObject = repoObjects.get(i);
+      assertTrue(new File(store.getObjectLocationString(repoObject.getChecksum())).isFile());
+      assertContent(store, repoObject, i);
+    }
+
+    // deleting every object leaves no subdirectory behind
+    repoObjects.add(added);
+    for (RepoObject repoObject : repoObjects) {
+      assertTrue(store.deleteObject(repoObject));
+    }
+    assertEquals(0, new File(directories.get(0), "_blobs").list().length);
+  }
+
+  @Test
+  public void reproxyUrlPerDirectory() throws Exception {
+    List<String> directories = createDirectories(2);
+    FileSystemStoreService store = new FileSystemStoreService(directories,
+        Arrays.asList("http://localhost/disk0", "http://localhost/disk1"), null);
+
+    for (int i = 0; i < 10; i++) {
+      RepoObject repoObject = createObject(store, i);
+      String checksum = repoObject.getChecksum();
+      String directory = new File(directories.get(0) + "/_blobs/" + checksum.substring(0, 2) + "/" + checksum).isFile()
+          ? "disk0" : "disk1";
+
+      assertArrayEquals(new String[]{"http://localhost/" + directory + "/_blobs/" + checksum.substring(0, 2) + "/" + checksum},
+          store.getFilePaths(repoObject));
+    }
+  }
+
+}
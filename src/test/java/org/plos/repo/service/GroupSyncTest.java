@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.plos.repo.models.Bucket;
+import org.plos.repo.models.RepoObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GroupSyncTest {
+
+  private static final int WRITERS = 16;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static <T> List<T> runConcurrently(List<Callable<T>> tasks) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+    try {
+      List<T> results = new ArrayList<>();
+      for (Future<T> future : executor.invokeAll(tasks)) {
+        results.add(future.get());
+      }
+      return results;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void coalesceSyncs() throws Exception {
+    final GroupSync groupSync = new GroupSync(20000, GroupSync.DEFAULT_CONCURRENCY);
+    final Path file = folder.newFile().toPath();
+    final Path directory = folder.getRoot().toPath();
+
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int i = 0; i < WRITERS; i++) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          groupSync.sync(file, directory);
+          return null;
+        }
+      });
+    }
+    runConcurrently(tasks);
+
+    assertTrue(groupSync.getBatches() < WRITERS);
+    assertEquals(2 * groupSync.getBatches(), groupSync.getSyncs());
+  }
+
+  @Test
+  public void reportFailure() throws Exception {
+    GroupSync groupSync = new GroupSync(0, 1);
+
+    try {
+      groupSync.sync(new File(folder.getRoot(), "missing").toPath());
+      fail("An IOException was expected");
+    } catch (IOException e) {
+      // expected
+    }
+
+    // later batches are not affected
+    groupSync.sync(folder.newFile().toPath());
+  }
+
+  @Test
+  public void durableSegmentSaves() throws Exception {
+    final SegmentFileStoreService store = new SegmentFileStoreService(
+        Collections.singletonList(folder.getRoot().getPath()), null, FileSystemStoreService.DEFAULT_FAN_OUT_LEVELS,
+        FileSystemStoreService.DEFAULT_RELAYOUT_RATE, SegmentFileStoreService.DEFAULT_MAXIMUM_PACKED_SIZE,
+        SegmentFileStoreService.DEFAULT_SEGMENT_SIZE, SegmentFileStoreService.DEFAULT_COMPACTION_THRESHOLD);
+    GroupSync groupSync = new GroupSync(20000, GroupSync.DEFAULT_CONCURRENCY);
+    store.setGroupSync(groupSync);
+
+    List<Callable<RepoObject>> tasks = new ArrayList<>();
+    for (int i = 0; i < WRITERS; i++) {
+      final byte[] content = ("content " + i).getBytes();
+      tasks.add(new Callable<RepoObject>() {
+        @Override
+        public RepoObject call() throws RepoException {
+          ObjectStore.UploadInfo uploadInfo = store.uploadTempObject(new ByteArrayInputStream(content));
+          assertTrue(store.saveUploadedObject(new Bucket("bucket1"), uploadInfo, null));
+
+          RepoObject repoObject = new RepoObject();
+          repoObject.setChecksum(uploadInfo.getChecksum());
+          return repoObject;
+        }
+      });
+    }
+    List<RepoObject> repoObjects = runConcurrently(tasks);
+
+    // the saves shared the syncs of the segment
+    assertTrue(groupSync.getBatches() < WRITERS);
+
+    for (int i = 0; i < WRITERS; i++) {
+      try (InputStream in = store.getInputStream(repoObjects.get(i))) {
+        assertArrayEquals(("content " + i).getBytes(), IOUtils.toByteArray(in));
+      }
+    }
+  }
+
+  @Test
+  public void durableFileSaves() throws Exception {
+    FileSystemStoreService store = new FileSystemStoreService(folder.getRoot().getPath(), null);
+    GroupSync groupSync = new GroupSync(0, 1);
+    store.setGroupSync(groupSync);
+
+    ObjectStore.UploadInfo uploadInfo = store.uploadTempObject(new ByteArrayInputStream("content".getBytes()));
+    assertTrue(store.saveUploadedObject(new Bucket("bucket1"), uploadInfo, null));
+
+    // the data before the rename, then the new subdirectory, the new blob directory and the data directory
+    assertEquals(2, groupSync.getBatches());
+    assertEquals(4, groupSync.getSyncs());
+    assertTrue(new File(store.getObjectLocationString(uploadInfo.getChecksum())).isFile());
+  }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.plos.repo.models.RepoCollection;
+import org.plos.repo.models.RepoObject;
+import org.plos.repo.models.Status;
+import org.plos.repo.models.input.ElementFilter;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class MetadataCacheTest {
+
+  private static final String BUCKET_NAME = "bucket";
+  private static final String KEY = "key";
+
+  private MetadataCache metadataCache;
+
+  private RepoObject repoObject;
+
+  @Before
+  public void setUp() {
+    metadataCache = new MetadataCache(MetadataCache.DEFAULT_MAXIMUM_KEYS);
+    repoObject = new RepoObject(KEY, 1, BUCKET_NAME, Status.USED);
+    repoObject.setUuid(UUID.randomUUID());
+  }
+
+  private static void assertCopyOf(RepoObject expected, RepoObject actual) {
+    assertNotNull(actual);
+    assertNotSame(expected, actual);
+    assertEquals(expected.getUuid(), actual.getUuid());
+  }
+
+  @Test
+  public void createInvalidatesOnlyLatest() throws RepoException {
+    ElementFilter pinned = new ElementFilter(0, null, null);
+    ElementFilter tagged = new ElementFilter(null, "tag", null);
+
+    long generation = metadataCache.objectGeneration();
+    metadataCache.putObject(BUCKET_NAME, KEY, null, repoObject, generation);
+    metadataCache.putObject(BUCKET_NAME, KEY, pinned, repoObject, generation);
+    metadataCache.putObject(BUCKET_NAME, KEY, tagged, repoObject, generation);
+
+    assertCopyOf(repoObject, metadataCache.getObject(BUCKET_NAME, KEY, new ElementFilter()));
+
+    metadataCache.invalidateObjectLatest(BUCKET_NAME, KEY);
+
+    assertNull(metadataCache.getObject(BUCKET_NAME, KEY, null));
+    assertNull(metadataCache.getObject(BUCKET_NAME, KEY, tagged));
+    assertCopyOf(repoObject, metadataCache.getObject(BUCKET_NAME, KEY, new ElementFilter(0, null, null)));
+  }
+
+  @Test
+  public void deleteInvalidatesObjectAndCollections() throws RepoException {
+    UUID uuid = UUID.randomUUID();
+    ElementFilter pinned = new ElementFilter(null, null, uuid.toString());
+    RepoCollection repoCollection = new RepoCollection("collection", 1, BUCKET_NAME, Status.USED);
+
+    metadataCache.putObject(BUCKET_NAME, KEY, pinned, repoObject, metadataCache.objectGeneration());
+    metadataCache.putCollection(BUCKET_NAME, "collection", null, repoCollection, metadataCache.collectionGeneration());
+
+    // the uuid is normalized before building the cache key
+    assertCopyOf(repoObject, metadataCache.getObject(BUCKET_NAME, KEY,
+        new ElementFilter(null, null, uuid.toString().toUpperCase())));
+
+    metadataCache.invalidateObject(BUCKET_NAME, KEY);
+
+    assertNull(metadataCache.getObject(BUCKET_NAME, KEY, pinned));
+    assertNull(metadataCache.getCollection(BUCKET_NAME, "collection", null));
+  }
+
+  @Test
+  public void stalePutIsIgnored() throws RepoException {
+    long generation = metadataCache.objectGeneration();
+
+    // a writer commits while the reader is querying the database
+    metadataCache.invalidateObjectLatest(BUCKET_NAME, KEY);
+
+    metadataCache.putObject(BUCKET_NAME, KEY, null, repoObject, generation);
+
+    assertNull(metadataCache.getObject(BUCKET_NAME, KEY, null));
+  }
+
+  @Test
+  public void disabledCache() throws RepoException {
+    metadataCache = new MetadataCache(0);
+    metadataCache.putObject(BUCKET_NAME, KEY, null, repoObject, metadataCache.objectGeneration());
+
+    assertNull(metadataCache.getObject(BUCKET_NAME, KEY, null));
+  }
+
+  @Test
+  public void valuesAreNotShared() throws Exception {
+    metadataCache.putObject(BUCKET_NAME, KEY, null, repoObject, metadataCache.objectGeneration());
+
+    // neither the instance put nor the ones returned are the cached one
+    repoObject.setTag("changed");
+    RepoObject first = metadataCache.getObject(BUCKET_NAME, KEY, null);
+    first.setReproxyURL(new URL[]{new URL("http://localhost/object")});
+
+    RepoObject second = metadataCache.getObject(BUCKET_NAME, KEY, null);
+    assertNull(second.getTag());
+    assertNull(second.getReproxyURL());
+
+    RepoCollection repoCollection = new RepoCollection("collection", 1, BUCKET_NAME, Status.USED);
+    repoCollection.setRepoObjects(Collections.singletonList(repoObject));
+    metadataCache.putCollection(BUCKET_NAME, "collection", null, repoCollection, metadataCache.collectionGeneration());
+
+    metadataCache.getCollection(BUCKET_NAME, "collection", null).getRepoObjects().get(0).setTag("other");
+    RepoCollection cached = metadataCache.getCollection(BUCKET_NAME, "collection", null);
+    assertNotSame(repoCollection, cached);
+    assertCopyOf(repoObject, cached.getRepoObjects().get(0));
+    assertEquals("changed", cached.getRepoObjects().get(0).getTag());
+  }
+
+}
@@ -22,16 +22,28 @@
 
 package org.plos.repo.service;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.guba.mogilefs.MogileException;
 import com.guba.mogilefs.MogileFS;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Before;
@@ -39,6 +51,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.plos.repo.models.RepoObject;
 import org.plos.repo.TestSpringConfig;
 import org.plos.repo.service.ObjectStore.UploadInfo;
 import org.springframework.test.context.ContextConfiguration;
@@ -70,4 +83,44 @@ public class MogileStoreServiceTest {
     assertEquals("0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33", uploadInfo.getChecksum());
     verify(mfs).storeFile(eq(uploadInfo.getTempLocation()), eq(""), any(File.class));
   }
+
+  @Test
+  public void readSequentiallyWhenRangesAreIgnored() throws Exception {
+    final byte[] content = "content served whole".getBytes();
+
+    // a storage node that answers ranged requests with the whole file
+    HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    final AtomicInteger requests = new AtomicInteger();
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        exchange.sendResponseHeaders(200, content.length);
+        exchange.getResponseBody().write(content);
+        exchange.close();
+      }
+    });
+    server.start();
+
+    try {
+      String path = "http://localhost:" + server.getAddress().getPort() + "/dev1/0/000/000/0000000001.fid";
+      when(mfs.getPaths(anyString(), eq(true))).thenReturn(new String[]{path});
+      when(mfs.getFileStream(anyString())).thenReturn(new ByteArrayInputStream(content));
+
+      mogileStoreService.setParallelGet(new ParallelRangeInputStream.Settings(0, 2, 4));
+
+      RepoObject repoObject = new RepoObject();
+      repoObject.setChecksum("checksum");
+      repoObject.setSize((long) content.length);
+
+      InputStream in = mogileStoreService.getInputStream(repoObject);
+      assertFalse(in instanceof ParallelRangeInputStream);
+      assertArrayEquals(content, IOUtils.toByteArray(in));
+
+      // only the probe reached the node
+      assertEquals(1, requests.get());
+    } finally {
+      server.stop(0);
+    }
+  }
 }
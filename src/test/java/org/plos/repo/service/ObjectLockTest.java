@@ -100,6 +100,11 @@ public class ObjectLockTest extends RepoBaseSpringTest {
     osSqlServiceField.setAccessible(true);
     osSqlServiceField.set(repoService, spySqlService);
 
+    // the DB call counts verified below assume every read reaches the DB
+    Field metadataCacheField = RepoService.class.getDeclaredField("metadataCache");
+    metadataCacheField.setAccessible(true);
+    metadataCacheField.set(repoService, new MetadataCache(0));
+
     this.startGate = new CountDownLatch(1);  // make all thread starts at the same time. Since all threads are going to be waiting on startGate, once all thread are created, we perform a startGate.countDown()
   }
 
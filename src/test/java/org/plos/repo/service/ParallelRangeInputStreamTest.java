@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.plos.repo.models.Bucket;
+import org.plos.repo.models.RepoObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.spy;
+
+public class ParallelRangeInputStreamTest {
+
+  private static final int CHUNK_SIZE = 1000;
+
+  private InMemoryFileStoreService objectStore;
+
+  private byte[] content;
+
+  private RepoObject repoObject;
+
+  @Before
+  public void setUp() throws RepoException {
+    objectStore = spy(new InMemoryFileStoreService());
+
+    content = new byte[CHUNK_SIZE * 10 + 123];
+    new Random(1).nextBytes(content);
+
+    ObjectStore.UploadInfo uploadInfo = objectStore.uploadTempObject(new ByteArrayInputStream(content));
+    objectStore.saveUploadedObject(new Bucket("bucket1"), uploadInfo, null);
+
+    repoObject = new RepoObject();
+    repoObject.setKey("key1");
+    repoObject.setChecksum(uploadInfo.getChecksum());
+    repoObject.setSize(uploadInfo.getSize());
+  }
+
+  @Test
+  public void readInOrder() throws IOException {
+    InputStream in = new ParallelRangeInputStream(objectStore, repoObject,
+        new ParallelRangeInputStream.Settings(0, 3, CHUNK_SIZE));
+
+    assertEquals(content[0] & 0xff, in.read());
+    byte[] rest = IOUtils.toByteArray(in);
+
+    assertEquals(content.length - 1, rest.length);
+    for (int i = 0; i < rest.length; i++) {
+      assertEquals(content[i + 1], rest[i]);
+    }
+    assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void readFailure() throws Exception {
+    doThrow(new IllegalStateException("connection reset"))
+        .when(objectStore).getInputStream(eq(repoObject), eq(3L * CHUNK_SIZE), anyLong());
+
+    InputStream in = new ParallelRangeInputStream(objectStore, repoObject,
+        new ParallelRangeInputStream.Settings(0, 2, CHUNK_SIZE));
+
+    try {
+      IOUtils.toByteArray(in);
+      fail("An IOException was expected");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  @Test
+  public void missingData() throws Exception {
+    doReturn(null).when(objectStore).getInputStream(eq(repoObject), eq(0L), anyLong());
+
+    try {
+      IOUtils.toByteArray(new ParallelRangeInputStream(objectStore, repoObject,
+          new ParallelRangeInputStream.Settings(0, 2, CHUNK_SIZE)));
+      fail("An IOException was expected");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("missing"));
+    }
+  }
+
+  @Test
+  public void storeFallsBackWhenDataMissing() throws Exception {
+    doReturn(null).when(objectStore).getInputStream(eq(repoObject), eq(0L), anyLong());
+    objectStore.setParallelGet(new ParallelRangeInputStream.Settings(0, 2, CHUNK_SIZE));
+
+    // the first range is read before the stream is returned, so the single stream reports the missing data
+    assertNull(objectStore.getParallelInputStream(repoObject));
+  }
+
+  @Test
+  public void downloadsShareBoundedBuffers() throws Exception {
+    final ParallelRangeInputStream.Settings settings = new ParallelRangeInputStream.Settings(0, 3, CHUNK_SIZE, 2);
+    InputStream first = new ParallelRangeInputStream(objectStore, repoObject, settings);
+
+    FutureTask<byte[]> second = new FutureTask<>(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        return IOUtils.toByteArray(new ParallelRangeInputStream(objectStore, repoObject, settings));
+      }
+    });
+    new Thread(second).start();
+
+    try {
+      second.get(100, TimeUnit.MILLISECONDS);
+      fail("The buffers should have been exhausted");
+    } catch (TimeoutException e) {
+      // expected
+    }
+
+    assertArrayEquals(content, IOUtils.toByteArray(first));
+    assertArrayEquals(content, second.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test(timeout = 10000)
+  public void closeReleasesBuffers() throws Exception {
+    final ParallelRangeInputStream.Settings settings = new ParallelRangeInputStream.Settings(0, 3, CHUNK_SIZE, 2);
+
+    for (int i = 0; i < 5; i++) {
+      InputStream in = new ParallelRangeInputStream(objectStore, repoObject, settings);
+      assertEquals(content[0] & 0xff, in.read());
+      in.close();
+    }
+
+    assertArrayEquals(content, IOUtils.toByteArray(new ParallelRangeInputStream(objectStore, repoObject, settings)));
+  }
+
+  @Test
+  public void storeUsesThreshold() throws Exception {
+    objectStore.setParallelGet(new ParallelRangeInputStream.Settings(content.length + 1, null, CHUNK_SIZE));
+    assertFalse(objectStore.getParallelInputStream(repoObject) instanceof ParallelRangeInputStream);
+
+    objectStore.setParallelGet(new ParallelRangeInputStream.Settings(content.length, null, CHUNK_SIZE));
+    InputStream in = objectStore.getParallelInputStream(repoObject);
+    assertTrue(in instanceof ParallelRangeInputStream);
+    assertArrayEquals(content, IOUtils.toByteArray(in));
+  }
+
+}
@@ -27,6 +27,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.internal.util.reflection.Whitebox;
 import org.plos.repo.models.output.ServiceStatus;
 
@@ -54,6 +55,12 @@ public class RepoInfoServiceTest {
   @Mock
   private RepoService repoService;
 
+  @Mock
+  private ObjectStore objectStore;
+
+  @Spy
+  private ContentCache contentCache = new ContentCache(0, ContentCache.DEFAULT_MAXIMUM_OBJECT_SIZE);
+
   @Mock
   private List<org.plos.repo.models.Bucket> buckets;
 
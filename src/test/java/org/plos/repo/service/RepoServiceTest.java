@@ -28,22 +28,41 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.plos.repo.TestSpringConfig;
+import org.plos.repo.models.Audit;
 import org.plos.repo.models.Bucket;
 import org.plos.repo.models.RepoObject;
+import org.plos.repo.models.input.InputRepoObject;
+import org.plos.repo.models.validator.InputRepoObjectValidator;
 import org.plos.repo.models.validator.TimestampInputValidator;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -56,6 +75,7 @@ public class RepoServiceTest {
   private static final Integer VALID_OFFSET = 1;
   private static final Integer VALID_LIMIT = 100;
   private static final String VALID_TAG = "tag";
+  private static final String VALID_KEY = "key";
 
   @InjectMocks
   private RepoService repoService;
@@ -66,12 +86,27 @@ public class RepoServiceTest {
   @Mock
   private TimestampInputValidator timestampValidator;
 
+  @Mock
+  private InputRepoObjectValidator inputRepoObjectValidator;
+
+  @Mock
+  private ContentExistenceFilter contentExistenceFilter;
+
+  @Mock
+  private ContentCache contentCache;
+
+  @Mock
+  private ObjectStore.UploadInfo uploadInfo;
+
   @Mock
   protected SqlService sqlService;
 
   @Mock
   private Bucket bucket;
 
+  @Spy
+  private MetadataCache metadataCache = new MetadataCache(MetadataCache.DEFAULT_MAXIMUM_KEYS);
+
   @Before
   public void setUp() {
     repoService = new RepoService();
@@ -89,7 +124,7 @@ public class RepoServiceTest {
     ob.setKey("key");
     repoObjects.add(ob);
 
-    when(sqlService.listObjects(VALID_BUCKET, VALID_OFFSET, VALID_LIMIT, true, true, VALID_TAG)).thenReturn(repoObjects);
+    when(sqlService.listObjects(VALID_BUCKET, VALID_OFFSET, VALID_LIMIT, true, true, VALID_TAG, null)).thenReturn(repoObjects);
 
     when(objectStore.hasXReproxy()).thenReturn(true);
 
@@ -108,10 +143,138 @@ public class RepoServiceTest {
 
     verify(sqlService).getReadOnlyConnection();
     verify(sqlService).getBucket(VALID_BUCKET);
-    verify(sqlService).listObjects(VALID_BUCKET, VALID_OFFSET, VALID_LIMIT, true, true, VALID_TAG);
+    verify(sqlService).listObjects(VALID_BUCKET, VALID_OFFSET, VALID_LIMIT, true, true, VALID_TAG, null);
     verify(objectStore).hasXReproxy();
     verify(objectStore).getRedirectURLs(ob);
     verify(sqlService).releaseConnection();
   }
 
+  @Test
+  public void failedStageLeavesNothing() throws Exception {
+    mockCreateObject();
+    when(uploadInfo.getChecksum()).thenReturn("other");
+
+    InputRepoObject inputRepoObject = createInputRepoObject();
+    inputRepoObject.setChecksum("checksum");
+
+    try {
+      repoService.createObject(RepoService.CreateMethod.NEW, inputRepoObject);
+      fail("A repo exception was expected");
+    } catch (RepoException e) {
+      assertEquals(RepoException.Type.ChecksumMismatch, e.getType());
+    }
+
+    verify(objectStore).deleteTempUpload(uploadInfo);
+    verify(sqlService, never()).getConnection();
+    verify(sqlService, never()).insertObject(any(RepoObject.class));
+  }
+
+  @Test
+  public void failedCommitDropsStagedContent() throws Exception {
+    mockCreateObject();
+    when(objectStore.saveUploadedObject(any(Bucket.class), eq(uploadInfo), any(RepoObject.class))).thenReturn(false);
+
+    try {
+      repoService.createObject(RepoService.CreateMethod.NEW, createInputRepoObject());
+      fail("A repo exception was expected");
+    } catch (RepoException e) {
+      assertEquals("Error saving content to object store", e.getMessage());
+    }
+
+    verify(objectStore).deleteTempUpload(uploadInfo);
+    verify(sqlService, never()).insertObject(any(RepoObject.class));
+    verify(sqlService).transactionRollback();
+    verify(sqlService, never()).transactionCommit();
+  }
+
+  @Test
+  public void committedContentNotDropped() throws Exception {
+    mockCreateObject();
+
+    RepoObject repoObject = repoService.createObject(RepoService.CreateMethod.NEW, createInputRepoObject());
+
+    assertEquals("checksum", repoObject.getChecksum());
+    verify(objectStore).saveUploadedObject(any(Bucket.class), eq(uploadInfo), any(RepoObject.class));
+    verify(sqlService).transactionCommit();
+    verify(objectStore, never()).deleteTempUpload(any(ObjectStore.UploadInfo.class));
+  }
+
+  @Test
+  public void concurrentCreatesOfKeySerialize() throws Exception {
+    mockCreateObject();
+
+    final CountDownLatch firstSaving = new CountDownLatch(1);
+    final CountDownLatch releaseFirst = new CountDownLatch(1);
+    final AtomicInteger saves = new AtomicInteger();
+    final AtomicInteger concurrentSaves = new AtomicInteger();
+
+    when(objectStore.saveUploadedObject(any(Bucket.class), eq(uploadInfo), any(RepoObject.class)))
+        .thenAnswer(new Answer<Boolean>() {
+          @Override
+          public Boolean answer(InvocationOnMock invocation) throws InterruptedException {
+            if (concurrentSaves.incrementAndGet() > 1) {
+              throw new IllegalStateException("Two commits of the same key overlap");
+            }
+
+            try {
+              if (saves.incrementAndGet() == 1) {
+                firstSaving.countDown();
+                releaseFirst.await();
+              }
+              return true;
+            } finally {
+              concurrentSaves.decrementAndGet();
+            }
+          }
+        });
+
+    FutureTask<RepoObject> first = new FutureTask<>(new CreateObject());
+    new Thread(first).start();
+    firstSaving.await();
+
+    // the lock of the key is only weakly held by the striped locks, so it has to survive a collection
+    System.gc();
+
+    FutureTask<RepoObject> second = new FutureTask<>(new CreateObject());
+    new Thread(second).start();
+
+    Thread.sleep(200);
+    assertEquals(1, saves.get());
+    assertFalse(second.isDone());
+
+    releaseFirst.countDown();
+    assertNotNull(first.get(5, TimeUnit.SECONDS));
+    assertNotNull(second.get(5, TimeUnit.SECONDS));
+    assertEquals(2, saves.get());
+  }
+
+  private class CreateObject implements Callable<RepoObject> {
+    @Override
+    public RepoObject call() throws RepoException {
+      return repoService.createObject(RepoService.CreateMethod.AUTO, createInputRepoObject());
+    }
+  }
+
+  private void mockCreateObject() throws Exception {
+    when(sqlService.getBucket(VALID_BUCKET)).thenReturn(bucket);
+    when(sqlService.insertObject(any(RepoObject.class))).thenReturn(1);
+    when(sqlService.insertAudit(any(Audit.class))).thenReturn(true);
+
+    when(uploadInfo.getChecksum()).thenReturn("checksum");
+    when(uploadInfo.getSize()).thenReturn(5L);
+    when(uploadInfo.getTempLocation()).thenReturn("temp");
+
+    when(objectStore.uploadTempObject(any(InputStream.class), anyString(), anyString())).thenReturn(uploadInfo);
+    when(objectStore.saveUploadedObject(any(Bucket.class), eq(uploadInfo), any(RepoObject.class))).thenReturn(true);
+  }
+
+  private InputRepoObject createInputRepoObject() {
+    InputRepoObject inputRepoObject = new InputRepoObject();
+    inputRepoObject.setKey(VALID_KEY);
+    inputRepoObject.setBucketName(VALID_BUCKET);
+    inputRepoObject.setContentType("text/plain");
+    inputRepoObject.setUploadedInputStream(new ByteArrayInputStream("data1".getBytes()));
+    return inputRepoObject;
+  }
+
 }
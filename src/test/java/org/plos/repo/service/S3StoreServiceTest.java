@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.plos.repo.models.Bucket;
+import org.plos.repo.models.RepoObject;
+import org.plos.repo.service.ObjectStore.UploadInfo;
+import org.plos.repo.util.ChecksumGenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs the streamed uploads of the S3 store against an in-memory stand-in for S3.
+ */
+public class S3StoreServiceTest {
+
+  private static final String STAGING_BUCKET = "staging";
+
+  private static final int PART_SIZE = 1024;
+
+  private AmazonS3Client s3Client;
+
+  private S3StoreService s3StoreService;
+
+  // objects of the stand-in, by bucket and key
+  private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+  // parts of the multipart uploads in progress, by upload id and part number
+  private final Map<String, byte[]> parts = new ConcurrentHashMap<>();
+
+  private final AtomicInteger uploadIds = new AtomicInteger();
+
+  // times the second part of an upload fails before it is stored
+  private final AtomicInteger partFailures = new AtomicInteger();
+
+  @Before
+  public void setUp() {
+    s3Client = mock(AmazonS3Client.class);
+
+    when(s3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenAnswer(
+        new Answer<InitiateMultipartUploadResult>() {
+          @Override
+          public InitiateMultipartUploadResult answer(InvocationOnMock invocation) {
+            InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+            result.setUploadId("upload-" + uploadIds.incrementAndGet());
+            return result;
+          }
+        });
+
+    when(s3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(new Answer<UploadPartResult>() {
+      @Override
+      public UploadPartResult answer(InvocationOnMock invocation) throws Exception {
+        UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+        byte[] content = IOUtils.toByteArray(request.getInputStream());
+
+        if (request.getPartNumber() == 2 && partFailures.getAndDecrement() > 0) {
+          throw new AmazonClientException("connection reset");
+        }
+
+        assertEquals(request.getPartSize(), content.length);
+        assertEquals(request.getMd5Digest(),
+            Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(content)));
+
+        parts.put(request.getUploadId() + "/" + request.getPartNumber(), content);
+
+        UploadPartResult result = new UploadPartResult();
+        result.setPartNumber(request.getPartNumber());
+        result.setETag("etag-" + request.getPartNumber());
+        return result;
+      }
+    });
+
+    when(s3Client.completeMultipartUpload(any(CompleteMultipartUploadRequest.class))).thenAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Exception {
+        CompleteMultipartUploadRequest request = (CompleteMultipartUploadRequest) invocation.getArguments()[0];
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        int partNumber = 1;
+        for (PartETag partETag : request.getPartETags()) {
+          assertEquals(partNumber++, partETag.getPartNumber());
+          content.write(parts.remove(request.getUploadId() + "/" + partETag.getPartNumber()));
+        }
+
+        objects.put(request.getBucketName() + "/" + request.getKey(), content.toByteArray());
+        return null;
+      }
+    });
+
+    when(s3Client.copyObject(any(CopyObjectRequest.class))).thenAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) {
+        CopyObjectRequest request = (CopyObjectRequest) invocation.getArguments()[0];
+        objects.put(request.getDestinationBucketName() + "/" + request.getDestinationKey(),
+            objects.get(request.getSourceBucketName() + "/" + request.getSourceKey()));
+        return null;
+      }
+    });
+
+    doAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) {
+        objects.remove(invocation.getArguments()[0] + "/" + invocation.getArguments()[1]);
+        return null;
+      }
+    }).when(s3Client).deleteObject(anyString(), anyString());
+
+    s3StoreService = new S3StoreService(s3Client, null, STAGING_BUCKET, PART_SIZE);
+  }
+
+  private static byte[] content(int size) {
+    byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    return content;
+  }
+
+  @Test
+  public void streamAndSave() throws Exception {
+    byte[] content = content(PART_SIZE * 5 + 10);
+    String checksum = ChecksumGenerator.checksumToString(ChecksumGenerator.getDigestMessage().digest(content));
+
+    UploadInfo uploadInfo = s3StoreService.uploadTempObject(new ByteArrayInputStream(content));
+
+    assertEquals(content.length, uploadInfo.getSize().longValue());
+    assertEquals(checksum, uploadInfo.getChecksum());
+    assertArrayEquals(content, objects.get(STAGING_BUCKET + "/" + uploadInfo.getTempLocation()));
+
+    Bucket bucket = new Bucket("bucket1");
+    RepoObject repoObject = new RepoObject();
+    repoObject.setKey("key1");
+
+    assertTrue(s3StoreService.saveUploadedObject(bucket, uploadInfo, repoObject));
+
+    assertArrayEquals(content, objects.get("bucket1/" + checksum));
+    assertFalse(objects.containsKey(STAGING_BUCKET + "/" + uploadInfo.getTempLocation()));
+  }
+
+  @Test
+  public void streamEmpty() throws Exception {
+    UploadInfo uploadInfo = s3StoreService.uploadTempObject(new ByteArrayInputStream(new byte[0]));
+
+    assertEquals(0L, uploadInfo.getSize().longValue());
+    assertArrayEquals(new byte[0], objects.get(STAGING_BUCKET + "/" + uploadInfo.getTempLocation()));
+  }
+
+  @Test
+  public void streamRetriesFailedPart() throws Exception {
+    byte[] content = content(PART_SIZE * 3);
+    partFailures.set(1);
+
+    UploadInfo uploadInfo = s3StoreService.uploadTempObject(new ByteArrayInputStream(content));
+
+    assertArrayEquals(content, objects.get(STAGING_BUCKET + "/" + uploadInfo.getTempLocation()));
+  }
+
+  @Test
+  public void partBuffersBoundedAndReused() throws Exception {
+    final S3MultipartUpload.PartBuffers partBuffers = new S3MultipartUpload.PartBuffers(PART_SIZE, 1);
+    byte[] buffer = partBuffers.acquire();
+
+    FutureTask<byte[]> waiting = new FutureTask<>(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws InterruptedException {
+        return partBuffers.acquire();
+      }
+    });
+    new Thread(waiting).start();
+
+    try {
+      waiting.get(100, TimeUnit.MILLISECONDS);
+      fail("The pool should have been exhausted");
+    } catch (TimeoutException e) {
+      // expected
+    }
+
+    partBuffers.release(buffer);
+    assertSame(buffer, waiting.get(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void objectExistsWithHead() {
+    AmazonServiceException notFound = new AmazonServiceException("Not Found");
+    notFound.setStatusCode(404);
+    when(s3Client.getObjectMetadata("bucket1", "missing")).thenThrow(notFound);
+
+    RepoObject repoObject = new RepoObject();
+    repoObject.setBucketName("bucket1");
+    repoObject.setChecksum("stored");
+    assertTrue(s3StoreService.objectExists(repoObject));
+
+    repoObject.setChecksum("missing");
+    assertFalse(s3StoreService.objectExists(repoObject));
+
+    verify(s3Client, never()).getObject(anyString(), anyString());
+  }
+
+  @Test
+  public void streamAbortsAfterRetries() throws Exception {
+    partFailures.set(S3MultipartUpload.RETRIES);
+
+    try {
+      s3StoreService.uploadTempObject(new ByteArrayInputStream(content(PART_SIZE * 3)));
+      fail("A repo exception was expected");
+    } catch (RepoException e) {
+      assertEquals(RepoException.Type.ServerError, e.getType());
+    }
+
+    verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    assertTrue(objects.isEmpty());
+  }
+
+}
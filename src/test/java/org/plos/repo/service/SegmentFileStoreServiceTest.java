@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.plos.repo.models.Bucket;
+import org.plos.repo.models.RepoObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentFileStoreServiceTest {
+
+  private static final int MAX_PACKED_SIZE = 1000;
+
+  // room for about ten packed objects per segment
+  private static final int SEGMENT_SIZE = 5000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private List<String> directories;
+
+  @Before
+  public void setUp() {
+    directories = Collections.singletonList(folder.getRoot().getPath());
+  }
+
+  private SegmentFileStoreService createStore() throws Exception {
+    return new SegmentFileStoreService(directories, null, FileSystemStoreService.DEFAULT_FAN_OUT_LEVELS,
+        FileSystemStoreService.DEFAULT_RELAYOUT_RATE, MAX_PACKED_SIZE, SEGMENT_SIZE, 0.5);
+  }
+
+  private static byte[] getContent(int seed, int size) {
+    byte[] content = new byte[size];
+    new Random(seed).nextBytes(content);
+    return content;
+  }
+
+  private static RepoObject createObject(ObjectStore store, byte[] content) throws RepoException {
+    ObjectStore.UploadInfo uploadInfo = store.uploadTempObject(new ByteArrayInputStream(content));
+    assertTrue(store.saveUploadedObject(new Bucket("bucket1"), uploadInfo, null));
+
+    RepoObject repoObject = new RepoObject();
+    repoObject.setBucketName("bucket1");
+    repoObject.setChecksum(uploadInfo.getChecksum());
+    repoObject.setSize(uploadInfo.getSize());
+    return repoObject;
+  }
+
+  private static byte[] read(InputStream in) throws Exception {
+    assertNotNull(in);
+    try {
+      return IOUtils.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void packSmallContent() throws Exception {
+    SegmentFileStoreService store = createStore();
+
+    byte[] small = getContent(1, 500);
+    byte[] large = getContent(2, 2000);
+    RepoObject smallObject = createObject(store, small);
+    RepoObject largeObject = createObject(store, large);
+
+    assertTrue(store.objectExists(smallObject));
+    assertArrayEquals(small, read(store.getInputStream(smallObject)));
+    assertArrayEquals(Arrays.copyOfRange(small, 100, 150), read(store.getInputStream(smallObject, 100, 50)));
+    assertNull(store.getLocalFile(smallObject));
+    assertFalse(new File(store.getObjectLocationString(smallObject.getChecksum())).exists());
+
+    // large content gets a file of its own
+    assertArrayEquals(large, read(store.getInputStream(largeObject)));
+    assertNotNull(store.getLocalFile(largeObject));
+
+    // no upload is left behind
+    String[] names = new File(directories.get(0)).list();
+    Arrays.sort(names);
+    assertArrayEquals(new String[]{"_blobs", "_segments"}, names);
+  }
+
+  @Test
+  public void reloadIndex() throws Exception {
+    SegmentFileStoreService store = createStore();
+
+    List<RepoObject> repoObjects = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      repoObjects.add(createObject(store, getContent(i, 400)));
+    }
+    assertTrue(store.getSegmentCount() > 1);
+
+    assertTrue(store.deleteObject(repoObjects.get(0)));
+
+    store = createStore();
+
+    assertFalse(store.objectExists(repoObjects.get(0)));
+    for (int i = 1; i < 30; i++) {
+      assertArrayEquals(getContent(i, 400), read(store.getInputStream(repoObjects.get(i))));
+    }
+  }
+
+  @Test
+  public void compactAfterPurges() throws Exception {
+    SegmentFileStoreService store = createStore();
+
+    List<RepoObject> repoObjects = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      repoObjects.add(createObject(store, getContent(i, 400)));
+    }
+
+    int segmentCount = store.getSegmentCount();
+
+    // purge most of the content, which leaves the segments mostly dead
+    for (int i = 0; i < 30; i++) {
+      if (i % 5 != 0) {
+        assertTrue(store.deleteObject(repoObjects.get(i)));
+      }
+    }
+
+    // a store reopened on the same directory must not race the compactions still running
+    store.awaitCompactions();
+    assertTrue(store.getSegmentCount() < segmentCount);
+
+    for (int i = 0; i < 30; i += 5) {
+      assertArrayEquals(getContent(i, 400), read(store.getInputStream(repoObjects.get(i))));
+    }
+
+    // the compacted content is found again after a restart
+    store = createStore();
+    for (int i = 0; i < 30; i++) {
+      assertEquals(i % 5 == 0, store.objectExists(repoObjects.get(i)));
+    }
+    for (int i = 0; i < 30; i += 5) {
+      assertArrayEquals(getContent(i, 400), read(store.getInputStream(repoObjects.get(i))));
+    }
+  }
+
+}
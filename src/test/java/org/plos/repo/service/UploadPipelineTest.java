@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.service;
+
+import org.junit.Test;
+import org.plos.repo.util.ChecksumGenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class UploadPipelineTest {
+
+  private static final int BUFFER_SIZE = 1024;
+
+  private final UploadPipeline pipeline = new UploadPipeline(BUFFER_SIZE, UploadPipeline.RING_SIZE * 2);
+
+  private static byte[] content(int size) {
+    byte[] content = new byte[size];
+    new Random(size).nextBytes(content);
+    return content;
+  }
+
+  /**
+   * Returns fewer bytes than asked for, like a network stream.
+   */
+  private static InputStream trickle(byte[] content) {
+    return new ByteArrayInputStream(content) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 100));
+      }
+    };
+  }
+
+  @Test
+  public void transfer() throws Exception {
+    // many times the ring, and not a multiple of the buffer size
+    byte[] content = content(BUFFER_SIZE * UploadPipeline.RING_SIZE * 10 + 17);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    UploadPipeline.Result result = pipeline.transfer(trickle(content), Channels.newChannel(out));
+
+    assertArrayEquals(content, out.toByteArray());
+    assertEquals(content.length, result.getSize());
+    assertEquals(ChecksumGenerator.checksumToString(ChecksumGenerator.getDigestMessage().digest(content)),
+        result.getChecksum());
+    assertEquals(Base64.getEncoder().encodeToString(MessageDigest.getInstance("MD5").digest(content)),
+        result.getContentMd5());
+    assertEquals(pipeline.getPoolSize(), pipeline.getAvailableBuffers());
+  }
+
+  @Test
+  public void transferEmpty() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    UploadPipeline.Result result = pipeline.transfer(new ByteArrayInputStream(new byte[0]), Channels.newChannel(out));
+
+    assertEquals(0, out.size());
+    assertEquals(0, result.getSize());
+    assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", result.getChecksum());
+    assertEquals("1B2M2Y8AsgTpgAmY7PhCfg==", result.getContentMd5());
+  }
+
+  @Test
+  public void transferWriteFailure() throws Exception {
+    WritableByteChannel failing = new WritableByteChannel() {
+      private int writes = 0;
+
+      @Override
+      public int write(ByteBuffer src) throws IOException {
+        if (++writes > 2) {
+          throw new IOException("disk full");
+        }
+        int written = src.remaining();
+        src.position(src.limit());
+        return written;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+
+    try {
+      pipeline.transfer(new ByteArrayInputStream(content(BUFFER_SIZE * 100)), failing);
+      fail("An IOException was expected");
+    } catch (IOException e) {
+      assertEquals("disk full", e.getMessage());
+    }
+
+    assertEquals(pipeline.getPoolSize(), pipeline.getAvailableBuffers());
+  }
+
+  @Test
+  public void transferReadFailure() throws Exception {
+    InputStream failing = new InputStream() {
+      private int reads = 0;
+
+      @Override
+      public int read() throws IOException {
+        if (++reads > BUFFER_SIZE * 3) {
+          throw new IOException("connection reset");
+        }
+        return 0;
+      }
+    };
+
+    try {
+      pipeline.transfer(failing, Channels.newChannel(new ByteArrayOutputStream()));
+      fail("An IOException was expected");
+    } catch (IOException e) {
+      assertEquals("connection reset", e.getMessage());
+    }
+
+    assertEquals(pipeline.getPoolSize(), pipeline.getAvailableBuffers());
+  }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.util;
+
+import org.junit.Test;
+import org.plos.repo.service.RepoException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ByteRangeTest {
+
+  @Test
+  public void parseRanges() throws RepoException {
+    ByteRange range = ByteRange.parse("bytes=0-99", 1000);
+    assertEquals(0, range.getOffset());
+    assertEquals(100, range.getLength());
+    assertEquals("bytes 0-99/1000", range.toContentRange(1000));
+
+    range = ByteRange.parse("bytes=900-", 1000);
+    assertEquals(900, range.getOffset());
+    assertEquals(100, range.getLength());
+
+    range = ByteRange.parse("bytes=-10", 1000);
+    assertEquals(990, range.getOffset());
+    assertEquals(10, range.getLength());
+
+    // the last position is clamped to the content length
+    range = ByteRange.parse("bytes=500-5000", 1000);
+    assertEquals(999, range.getLast());
+  }
+
+  @Test
+  public void ignoredRanges() throws RepoException {
+    assertNull(ByteRange.parse(null, 1000));
+    assertNull(ByteRange.parse("items=0-10", 1000));
+    assertNull(ByteRange.parse("bytes=0-10,20-30", 1000));
+    assertNull(ByteRange.parse("bytes=10-5", 1000));
+    assertNull(ByteRange.parse("bytes=a-b", 1000));
+  }
+
+  @Test
+  public void unsatisfiableRange() {
+    try {
+      ByteRange.parse("bytes=1000-", 1000);
+      fail();
+    } catch (RepoException e) {
+      assertEquals(RepoException.Type.RangeNotSatisfiable, e.getType());
+    }
+  }
+
+}
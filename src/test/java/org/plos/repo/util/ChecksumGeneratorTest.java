@@ -23,6 +23,8 @@
 package org.plos.repo.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import java.security.MessageDigest;
 
@@ -41,4 +43,13 @@ public class ChecksumGeneratorTest {
     digest.update(input.getBytes());
     assertEquals(expected, ChecksumGenerator.checksumToString(digest.digest()));
   }
+
+  @Test
+  public void testIsValidChecksum() {
+    assertTrue(ChecksumGenerator.isValidChecksum("0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a33"));
+    assertFalse(ChecksumGenerator.isValidChecksum("0BEEC7B5EA3F0FDBC95D0DD47F3C5BC275DA8A33"));
+    assertFalse(ChecksumGenerator.isValidChecksum("0beec7b5ea3f0fdbc95d0dd47f3c5bc275da8a3"));
+    assertFalse(ChecksumGenerator.isValidChecksum("foo"));
+    assertFalse(ChecksumGenerator.isValidChecksum(null));
+  }
 }
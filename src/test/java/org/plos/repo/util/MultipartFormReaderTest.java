@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+package org.plos.repo.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class MultipartFormReaderTest {
+
+  private static final String BOUNDARY = "AaB03x";
+
+  private static InputStream body(String... parts) {
+    StringBuilder body = new StringBuilder("preamble");
+    for (String part : parts) {
+      body.append("\r\n--").append(BOUNDARY).append("\r\n").append(part);
+    }
+    body.append("\r\n--").append(BOUNDARY).append("--\r\nepilogue");
+    return new ByteArrayInputStream(body.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String field(String name, String value) {
+    return "Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n" + value;
+  }
+
+  @Test
+  public void getBoundary() {
+    assertEquals(BOUNDARY, MultipartFormReader.getBoundary("multipart/form-data; boundary=AaB03x"));
+    assertEquals("a b", MultipartFormReader.getBoundary("multipart/form-data; charset=utf-8; BOUNDARY=\"a b\""));
+    assertNull(MultipartFormReader.getBoundary("multipart/form-data"));
+    assertNull(MultipartFormReader.getBoundary(null));
+  }
+
+  @Test
+  public void readParts() throws IOException {
+    // long enough to cross the read buffer, with a line break that is not a delimiter
+    StringBuilder content = new StringBuilder();
+    while (content.length() < 200 * 1024) {
+      content.append("line of content\r\n--AaB03 not a delimiter ");
+    }
+
+    MultipartFormReader reader = new MultipartFormReader(body(
+        field("key", "k1"),
+        field("userMetadata", "{\"a\": \"é\"}"),
+        "Content-Disposition: form-data; name=\"file\"; filename=\"f.txt\"\r\nContent-Type: text/plain\r\n\r\n" + content,
+        field("empty", "")), BOUNDARY);
+
+    MultipartFormReader.Part part = reader.nextPart();
+    assertEquals("key", part.getName());
+    assertNull(part.getFileName());
+    assertEquals("k1", part.getString(100));
+
+    // a part that is not read is skipped
+    assertEquals("userMetadata", reader.nextPart().getName());
+
+    part = reader.nextPart();
+    assertEquals("file", part.getName());
+    assertEquals("f.txt", part.getFileName());
+    assertEquals("text/plain", part.getContentType());
+    assertEquals(content.toString(), IOUtils.toString(part.getInputStream(), "UTF-8"));
+
+    part = reader.nextPart();
+    assertEquals("empty", part.getName());
+    assertEquals("", part.getString(100));
+
+    assertNull(reader.nextPart());
+    assertNull(reader.nextPart());
+  }
+
+  @Test
+  public void fieldTooLong() throws IOException {
+    MultipartFormReader reader = new MultipartFormReader(body(field("key", "0123456789")), BOUNDARY);
+
+    try {
+      reader.nextPart().getString(5);
+      fail("A multipart form exception was expected.");
+    } catch (MultipartFormReader.MultipartFormException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void fieldAtLimit() throws IOException {
+    StringBuilder value = new StringBuilder();
+    while (value.length() < 20 * 1024) {
+      value.append("0123456789");
+    }
+
+    MultipartFormReader reader = new MultipartFormReader(body(field("key", value.toString()),
+        field("userMetadata", "{}")), BOUNDARY);
+
+    // longer than a read, exactly at the limit
+    assertEquals(value.toString(), reader.nextPart().getString(value.length()));
+
+    // the limit is not reserved up front
+    assertEquals("{}", reader.nextPart().getString(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void lastPart() throws IOException {
+    MultipartFormReader reader = new MultipartFormReader(body(field("file", "data")), BOUNDARY);
+    assertEquals("data", IOUtils.toString(reader.asLastPart(reader.nextPart())));
+
+    reader = new MultipartFormReader(body(field("file", "data"), field("key", "k1")), BOUNDARY);
+    try {
+      IOUtils.toString(reader.asLastPart(reader.nextPart()));
+      fail("A multipart form exception was expected.");
+    } catch (MultipartFormReader.MultipartFormException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void truncatedBody() throws IOException {
+    String body = "--" + BOUNDARY + "\r\n" + field("file", "data that never ends");
+    MultipartFormReader reader = new MultipartFormReader(
+        new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), BOUNDARY);
+
+    try {
+      IOUtils.toString(reader.nextPart().getInputStream());
+      fail("A multipart form exception was expected.");
+    } catch (MultipartFormReader.MultipartFormException e) {
+      // expected
+    }
+  }
+
+}
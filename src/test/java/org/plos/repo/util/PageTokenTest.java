@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2017 Public Library of Science
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a
+ * copy of this software and associated documentation files (the "Software"),
+ * to deal in the Software without restriction, including without limitation
+ * the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the
+ * Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING
+ * FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ */
+
+
+package org.plos.repo.util;
+
+import org.junit.Test;
+import org.plos.repo.service.RepoException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class PageTokenTest {
+
+  @Test
+  public void elementRoundTrip() throws RepoException {
+    PageToken token = PageToken.decodeElement(PageToken.afterElement(3, "a:key/with:separators", 7).encode());
+
+    assertEquals(Integer.valueOf(3), token.getBucketId());
+    assertEquals("a:key/with:separators", token.getKey());
+    assertEquals(Integer.valueOf(7), token.getVersionNumber());
+  }
+
+  @Test
+  public void idRoundTrip() throws RepoException {
+    assertEquals(Integer.valueOf(42), PageToken.decodeId(PageToken.afterId(42).encode()).getId());
+  }
+
+  @Test
+  public void nullToken() throws RepoException {
+    assertNull(PageToken.decodeElement(null));
+    assertNull(PageToken.decodeId(null));
+  }
+
+  @Test
+  public void invalidTokens() {
+    assertInvalidElement("not a token");
+    assertInvalidElement(PageToken.afterId(42).encode());
+    assertInvalidId(PageToken.afterElement(3, "key", 7).encode());
+  }
+
+  private static void assertInvalidElement(String token) {
+    try {
+      PageToken.decodeElement(token);
+      fail("A repo exception was expected");
+    } catch (RepoException e) {
+      assertEquals(RepoException.Type.InvalidPageToken, e.getType());
+    }
+  }
+
+  private static void assertInvalidId(String token) {
+    try {
+      PageToken.decodeId(token);
+      fail("A repo exception was expected");
+    } catch (RepoException e) {
+      assertEquals(RepoException.Type.InvalidPageToken, e.getType());
+    }
+  }
+
+}